@@ -34,6 +34,7 @@ import net.jcip.annotations.ThreadSafe;
 import org.glite.authz.common.model.Obligation;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.model.Result;
+import org.glite.authz.pep.server.metrics.StageLatencies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -139,6 +140,23 @@ public class ObligationService {
      * @throws ObligationProcessingException thrown if there is a problem evaluating an obligation
      */
     public void processObligations(Request request, Result result) throws ObligationProcessingException {
+        processObligations(request, result, null);
+    }
+
+    /**
+     * Processes the obligations within the effective XACML policy, recording the latency of each obligation handler
+     * as the {@link StageLatencies#OBLIGATION_STAGE_PREFIX} stage followed by the handler ID.
+     * 
+     * This method waits until a read lock is obtained for the set of registered obligation handlers.
+     * 
+     * @param request the authorization request
+     * @param result the result currently be processed
+     * @param latencies the stage latencies the handler latencies are recorded to, may be null
+     * 
+     * @throws ObligationProcessingException thrown if there is a problem evaluating an obligation
+     */
+    public void processObligations(Request request, Result result, StageLatencies latencies)
+            throws ObligationProcessingException {
         Lock readLock = rwLock.readLock();
         readLock.lock();
         try {
@@ -151,7 +169,16 @@ public class ObligationService {
                 handler = handlerItr.next();
                 if (effectiveObligations.containsKey(handler.getObligationId())) {
                     log.debug("Processing obligation {}", handler.getObligationId());
-                    handler.evaluateObligation(request, result);
+                    if (latencies == null) {
+                        handler.evaluateObligation(request, result);
+                        continue;
+                    }
+                    long startTime = System.nanoTime();
+                    try {
+                        handler.evaluateObligation(request, result);
+                    } finally {
+                        latencies.recordSince(StageLatencies.OBLIGATION_STAGE_PREFIX + handler.getId(), startTime);
+                    }
                 }
             }
         } finally {
@@ -87,6 +87,15 @@ public class AccountMapper {
         this.noPrimaryGroupNameIsError = noPrimaryGroupNameIsError;
     }
 
+    /**
+     * Gets the manager used to track and access pool accounts.
+     * 
+     * @return manager used to track and access pool accounts
+     */
+    public PoolAccountManager getPoolAccountManager() {
+        return poolAccountManager;
+    }
+
     /**
      * Maps a subject to a POSIX account.
      * 
@@ -35,6 +35,8 @@ import org.glite.authz.common.model.Subject;
 import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
 import org.glite.authz.pep.obligation.AbstractObligationHandler;
 import org.glite.authz.pep.obligation.ObligationProcessingException;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,8 +50,11 @@ import org.slf4j.LoggerFactory;
  * {@value GLiteAuthorizationProfileConstants#ID_ATTRIBUTE_PRIMARY_FQAN} and
  * {@value GLiteAuthorizationProfileConstants#ID_ATTRIBUTE_FQAN} attributes
  * found within the {@link Subject} of the authorization request.
+ * <p>
+ * The metrics of the pool account manager, if it exposes any, are exposed by
+ * this handler.
  */
-public class DFPMObligationHandler extends AbstractObligationHandler {
+public class DFPMObligationHandler extends AbstractObligationHandler implements MetricsSource {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(DFPMObligationHandler.class);
@@ -255,6 +260,14 @@ public class DFPMObligationHandler extends AbstractObligationHandler {
 	this.requireSubjectKeyInfo = requireSubjectKeyInfo;
     }
 
+    /** {@inheritDoc} */
+    public void collectMetrics(final MetricsWriter writer) {
+	PoolAccountManager poolAccountManager = accountMapper.getPoolAccountManager();
+	if (poolAccountManager instanceof MetricsSource) {
+	    ((MetricsSource) poolAccountManager).collectMetrics(writer);
+	}
+    }
+
     /**
      * Gets the primary FQAN from the request subject.
      * 
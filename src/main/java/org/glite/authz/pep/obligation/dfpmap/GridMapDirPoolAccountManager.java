@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +34,8 @@ import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.util.URIUtil;
 import org.glite.authz.common.util.Strings;
 import org.glite.authz.pep.obligation.ObligationProcessingException;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,8 +47,20 @@ import eu.emi.security.authn.x509.impl.OpensslNameUtils;
  * 
  * The mapping directory must be prepopulated with files whose names represent
  * every pool account to be managed.
+ * 
+ * The occupancy of the pools, the pool accounts leased to a subject, is
+ * exposed as metrics. Counting it reads every pool account file, the
+ * directory is thus scanned at most every {@value #OCCUPANCY_SCAN_INTERVAL}
+ * milliseconds.
  */
-public class GridMapDirPoolAccountManager implements PoolAccountManager {
+public class GridMapDirPoolAccountManager implements PoolAccountManager,
+  MetricsSource {
+
+  /** Name of the label identifying the pool in the metrics. */
+  public static final String POOL_LABEL = "pool";
+
+  /** Minimum interval, in milliseconds, between two occupancy scans: {@value} */
+  public static final long OCCUPANCY_SCAN_INTERVAL = 60000;
 
   /** Class logger. */
   private Logger log = LoggerFactory
@@ -78,6 +94,16 @@ public class GridMapDirPoolAccountManager implements PoolAccountManager {
   private final Pattern poolAccountNamePattern_ = Pattern
     .compile("^([a-zA-Z][a-zA-Z0-9._-]*?)[0-9]++$");
 
+  /**
+   * Number of pool accounts and of leased pool accounts, by pool account name
+   * prefix, as of the last occupancy scan. <code>null</code> before the first
+   * scan.
+   */
+  private Map<String, int[]> poolOccupancy_;
+
+  /** Time, in milliseconds, of the last occupancy scan. */
+  private long poolOccupancyScanTime_;
+
   private void gridmapdirSanityChecks(final File gridMapDir) {
 
     if (!gridMapDir.exists()) {
@@ -386,6 +412,65 @@ public class GridMapDirPoolAccountManager implements PoolAccountManager {
     });
   }
 
+  /** {@inheritDoc} */
+  public synchronized void collectMetrics(final MetricsWriter writer) {
+
+    long now = System.currentTimeMillis();
+    if (poolOccupancy_ == null
+      || now - poolOccupancyScanTime_ >= OCCUPANCY_SCAN_INTERVAL) {
+      poolOccupancy_ = scanPoolOccupancy();
+      poolOccupancyScanTime_ = now;
+    }
+    for (Map.Entry<String, int[]> pool : poolOccupancy_.entrySet()) {
+      writer.gauge("gridmapdir_pool_accounts", "Accounts of the pool",
+        POOL_LABEL, pool.getKey(), pool.getValue()[0]);
+      writer.gauge("gridmapdir_pool_accounts_leased",
+        "Accounts of the pool leased to a subject", POOL_LABEL, pool.getKey(),
+        pool.getValue()[1]);
+    }
+  }
+
+  /**
+   * Counts the pool accounts and the leased pool accounts, hard linked to a
+   * subject identifier file, of each pool.
+   * 
+   * @return the number of pool accounts and of leased pool accounts, by pool
+   *         account name prefix
+   */
+  private Map<String, int[]> scanPoolOccupancy() {
+
+    Map<String, int[]> occupancy = new TreeMap<String, int[]>();
+    String[] accountNames = getAccountFileNames(null);
+    if (accountNames == null) {
+      log.warn("Unable to list grid map directory {}",
+        gridMapDirectory_.getAbsolutePath());
+      return occupancy;
+    }
+    for (String accountName : accountNames) {
+      Matcher nameMatcher = poolAccountNamePattern_.matcher(accountName);
+      if (!nameMatcher.matches()) {
+        continue;
+      }
+      int[] counts = occupancy.get(nameMatcher.group(1));
+      if (counts == null) {
+        counts = new int[2];
+        occupancy.put(nameMatcher.group(1), counts);
+      }
+      counts[0]++;
+      try {
+        UnixFile account = UnixFile.forExistingFile(new File(
+          gridMapDirectory_, accountName));
+        if (account.nlink() > 1) {
+          counts[1]++;
+        }
+      } catch (RuntimeException e) {
+        log.debug("Unable to stat pool account {}: {}", accountName,
+          e.getMessage());
+      }
+    }
+    return occupancy;
+  }
+
   /**
    * @param useSecondaryGroupNamesForMapping
    *          the useSecondaryGroupNamesForMapping_ to set
@@ -27,6 +27,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A lock free gridmap dir mapping strategy.
+ * <p>
+ * Concurrent mappings are serialized by the file system (hard link creation)
+ * rather than by Java monitors, so the strategy can be used from virtual
+ * threads: only the native {@link PosixUtil} calls pin the carrier thread.
  */
 public class LockFreeMappingStrategy implements GridmapDirGetMappingStrategy {
 
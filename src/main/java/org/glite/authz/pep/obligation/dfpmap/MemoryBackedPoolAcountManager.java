@@ -20,6 +20,7 @@ package org.glite.authz.pep.obligation.dfpmap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,6 +48,12 @@ public class MemoryBackedPoolAcountManager implements PoolAccountManager {
     /** Current assigned accounts. Indexes are of the form dn{:primary_group_name{:secondary_group_name}*}? */
     private HashMap<String, String> currentAccountMappings;
 
+    /**
+     * Guards the account mappings. A lock is used rather than a synchronized method so that a virtual thread waiting
+     * for it does not pin its carrier thread.
+     */
+    private final ReentrantLock mappingLock = new ReentrantLock();
+
     /**
      * Constructor.
      * 
@@ -110,7 +117,29 @@ public class MemoryBackedPoolAcountManager implements PoolAccountManager {
     }
 
     /** {@inheritDoc} */
-    public synchronized String mapToAccount(String accountNamePrefix, X500Principal subjectDN, String primaryGroup,
+    public String mapToAccount(String accountNamePrefix, X500Principal subjectDN, String primaryGroup,
+            List<String> secondaryGroups) throws ObligationProcessingException {
+        mappingLock.lock();
+        try {
+            return mapToAccountLocked(accountNamePrefix, subjectDN, primaryGroup, secondaryGroups);
+        } finally {
+            mappingLock.unlock();
+        }
+    }
+
+    /**
+     * Maps the subject to a pool account, the mapping lock must be held by the caller.
+     * 
+     * @param accountNamePrefix pool account name prefix
+     * @param subjectDN DN of the subject
+     * @param primaryGroup name of the subject's primary group
+     * @param secondaryGroups names of the subject's secondary groups
+     * 
+     * @return the mapped account name, or <code>null</code> if no account could be mapped
+     * 
+     * @throws ObligationProcessingException thrown if the existing mapping is invalid
+     */
+    private String mapToAccountLocked(String accountNamePrefix, X500Principal subjectDN, String primaryGroup,
             List<String> secondaryGroups) throws ObligationProcessingException {
         if(accountNamePrefix.startsWith(".")){
             accountNamePrefix = accountNamePrefix.substring(1);
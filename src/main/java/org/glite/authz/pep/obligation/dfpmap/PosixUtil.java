@@ -30,7 +30,15 @@ import org.jruby.ext.posix.POSIXHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** A set of utility function for working with POSIX environments. */
+/**
+ * A set of utility function for working with POSIX environments.
+ * <p>
+ * The functions are native (JNA) calls. A virtual thread running them stays
+ * pinned to its carrier thread for the duration of the system call; the calls
+ * are short local file system operations, and the errno value is read right
+ * after the failed call, without any blocking operation in between, so it is
+ * read on the same carrier thread.
+ */
 public class PosixUtil {
 
   /** POSIX bridge implementation. */
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip;
+
+import java.util.Set;
+
+/**
+ * A policy information point declaring the request attributes it reads and
+ * writes.
+ * <p>
+ * When the PIPs are run concurrently, the request handler relies on these
+ * declarations to find the PIPs of the chain that are independent: a PIP
+ * reading or writing attributes written by a previous PIP of the chain runs
+ * after it, as well as a PIP writing attributes read by a previous PIP, or
+ * writing the same section. A PIP reading or modifying anything it does not
+ * declare must not implement this interface, it is then run alone.
+ * <p>
+ * Writing a section includes adding or replacing its entities, for instance
+ * setting the environment of the request.
+ */
+public interface AttributeAccessPolicyInformationPoint extends PolicyInformationPoint {
+
+    /**
+     * Gets the request attributes read by this PIP, including the ones
+     * deciding whether it applies to the request.
+     * 
+     * @return the request attributes read, never <code>null</code>
+     */
+    Set<RequestAttributeReference> getReadAttributes();
+
+    /**
+     * Gets the request attributes written by this PIP.
+     * 
+     * @return the request attributes written, never <code>null</code>
+     */
+    Set<RequestAttributeReference> getWrittenAttributes();
+}
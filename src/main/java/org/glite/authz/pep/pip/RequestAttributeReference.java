@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A reference to the attributes of a section of a request, read or written by
+ * a {@link AttributeAccessPolicyInformationPoint}: a single attribute ID, or
+ * the whole section.
+ */
+@Immutable
+public final class RequestAttributeReference {
+
+    /** The sections of a request. */
+    public enum Section {
+
+        /** The subjects of the request. */
+        SUBJECT,
+
+        /** The resources of the request. */
+        RESOURCE,
+
+        /** The action of the request. */
+        ACTION,
+
+        /** The environment of the request. */
+        ENVIRONMENT
+    }
+
+    /** Section of the request. */
+    private final Section section;
+
+    /** ID of the attribute, <code>null</code> for the whole section. */
+    private final String attributeId;
+
+    /**
+     * Constructor.
+     * 
+     * @param requestSection
+     *            section of the request
+     * @param id
+     *            ID of the attribute, <code>null</code> for the whole section
+     */
+    private RequestAttributeReference(Section requestSection, String id) {
+        if (requestSection == null) {
+            throw new IllegalArgumentException("Request section may not be null");
+        }
+        section= requestSection;
+        attributeId= id;
+    }
+
+    /**
+     * Creates a reference to a whole section: all its attributes, and its
+     * structure.
+     * 
+     * @param section
+     *            section of the request
+     * 
+     * @return the reference to the section
+     */
+    public static RequestAttributeReference section(Section section) {
+        return new RequestAttributeReference(section, null);
+    }
+
+    /**
+     * Creates a reference to the attributes with a given ID in a section.
+     * 
+     * @param section
+     *            section of the request
+     * @param attributeId
+     *            ID of the attributes, may not be <code>null</code>
+     * 
+     * @return the reference to the attributes
+     */
+    public static RequestAttributeReference attribute(Section section, String attributeId) {
+        if (attributeId == null) {
+            throw new IllegalArgumentException("Attribute ID may not be null");
+        }
+        return new RequestAttributeReference(section, attributeId);
+    }
+
+    /**
+     * Gets the section of the request.
+     * 
+     * @return the section of the request
+     */
+    public Section getSection() {
+        return section;
+    }
+
+    /**
+     * Gets the ID of the attributes.
+     * 
+     * @return the ID of the attributes, <code>null</code> for the whole section
+     */
+    public String getAttributeId() {
+        return attributeId;
+    }
+
+    /**
+     * Checks whether this reference and another one may designate the same
+     * attributes.
+     * 
+     * @param other
+     *            the other reference
+     * 
+     * @return <code>true</code> if both are in the same section and one of
+     *         them is the whole section, or both have the same attribute ID
+     */
+    public boolean overlaps(RequestAttributeReference other) {
+        if (section != other.section) {
+            return false;
+        }
+        return attributeId == null || other.attributeId == null || attributeId.equals(other.attributeId);
+    }
+
+    /** {@inheritDoc} */
+    public int hashCode() {
+        return 31 * section.hashCode() + (attributeId == null ? 0 : attributeId.hashCode());
+    }
+
+    /** {@inheritDoc} */
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RequestAttributeReference)) {
+            return false;
+        }
+        RequestAttributeReference other= (RequestAttributeReference) obj;
+        return section == other.section
+                && (attributeId == null ? other.attributeId == null : attributeId.equals(other.attributeId));
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        if (attributeId == null) {
+            return section.name();
+        }
+        return section.name() + ":" + attributeId;
+    }
+}
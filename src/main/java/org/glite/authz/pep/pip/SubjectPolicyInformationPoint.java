@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip;
+
+/**
+ * A policy information point whose outcome only depends on the subjects and
+ * the environment of the request, and which only modifies the subjects.
+ * <p>
+ * The request handler relies on this contract to run such a PIP once for the
+ * requests of a batch sharing the same subjects and environment, and to give
+ * each of them a copy of the resulting subjects. A PIP reading the resources
+ * or the action, or modifying anything but the subjects, must not implement
+ * this interface.
+ */
+public interface SubjectPolicyInformationPoint extends PolicyInformationPoint {
+
+}
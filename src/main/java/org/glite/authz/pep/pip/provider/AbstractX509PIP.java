@@ -23,7 +23,10 @@ import java.io.InputStream;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.security.auth.x500.X500Principal;
 
@@ -32,8 +35,13 @@ import org.glite.authz.common.model.Attribute;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.model.Subject;
 import org.glite.authz.common.util.Strings;
+import org.glite.authz.pep.pip.AttributeAccessPolicyInformationPoint;
 import org.glite.authz.pep.pip.PIPException;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
 import org.italiangrid.voms.VOMSAttribute;
 import org.italiangrid.voms.ac.VOMSACValidator;
 import org.italiangrid.voms.ac.VOMSValidationResult;
@@ -51,7 +59,8 @@ import eu.emi.security.authn.x509.impl.X500NameUtils;
 import eu.emi.security.authn.x509.proxy.ProxyUtils;
 
 /** Base class for PIPs which work with X.509 certificates. */
-public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
+public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint
+        implements AttributeAccessPolicyInformationPoint, MetricsSource {
 
     /** Class logger. */
     private static final Logger LOG= LoggerFactory.getLogger(AbstractX509PIP.class);
@@ -85,6 +94,18 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
      */
     private VOMSACValidator vomsACValidator;
 
+    /**
+     * Cache of the PKIX validation results, <code>null</code> if the results
+     * are not cached.
+     */
+    private PKIXValidationCache pkixValidationCache;
+
+    /**
+     * Cache of the VOMS AC validation results, <code>null</code> if the results
+     * are not cached.
+     */
+    private VOMSValidationCache vomsValidationCache;
+
     /**
      * The constructor for this PIP. This constructor enables support for the
      * VOMS attribute certificates.
@@ -176,6 +197,50 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
         return certChainValidator;
     }
 
+    /**
+     * Gets the cache of the PKIX validation results.
+     * 
+     * @return the cache of the PKIX validation results, <code>null</code> if
+     *         the results are not cached
+     */
+    public PKIXValidationCache getPKIXValidationCache() {
+        return pkixValidationCache;
+    }
+
+    /**
+     * Sets the cache of the PKIX validation results.
+     * 
+     * @param cache
+     *            the cache of the PKIX validation results, it must use the
+     *            X.509 certificate validator of this PIP, <code>null</code> to
+     *            not cache the results
+     */
+    public void setPKIXValidationCache(PKIXValidationCache cache) {
+        pkixValidationCache= cache;
+    }
+
+    /**
+     * Gets the cache of the VOMS AC validation results.
+     * 
+     * @return the cache of the VOMS AC validation results, <code>null</code>
+     *         if the results are not cached
+     */
+    public VOMSValidationCache getVOMSValidationCache() {
+        return vomsValidationCache;
+    }
+
+    /**
+     * Sets the cache of the VOMS AC validation results.
+     * 
+     * @param cache
+     *            the cache of the VOMS AC validation results, it must use the
+     *            VOMS AC validator of this PIP, <code>null</code> to not cache
+     *            the results
+     */
+    public void setVOMSValidationCache(VOMSValidationCache cache) {
+        vomsValidationCache= cache;
+    }
+
     /**
      * @return the VOMS AC validator
      */
@@ -186,10 +251,17 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
     /**
      * {@inheritDoc}
      * <p>
-     * Shutdown the VOMS AC validator (if any).
+     * Shutdown the VOMS AC validator (if any) and dispose of the validation
+     * caches (if any).
      */
     public void stop() throws PIPException {
         super.stop();
+        if (pkixValidationCache != null) {
+            pkixValidationCache.dispose();
+        }
+        if (vomsValidationCache != null) {
+            vomsValidationCache.dispose();
+        }
         if (vomsACValidator != null) {
             LOG.debug("Shutdown VOMS AC validator...");
             vomsACValidator.shutdown();
@@ -232,7 +304,7 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
             if (isPKIXValidationEnabled()) {
                 LOG.debug("Validating cert chain...");
 
-                ValidationResult result= certChainValidator.validate(certChain);
+                ValidationResult result= validateCertificateChain(certChain);
                 if (!result.isValid()) {
                     StringBuilder sb= new StringBuilder();
                     sb.append("PKIX validation failed: ");
@@ -337,6 +409,42 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
      */
     protected abstract boolean appliesToRequest(Request request);
 
+    /**
+     * Gets the request attributes read by {@link #appliesToRequest(Request)}.
+     * By default the whole request, implementations should narrow it down.
+     * 
+     * @return the request attributes deciding whether this PIP applies
+     */
+    protected Set<RequestAttributeReference> getApplicabilityAttributes() {
+        Set<RequestAttributeReference> attributes= new HashSet<RequestAttributeReference>();
+        for (Section section : Section.values()) {
+            attributes.add(RequestAttributeReference.section(section));
+        }
+        return attributes;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The subjects, holding the certificate chain, and the attributes read by
+     * {@link #appliesToRequest(Request)}.
+     */
+    public Set<RequestAttributeReference> getReadAttributes() {
+        Set<RequestAttributeReference> attributes= new HashSet<RequestAttributeReference>(getApplicabilityAttributes());
+        attributes.add(RequestAttributeReference.section(Section.SUBJECT));
+        return Collections.unmodifiableSet(attributes);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The attributes extracted from the certificate chain are added to the
+     * subjects.
+     */
+    public Set<RequestAttributeReference> getWrittenAttributes() {
+        return Collections.singleton(RequestAttributeReference.section(Section.SUBJECT));
+    }
+
     /**
      * Gets the certificate chain from the subject's attribute id and datatype
      * 
@@ -376,15 +484,24 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
             return null;
         }
 
-        InputStream is= new ByteArrayInputStream(pemCertChain.getBytes());
-        X509Certificate[] certChain= null;
-        try {
-            // loadCertificateChain also sort the chain!!!
-            certChain= CertificateUtils.loadCertificateChain(is, Encoding.PEM);
-        } catch (IOException e) {
-            String error= "Failed to load certificate chain from Subject: " + e.getMessage();
-            LOG.error(error);
-            throw new PIPProcessingException(error, e);
+        CertificateChainContext context= CertificateChainContext.current();
+        X509Certificate[] certChain= context == null ? null : context.getDecodedChain(pemCertChain);
+        if (certChain == null) {
+            InputStream is= new ByteArrayInputStream(pemCertChain.getBytes());
+            try {
+                // loadCertificateChain also sort the chain!!!
+                certChain= CertificateUtils.loadCertificateChain(is, Encoding.PEM);
+            } catch (IOException e) {
+                String error= "Failed to load certificate chain from Subject: " + e.getMessage();
+                LOG.error(error);
+                throw new PIPProcessingException(error, e);
+            }
+            if (context != null) {
+                context.putDecodedChain(pemCertChain, certChain);
+            }
+        }
+        else {
+            LOG.debug("Reusing certificate chain decoded by a previous PIP");
         }
 
         boolean proxyPresent= false;
@@ -462,7 +579,7 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
     protected VOMSAttribute extractVOMSAttributeCertificate(X509Certificate[] certChain)
             throws PIPProcessingException {
 
-        List<VOMSValidationResult> results= vomsACValidator.validateWithResult(certChain);
+        List<VOMSValidationResult> results= validateVOMSAttributeCertificates(certChain);
 
         if (results.isEmpty()) {
             LOG.warn("No VOMS attributes found in cert chain: {}", certChain[0].getSubjectX500Principal().getName(X500Principal.RFC2253));
@@ -486,6 +603,100 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
         return null;
     }
 
+    /**
+     * Performs the PKIX validation of a certificate chain, or reuses the result
+     * of a previous PIP which validated the same chain with the same validator
+     * for the current request.
+     * 
+     * @param certChain
+     *            the sorted certificate chain to validate
+     * @return the validation result
+     * 
+     * @see CertificateChainContext
+     */
+    protected ValidationResult validateCertificateChain(X509Certificate[] certChain) {
+        CertificateChainContext context= CertificateChainContext.current();
+        if (context == null) {
+            return validate(certChain);
+        }
+        ValidationResult result= context.getValidationResult(certChainValidator, certChain);
+        if (result == null) {
+            result= validate(certChain);
+            context.putValidationResult(certChainValidator, certChain, result);
+        }
+        else {
+            LOG.debug("Reusing PKIX validation result of a previous PIP");
+        }
+        return result;
+    }
+
+    /**
+     * Performs the PKIX validation of a certificate chain, through the cache of
+     * the validation results if there is one.
+     * 
+     * @param certChain
+     *            the sorted certificate chain to validate
+     * @return the validation result
+     */
+    private ValidationResult validate(X509Certificate[] certChain) {
+        if (pkixValidationCache != null) {
+            return pkixValidationCache.validate(certChain);
+        }
+        return certChainValidator.validate(certChain);
+    }
+
+    /** {@inheritDoc} */
+    public void collectMetrics(MetricsWriter writer) {
+        if (pkixValidationCache != null) {
+            pkixValidationCache.collectMetrics(writer);
+        }
+        if (vomsValidationCache != null) {
+            vomsValidationCache.collectMetrics(writer);
+        }
+    }
+
+    /**
+     * Validates the VOMS attribute certificates of a certificate chain, or
+     * reuses the results of a previous PIP which validated the same chain with
+     * the same VOMS AC validator for the current request.
+     * 
+     * @param certChain
+     *            cert chain which may contain VOMS attribute certificates
+     * @return the validation results, one per attribute certificate
+     * 
+     * @see CertificateChainContext
+     */
+    protected List<VOMSValidationResult> validateVOMSAttributeCertificates(X509Certificate[] certChain) {
+        CertificateChainContext context= CertificateChainContext.current();
+        if (context == null) {
+            return validateVOMS(certChain);
+        }
+        List<VOMSValidationResult> results= context.getVOMSValidationResults(vomsACValidator, certChain);
+        if (results == null) {
+            results= validateVOMS(certChain);
+            context.putVOMSValidationResults(vomsACValidator, certChain, results);
+        }
+        else {
+            LOG.debug("Reusing VOMS AC validation results of a previous PIP");
+        }
+        return results;
+    }
+
+    /**
+     * Validates the VOMS attribute certificates of a certificate chain, through
+     * the cache of the validation results if there is one.
+     * 
+     * @param certChain
+     *            cert chain which may contain VOMS attribute certificates
+     * @return the validation results, one per attribute certificate
+     */
+    private List<VOMSValidationResult> validateVOMS(X509Certificate[] certChain) {
+        if (vomsValidationCache != null) {
+            return vomsValidationCache.validate(certChain);
+        }
+        return vomsACValidator.validateWithResult(certChain);
+    }
+
     /**
      * Sort the certificate chain by issuer.
      * 
@@ -501,11 +712,23 @@ public abstract class AbstractX509PIP extends AbstractPolicyInformationPoint {
       if (certChain.length == 0)
             return new X509Certificate[0];
 
+        CertificateChainContext context= CertificateChainContext.current();
+        if (context != null) {
+            X509Certificate[] sortedChain= context.getSortedChain(certChain);
+            if (sortedChain != null) {
+                return sortedChain;
+            }
+        }
+
         LOG.trace("sorting certificate chain...");
         // Now using CANL code, instead of copying it inside this method
         try{
           
-          return CertificateHelpers.sortChain(Arrays.asList(certChain));
+          X509Certificate[] sortedChain= CertificateHelpers.sortChain(Arrays.asList(certChain));
+          if (context != null) {
+              context.putSortedChain(certChain, sortedChain);
+          }
+          return sortedChain;
         
         }catch(IOException e){
           throw new PIPProcessingException("Error sorting certificate chain: "+e.getMessage(), 
@@ -17,21 +17,15 @@
 
 package org.glite.authz.pep.pip.provider;
 
-import java.util.Arrays;
-import java.util.List;
-
 import org.glite.authz.common.config.AbstractConfigurationBuilder;
 import org.glite.authz.common.config.ConfigurationException;
 import org.glite.authz.common.config.IniConfigUtil;
 import org.glite.authz.common.config.IniSectionConfigurationParser;
 import org.glite.authz.common.util.Files;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.VOMSTrustStoreRegistry.SharedTrustStore;
 import org.ini4j.Ini;
-import org.italiangrid.voms.VOMSValidators;
 import org.italiangrid.voms.ac.VOMSACValidator;
-import org.italiangrid.voms.store.VOMSTrustStore;
-import org.italiangrid.voms.store.VOMSTrustStores;
-import org.italiangrid.voms.util.NullListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -87,6 +81,42 @@ public abstract class AbstractX509PIPIniConfigurationParser implements
     /** Default value of {@value #PERFORM_PKIX_VALIDATION_PROP}, {@value} . */
     public static final boolean DEFAULT_PERFORM_PKIX_VALIDATION= true;
 
+    /**
+     * The name of the {@value} property which gives the maximum number of PKIX
+     * validation results cached across requests, 0 to disable the cache.
+     */
+    public static final String PKIX_VALIDATION_CACHE_SIZE_PROP= "pkixValidationCacheSize";
+
+    /** Default value of {@value #PKIX_VALIDATION_CACHE_SIZE_PROP}, {@value} . */
+    public static final int DEFAULT_PKIX_VALIDATION_CACHE_SIZE= 10000;
+
+    /**
+     * The name of the {@value} property which gives the maximum age, in
+     * minutes, of a cached PKIX validation result.
+     */
+    public static final String PKIX_VALIDATION_CACHE_MAX_AGE_PROP= "pkixValidationCacheMaxAge";
+
+    /** Default value of {@value #PKIX_VALIDATION_CACHE_MAX_AGE_PROP}, {@value} . */
+    public static final int DEFAULT_PKIX_VALIDATION_CACHE_MAX_AGE= 10;
+
+    /**
+     * The name of the {@value} property which gives the maximum number of VOMS
+     * AC validation results cached across requests, 0 to disable the cache.
+     */
+    public static final String VOMS_VALIDATION_CACHE_SIZE_PROP= "vomsValidationCacheSize";
+
+    /** Default value of {@value #VOMS_VALIDATION_CACHE_SIZE_PROP}, {@value} . */
+    public static final int DEFAULT_VOMS_VALIDATION_CACHE_SIZE= 10000;
+
+    /**
+     * The name of the {@value} property which gives the maximum age, in
+     * minutes, of a cached VOMS AC validation result.
+     */
+    public static final String VOMS_VALIDATION_CACHE_MAX_AGE_PROP= "vomsValidationCacheMaxAge";
+
+    /** Default value of {@value #VOMS_VALIDATION_CACHE_MAX_AGE_PROP}, {@value} . */
+    public static final int DEFAULT_VOMS_VALIDATION_CACHE_MAX_AGE= 10;
+
     /** Class logger. */
     private static final Logger LOG= LoggerFactory.getLogger(AbstractX509PIPIniConfigurationParser.class);
 
@@ -101,6 +131,7 @@ public abstract class AbstractX509PIPIniConfigurationParser implements
         LOG.info("{}: subject proxy certificate required: {}", pipId, requireProxy);
 
         VOMSACValidator vomsValidator= null;
+        SharedTrustStore vomsTrustStore= null;
         String vomsInfoDir= IniConfigUtil.getString(iniConfig, VOMS_INFO_DIR_PROP, null);
         if (vomsInfoDir != null) {
             LOG.info("{}: VOMS info directory: {}", pipId, vomsInfoDir);
@@ -111,12 +142,10 @@ public abstract class AbstractX509PIPIniConfigurationParser implements
             LOG.info("{}: VOMS info refresh interval: {}ms", pipId, vomsInfoRefresh);
             try {
                 Files.getFile(vomsInfoDir, false, true, true, false);
-                List<String> vomsInfoDirs= Arrays.asList(vomsInfoDir);
-                // TODO: add update listener!!!!
-                VOMSTrustStore vomsTrustStore= VOMSTrustStores.newTrustStore(vomsInfoDirs, vomsInfoRefresh, NullListener.INSTANCE);
                 X509CertChainValidatorExt certChainValidator= configurationBuilder.getCertChainValidator();
-                // TODO: add validation listener!!!!
-                vomsValidator= VOMSValidators.newValidator(vomsTrustStore, certChainValidator);
+                // the PIP sections using the same vomsdir share the trust store
+                vomsTrustStore= VOMSTrustStoreRegistry.getInstance().acquire(vomsInfoDir, vomsInfoRefresh, certChainValidator);
+                vomsValidator= vomsTrustStore.getValidator();
             } catch (Exception e) {
                 throw new ConfigurationException("Unable to read VOMS AC validation information", e);
             }
@@ -129,6 +158,28 @@ public abstract class AbstractX509PIPIniConfigurationParser implements
         LOG.info("{}: perform PKIX validation on cert chains: {}", pipId, performPKIXValidation);
 
         PolicyInformationPoint pip= buildInformationPoint(iniConfig, requireProxy, configurationBuilder.getCertChainValidator(), vomsValidator, performPKIXValidation, requireCertificate);
+
+        if (performPKIXValidation && pip instanceof AbstractX509PIP) {
+            int cacheSize= IniConfigUtil.getInt(iniConfig, PKIX_VALIDATION_CACHE_SIZE_PROP, DEFAULT_PKIX_VALIDATION_CACHE_SIZE, 0, Integer.MAX_VALUE);
+            LOG.info("{}: PKIX validation cache size: {}", pipId, cacheSize);
+            if (cacheSize > 0) {
+                int cacheMaxAge= IniConfigUtil.getInt(iniConfig, PKIX_VALIDATION_CACHE_MAX_AGE_PROP, DEFAULT_PKIX_VALIDATION_CACHE_MAX_AGE, 1, Integer.MAX_VALUE);
+                LOG.info("{}: PKIX validation cache max age: {}min", pipId, cacheMaxAge);
+                AbstractX509PIP x509PIP= (AbstractX509PIP) pip;
+                // minute -> millis
+                x509PIP.setPKIXValidationCache(new PKIXValidationCache(pipId, x509PIP.getX509CertChainValidator(), cacheSize, cacheMaxAge * 60L * 1000));
+            }
+        }
+        if (vomsValidator != null && pip instanceof AbstractX509PIP) {
+            int cacheSize= IniConfigUtil.getInt(iniConfig, VOMS_VALIDATION_CACHE_SIZE_PROP, DEFAULT_VOMS_VALIDATION_CACHE_SIZE, 0, Integer.MAX_VALUE);
+            LOG.info("{}: VOMS AC validation cache size: {}", pipId, cacheSize);
+            if (cacheSize > 0) {
+                int cacheMaxAge= IniConfigUtil.getInt(iniConfig, VOMS_VALIDATION_CACHE_MAX_AGE_PROP, DEFAULT_VOMS_VALIDATION_CACHE_MAX_AGE, 1, Integer.MAX_VALUE);
+                LOG.info("{}: VOMS AC validation cache max age: {}min", pipId, cacheMaxAge);
+                // minute -> millis
+                ((AbstractX509PIP) pip).setVOMSValidationCache(new VOMSValidationCache(pipId, vomsTrustStore, cacheSize, cacheMaxAge * 60L * 1000));
+            }
+        }
         return pip;
     }
 
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidator;
+
+/**
+ * Request scoped state shared by the {@link AbstractX509PIP} PIPs processing
+ * the same request.
+ * <p>
+ * The first X.509 PIP run over a request decodes, sorts and validates the
+ * subject's certificate chain, and validates its VOMS attribute certificates.
+ * It records the outcome of each step in the context so that the following
+ * X.509 PIPs of the chain reuse it instead of doing the work again. The
+ * validation results are kept per validator instance: PIPs configured with
+ * different trust material do not share them.
+ * <p>
+ * The request handler creates a context for each request and attaches it to
+ * the thread running the PIPs. Without an attached context, the PIPs process
+ * the chain on their own. The chains held by the context are shared and must
+ * not be modified.
+ */
+@ThreadSafe
+public final class CertificateChainContext {
+
+    /** Context attached to the current thread. */
+    private static final ThreadLocal<CertificateChainContext> CURRENT= new ThreadLocal<CertificateChainContext>();
+
+    /** Decoded chains, indexed by their encoded form. */
+    private Map<Object, X509Certificate[]> decodedChains;
+
+    /** Sorted chains, indexed by the chain they were sorted from. */
+    private Map<X509Certificate[], X509Certificate[]> sortedChains;
+
+    /** PKIX validation results, indexed by validator and chain instance. */
+    private Map<Key, ValidationResult> validationResults;
+
+    /** VOMS AC validation results, indexed by validator and chain content. */
+    private Map<Key, List<VOMSValidationResult>> vomsValidationResults;
+
+    /**
+     * Gets the context attached to the current thread.
+     * 
+     * @return the context attached to the current thread, <code>null</code>
+     *         if there is none
+     */
+    static CertificateChainContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches this context to the current thread.
+     * 
+     * @return the context previously attached to the current thread, to be
+     *         given back to {@link #detach(CertificateChainContext)}, may be
+     *         <code>null</code>
+     */
+    public CertificateChainContext attach() {
+        CertificateChainContext previous= CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Detaches the context attached to the current thread, restoring the
+     * context attached before it.
+     * 
+     * @param previous
+     *            the context returned by {@link #attach()}, may be
+     *            <code>null</code>
+     */
+    public static void detach(CertificateChainContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Gets a chain decoded by a previous PIP.
+     * 
+     * @param encodedChain
+     *            the encoded chain, as read from the subject attribute
+     * 
+     * @return the decoded chain, <code>null</code> if it was not decoded yet
+     */
+    synchronized X509Certificate[] getDecodedChain(Object encodedChain) {
+        return decodedChains == null ? null : decodedChains.get(encodedChain);
+    }
+
+    /**
+     * Records a decoded chain.
+     * 
+     * @param encodedChain
+     *            the encoded chain, as read from the subject attribute
+     * @param certChain
+     *            the decoded chain
+     */
+    synchronized void putDecodedChain(Object encodedChain,
+                                      X509Certificate[] certChain) {
+        if (decodedChains == null) {
+            decodedChains= new HashMap<Object, X509Certificate[]>();
+        }
+        decodedChains.put(encodedChain, certChain);
+    }
+
+    /**
+     * Gets a chain sorted by a previous PIP.
+     * 
+     * @param certChain
+     *            the chain, as decoded
+     * 
+     * @return the sorted chain, <code>null</code> if it was not sorted yet
+     */
+    synchronized X509Certificate[] getSortedChain(X509Certificate[] certChain) {
+        return sortedChains == null ? null : sortedChains.get(certChain);
+    }
+
+    /**
+     * Records a sorted chain.
+     * 
+     * @param certChain
+     *            the chain, as decoded
+     * @param sortedChain
+     *            the sorted chain
+     */
+    synchronized void putSortedChain(X509Certificate[] certChain,
+                                     X509Certificate[] sortedChain) {
+        if (sortedChains == null) {
+            sortedChains= new IdentityHashMap<X509Certificate[], X509Certificate[]>();
+        }
+        sortedChains.put(certChain, sortedChain);
+    }
+
+    /**
+     * Gets the PKIX validation result of a chain validated by a previous PIP.
+     * 
+     * @param validator
+     *            the validator
+     * @param certChain
+     *            the validated chain
+     * 
+     * @return the validation result, <code>null</code> if the chain was not
+     *         validated yet by this validator
+     */
+    synchronized ValidationResult getValidationResult(X509CertChainValidator validator,
+                                                      X509Certificate[] certChain) {
+        return validationResults == null ? null : validationResults.get(new Key(validator, certChain));
+    }
+
+    /**
+     * Records the PKIX validation result of a chain.
+     * 
+     * @param validator
+     *            the validator
+     * @param certChain
+     *            the validated chain
+     * @param result
+     *            the validation result
+     */
+    synchronized void putValidationResult(X509CertChainValidator validator,
+                                          X509Certificate[] certChain,
+                                          ValidationResult result) {
+        if (validationResults == null) {
+            validationResults= new HashMap<Key, ValidationResult>();
+        }
+        validationResults.put(new Key(validator, certChain), result);
+    }
+
+    /**
+     * Gets the VOMS AC validation results of a chain validated by a previous
+     * PIP.
+     * 
+     * @param validator
+     *            the VOMS AC validator
+     * @param certChain
+     *            the validated chain
+     * 
+     * @return the validation results, <code>null</code> if the chain was not
+     *         validated yet by this validator
+     */
+    synchronized List<VOMSValidationResult> getVOMSValidationResults(VOMSACValidator validator,
+                                                                     X509Certificate[] certChain) {
+        return vomsValidationResults == null ? null : vomsValidationResults.get(new Key(validator, Arrays.asList(certChain)));
+    }
+
+    /**
+     * Records the VOMS AC validation results of a chain.
+     * 
+     * @param validator
+     *            the VOMS AC validator
+     * @param certChain
+     *            the validated chain
+     * @param results
+     *            the validation results
+     */
+    synchronized void putVOMSValidationResults(VOMSACValidator validator,
+                                               X509Certificate[] certChain,
+                                               List<VOMSValidationResult> results) {
+        if (vomsValidationResults == null) {
+            vomsValidationResults= new HashMap<Key, List<VOMSValidationResult>>();
+        }
+        vomsValidationResults.put(new Key(validator, Arrays.asList(certChain)), results);
+    }
+
+    /**
+     * Key of a validation result: the validator instance and the validated
+     * chain. The chain is compared with its own <code>equals</code>: by
+     * instance for an array, by content for a list.
+     */
+    private static final class Key {
+
+        /** The validator. */
+        private final Object validator;
+
+        /** The validated chain. */
+        private final Object certChain;
+
+        /**
+         * Constructor.
+         * 
+         * @param validatorInstance
+         *            the validator
+         * @param chain
+         *            the validated chain
+         */
+        private Key(Object validatorInstance, Object chain) {
+            validator= validatorInstance;
+            certChain= chain;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return 31 * System.identityHashCode(validator) + certChain.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other= (Key) obj;
+            return validator == other.validator && certChain.equals(other.certChain);
+        }
+    }
+}
@@ -47,6 +47,9 @@ import org.glite.authz.common.util.Base64;
 import org.glite.authz.common.util.LazyList;
 import org.glite.authz.common.util.Strings;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
 import org.italiangrid.voms.VOMSAttribute;
 import org.italiangrid.voms.ac.VOMSACValidator;
 import org.italiangrid.voms.ac.VOMSValidationResult;
@@ -82,7 +85,7 @@ import eu.emi.security.authn.x509.proxy.ProxyUtils;
  * @see <a href="https://twiki.cnaf.infn.it/cgi-bin/twiki/view/VOMS">VOMS
  *      website</a>
  */
-public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP {
+public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP implements SubjectPolicyInformationPoint {
 
     static {
         /* add BouncyCastle security provider if not already done */
@@ -235,6 +238,16 @@ public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The profile identifier attribute of the environment.
+     */
+    protected Set<RequestAttributeReference> getApplicabilityAttributes() {
+        return Collections.singleton(RequestAttributeReference.attribute(Section.ENVIRONMENT,
+                                                                         CommonXACMLAuthorizationProfileConstants.ID_ATTRIBUTE_PROFILE_ID));
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -425,11 +438,10 @@ public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP {
      */
     private List<VOMSAttribute> extractVOMSAttributes(
             X509Certificate[] certChain) {
-        VOMSACValidator validator= getVOMSACValidator();
         String x509Subject= certChain[0].getSubjectX500Principal().getName(X500Principal.RFC2253);
         LOG.debug("Validating VOMS AC for {}",x509Subject);
         
-        List<VOMSValidationResult> results= validator.validateWithResult(certChain);
+        List<VOMSValidationResult> results= validateVOMSAttributeCertificates(certChain);
 
         if (results.isEmpty()) {
             LOG.warn("No VOMS attributes found in cert chain: {}",x509Subject);
@@ -476,48 +488,33 @@ public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP {
      */
     protected X509Certificate[] extractCertificateChain(Subject subject)
             throws PIPProcessingException {
-        List<X509Certificate> certChain= new ArrayList<X509Certificate>();
+        List<Object> encodedCertChain= new ArrayList<Object>();
         for (Attribute attribute : subject.getAttributes()) {
             // check attribute Id and datatype
             if (Strings.safeEquals(attribute.getId(),
                                    getCertificateAttributeId())
                     && Strings.safeEquals(attribute.getDataType(),
                                           getCertificateAttributeDatatype())) {
-                // each value is a base64 encoded DER certificate string
-                for (Object value : attribute.getValues()) {
-                    // Base64.decode returns null on error!!!
-                    byte[] derBytes= Base64.decode((String) value);
-                    if (derBytes==null) {
-                        String error= "Fails to decode base64 encoded DER certificate block";
-                        if (LOG.isDebugEnabled()) {
-                            LOG.error(error + ": " + value.toString());
-                        }
-                        else {
-                            LOG.error(error);
-                        }
-                        throw new PIPProcessingException(error);                        
-                    }
-                    BufferedInputStream bis= new BufferedInputStream(new ByteArrayInputStream(derBytes));
-                    try {
-                        X509Certificate x509= (X509Certificate) cf_.generateCertificate(bis);
-                        // LOG.trace("X.509 cert {} decoded ",
-                        // x509.getSubjectX500Principal().getName());
-                        certChain.add(x509);
-                    } catch (CertificateException e) {
-                        String error= "Fails to generate the X.509 certificate: "
-                                + e.getMessage();
-                        LOG.error(error);
-                        throw new PIPProcessingException(error, e);
-                    }
-                }
-
+                encodedCertChain.addAll(attribute.getValues());
             }
         }
 
-        if (certChain.isEmpty()) {
+        if (encodedCertChain.isEmpty()) {
             LOG.debug("No attribute: {} datatype: {} found in Subject",getCertificateAttributeId(),getCertificateAttributeDatatype());
             return null;
         }
+
+        CertificateChainContext context= CertificateChainContext.current();
+        X509Certificate[] certChain= context == null ? null : context.getDecodedChain(encodedCertChain);
+        if (certChain == null) {
+            certChain= decodeCertificateChain(encodedCertChain);
+            if (context != null) {
+                context.putDecodedChain(encodedCertChain, certChain);
+            }
+        }
+        else {
+            LOG.debug("Reusing certificate chain decoded by a previous PIP");
+        }
         
         boolean proxyPresent= false;
         for (X509Certificate cert : certChain) {
@@ -536,6 +533,48 @@ public class CommonXACMLAuthorizationProfilePIP extends AbstractX509PIP {
             return null;
         }
 
+        return certChain;
+    }
+
+    /**
+     * Decodes the certificates of a chain.
+     * 
+     * @param encodedCertChain
+     *            the base64 encoded DER certificates
+     * @return the decoded certificate chain
+     * @throws PIPProcessingException
+     *             thrown if a certificate is not properly encoded
+     */
+    private X509Certificate[] decodeCertificateChain(List<Object> encodedCertChain)
+            throws PIPProcessingException {
+        List<X509Certificate> certChain= new ArrayList<X509Certificate>();
+        // each value is a base64 encoded DER certificate string
+        for (Object value : encodedCertChain) {
+            // Base64.decode returns null on error!!!
+            byte[] derBytes= Base64.decode((String) value);
+            if (derBytes==null) {
+                String error= "Fails to decode base64 encoded DER certificate block";
+                if (LOG.isDebugEnabled()) {
+                    LOG.error(error + ": " + value.toString());
+                }
+                else {
+                    LOG.error(error);
+                }
+                throw new PIPProcessingException(error);                        
+            }
+            BufferedInputStream bis= new BufferedInputStream(new ByteArrayInputStream(derBytes));
+            try {
+                X509Certificate x509= (X509Certificate) cf_.generateCertificate(bis);
+                // LOG.trace("X.509 cert {} decoded ",
+                // x509.getSubjectX500Principal().getName());
+                certChain.add(x509);
+            } catch (CertificateException e) {
+                String error= "Fails to generate the X.509 certificate: "
+                        + e.getMessage();
+                LOG.error(error);
+                throw new PIPProcessingException(error, e);
+            }
+        }
         return certChain.toArray(new X509Certificate[certChain.size()]);
     }
 
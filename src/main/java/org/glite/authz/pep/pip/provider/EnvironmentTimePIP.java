@@ -17,7 +17,10 @@
 
 package org.glite.authz.pep.pip.provider;
 
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TimeZone;
 
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -30,14 +33,18 @@ import net.jcip.annotations.ThreadSafe;
 import org.glite.authz.common.model.Attribute;
 import org.glite.authz.common.model.Environment;
 import org.glite.authz.common.model.Request;
+import org.glite.authz.pep.pip.AttributeAccessPolicyInformationPoint;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
 
 /**
  * A PIP the adds the time (in UTC), at invocation, as the environment variables
  * current-time, current-date, and current-dateTime.
  */
 @ThreadSafe
-public class EnvironmentTimePIP extends AbstractPolicyInformationPoint {
+public class EnvironmentTimePIP extends AbstractPolicyInformationPoint implements
+        AttributeAccessPolicyInformationPoint {
 
     /** Name of the current time attribute. */
     public static final String CURRENT_TIME_ATTRIB_NAME= "urn:oasis:names:tc:xacml:1.0:environment:current-time";
@@ -48,6 +55,11 @@ public class EnvironmentTimePIP extends AbstractPolicyInformationPoint {
     /** Name of the current date/time attribute. */
     public static final String CURRENT_DATETIME_ATTRIB_NAME= "urn:oasis:names:tc:xacml:1.0:environment:current-dateTime";
 
+    /** Attributes written by the PIP. */
+    private static final Set<RequestAttributeReference> WRITTEN_ATTRIBUTES= environmentAttributes(CURRENT_TIME_ATTRIB_NAME,
+                                                                                                  CURRENT_DATE_ATTRIB_NAME,
+                                                                                                  CURRENT_DATETIME_ATTRIB_NAME);
+
     /** XML calendar data type factory. */
     private DatatypeFactory xmlCalendarFactory;
 
@@ -79,6 +91,36 @@ public class EnvironmentTimePIP extends AbstractPolicyInformationPoint {
         this.useUTC= useUTC;
     }
 
+    /**
+     * Creates the references to environment attributes.
+     * 
+     * @param attributeIds
+     *            IDs of the attributes
+     * 
+     * @return the immutable set of references
+     */
+    private static Set<RequestAttributeReference> environmentAttributes(String... attributeIds) {
+        Set<RequestAttributeReference> attributes= new HashSet<RequestAttributeReference>();
+        for (String attributeId : attributeIds) {
+            attributes.add(RequestAttributeReference.attribute(Section.ENVIRONMENT, attributeId));
+        }
+        return Collections.unmodifiableSet(attributes);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The time is not read from the request.
+     */
+    public Set<RequestAttributeReference> getReadAttributes() {
+        return Collections.emptySet();
+    }
+
+    /** {@inheritDoc} */
+    public Set<RequestAttributeReference> getWrittenAttributes() {
+        return WRITTEN_ATTRIBUTES;
+    }
+
     /**
      * {@inheritDoc}
      * <p>
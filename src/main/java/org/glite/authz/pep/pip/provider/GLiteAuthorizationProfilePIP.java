@@ -24,6 +24,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.security.auth.x500.X500Principal;
 
@@ -33,6 +34,9 @@ import org.glite.authz.common.model.Environment;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
 import org.italiangrid.voms.VOMSAttribute;
 import org.italiangrid.voms.ac.VOMSACValidator;
 import org.slf4j.Logger;
@@ -65,7 +69,7 @@ import eu.emi.security.authn.x509.X509CertChainValidator;
  * @see <a href="https://twiki.cnaf.infn.it/cgi-bin/twiki/view/VOMS">VOMS
  *      website</a>
  */
-public class GLiteAuthorizationProfilePIP extends AbstractX509PIP {
+public class GLiteAuthorizationProfilePIP extends AbstractX509PIP implements SubjectPolicyInformationPoint {
 
     /** List of accepted profile IDs, if <code>null</code> accept all profile Id */
     private List<String> acceptedProfileIds_= null;
@@ -192,6 +196,16 @@ public class GLiteAuthorizationProfilePIP extends AbstractX509PIP {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The profile identifier attribute of the environment.
+     */
+    protected Set<RequestAttributeReference> getApplicabilityAttributes() {
+        return Collections.singleton(RequestAttributeReference.attribute(Section.ENVIRONMENT,
+                                                                         GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_PROFILE_ID));
+    }
+
     /** {@inheritDoc} */
     protected String getCertificateAttributeId() {
         return Attribute.ID_SUB_KEY_INFO;
@@ -25,6 +25,7 @@ import org.glite.authz.common.model.Subject;
 import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
 import org.glite.authz.common.util.LazyList;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,7 +43,8 @@ import eu.emi.security.authn.x509.impl.OpensslNameUtils;
  * data type.
  * 
  */
-public final class OpenSSLSubjectPIP extends AbstractPolicyInformationPoint {
+public final class OpenSSLSubjectPIP extends AbstractPolicyInformationPoint implements
+        SubjectPolicyInformationPoint {
 
     /** Class logger. */
     private static final Logger LOG= LoggerFactory.getLogger(OpenSSLSubjectPIP.class);
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidator;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * Caches the successful PKIX validation results of certificate chains across
+ * requests.
+ * <p>
+ * The results are indexed by the SHA-256 digest of the DER encoded
+ * certificates of the chain. A result is kept at most for the configured
+ * maximum age, and never after the earliest expiration date of the chain
+ * certificates. If the validator reloads its trust anchors, CRLs or namespaces
+ * periodically, the whole cache is invalidated on each reload, so that a
+ * revoked certificate is not accepted after the validator has learnt about
+ * the revocation. A result computed while the validator reloaded is not
+ * cached, as it may predate the reload. Failed validations are not cached: they are usually caused
+ * by a misconfiguration or a transient condition, and fixing it must take
+ * effect at once.
+ */
+@ThreadSafe
+public class PKIXValidationCache implements MetricsSource {
+
+    /** Label identifying the PIP in the metrics. */
+    public static final String PIP_LABEL= "pip";
+
+    /** Class logger. */
+    private static final Logger LOG= LoggerFactory.getLogger(PKIXValidationCache.class);
+
+    /** ID of the PIP using the cache. */
+    private final String pipId;
+
+    /** The validator whose results are cached. */
+    private final X509CertChainValidator validator;
+
+    /** Maximum age, in milliseconds, of a cached result. */
+    private final long maxAge;
+
+    /** The cached results. */
+    private final Cache<HashCode, CachedResult> cache;
+
+    /** Invalidates the cache when the validator reloads its trust material. */
+    private final StoreUpdateListener updateListener;
+
+    /** Number of validations answered from the cache. */
+    private final AtomicLong hits= new AtomicLong();
+
+    /** Number of validations performed by the validator. */
+    private final AtomicLong misses= new AtomicLong();
+
+    /**
+     * Number of invalidations caused by a trust material reload, incremented
+     * before the results are removed.
+     */
+    private final AtomicLong invalidations= new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param pip
+     *            ID of the PIP using the cache
+     * @param chainValidator
+     *            the validator whose results are cached
+     * @param maximumSize
+     *            maximum number of cached results, must be greater than zero
+     * @param maximumAge
+     *            maximum age, in milliseconds, of a cached result, must be
+     *            greater than zero
+     */
+    public PKIXValidationCache(String pip, X509CertChainValidator chainValidator,
+                               int maximumSize, long maximumAge) {
+        this(pip, chainValidator, maximumSize, maximumAge, Ticker.systemTicker());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pip
+     *            ID of the PIP using the cache
+     * @param chainValidator
+     *            the validator whose results are cached
+     * @param maximumSize
+     *            maximum number of cached results, must be greater than zero
+     * @param maximumAge
+     *            maximum age, in milliseconds, of a cached result, must be
+     *            greater than zero
+     * @param ticker
+     *            time source used to remove the results
+     */
+    PKIXValidationCache(String pip, X509CertChainValidator chainValidator,
+                        int maximumSize, long maximumAge, Ticker ticker) {
+        if (chainValidator == null) {
+            throw new IllegalArgumentException("Certificate chain validator may not be null");
+        }
+        if (maximumSize < 1 || maximumAge < 1) {
+            throw new IllegalArgumentException("Maximum cache size and age must be greater than zero");
+        }
+        pipId= pip;
+        validator= chainValidator;
+        maxAge= maximumAge;
+        // maintenance is done by the calling threads, no background thread
+        cache= Caffeine.newBuilder().maximumSize(maximumSize).expireAfter(new ResultExpiry()).ticker(ticker).executor(MoreExecutors.directExecutor()).recordStats().<HashCode, CachedResult> build();
+
+        if (validator instanceof X509CertChainValidatorExt) {
+            updateListener= new StoreUpdateListener() {
+                public void loadingNotification(String location, String type,
+                                                Severity level, Exception cause) {
+                    invalidate(location);
+                }
+            };
+            ((X509CertChainValidatorExt) validator).addUpdateListener(updateListener);
+        }
+        else {
+            updateListener= null;
+            LOG.warn("{}: the certificate chain validator does not notify its trust material reloads, cached PKIX validation results only expire after {}ms",
+                     pipId, maxAge);
+        }
+    }
+
+    /**
+     * Validates a certificate chain, or gets its cached validation result.
+     * 
+     * @param certChain
+     *            the sorted certificate chain to validate
+     * @return the validation result
+     */
+    public ValidationResult validate(X509Certificate[] certChain) {
+        HashCode key= fingerprint(certChain);
+        if (key != null) {
+            CachedResult cached= cache.getIfPresent(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.result;
+            }
+        }
+        misses.incrementAndGet();
+
+        final long generation= invalidations.get();
+        ValidationResult result= validator.validate(certChain);
+        if (key != null && result.isValid()) {
+            long lifetime= Math.min(maxAge, earliestNotAfter(certChain) - System.currentTimeMillis());
+            if (lifetime > 0) {
+                final CachedResult computed= new CachedResult(result, lifetime);
+                cache.asMap().compute(key, new BiFunction<HashCode, CachedResult, CachedResult>() {
+                    public CachedResult apply(HashCode k, CachedResult current) {
+                        // a reload since the validation: the result may be
+                        // stale, and a reload after the insertion removes it
+                        return invalidations.get() == generation ? computed : current;
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all the cached results.
+     * 
+     * @param location
+     *            location of the reloaded trust material, for logging
+     */
+    private void invalidate(String location) {
+        invalidations.incrementAndGet();
+        if (cache.estimatedSize() > 0) {
+            LOG.debug("{}: trust material {} reloaded, invalidating {} cached PKIX validation results",
+                      pipId, location, cache.estimatedSize());
+        }
+        cache.invalidateAll();
+    }
+
+    /**
+     * Gets the number of cached results.
+     * 
+     * @return approximate number of cached results
+     */
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Removes the cached results and stops listening to the validator's
+     * reloads.
+     */
+    public void dispose() {
+        if (updateListener != null) {
+            ((X509CertChainValidatorExt) validator).removeUpdateListener(updateListener);
+        }
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /** {@inheritDoc} */
+    public void collectMetrics(MetricsWriter writer) {
+        writer.counter("pkix_validation_cache_hits_total",
+                       "PKIX validations answered from the cache",
+                       PIP_LABEL, pipId, hits.get());
+        writer.counter("pkix_validation_cache_misses_total",
+                       "PKIX validations performed by the validator",
+                       PIP_LABEL, pipId, misses.get());
+        writer.counter("pkix_validation_cache_evictions_total",
+                       "PKIX validation results evicted, by size or expiration",
+                       PIP_LABEL, pipId, cache.stats().evictionCount());
+        writer.counter("pkix_validation_cache_invalidations_total",
+                       "PKIX validation cache invalidations on trust material reload",
+                       PIP_LABEL, pipId, invalidations.get());
+        writer.gauge("pkix_validation_cache_size",
+                     "Cached PKIX validation results",
+                     PIP_LABEL, pipId, cache.estimatedSize());
+    }
+
+    /**
+     * Computes the SHA-256 digest of the DER encoded certificates of a chain.
+     * 
+     * @param certChain
+     *            the certificate chain
+     * @return the digest of the chain, <code>null</code> if a certificate can
+     *         not be encoded
+     */
+    static HashCode fingerprint(X509Certificate[] certChain) {
+        Hasher hasher= Hashing.sha256().newHasher();
+        try {
+            for (X509Certificate cert : certChain) {
+                byte[] encoded= cert.getEncoded();
+                // length prefix: the concatenation of two chains is not ambiguous
+                hasher.putInt(encoded.length);
+                hasher.putBytes(encoded);
+            }
+        } catch (CertificateEncodingException e) {
+            LOG.debug("Unable to encode certificate, PKIX validation result not cached", e);
+            return null;
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Gets the earliest expiration date of the certificates of a chain.
+     * 
+     * @param certChain
+     *            the certificate chain
+     * @return the earliest expiration date, in milliseconds since the epoch
+     */
+    private static long earliestNotAfter(X509Certificate[] certChain) {
+        long notAfter= Long.MAX_VALUE;
+        for (X509Certificate cert : certChain) {
+            notAfter= Math.min(notAfter, cert.getNotAfter().getTime());
+        }
+        return notAfter;
+    }
+
+    /** A cached validation result and its lifetime. */
+    private static final class CachedResult {
+
+        /** The validation result. */
+        private final ValidationResult result;
+
+        /** Lifetime, in milliseconds, of the result in the cache. */
+        private final long lifetime;
+
+        /**
+         * Constructor.
+         * 
+         * @param validationResult
+         *            the validation result
+         * @param resultLifetime
+         *            lifetime, in milliseconds, of the result in the cache
+         */
+        private CachedResult(ValidationResult validationResult,
+                             long resultLifetime) {
+            result= validationResult;
+            lifetime= resultLifetime;
+        }
+    }
+
+    /** Removes the results after their lifetime. */
+    private static final class ResultExpiry implements
+            Expiry<HashCode, CachedResult> {
+
+        /** {@inheritDoc} */
+        public long expireAfterCreate(HashCode key, CachedResult value,
+                                      long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(value.lifetime);
+        }
+
+        /** {@inheritDoc} */
+        public long expireAfterUpdate(HashCode key, CachedResult value,
+                                      long currentTime, long currentDuration) {
+            return TimeUnit.MILLISECONDS.toNanos(value.lifetime);
+        }
+
+        /** {@inheritDoc} */
+        public long expireAfterRead(HashCode key, CachedResult value,
+                                    long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
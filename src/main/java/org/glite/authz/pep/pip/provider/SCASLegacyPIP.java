@@ -19,8 +19,10 @@ package org.glite.authz.pep.pip.provider;
 
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.security.auth.x500.X500Principal;
 
@@ -29,6 +31,8 @@ import org.glite.authz.common.model.Attribute;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.model.Subject;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
 import org.italiangrid.voms.VOMSAttribute;
 import org.italiangrid.voms.ac.VOMSACValidator;
 import org.slf4j.Logger;
@@ -55,7 +59,7 @@ import eu.emi.security.authn.x509.impl.OpensslNameUtils;
  *      website</a>
  * @deprecated Legacy profile, do not use it.
  */
-public class SCASLegacyPIP extends AbstractX509PIP {
+public class SCASLegacyPIP extends AbstractX509PIP implements SubjectPolicyInformationPoint {
 
     /**
      * The ID of the subject attribute, {@value} , containing the end-entity
@@ -184,6 +188,15 @@ public class SCASLegacyPIP extends AbstractX509PIP {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Nothing but the subjects, already read by the PIP.
+     */
+    protected Set<RequestAttributeReference> getApplicabilityAttributes() {
+        return Collections.emptySet();
+    }
+
     /**
      * Processes one certificate chain and adds the information to the subjects
      * in the request.
@@ -17,6 +17,8 @@
 
 package org.glite.authz.pep.pip.provider;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -28,11 +30,14 @@ import org.glite.authz.common.model.Environment;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.model.Resource;
 import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.AttributeAccessPolicyInformationPoint;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
 
 /** A PIP that provides a static set of attributes to a {@link Request}. */
 @ThreadSafe
-public class StaticPIP extends AbstractPolicyInformationPoint {
+public class StaticPIP extends AbstractPolicyInformationPoint implements AttributeAccessPolicyInformationPoint {
 
     /** Action attributes to be added to the request. */
     private List<Attribute> actionAttributes;
@@ -118,6 +123,46 @@ public class StaticPIP extends AbstractPolicyInformationPoint {
         addAttributesToAllSubjects = addAll;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The static attributes do not depend on the request.
+     */
+    public Set<RequestAttributeReference> getReadAttributes() {
+        return Collections.emptySet();
+    }
+
+    /** {@inheritDoc} */
+    public Set<RequestAttributeReference> getWrittenAttributes() {
+        Set<RequestAttributeReference> written = new HashSet<RequestAttributeReference>();
+        addReferences(written, Section.ACTION, actionAttributes);
+        addReferences(written, Section.ENVIRONMENT, environmentAttributes);
+        addReferences(written, Section.RESOURCE, resourceAttributes);
+        addReferences(written, Section.SUBJECT, subjectAttributes);
+        return Collections.unmodifiableSet(written);
+    }
+
+    /**
+     * Adds the references to the given attributes of a section.
+     * 
+     * @param references the references to complete
+     * @param section the section of the attributes
+     * @param attributes the attributes, may be <code>null</code>
+     */
+    private static void addReferences(Set<RequestAttributeReference> references, Section section,
+            List<Attribute> attributes) {
+        if (attributes == null) {
+            return;
+        }
+        for (Attribute attribute : attributes) {
+            if (attribute.getId() == null) {
+                references.add(RequestAttributeReference.section(section));
+            } else {
+                references.add(RequestAttributeReference.attribute(section, attribute.getId()));
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     public boolean populateRequest(Request request) throws PIPProcessingException {
         if (actionAttributes != null && !actionAttributes.isEmpty()) {
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.italiangrid.voms.VOMSValidators;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.store.LSCInfo;
+import org.italiangrid.voms.store.VOMSTrustStore;
+import org.italiangrid.voms.store.VOMSTrustStoreStatusListener;
+import org.italiangrid.voms.store.VOMSTrustStores;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * Shares the VOMS trust stores and AC validators between the X.509 PIPs.
+ * <p>
+ * The PIP sections pointing at the same 'vomsdir' with the same refresh
+ * interval, and using the same certificate chain validator, get the same trust
+ * store and validator: the 'vomsdir' is loaded once, by a single refresh
+ * timer, and kept once in memory. The validators handed out are reference
+ * counted: shutting one down releases the reference of the PIP, and the trust
+ * store and validator are only shut down when the last PIP using them is
+ * stopped. A configuration reload thus reuses the trust stores still in use.
+ * The trust store notifies its reloads to the listeners of the PIPs, such as
+ * their VOMS validation caches.
+ */
+@ThreadSafe
+public final class VOMSTrustStoreRegistry implements MetricsSource {
+
+    /** Label identifying the 'vomsdir' in the metrics. */
+    public static final String VOMS_DIR_LABEL= "voms_dir";
+
+    /** Class logger. */
+    private static final Logger LOG= LoggerFactory.getLogger(VOMSTrustStoreRegistry.class);
+
+    /** The registry of the daemon. */
+    private static final VOMSTrustStoreRegistry INSTANCE= new VOMSTrustStoreRegistry();
+
+    /** The shared trust stores, indexed by 'vomsdir', refresh and validator. */
+    private final Map<Key, SharedTrustStore> trustStores= new LinkedHashMap<Key, SharedTrustStore>();
+
+    /** Constructor. */
+    VOMSTrustStoreRegistry() {
+    }
+
+    /**
+     * Gets the registry of the daemon.
+     * 
+     * @return the registry of the daemon
+     */
+    public static VOMSTrustStoreRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a reference to the trust store and validator of a 'vomsdir',
+     * loading them if no PIP uses them yet.
+     * 
+     * @param vomsInfoDir
+     *            the 'vomsdir' directory
+     * @param refreshPeriod
+     *            refresh period, in milliseconds, of the trust store
+     * @param certChainValidator
+     *            the validator of the certificate chains holding the ACs
+     * 
+     * @return the shared trust store, its validator must be shut down once no
+     *         longer used
+     * 
+     * @throws IOException
+     *             thrown if the 'vomsdir' path can not be resolved
+     */
+    public synchronized SharedTrustStore acquire(String vomsInfoDir,
+                                                 int refreshPeriod,
+                                                 X509CertChainValidatorExt certChainValidator)
+            throws IOException {
+        String directory= new File(vomsInfoDir).getCanonicalPath();
+        Key key= new Key(directory, refreshPeriod, certChainValidator);
+        SharedTrustStore trustStore= trustStores.get(key);
+        if (trustStore == null) {
+            trustStore= new SharedTrustStore(this, key);
+            trustStores.put(key, trustStore);
+        }
+        else {
+            trustStore.reuses++;
+            LOG.info("Sharing the VOMS trust store of {} (refresh {}ms), saved {}ms of loading and about {} bytes of heap",
+                     directory, refreshPeriod, TimeUnit.NANOSECONDS.toMillis(trustStore.loadTime), trustStore.heapUsed);
+        }
+        trustStore.references++;
+        return trustStore;
+    }
+
+    /**
+     * Releases a reference to a shared trust store, shutting it down if it was
+     * the last one.
+     * 
+     * @param trustStore
+     *            the shared trust store
+     */
+    private synchronized void release(SharedTrustStore trustStore) {
+        if (trustStore.references == 0) {
+            LOG.warn("VOMS validator of {} already shut down", trustStore.key.directory);
+            return;
+        }
+        trustStore.references--;
+        if (trustStore.references == 0) {
+            LOG.debug("Shutdown VOMS trust store and validator of {}", trustStore.key.directory);
+            trustStores.remove(trustStore.key);
+            trustStore.delegate.shutdown();
+        }
+    }
+
+    /**
+     * Gets the number of shared trust stores in use.
+     * 
+     * @return number of trust stores in use
+     */
+    public synchronized int size() {
+        return trustStores.size();
+    }
+
+    /** {@inheritDoc} */
+    public void collectMetrics(MetricsWriter writer) {
+        List<SharedTrustStore> snapshot;
+        synchronized (this) {
+            snapshot= new ArrayList<SharedTrustStore>(trustStores.values());
+        }
+        for (SharedTrustStore trustStore : snapshot) {
+            String directory= trustStore.key.directory;
+            writer.gauge("voms_trust_store_references",
+                         "PIPs using the VOMS trust store",
+                         VOMS_DIR_LABEL, directory, trustStore.getReferences());
+            writer.gauge("voms_trust_store_last_reload_timestamp_seconds",
+                         "Time the last reload of the VOMS trust store started",
+                         VOMS_DIR_LABEL, directory, trustStore.getLastReloadTime() / 1000.0);
+            writer.gauge("voms_trust_store_lsc_files",
+                         "LSC files loaded in the VOMS trust store",
+                         VOMS_DIR_LABEL, directory, trustStore.getLSCCount());
+            writer.gauge("voms_trust_store_aa_certificates",
+                         "VOMS AA certificates loaded in the VOMS trust store",
+                         VOMS_DIR_LABEL, directory, trustStore.trustStore.getLocalAACertificates().size());
+            writer.gauge("voms_trust_store_load_seconds",
+                         "Duration of the initial load of the VOMS trust store",
+                         VOMS_DIR_LABEL, directory, trustStore.loadTime / 1e9);
+            writer.counter("voms_trust_store_reuses_total",
+                           "PIP sections sharing an already loaded VOMS trust store",
+                           VOMS_DIR_LABEL, directory, trustStore.getReuses());
+            writer.gauge("voms_trust_store_saved_heap_bytes",
+                         "Estimated heap saved by sharing the VOMS trust store",
+                         VOMS_DIR_LABEL, directory, trustStore.getReuses() * trustStore.heapUsed);
+        }
+    }
+
+    /**
+     * A VOMS trust store and its validator, shared by the PIPs using the same
+     * 'vomsdir'.
+     */
+    @ThreadSafe
+    public static final class SharedTrustStore {
+
+        /** The registry owning the trust store. */
+        private final VOMSTrustStoreRegistry registry;
+
+        /** The registry key of the trust store. */
+        private final Key key;
+
+        /** The trust store. */
+        private final VOMSTrustStore trustStore;
+
+        /** The validator using the trust store. */
+        private final VOMSACValidator delegate;
+
+        /** The reference counted validator handed out to the PIPs. */
+        private final VOMSACValidator validator;
+
+        /** The listeners notified of the trust store reloads. */
+        private final List<VOMSTrustStoreStatusListener> statusListeners= new CopyOnWriteArrayList<VOMSTrustStoreStatusListener>();
+
+        /**
+         * Time, in milliseconds since the epoch, the last reload of the trust
+         * store started.
+         */
+        private volatile long lastReloadTime;
+
+        /** Duration, in nanoseconds, of the initial load of the trust store. */
+        private final long loadTime;
+
+        /** Estimated heap, in bytes, used by the trust store. */
+        private final long heapUsed;
+
+        /** Number of PIPs using the trust store, guarded by the registry. */
+        private int references;
+
+        /** Number of times the trust store was reused, guarded by the registry. */
+        private int reuses;
+
+        /**
+         * Constructor. Loads the trust store.
+         * 
+         * @param owner
+         *            the registry owning the trust store
+         * @param registryKey
+         *            the registry key of the trust store
+         */
+        private SharedTrustStore(VOMSTrustStoreRegistry owner, Key registryKey) {
+            registry= owner;
+            key= registryKey;
+
+            MemoryMXBean memory= ManagementFactory.getMemoryMXBean();
+            long heapBefore= memory.getHeapMemoryUsage().getUsed();
+            long startTime= System.nanoTime();
+            trustStore= VOMSTrustStores.newTrustStore(Arrays.asList(key.directory), key.refreshPeriod, new ReloadListener());
+            delegate= VOMSValidators.newValidator(trustStore, key.certChainValidator);
+            loadTime= System.nanoTime() - startTime;
+            // a rough estimate, a collection may run during the load
+            heapUsed= Math.max(0, memory.getHeapMemoryUsage().getUsed() - heapBefore);
+            LOG.info("Loaded VOMS trust store of {} in {}ms", key.directory, TimeUnit.NANOSECONDS.toMillis(loadTime));
+
+            validator= (VOMSACValidator) Proxy.newProxyInstance(VOMSACValidator.class.getClassLoader(),
+                                                                new Class<?>[] { VOMSACValidator.class },
+                                                                new ReferenceCountingHandler());
+        }
+
+        /**
+         * Gets the shared validator. Shutting it down releases the reference
+         * of the caller.
+         * 
+         * @return the shared validator
+         */
+        public VOMSACValidator getValidator() {
+            return validator;
+        }
+
+        /**
+         * Gets the refresh period of the trust store.
+         * 
+         * @return refresh period, in milliseconds, of the trust store
+         */
+        public int getRefreshPeriod() {
+            return key.refreshPeriod;
+        }
+
+        /**
+         * Gets the time the last reload of the trust store started, the
+         * initial load included.
+         * 
+         * @return time, in milliseconds since the epoch, the last reload
+         *         started
+         */
+        public long getLastReloadTime() {
+            return lastReloadTime;
+        }
+
+        /**
+         * Adds a listener notified of the trust store reloads.
+         * 
+         * @param listener
+         *            the listener to add
+         */
+        public void addStatusListener(VOMSTrustStoreStatusListener listener) {
+            statusListeners.add(listener);
+        }
+
+        /**
+         * Removes a listener notified of the trust store reloads.
+         * 
+         * @param listener
+         *            the listener to remove
+         */
+        public void removeStatusListener(VOMSTrustStoreStatusListener listener) {
+            statusListeners.remove(listener);
+        }
+
+        /** Reloads the trust store now, without waiting for its refresh. */
+        void reload() {
+            trustStore.loadTrustInformation();
+        }
+
+        /**
+         * Gets the number of LSC files loaded in the trust store.
+         * 
+         * @return number of LSC files
+         */
+        public int getLSCCount() {
+            int count= 0;
+            for (Set<LSCInfo> lscs : trustStore.getAllLSCInfo().values()) {
+                count+= lscs.size();
+            }
+            return count;
+        }
+
+        /**
+         * Gets the number of PIPs using the trust store.
+         * 
+         * @return number of PIPs using the trust store
+         */
+        public int getReferences() {
+            synchronized (registry) {
+                return references;
+            }
+        }
+
+        /**
+         * Gets the number of times the trust store was reused instead of being
+         * loaded again.
+         * 
+         * @return number of reuses
+         */
+        public int getReuses() {
+            synchronized (registry) {
+                return reuses;
+            }
+        }
+
+        /**
+         * Records the start of the trust store reloads and forwards the
+         * notifications to the listeners.
+         */
+        private final class ReloadListener implements
+                VOMSTrustStoreStatusListener {
+
+            /** {@inheritDoc} */
+            public void notifyCertificateLookupEvent(String dir) {
+                // the certificates are looked up first on each reload
+                lastReloadTime= System.currentTimeMillis();
+                LOG.debug("Reloading VOMS trust store of {}", dir);
+                for (VOMSTrustStoreStatusListener listener : statusListeners) {
+                    listener.notifyCertificateLookupEvent(dir);
+                }
+            }
+
+            /** {@inheritDoc} */
+            public void notifyLSCLookupEvent(String dir) {
+                for (VOMSTrustStoreStatusListener listener : statusListeners) {
+                    listener.notifyLSCLookupEvent(dir);
+                }
+            }
+
+            /** {@inheritDoc} */
+            public void notifyCertificateLoadEvent(X509Certificate cert, File f) {
+                for (VOMSTrustStoreStatusListener listener : statusListeners) {
+                    listener.notifyCertificateLoadEvent(cert, f);
+                }
+            }
+
+            /** {@inheritDoc} */
+            public void notifyLSCLoadEvent(LSCInfo lsc, File f) {
+                for (VOMSTrustStoreStatusListener listener : statusListeners) {
+                    listener.notifyLSCLoadEvent(lsc, f);
+                }
+            }
+        }
+
+        /**
+         * Releases the reference of a PIP on <code>shutdown</code> and
+         * delegates the other methods to the validator.
+         */
+        private final class ReferenceCountingHandler implements
+                InvocationHandler {
+
+            /** {@inheritDoc} */
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name= method.getName();
+                int parameters= method.getParameterTypes().length;
+                if ("shutdown".equals(name) && parameters == 0) {
+                    registry.release(SharedTrustStore.this);
+                    return null;
+                }
+                if ("equals".equals(name) && parameters == 1) {
+                    return proxy == args[0];
+                }
+                if ("hashCode".equals(name) && parameters == 0) {
+                    return System.identityHashCode(proxy);
+                }
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+    }
+
+    /** Identifies a shared trust store. */
+    private static final class Key {
+
+        /** Canonical path of the 'vomsdir'. */
+        private final String directory;
+
+        /** Refresh period, in milliseconds. */
+        private final int refreshPeriod;
+
+        /** The certificate chain validator, compared by instance. */
+        private final X509CertChainValidatorExt certChainValidator;
+
+        /**
+         * Constructor.
+         * 
+         * @param vomsInfoDir
+         *            canonical path of the 'vomsdir'
+         * @param refresh
+         *            refresh period, in milliseconds
+         * @param chainValidator
+         *            the certificate chain validator
+         */
+        private Key(String vomsInfoDir, int refresh,
+                    X509CertChainValidatorExt chainValidator) {
+            directory= vomsInfoDir;
+            refreshPeriod= refresh;
+            certChainValidator= chainValidator;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            return (directory.hashCode() * 31 + refreshPeriod) * 31 + System.identityHashCode(certChainValidator);
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other= (Key) obj;
+            return directory.equals(other.directory) && refreshPeriod == other.refreshPeriod
+                    && certChainValidator == other.certChainValidator;
+        }
+    }
+}
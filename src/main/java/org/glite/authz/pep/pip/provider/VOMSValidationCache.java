@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.pip.provider.VOMSTrustStoreRegistry.SharedTrustStore;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.store.LSCInfo;
+import org.italiangrid.voms.store.VOMSTrustStoreStatusListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Caches the successful VOMS attribute certificate validation results of
+ * certificate chains across requests.
+ * <p>
+ * The attribute certificates are embedded in the proxy certificates of the
+ * holder chain, so the results are indexed by the SHA-256 digest of the DER
+ * encoded chain, which covers both the encoded attribute certificates and
+ * their holder. A result is kept at most for the configured maximum age, and
+ * never after the earliest expiration date of the attribute certificates and
+ * of the chain certificates. The whole cache is invalidated each time the VOMS
+ * trust store starts reloading the 'vomsdir', so that a change of the LSC
+ * files or VOMS AA certificates is taken into account as soon as the
+ * validator reads it, and a result computed while the trust store reloaded is
+ * not cached. Results containing a failed validation are not cached.
+ */
+@ThreadSafe
+public class VOMSValidationCache implements MetricsSource {
+
+    /** Label identifying the PIP in the metrics. */
+    public static final String PIP_LABEL= "pip";
+
+    /** Class logger. */
+    private static final Logger LOG= LoggerFactory.getLogger(VOMSValidationCache.class);
+
+    /** ID of the PIP using the cache. */
+    private final String pipId;
+
+    /** The VOMS AC validator whose results are cached. */
+    private final VOMSACValidator validator;
+
+    /** Maximum age, in milliseconds, of a cached result. */
+    private final long maxAge;
+
+    /** The cached results. */
+    private final Cache<HashCode, CachedResults> cache;
+
+    /** The shared trust store notifying its reloads, may be <code>null</code>. */
+    private final SharedTrustStore trustStore;
+
+    /** Invalidates the cache when the trust store reloads the 'vomsdir'. */
+    private final VOMSTrustStoreStatusListener statusListener;
+
+    /** Number of validations answered from the cache. */
+    private final AtomicLong hits= new AtomicLong();
+
+    /** Number of validations performed by the validator. */
+    private final AtomicLong misses= new AtomicLong();
+
+    /**
+     * Number of invalidations caused by a trust store reload, incremented
+     * before the results are removed.
+     */
+    private final AtomicLong invalidations= new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param pip
+     *            ID of the PIP using the cache
+     * @param vomsTrustStore
+     *            the shared trust store whose validator results are cached
+     * @param maximumSize
+     *            maximum number of cached results, must be greater than zero
+     * @param maximumAge
+     *            maximum age, in milliseconds, of a cached result, must be
+     *            greater than zero
+     */
+    public VOMSValidationCache(String pip, SharedTrustStore vomsTrustStore,
+                               int maximumSize, long maximumAge) {
+        this(pip, vomsTrustStore.getValidator(), vomsTrustStore, maximumSize, maximumAge, Ticker.systemTicker());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pip
+     *            ID of the PIP using the cache
+     * @param vomsValidator
+     *            the VOMS AC validator whose results are cached
+     * @param vomsTrustStore
+     *            the shared trust store of the validator, notifying its
+     *            reloads, <code>null</code> if the results only expire
+     * @param maximumSize
+     *            maximum number of cached results, must be greater than zero
+     * @param maximumAge
+     *            maximum age, in milliseconds, of a cached result, must be
+     *            greater than zero
+     * @param ticker
+     *            time source used to remove the results
+     */
+    VOMSValidationCache(String pip, VOMSACValidator vomsValidator,
+                        SharedTrustStore vomsTrustStore, int maximumSize,
+                        long maximumAge, Ticker ticker) {
+        if (vomsValidator == null) {
+            throw new IllegalArgumentException("VOMS AC validator may not be null");
+        }
+        if (maximumSize < 1 || maximumAge < 1) {
+            throw new IllegalArgumentException("Maximum cache size and age must be greater than zero");
+        }
+        pipId= pip;
+        validator= vomsValidator;
+        maxAge= maximumAge;
+        // maintenance is done by the calling threads, no background thread
+        cache= Caffeine.newBuilder().maximumSize(maximumSize).expireAfter(new ResultsExpiry()).ticker(ticker).executor(MoreExecutors.directExecutor()).recordStats().<HashCode, CachedResults> build();
+
+        trustStore= vomsTrustStore;
+        if (trustStore != null) {
+            statusListener= new VOMSTrustStoreStatusListener() {
+                public void notifyCertificateLookupEvent(String dir) {
+                    invalidate(dir);
+                }
+
+                public void notifyLSCLookupEvent(String dir) {
+                    invalidate(dir);
+                }
+
+                public void notifyCertificateLoadEvent(X509Certificate cert,
+                                                       File f) {
+                }
+
+                public void notifyLSCLoadEvent(LSCInfo lsc, File f) {
+                }
+            };
+            trustStore.addStatusListener(statusListener);
+        }
+        else {
+            statusListener= null;
+        }
+    }
+
+    /**
+     * Validates the VOMS attribute certificates of a certificate chain, or gets
+     * their cached validation results.
+     * 
+     * @param certChain
+     *            the certificate chain which may contain VOMS attribute
+     *            certificates
+     * @return the validation results, one per attribute certificate
+     */
+    public List<VOMSValidationResult> validate(X509Certificate[] certChain) {
+        HashCode key= PKIXValidationCache.fingerprint(certChain);
+        if (key != null) {
+            CachedResults cached= cache.getIfPresent(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.results;
+            }
+        }
+        misses.incrementAndGet();
+
+        final long generation= invalidations.get();
+        List<VOMSValidationResult> results= validator.validateWithResult(certChain);
+        if (key != null) {
+            long lifetime= lifetime(certChain, results, System.currentTimeMillis());
+            if (lifetime > 0) {
+                final CachedResults computed= new CachedResults(Collections.unmodifiableList(results), lifetime);
+                cache.asMap().compute(key, new BiFunction<HashCode, CachedResults, CachedResults>() {
+                    public CachedResults apply(HashCode k, CachedResults current) {
+                        // a reload since the validation: the results may be
+                        // stale, and a reload after the insertion removes them
+                        return invalidations.get() == generation ? computed : current;
+                    }
+                });
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Removes all the cached results.
+     * 
+     * @param location
+     *            the 'vomsdir' being reloaded, for logging
+     */
+    void invalidate(String location) {
+        invalidations.incrementAndGet();
+        if (cache.estimatedSize() > 0) {
+            LOG.debug("{}: VOMS trust store {} reloading, invalidating {} cached VOMS AC validation results",
+                      pipId, location, cache.estimatedSize());
+        }
+        cache.invalidateAll();
+    }
+
+    /**
+     * Computes how long validation results may be cached.
+     * 
+     * @param certChain
+     *            the validated certificate chain
+     * @param results
+     *            the validation results
+     * @param now
+     *            current time, in milliseconds since the epoch
+     * @return lifetime, in milliseconds, of the results in the cache, 0 or
+     *         less if they must not be cached
+     */
+    long lifetime(X509Certificate[] certChain,
+                  List<VOMSValidationResult> results, long now) {
+        long expiration= now + maxAge;
+        for (X509Certificate cert : certChain) {
+            expiration= Math.min(expiration, cert.getNotAfter().getTime());
+        }
+        for (VOMSValidationResult result : results) {
+            if (!result.isValid()) {
+                return 0;
+            }
+            VOMSAttribute attributes= result.getAttributes();
+            expiration= Math.min(expiration, attributes.getNotAfter().getTime());
+        }
+        return expiration - now;
+    }
+
+    /**
+     * Gets the number of cached results.
+     * 
+     * @return approximate number of cached results
+     */
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Removes the cached results and stops listening to the trust store's
+     * reloads.
+     */
+    public void dispose() {
+        if (statusListener != null) {
+            trustStore.removeStatusListener(statusListener);
+        }
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /** {@inheritDoc} */
+    public void collectMetrics(MetricsWriter writer) {
+        writer.counter("voms_validation_cache_hits_total",
+                       "VOMS AC validations answered from the cache",
+                       PIP_LABEL, pipId, hits.get());
+        writer.counter("voms_validation_cache_misses_total",
+                       "VOMS AC validations performed by the validator",
+                       PIP_LABEL, pipId, misses.get());
+        writer.counter("voms_validation_cache_evictions_total",
+                       "VOMS AC validation results evicted, by size or expiration",
+                       PIP_LABEL, pipId, cache.stats().evictionCount());
+        writer.counter("voms_validation_cache_invalidations_total",
+                       "VOMS AC validation cache invalidations on trust store reload",
+                       PIP_LABEL, pipId, invalidations.get());
+        writer.gauge("voms_validation_cache_size",
+                     "Cached VOMS AC validation results",
+                     PIP_LABEL, pipId, cache.estimatedSize());
+    }
+
+    /** Cached validation results and their lifetime. */
+    private static final class CachedResults {
+
+        /** The validation results. */
+        private final List<VOMSValidationResult> results;
+
+        /** Lifetime, in milliseconds, of the results in the cache. */
+        private final long lifetime;
+
+        /**
+         * Constructor.
+         * 
+         * @param validationResults
+         *            the validation results
+         * @param resultsLifetime
+         *            lifetime, in milliseconds, of the results in the cache
+         */
+        private CachedResults(List<VOMSValidationResult> validationResults,
+                              long resultsLifetime) {
+            results= validationResults;
+            lifetime= resultsLifetime;
+        }
+    }
+
+    /** Removes the results after their lifetime. */
+    private static final class ResultsExpiry implements
+            Expiry<HashCode, CachedResults> {
+
+        /** {@inheritDoc} */
+        public long expireAfterCreate(HashCode key, CachedResults value,
+                                      long currentTime) {
+            return TimeUnit.MILLISECONDS.toNanos(value.lifetime);
+        }
+
+        /** {@inheritDoc} */
+        public long expireAfterUpdate(HashCode key, CachedResults value,
+                                      long currentTime, long currentDuration) {
+            return TimeUnit.MILLISECONDS.toNanos(value.lifetime);
+        }
+
+        /** {@inheritDoc} */
+        public long expireAfterRead(HashCode key, CachedResults value,
+                                    long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
 import org.glite.authz.common.util.Strings;
 import org.glite.authz.pep.pip.PIPException;
 import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
 import org.glite.authz.pep.pip.provider.AbstractPolicyInformationPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,7 +64,7 @@ import org.slf4j.LoggerFactory;
  * 
  */
 public class AuthenticationProfilePIP extends AbstractPolicyInformationPoint
-    implements AuthenticationProfilePIPConstants {
+    implements AuthenticationProfilePIPConstants, SubjectPolicyInformationPoint {
 
   public static final Logger LOG = LoggerFactory.getLogger(AuthenticationProfilePIP.class);
 
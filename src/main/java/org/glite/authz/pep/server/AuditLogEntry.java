@@ -20,7 +20,6 @@ package org.glite.authz.pep.server;
 import net.jcip.annotations.ThreadSafe;
 
 import org.glite.authz.common.util.Strings;
-import org.joda.time.DateTime;
 
 /** A log entry representing an auditable authorization decision. */
 @ThreadSafe
@@ -58,7 +57,7 @@ public class AuditLogEntry {
      */
     public AuditLogEntry(String request, String responder, String response,
                          String decision) {
-        requestTime= new DateTime().toDateTimeISO().getMillis();
+        requestTime= System.currentTimeMillis();
         requestId= Strings.safeTrimOrNullString(request);
         responderId= Strings.safeTrimOrNullString(responder);
         responseId= Strings.safeTrimOrNullString(response);
@@ -133,30 +132,57 @@ public class AuditLogEntry {
     /** {@inheritDoc} */
     public String toString() {
         StringBuilder entryString= new StringBuilder();
+        format(entryString, getRequestTime(), getRequestId(), getResponderId(),
+               getResponseId(), getPolicyDecision(), getErrorMessage());
+        return entryString.toString();
+    }
 
-        entryString.append(getRequestTime());
+    /**
+     * Appends an audit log entry to a buffer, in the format of
+     * {@link #toString()}. The text values are trimmed.
+     * 
+     * @param entryString
+     *            the buffer
+     * @param time
+     *            time, in milliseconds since the Unix epoch, the request was
+     *            made
+     * @param request
+     *            ID of the SAML authorization request message
+     * @param responder
+     *            URL of the PDP that responded to the authorization request
+     * @param response
+     *            ID of the SAML authorization response message
+     * @param decision
+     *            the authorization decision, <code>null</code> on error
+     * @param message
+     *            the error message, may be <code>null</code>
+     */
+    static void format(StringBuilder entryString, long time, String request,
+                       String responder, String response, String decision,
+                       String message) {
+        entryString.append(time);
         entryString.append("|");
 
-        entryString.append(getRequestId());
+        entryString.append(Strings.safeTrimOrNullString(request));
         entryString.append("|");
 
-        entryString.append(getResponderId());
+        entryString.append(Strings.safeTrimOrNullString(responder));
         entryString.append("|");
 
-        entryString.append(getResponseId());
+        entryString.append(Strings.safeTrimOrNullString(response));
         entryString.append("|");
 
-        if (getPolicyDecision() != null) {
-            entryString.append(getPolicyDecision());
+        String policyDecision= Strings.safeTrimOrNullString(decision);
+        if (policyDecision != null) {
+            entryString.append(policyDecision);
             entryString.append("|");
         }
         else {
             entryString.append("Error|");
-            if (getErrorMessage() != null) {
-                entryString.append(getErrorMessage());
+            String errorMessage= Strings.safeTrimOrNullString(message);
+            if (errorMessage != null) {
+                entryString.append(errorMessage);
             }
         }
-
-        return entryString.toString();
     }
 }
@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.logging.LoggingConstants;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.recovery.ResilientFileOutputStream;
+
+/**
+ * Writes the audit log entries from a dedicated thread.
+ * <p>
+ * The request threads hand the entries off to a bounded ring buffer of
+ * preallocated records, without locking: a slot is claimed with a single
+ * compare-and-set and published with an ordered write. A single writer thread
+ * formats the queued entries and writes them to the audit log in batches. The
+ * writer thread runs every flush interval, or as soon as an entry is queued if
+ * the interval is zero, and after each batch it flushes the audit log
+ * appenders according to the {@link Durability}. For the batching to be
+ * effective the audit log appenders must not flush each entry themselves
+ * (<code>immediateFlush</code> false).
+ * <p>
+ * When the ring buffer is full, the entry is dropped and counted, or the
+ * request thread waits for a free slot, according to the
+ * {@link OverflowPolicy}. Before the writer is started and after it is shut
+ * down, the entries are written by the calling thread, which then flushes the
+ * appenders according to the durability. With a queue size of zero there is
+ * no ring buffer and no writer thread, every entry is written this way.
+ */
+@ThreadSafe
+public class AuditLogWriter implements MetricsSource {
+
+  /** What to do with an entry when the ring buffer is full. */
+  public enum OverflowPolicy {
+
+    /** The entry is dropped and counted. */
+    DROP,
+
+    /** The request thread waits until a slot is freed by the writer. */
+    BLOCK
+  }
+
+  /** What is done with the audit log appenders after each batch. */
+  public enum Durability {
+
+    /** Nothing, the appenders flush according to their own configuration. */
+    NONE,
+
+    /** The appenders are flushed to the operating system. */
+    FLUSH,
+
+    /** The appenders are flushed and the audit files synchronized to disk. */
+    SYNC
+  }
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(AuditLogWriter.class);
+
+  /** Duration, in nanoseconds, a blocked request thread waits before retrying. */
+  private static final long BLOCKED_RETRY_NANOS = TimeUnit.MICROSECONDS
+    .toNanos(100);
+
+  /** Maximum duration, in nanoseconds, the idle writer thread sleeps. */
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** Duration, in milliseconds, the shutdown waits for the writer thread. */
+  private static final long SHUTDOWN_TIMEOUT = 10000;
+
+  /** The audit log. */
+  private final Logger auditLog;
+
+  /** Action taken when the ring buffer is full. */
+  private final OverflowPolicy overflowPolicy;
+
+  /** Action taken on the appenders after each batch. */
+  private final Durability durability;
+
+  /** Duration, in nanoseconds, between two batches, 0 to write at once. */
+  private final long flushIntervalNanos;
+
+  /** Number of slots of the ring buffer, a power of two. */
+  private final int capacity;
+
+  /** Mask giving the slot index of a position. */
+  private final int mask;
+
+  /** The preallocated records of the ring buffer. */
+  private final Record[] records;
+
+  /**
+   * Sequence of each slot: its position when free, its position plus one when
+   * published.
+   */
+  private final AtomicLongArray sequences;
+
+  /** Next position claimed by the request threads. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Next position read by the writer thread, only written by it. */
+  private volatile long head;
+
+  /** Number of entries written. */
+  private final AtomicLong writtenEntries = new AtomicLong();
+
+  /** Number of entries dropped because the ring buffer was full. */
+  private final AtomicLong droppedEntries = new AtomicLong();
+
+  /** Whether the writer thread is running. */
+  private volatile boolean running;
+
+  /** Whether the writer thread is, or is about to be, parked. */
+  private volatile boolean writerWaiting;
+
+  /** The writer thread, <code>null</code> before the writer is started. */
+  private volatile Thread writerThread;
+
+  /** Buffer in which the entries are formatted, used by the writer thread. */
+  private final StringBuilder entryBuffer = new StringBuilder(256);
+
+  /**
+   * Constructor.
+   * 
+   * @param queueSize
+   *          minimum number of entries the ring buffer holds, rounded up to a
+   *          power of two, 0 to write the entries from the calling threads
+   * @param policy
+   *          action taken when the ring buffer is full
+   * @param durabilityMode
+   *          action taken on the audit log appenders after each batch
+   * @param flushInterval
+   *          duration, in milliseconds, between two batches, 0 to write the
+   *          entries as soon as they are queued
+   */
+  public AuditLogWriter(final int queueSize, final OverflowPolicy policy,
+    final Durability durabilityMode, final long flushInterval) {
+
+    this(queueSize, policy, durabilityMode, flushInterval, LoggerFactory
+      .getLogger(LoggingConstants.AUDIT_CATEGORY));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param queueSize
+   *          minimum number of entries the ring buffer holds, rounded up to a
+   *          power of two, 0 to write the entries from the calling threads
+   * @param policy
+   *          action taken when the ring buffer is full
+   * @param durabilityMode
+   *          action taken on the audit log appenders after each batch
+   * @param flushInterval
+   *          duration, in milliseconds, between two batches, 0 to write the
+   *          entries as soon as they are queued
+   * @param audit
+   *          the audit log
+   */
+  AuditLogWriter(final int queueSize, final OverflowPolicy policy,
+    final Durability durabilityMode, final long flushInterval,
+    final Logger audit) {
+
+    if (queueSize < 0 || queueSize > 1 << 30) {
+      throw new IllegalArgumentException(
+        "Audit log queue size must be between 0 and 2^30");
+    }
+    if (policy == null || durabilityMode == null) {
+      throw new IllegalArgumentException(
+        "Overflow policy and durability may not be null");
+    }
+    if (flushInterval < 0) {
+      throw new IllegalArgumentException(
+        "Flush interval may not be negative");
+    }
+    capacity = Integer.highestOneBit(queueSize) == queueSize ? queueSize
+      : Integer.highestOneBit(queueSize) << 1;
+    mask = capacity - 1;
+    records = new Record[capacity];
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      records[i] = new Record();
+      sequences.set(i, i);
+    }
+    overflowPolicy = policy;
+    durability = durabilityMode;
+    flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    auditLog = audit;
+  }
+
+  /** Starts the writer thread, unless the queue size is zero. */
+  public synchronized void start() {
+
+    if (writerThread != null || capacity == 0) {
+      return;
+    }
+    running = true;
+    Thread thread = new Thread(new Runnable() {
+
+      public void run() {
+
+        writeEntries();
+      }
+    }, "pepd-audit-writer");
+    thread.setDaemon(true);
+    writerThread = thread;
+    thread.start();
+  }
+
+  /**
+   * Stops the writer thread, once the queued entries are written. The
+   * subsequent entries are written by the calling thread.
+   */
+  public synchronized void shutdown() {
+
+    Thread thread = writerThread;
+    if (thread == null || !running) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(SHUTDOWN_TIMEOUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      log.warn("Audit log writer did not stop, {} entries may be lost",
+        getQueuedEntries());
+      return;
+    }
+    // the writer thread is gone, entries queued while it stopped are
+    // written here once the request threads which claimed a slot have
+    // published it
+    long end = tail.get();
+    long deadline = System.nanoTime()
+      + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT);
+    int written = drain();
+    while (head < end) {
+      if (System.nanoTime() - deadline > 0) {
+        log.warn("{} audit log entries are still being queued, they are "
+          + "written by the request threads", end - head);
+        break;
+      }
+      LockSupport.parkNanos(this, BLOCKED_RETRY_NANOS);
+      written += drain();
+    }
+    if (written > 0) {
+      flushAppenders();
+    }
+  }
+
+  /**
+   * Writes the entries published after the shutdown drained the ring buffer,
+   * by request threads which claimed their slot as the writer was stopping.
+   */
+  private synchronized void drainStopped() {
+
+    Thread thread = writerThread;
+    if (running || thread == null || thread.isAlive()) {
+      return;
+    }
+    if (drain() > 0 && durability != Durability.NONE) {
+      flushAppenders();
+    }
+  }
+
+  /**
+   * Queues an audit log entry.
+   * 
+   * @param requestId
+   *          ID of the SAML authorization request message
+   * @param responderId
+   *          URL of the PDP that responded to the authorization request
+   * @param responseId
+   *          ID of the SAML authorization response message
+   * @param decision
+   *          the authorization decision, <code>null</code> on error
+   * @param errorMessage
+   *          the error message, may be <code>null</code>
+   */
+  public void write(final String requestId, final String responderId,
+    final String responseId, final String decision, final String errorMessage) {
+
+    long requestTime = System.currentTimeMillis();
+    if (!running) {
+      writeDirectly(requestTime, requestId, responderId, responseId, decision,
+        errorMessage);
+      return;
+    }
+
+    long position = claim();
+    if (position < 0) {
+      if (running) {
+        droppedEntries.incrementAndGet();
+      } else {
+        writeDirectly(requestTime, requestId, responderId, responseId,
+          decision, errorMessage);
+      }
+      return;
+    }
+    int index = (int) (position & mask);
+    records[index].set(requestTime, requestId, responderId, responseId,
+      decision, errorMessage);
+    // volatile write, ordered before the reads of running and writerWaiting
+    sequences.set(index, position + 1);
+
+    if (!running) {
+      // either the shutdown saw the claim and waits for the entry, or it
+      // may have drained the ring buffer already
+      drainStopped();
+      return;
+    }
+    if (writerWaiting
+      && (flushIntervalNanos == 0 || position - head >= capacity / 2)) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Claims a slot of the ring buffer, waiting for one if the buffer is full and
+   * the overflow policy is {@link OverflowPolicy#BLOCK}.
+   * 
+   * @return the position of the claimed slot, -1 if the entry is dropped or
+   *         the writer is stopping
+   */
+  private long claim() {
+
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          return position;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        // full: the slot still holds the entry of the previous lap
+        if (overflowPolicy == OverflowPolicy.DROP || !running) {
+          return -1;
+        }
+        LockSupport.unpark(writerThread);
+        LockSupport.parkNanos(this, BLOCKED_RETRY_NANOS);
+        position = tail.get();
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /** Loop of the writer thread. */
+  private void writeEntries() {
+
+    while (true) {
+      boolean stopping = !running;
+      if (drain() > 0 && durability != Durability.NONE) {
+        flushAppenders();
+      }
+      if (stopping) {
+        return;
+      }
+      writerWaiting = true;
+      if (flushIntervalNanos > 0) {
+        LockSupport.parkNanos(this, flushIntervalNanos);
+      } else if (isEmpty() && running) {
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+      writerWaiting = false;
+    }
+  }
+
+  /**
+   * Writes the published entries. Only called by a single thread at a time.
+   * 
+   * @return number of entries written
+   */
+  private int drain() {
+
+    long position = head;
+    int written = 0;
+    while (true) {
+      int index = (int) (position & mask);
+      if (sequences.get(index) != position + 1) {
+        break;
+      }
+      Record record = records[index];
+      entryBuffer.setLength(0);
+      AuditLogEntry.format(entryBuffer, record.requestTime, record.requestId,
+        record.responderId, record.responseId, record.decision,
+        record.errorMessage);
+      record.clear();
+      sequences.lazySet(index, position + capacity);
+      position++;
+      written++;
+      try {
+        auditLog.info(entryBuffer.toString());
+      } catch (RuntimeException e) {
+        log.error("Unable to write audit log entry", e);
+      }
+      if ((written & mask) == 0) {
+        // let the blocked request threads proceed during long batches
+        head = position;
+      }
+    }
+    head = position;
+    writtenEntries.addAndGet(written);
+    return written;
+  }
+
+  /**
+   * Checks whether the ring buffer holds no published entry.
+   * 
+   * @return <code>true</code> if there is no entry to write
+   */
+  private boolean isEmpty() {
+
+    long position = head;
+    return sequences.get((int) (position & mask)) != position + 1;
+  }
+
+  /**
+   * Writes an entry from the calling thread and flushes the appenders
+   * according to the durability.
+   * 
+   * @param requestTime
+   *          time the request was made
+   * @param requestId
+   *          ID of the SAML authorization request message
+   * @param responderId
+   *          URL of the PDP that responded to the authorization request
+   * @param responseId
+   *          ID of the SAML authorization response message
+   * @param decision
+   *          the authorization decision, <code>null</code> on error
+   * @param errorMessage
+   *          the error message, may be <code>null</code>
+   */
+  private void writeDirectly(final long requestTime, final String requestId,
+    final String responderId, final String responseId, final String decision,
+    final String errorMessage) {
+
+    StringBuilder entry = new StringBuilder();
+    AuditLogEntry.format(entry, requestTime, requestId, responderId,
+      responseId, decision, errorMessage);
+    auditLog.info(entry.toString());
+    writtenEntries.incrementAndGet();
+    if (durability != Durability.NONE) {
+      flushAppenders();
+    }
+  }
+
+  /**
+   * Flushes the file appenders of the audit log and, with the
+   * {@link Durability#SYNC} durability, synchronizes their file to disk. The
+   * buffered stream of the file appenders is synchronized, a flush does not
+   * interleave with a write from another thread.
+   */
+  private void flushAppenders() {
+
+    if (!(auditLog instanceof ch.qos.logback.classic.Logger)) {
+      return;
+    }
+    Iterator<Appender<ILoggingEvent>> appenders = ((ch.qos.logback.classic.Logger) auditLog)
+      .iteratorForAppenders();
+    while (appenders.hasNext()) {
+      Appender<ILoggingEvent> appender = appenders.next();
+      if (!(appender instanceof OutputStreamAppender)) {
+        continue;
+      }
+      OutputStream out = ((OutputStreamAppender<ILoggingEvent>) appender)
+        .getOutputStream();
+      if (out == null) {
+        continue;
+      }
+      try {
+        out.flush();
+        if (durability == Durability.SYNC
+          && out instanceof ResilientFileOutputStream) {
+          ((ResilientFileOutputStream) out).getChannel().force(false);
+        }
+      } catch (IOException e) {
+        log.error("Unable to flush audit log appender " + appender.getName(),
+          e);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of entries queued and not written yet.
+   * 
+   * @return number of queued entries
+   */
+  public long getQueuedEntries() {
+
+    return Math.max(0, tail.get() - head);
+  }
+
+  /**
+   * Gets the number of entries written.
+   * 
+   * @return number of entries written
+   */
+  public long getWrittenEntries() {
+
+    return writtenEntries.get();
+  }
+
+  /**
+   * Gets the number of entries dropped because the ring buffer was full.
+   * 
+   * @return number of dropped entries
+   */
+  public long getDroppedEntries() {
+
+    return droppedEntries.get();
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    writer.counter("audit_log_entries_total", "Audit log entries written",
+      getWrittenEntries());
+    writer.counter("audit_log_dropped_entries_total",
+      "Audit log entries dropped because the queue was full",
+      getDroppedEntries());
+    writer.gauge("audit_log_queued_entries",
+      "Audit log entries queued and not written yet", getQueuedEntries());
+  }
+
+  /** A slot of the ring buffer, reused for each lap. */
+  private static final class Record {
+
+    /** Time the request was made. */
+    private long requestTime;
+
+    /** ID of the SAML authorization request message. */
+    private String requestId;
+
+    /** URL of the PDP that responded to the authorization request. */
+    private String responderId;
+
+    /** ID of the SAML authorization response message. */
+    private String responseId;
+
+    /** The authorization decision. */
+    private String decision;
+
+    /** The error message. */
+    private String errorMessage;
+
+    /**
+     * Sets the entry held by the slot.
+     * 
+     * @param time
+     *          time the request was made
+     * @param request
+     *          ID of the SAML authorization request message
+     * @param responder
+     *          URL of the PDP that responded to the authorization request
+     * @param response
+     *          ID of the SAML authorization response message
+     * @param policyDecision
+     *          the authorization decision
+     * @param message
+     *          the error message
+     */
+    private void set(final long time, final String request,
+      final String responder, final String response,
+      final String policyDecision, final String message) {
+
+      requestTime = time;
+      requestId = request;
+      responderId = responder;
+      responseId = response;
+      decision = policyDecision;
+      errorMessage = message;
+    }
+
+    /** Releases the references held by the slot. */
+    private void clear() {
+
+      requestId = null;
+      responderId = null;
+      responseId = null;
+      decision = null;
+      errorMessage = null;
+    }
+  }
+}
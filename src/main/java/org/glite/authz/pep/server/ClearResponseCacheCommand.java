@@ -23,11 +23,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Status;
-
 import org.glite.authz.common.http.AbstractAdminCommand;
+import org.glite.authz.pep.server.cache.ResponseCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,20 +37,24 @@ public class ClearResponseCacheCommand extends AbstractAdminCommand {
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ClearResponseCacheCommand.class);
 
-    /** Constructors. */
-    public ClearResponseCacheCommand() {
+    /** The PDP response cache, <code>null</code> if caching is disabled. */
+    private final transient ResponseCache responseCache;
+
+    /**
+     * Constructor.
+     * 
+     * @param cache the PDP response cache, <code>null</code> if caching is disabled
+     */
+    public ClearResponseCacheCommand(ResponseCache cache) {
         super("/clearResponseCache");
+        responseCache = cache;
     }
 
     /** {@inheritDoc} */
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        CacheManager cacheMgr = CacheManager.getInstance();
-        if (cacheMgr != null && cacheMgr.getStatus() == Status.STATUS_ALIVE) {
+        if (responseCache != null) {
             log.info("Clearing PDP response cache");
-            Cache responseCache = cacheMgr.getCache(PEPDaemonRequestHandler.RESPONSE_CACHE_NAME);
-            if(responseCache != null){
-                responseCache.removeAll();
-            }
+            responseCache.clear();
         }
 
         resp.setStatus(HttpServletResponse.SC_OK);
@@ -0,0 +1,793 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Response;
+
+import com.caucho.hessian.io.HessianInput;
+import com.caucho.hessian.io.HessianOutput;
+
+/**
+ * Reads and writes the Hessian messages exchanged with the PEP clients. The
+ * messages are Base64 encoded by default. The clients sending their request
+ * with the {@value #RAW_HESSIAN_CONTENT_TYPE} content type exchange raw
+ * Hessian messages instead, a third smaller and without the encoding cost.
+ * <p>
+ * The messages are streamed: the request is decoded while it is read from the
+ * servlet input stream, and the response is Hessian serialized, and Base64
+ * encoded, directly into the servlet output stream. The Hessian reader/writer
+ * and the I/O buffers are taken from a pool shared by all the threads, so that
+ * processing a message does not allocate intermediate copies of it. A pool,
+ * rather than per thread state, also serves the requests processed by virtual
+ * threads, a new thread per request.
+ */
+@ThreadSafe
+public class HessianBase64Codec {
+
+  /** Content type of the raw, not Base64 encoded, Hessian messages. */
+  public static final String RAW_HESSIAN_CONTENT_TYPE = "application/x-hessian";
+
+  /** Size, in bytes, of the input and output buffers. */
+  private static final int BUFFER_SIZE = 4096;
+
+  /** Maximum number of idle codec states kept in the pool. */
+  private static final int MAX_IDLE_STATES = 64;
+
+  /** Idle codec states, reused by the next messages. */
+  private static final BlockingQueue<CodecState> IDLE_STATES = new ArrayBlockingQueue<CodecState>(
+    MAX_IDLE_STATES);
+
+  /**
+   * Gets whether a message content type is the raw Hessian content type. The
+   * content type parameters and case are ignored.
+   *
+   * @param contentType
+   *          the content type, may be <code>null</code>
+   *
+   * @return <code>true</code> if the message is raw Hessian,
+   *         <code>false</code> if it is Base64 encoded
+   */
+  public static boolean isRawHessian(final String contentType) {
+
+    if (contentType == null) {
+      return false;
+    }
+    int end = contentType.indexOf(';');
+    String mediaType = end < 0 ? contentType : contentType.substring(0, end);
+    return RAW_HESSIAN_CONTENT_TYPE.equalsIgnoreCase(mediaType.trim());
+  }
+
+  /**
+   * Reads a Base64 encoded Hessian {@link Request} from the input stream.
+   *
+   * @param in
+   *          the stream from which the request is read
+   *
+   * @return the decoded request
+   *
+   * @throws IOException
+   *           thrown if the request can not be read or decoded
+   */
+  public Request readRequest(final InputStream in) throws IOException {
+
+    return readRequest(in, false);
+  }
+
+  /**
+   * Reads a Hessian {@link Request} from the input stream.
+   *
+   * @param in
+   *          the stream from which the request is read
+   * @param raw
+   *          <code>true</code> if the request is raw Hessian,
+   *          <code>false</code> if it is Base64 encoded
+   *
+   * @return the decoded request
+   *
+   * @throws IOException
+   *           thrown if the request can not be read or decoded
+   */
+  public Request readRequest(final InputStream in, final boolean raw)
+    throws IOException {
+
+    return (Request) readObject(in, Request.class, raw);
+  }
+
+  /**
+   * Reads a Hessian list of {@link Request}s, a batch request, from the input
+   * stream.
+   *
+   * @param in
+   *          the stream from which the requests are read
+   * @param raw
+   *          <code>true</code> if the requests are raw Hessian,
+   *          <code>false</code> if they are Base64 encoded
+   *
+   * @return the decoded requests, in order
+   *
+   * @throws IOException
+   *           thrown if the requests can not be read or decoded, or if the
+   *           message is not a list of requests
+   */
+  public List<Request> readRequests(final InputStream in, final boolean raw)
+    throws IOException {
+
+    Object batch = readObject(in, List.class, raw);
+    if (!(batch instanceof List)) {
+      throw new IOException("Batch request is not a list of requests");
+    }
+    List<?> entries = (List<?>) batch;
+    List<Request> requests = new ArrayList<Request>(entries.size());
+    for (Object entry : entries) {
+      if (!(entry instanceof Request)) {
+        throw new IOException("Batch request contains an invalid entry: "
+          + (entry == null ? null : entry.getClass().getName()));
+      }
+      requests.add((Request) entry);
+    }
+    return requests;
+  }
+
+  /**
+   * Writes a {@link Response}, Hessian serialized and Base64 encoded, into the
+   * output stream. The output stream is flushed but not closed.
+   *
+   * @param response
+   *          the response to write
+   * @param out
+   *          the stream to which the response is written
+   *
+   * @throws IOException
+   *           thrown if the response can not be written
+   */
+  public void writeResponse(final Response response, final OutputStream out)
+    throws IOException {
+
+    writeResponse(response, out, false);
+  }
+
+  /**
+   * Writes a {@link Response}, Hessian serialized, into the output stream. The
+   * output stream is flushed but not closed.
+   *
+   * @param response
+   *          the response to write
+   * @param out
+   *          the stream to which the response is written
+   * @param raw
+   *          <code>true</code> to write raw Hessian, <code>false</code> to
+   *          Base64 encode it
+   *
+   * @throws IOException
+   *           thrown if the response can not be written
+   */
+  public void writeResponse(final Response response, final OutputStream out,
+    final boolean raw) throws IOException {
+
+    writeObject(response, out, raw);
+  }
+
+  /**
+   * Writes a list of {@link Response}s, the answer to a batch request, Hessian
+   * serialized into the output stream. The output stream is flushed but not
+   * closed.
+   *
+   * @param responses
+   *          the responses to write, in order
+   * @param out
+   *          the stream to which the responses are written
+   * @param raw
+   *          <code>true</code> to write raw Hessian, <code>false</code> to
+   *          Base64 encode them
+   *
+   * @throws IOException
+   *           thrown if the responses can not be written
+   */
+  public void writeResponses(final List<Response> responses,
+    final OutputStream out, final boolean raw) throws IOException {
+
+    writeObject(responses, out, raw);
+  }
+
+  /**
+   * Reads a Hessian object from the input stream.
+   *
+   * @param in
+   *          the stream from which the object is read
+   * @param expectedClass
+   *          the expected class of the object
+   * @param raw
+   *          <code>true</code> if the object is raw Hessian,
+   *          <code>false</code> if it is Base64 encoded
+   *
+   * @return the decoded object
+   *
+   * @throws IOException
+   *           thrown if the object can not be read or decoded
+   */
+  private Object readObject(final InputStream in,
+    final Class<?> expectedClass, final boolean raw) throws IOException {
+
+    CodecState state = acquireState();
+    if (raw) {
+      // Hessian reads byte by byte, the servlet stream is read by blocks
+      state.bufferedInput.init(in);
+      state.hessianInput.init(state.bufferedInput);
+    } else {
+      state.decoder.init(in);
+      state.hessianInput.init(state.decoder);
+    }
+    try {
+      return state.hessianInput.readObject(expectedClass);
+    } finally {
+      state.hessianInput.init(null);
+      state.bufferedInput.init(null);
+      state.decoder.init(null);
+      releaseState(state);
+    }
+  }
+
+  /**
+   * Writes an object, Hessian serialized, into the output stream. The output
+   * stream is flushed but not closed.
+   *
+   * @param object
+   *          the object to write
+   * @param out
+   *          the stream to which the object is written
+   * @param raw
+   *          <code>true</code> to write raw Hessian, <code>false</code> to
+   *          Base64 encode it
+   *
+   * @throws IOException
+   *           thrown if the object can not be written
+   */
+  private void writeObject(final Object object, final OutputStream out,
+    final boolean raw) throws IOException {
+
+    CodecState state = acquireState();
+    if (raw) {
+      state.bufferedOutput.init(out);
+      state.hessianOutput.init(state.bufferedOutput);
+    } else {
+      state.encoder.init(out);
+      state.hessianOutput.init(state.encoder);
+    }
+    try {
+      state.hessianOutput.writeObject(object);
+      state.hessianOutput.flush();
+      if (raw) {
+        state.bufferedOutput.finish();
+      } else {
+        state.encoder.finish();
+      }
+    } finally {
+      state.hessianOutput.init(null);
+      state.bufferedOutput.init(null);
+      state.encoder.init(null);
+      releaseState(state);
+    }
+    out.flush();
+  }
+
+  /**
+   * Takes an idle codec state from the pool, or creates one if the pool is
+   * empty.
+   *
+   * @return the codec state, for the exclusive use of the caller until it is
+   *         released
+   */
+  private static CodecState acquireState() {
+
+    CodecState state = IDLE_STATES.poll();
+    return state != null ? state : new CodecState();
+  }
+
+  /**
+   * Returns a codec state, reset by the caller, to the pool. The state is
+   * dropped if the pool is full.
+   *
+   * @param state
+   *          the codec state
+   */
+  private static void releaseState(final CodecState state) {
+
+    IDLE_STATES.offer(state);
+  }
+
+  /** The codec objects used by one message at a time. */
+  private static final class CodecState {
+
+    /** Base64 decoder. */
+    private final Base64DecodingInputStream decoder = new Base64DecodingInputStream();
+
+    /** Base64 encoder. */
+    private final Base64EncodingOutputStream encoder = new Base64EncodingOutputStream();
+
+    /** Buffer of the raw Hessian input. */
+    private final BufferedInput bufferedInput = new BufferedInput();
+
+    /** Buffer of the raw Hessian output. */
+    private final BufferedOutput bufferedOutput = new BufferedOutput();
+
+    /** Hessian reader, reading from the decoder. */
+    private final HessianInput hessianInput = new HessianInput();
+
+    /** Hessian writer, writing to the encoder. */
+    private final HessianOutput hessianOutput = new HessianOutput();
+  }
+
+  /**
+   * A reusable input stream decoding Base64 data read from an underlying
+   * stream. Characters outside of the Base64 alphabet, like line breaks, are
+   * ignored and decoding stops at the first padding character.
+   */
+  @NotThreadSafe
+  static final class Base64DecodingInputStream extends InputStream {
+
+    /** Base64 character to 6 bits value, -1 for non-alphabet characters. */
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+      Arrays.fill(DECODE_TABLE, (byte) -1);
+      for (int i = 0; i < Base64EncodingOutputStream.ALPHABET.length; i++) {
+        DECODE_TABLE[Base64EncodingOutputStream.ALPHABET[i]] = (byte) i;
+      }
+    }
+
+    /** Raw, encoded, bytes read from the underlying stream. */
+    private final byte[] encoded = new byte[BUFFER_SIZE];
+
+    /** Decoded bytes, not yet consumed. */
+    private final byte[] decoded = new byte[BUFFER_SIZE / 4 * 3 + 3];
+
+    /** Underlying stream. */
+    private InputStream in;
+
+    /** Position of the next decoded byte to return. */
+    private int position;
+
+    /** Number of valid bytes in the decoded buffer. */
+    private int limit;
+
+    /** Bits of the current, incomplete, 4 characters quantum. */
+    private int quantum;
+
+    /** Number of characters in the current quantum. */
+    private int quantumLength;
+
+    /** Whether the end of the encoded data has been reached. */
+    private boolean finished;
+
+    /**
+     * Resets this stream to read from the given stream.
+     *
+     * @param input
+     *          the underlying stream, may be <code>null</code> to release it
+     */
+    void init(final InputStream input) {
+
+      in = input;
+      position = 0;
+      limit = 0;
+      quantum = 0;
+      quantumLength = 0;
+      finished = false;
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+
+      if (position >= limit && !fill()) {
+        return -1;
+      }
+      return decoded[position++] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= limit && !fill()) {
+        return -1;
+      }
+      int count = Math.min(len, limit - position);
+      System.arraycopy(decoded, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    /** {@inheritDoc} */
+    public int available() {
+
+      return limit - position;
+    }
+
+    /**
+     * Decodes the next block of data.
+     *
+     * @return <code>false</code> if there is no more data to decode
+     *
+     * @throws IOException
+     *           thrown if the underlying stream can not be read
+     */
+    private boolean fill() throws IOException {
+
+      position = 0;
+      limit = 0;
+      while (limit == 0 && !finished) {
+        int read = in.read(encoded, 0, encoded.length);
+        if (read < 0) {
+          flushQuantum();
+          finished = true;
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          int c = encoded[i] & 0xff;
+          if (c == '=') {
+            flushQuantum();
+            finished = true;
+            break;
+          }
+          int value = DECODE_TABLE[c];
+          if (value < 0) {
+            continue;
+          }
+          quantum = (quantum << 6) | value;
+          if (++quantumLength == 4) {
+            decoded[limit++] = (byte) (quantum >> 16);
+            decoded[limit++] = (byte) (quantum >> 8);
+            decoded[limit++] = (byte) quantum;
+            quantum = 0;
+            quantumLength = 0;
+          }
+        }
+      }
+      return limit > 0;
+    }
+
+    /** Decodes the bytes of an incomplete, padded, quantum. */
+    private void flushQuantum() {
+
+      if (quantumLength == 2) {
+        decoded[limit++] = (byte) (quantum >> 4);
+      } else if (quantumLength == 3) {
+        decoded[limit++] = (byte) (quantum >> 10);
+        decoded[limit++] = (byte) (quantum >> 2);
+      }
+      quantum = 0;
+      quantumLength = 0;
+    }
+  }
+
+  /**
+   * A reusable output stream Base64 encoding the written bytes into an
+   * underlying stream. The encoded output is broken in lines of 76 characters.
+   */
+  @NotThreadSafe
+  static final class Base64EncodingOutputStream extends OutputStream {
+
+    /** The Base64 alphabet. */
+    static final byte[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+      + "abcdefghijklmnopqrstuvwxyz0123456789+/")
+      .getBytes(StandardCharsets.US_ASCII);
+
+    /** Maximum number of encoded characters per line. */
+    private static final int MAX_LINE_LENGTH = 76;
+
+    /** Encoded bytes not yet written to the underlying stream. */
+    private final byte[] encoded = new byte[BUFFER_SIZE];
+
+    /** Underlying stream. */
+    private OutputStream out;
+
+    /** Number of bytes in the encoded buffer. */
+    private int count;
+
+    /** Bytes of the current, incomplete, 3 bytes group. */
+    private int group;
+
+    /** Number of bytes in the current group. */
+    private int groupLength;
+
+    /** Number of characters in the current line. */
+    private int lineLength;
+
+    /**
+     * Resets this stream to write into the given stream.
+     *
+     * @param output
+     *          the underlying stream, may be <code>null</code> to release it
+     */
+    void init(final OutputStream output) {
+
+      out = output;
+      count = 0;
+      group = 0;
+      groupLength = 0;
+      lineLength = 0;
+    }
+
+    /** {@inheritDoc} */
+    public void write(final int b) throws IOException {
+
+      group = (group << 8) | (b & 0xff);
+      if (++groupLength == 3) {
+        encodeGroup(4);
+      }
+    }
+
+    /** {@inheritDoc} */
+    public void write(final byte[] b, final int off, final int len)
+      throws IOException {
+
+      int end = off + len;
+      for (int i = off; i < end; i++) {
+        group = (group << 8) | (b[i] & 0xff);
+        if (++groupLength == 3) {
+          encodeGroup(4);
+        }
+      }
+    }
+
+    /**
+     * Encodes the remaining bytes, with padding, and writes all the encoded
+     * data to the underlying stream. The underlying stream is neither flushed
+     * nor closed.
+     *
+     * @throws IOException
+     *           thrown if the data can not be written
+     */
+    void finish() throws IOException {
+
+      if (groupLength == 1) {
+        group = group << 16;
+        encodeGroup(2);
+      } else if (groupLength == 2) {
+        group = group << 8;
+        encodeGroup(3);
+      }
+      if (count > 0) {
+        out.write(encoded, 0, count);
+        count = 0;
+      }
+    }
+
+    /**
+     * Encodes the current group in to the output buffer.
+     *
+     * @param characters
+     *          number of significant characters, the remainder is padded
+     *
+     * @throws IOException
+     *           thrown if the buffer can not be written
+     */
+    private void encodeGroup(final int characters) throws IOException {
+
+      if (count + 5 > encoded.length) {
+        out.write(encoded, 0, count);
+        count = 0;
+      }
+      if (lineLength == MAX_LINE_LENGTH) {
+        encoded[count++] = '\n';
+        lineLength = 0;
+      }
+      for (int shift = 18, i = 0; i < 4; shift -= 6, i++) {
+        encoded[count++] = i < characters ? ALPHABET[(group >> shift) & 0x3f]
+          : (byte) '=';
+      }
+      lineLength += 4;
+      group = 0;
+      groupLength = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the complete groups are written, the partial group is kept until
+     * {@link #finish()}.
+     */
+    public void flush() throws IOException {
+
+      if (count > 0) {
+        out.write(encoded, 0, count);
+        count = 0;
+      }
+    }
+  }
+
+  /**
+   * A reusable input stream reading an underlying stream by blocks, for the
+   * byte by byte reads of the Hessian reader.
+   */
+  @NotThreadSafe
+  static final class BufferedInput extends InputStream {
+
+    /** Bytes read from the underlying stream. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** Underlying stream. */
+    private InputStream in;
+
+    /** Position of the next byte to return. */
+    private int position;
+
+    /** Number of valid bytes in the buffer. */
+    private int limit;
+
+    /**
+     * Resets this stream to read from the given stream.
+     *
+     * @param input
+     *          the underlying stream, may be <code>null</code> to release it
+     */
+    void init(final InputStream input) {
+
+      in = input;
+      position = 0;
+      limit = 0;
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+
+      if (position >= limit && !fill()) {
+        return -1;
+      }
+      return buffer[position++] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException {
+
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= limit && !fill()) {
+        return -1;
+      }
+      int count = Math.min(len, limit - position);
+      System.arraycopy(buffer, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    /** {@inheritDoc} */
+    public int available() {
+
+      return limit - position;
+    }
+
+    /**
+     * Reads the next block of data.
+     *
+     * @return <code>false</code> if the end of the stream has been reached
+     *
+     * @throws IOException
+     *           thrown if the underlying stream can not be read
+     */
+    private boolean fill() throws IOException {
+
+      position = 0;
+      limit = 0;
+      int read = in.read(buffer, 0, buffer.length);
+      if (read <= 0) {
+        return false;
+      }
+      limit = read;
+      return true;
+    }
+  }
+
+  /**
+   * A reusable output stream writing into an underlying stream by blocks, for
+   * the byte by byte writes of the Hessian writer.
+   */
+  @NotThreadSafe
+  static final class BufferedOutput extends OutputStream {
+
+    /** Bytes not yet written to the underlying stream. */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** Underlying stream. */
+    private OutputStream out;
+
+    /** Number of bytes in the buffer. */
+    private int count;
+
+    /**
+     * Resets this stream to write into the given stream.
+     *
+     * @param output
+     *          the underlying stream, may be <code>null</code> to release it
+     */
+    void init(final OutputStream output) {
+
+      out = output;
+      count = 0;
+    }
+
+    /** {@inheritDoc} */
+    public void write(final int b) throws IOException {
+
+      if (count == buffer.length) {
+        finish();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    /** {@inheritDoc} */
+    public void write(final byte[] b, final int off, final int len)
+      throws IOException {
+
+      if (len >= buffer.length) {
+        finish();
+        out.write(b, off, len);
+        return;
+      }
+      if (count + len > buffer.length) {
+        finish();
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    /**
+     * Writes the buffered bytes to the underlying stream, which is neither
+     * flushed nor closed.
+     *
+     * @throws IOException
+     *           thrown if the bytes can not be written
+     */
+    void finish() throws IOException {
+
+      if (count > 0) {
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The buffered bytes are written, the underlying stream is not flushed.
+     */
+    public void flush() throws IOException {
+
+      finish();
+    }
+  }
+}
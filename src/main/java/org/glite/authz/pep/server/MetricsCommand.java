@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.glite.authz.common.http.AbstractAdminCommand;
+import org.glite.authz.pep.server.metrics.OpenMetricsWriter;
+import org.glite.authz.pep.server.metrics.PEPDaemonServiceMetrics;
+
+/**
+ * An admin command that exposes the service metrics, and the metrics of the registered sources, in the OpenMetrics
+ * text format scraped by Prometheus. The metric names are prefixed with {@value #NAMESPACE}.
+ */
+public class MetricsCommand extends AbstractAdminCommand {
+
+    /** Namespace of the metric names: {@value} */
+    public static final String NAMESPACE = "pepd";
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4627530741623585510L;
+
+    /** The service metrics. */
+    private final transient PEPDaemonServiceMetrics serviceMetrics;
+
+    /**
+     * Constructor.
+     * 
+     * @param metrics the service metrics
+     */
+    public MetricsCommand(PEPDaemonServiceMetrics metrics) {
+        super("/metrics");
+        if (metrics == null) {
+            throw new IllegalArgumentException("Service metrics may not be null");
+        }
+        serviceMetrics = metrics;
+    }
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        OpenMetricsWriter metricsWriter = new OpenMetricsWriter(NAMESPACE);
+        metricsWriter.counter("requests_total", "Authorization requests received",
+                serviceMetrics.getTotalServiceRequests());
+        metricsWriter.counter("request_errors_total", "Authorization requests which could not be processed",
+                serviceMetrics.getTotalServiceRequestErrors());
+        serviceMetrics.collectMetrics(metricsWriter);
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(OpenMetricsWriter.CONTENT_TYPE);
+        PrintWriter writer = resp.getWriter();
+        metricsWriter.write(writer);
+        writer.flush();
+    }
+}
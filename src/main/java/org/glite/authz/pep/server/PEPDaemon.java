@@ -53,8 +53,13 @@ import org.glite.authz.common.logging.LoggingReloadTask;
 import org.glite.authz.common.util.Files;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
 import org.glite.authz.pep.pip.PolicyInformationPointsShutdownTask;
+import org.glite.authz.pep.pip.provider.VOMSTrustStoreRegistry;
+import org.glite.authz.pep.server.cache.ResponseCache;
 import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
 import org.glite.authz.pep.server.config.PEPDaemonIniConfigurationParser;
+import org.glite.authz.pep.server.metrics.JvmMetrics;
+import org.glite.authz.pep.server.metrics.ThreadPoolMetrics;
+import org.glite.authz.pep.server.pdp.PDPTransport;
 import org.italiangrid.utils.jetty.TLSServerConnectorBuilder;
 import org.italiangrid.utils.jetty.ThreadPoolBuilder;
 import org.opensaml.DefaultBootstrap;
@@ -156,13 +161,21 @@ public final class PEPDaemon {
       }
     }
 
-    final Server pepServer = createPEPDaemonService(daemonConfig);
+    if (daemonConfig.getAuditLogWriter() != null) {
+      LOG.debug("Starting audit log writer");
+      daemonConfig.getAuditLogWriter().start();
+    }
+
+    final PEPDaemonRequestHandler requestHandler = new PEPDaemonRequestHandler(
+      daemonConfig);
+    final Server pepServer = createPEPDaemonService(daemonConfig,
+      requestHandler);
     JettyRunThread pepDaemonServiceThread = new JettyRunThread(pepServer);
     pepDaemonServiceThread.setName("PEP Server Service");
     pepDaemonServiceThread.start();
 
     JettyAdminService adminService = createAdminService(daemonConfig,
-      backgroundTaskTimer, pepServer);
+      backgroundTaskTimer, pepServer, requestHandler);
     LOG.debug("Starting admin service");
     adminService.start();
 
@@ -174,6 +187,9 @@ public final class PEPDaemon {
       public void run() {
 
         task.run();
+        if (daemonConfig.getAuditLogWriter() != null) {
+          daemonConfig.getAuditLogWriter().shutdown();
+        }
       }
     });
 
@@ -185,15 +201,22 @@ public final class PEPDaemon {
    * 
    * @param daemonConfig
    *          the configuration for the service
+   * @param requestHandler
+   *          the request handler shared by the servlets
    * 
    * @return a configured PEP daemon server
    */
   private static Server createPEPDaemonService(
-    PEPDaemonConfiguration daemonConfig) {
+    PEPDaemonConfiguration daemonConfig, PEPDaemonRequestHandler requestHandler) {
 
     ThreadPool tp = ThreadPoolBuilder.instance().withMinThreads(5)
       .withMaxThreads(daemonConfig.getMaxRequests())
       .withMaxRequestQueueSize(daemonConfig.getMaxRequestQueueSize()).build();
+    daemonConfig.getDaemonMetrics().registerMetricsSource(
+      new ThreadPoolMetrics(tp));
+    daemonConfig.getDaemonMetrics().registerMetricsSource(new JvmMetrics());
+    daemonConfig.getDaemonMetrics().registerMetricsSource(
+      VOMSTrustStoreRegistry.getInstance());
 
     Server httpServer = new Server(tp);
 
@@ -214,9 +237,12 @@ public final class PEPDaemon {
     servletContext.setDisplayName("PEP Server");
     servletContext.setAttribute(PEPDaemonConfiguration.BINDING_NAME,
       daemonConfig);
+    servletContext.setAttribute(
+      PEPDaemonServlet.REQUEST_HANDLER_BINDING_NAME, requestHandler);
 
     FilterHolder accessLoggingFilter = new FilterHolder(
       new AccessLoggingFilter());
+    accessLoggingFilter.setAsyncSupported(true);
 
     servletContext.addFilter(accessLoggingFilter, "/*",
       EnumSet.of(DispatcherType.REQUEST));
@@ -224,8 +250,14 @@ public final class PEPDaemon {
     ServletHolder authzRequestServlet = new ServletHolder(
       new PEPDaemonServlet());
     authzRequestServlet.setName("Authorization Servlet");
+    authzRequestServlet.setAsyncSupported(daemonConfig.isAsyncProcessing());
     servletContext.addServlet(authzRequestServlet, "/authz");
 
+    ServletHolder batchRequestServlet = new ServletHolder(
+      new PEPDaemonBatchServlet());
+    batchRequestServlet.setName("Batch Authorization Servlet");
+    servletContext.addServlet(batchRequestServlet, "/authz/batch");
+
     ServletHolder statusRequestServlet = new ServletHolder(
       new ServiceMetricsServlet(daemonConfig.getServiceMetrics()));
     statusRequestServlet.setName("Status Servlet");
@@ -242,6 +274,7 @@ public final class PEPDaemon {
    * <li><em>shutdown</em> - shuts down the PDP daemon service and the admin
    * service</li>
    * <li><em>status</em> - prints out a status page w/ metrics</li>
+   * <li><em>metrics</em> - exposes the metrics in the OpenMetrics format</li>
    * <li><em>expungeResponseCache</em> - expunges all the current entries in the
    * PDP response cache</li>
    * </ul>
@@ -255,12 +288,14 @@ public final class PEPDaemon {
    *          timer used for background tasks
    * @param daemonService
    *          the PEP daemon service
+   * @param requestHandler
+   *          the request handler of the PEP daemon service
    * 
    * @return the admin service
    */
   private static JettyAdminService createAdminService(
     PEPDaemonConfiguration daemonConfig, Timer backgroundTimer,
-    Server daemonService) {
+    Server daemonService, final PEPDaemonRequestHandler requestHandler) {
 
     String adminHost = daemonConfig.getAdminHost();
     if (adminHost == null) {
@@ -277,14 +312,28 @@ public final class PEPDaemon {
 
     adminService.registerAdminCommand(new StatusCommand(daemonConfig
       .getServiceMetrics()));
-    adminService.registerAdminCommand(new ClearResponseCacheCommand());
+    adminService.registerAdminCommand(new MetricsCommand(daemonConfig
+      .getDaemonMetrics()));
+    final ResponseCache responseCache = daemonConfig.getResponseCache();
+    adminService.registerAdminCommand(new ClearResponseCacheCommand(
+      responseCache));
 
     // first shutdown task will force a System.exit(0) after 60 sec.
     adminService.registerShutdownTask(new SystemExitTask(60000));
     adminService.registerShutdownTask(new TimerShutdownTask(backgroundTimer));
     adminService
       .registerShutdownTask(new JettyServerShutdownTask(daemonService));
-    // shutdown the cache
+    // shutdown the response cache
+    if (responseCache != null) {
+      adminService.registerShutdownTask(new ShutdownTask() {
+
+        public void run() {
+
+          responseCache.shutdown();
+        }
+      });
+    }
+    // shutdown the caches
     adminService.registerShutdownTask(new ShutdownTask() {
 
       public void run() {
@@ -295,6 +344,37 @@ public final class PEPDaemon {
         }
       }
     });
+    // stop the background threads of the request handler, they may still
+    // use the PDP transport
+    adminService.registerShutdownTask(new ShutdownTask() {
+
+      public void run() {
+
+        requestHandler.shutdown();
+      }
+    });
+    // shutdown the PDP transport
+    final PDPTransport pdpTransport = daemonConfig.getPDPTransport();
+    if (pdpTransport != null) {
+      adminService.registerShutdownTask(new ShutdownTask() {
+
+        public void run() {
+
+          pdpTransport.shutdown();
+        }
+      });
+    }
+    // write the queued audit log entries
+    final AuditLogWriter auditLogWriter = daemonConfig.getAuditLogWriter();
+    if (auditLogWriter != null) {
+      adminService.registerShutdownTask(new ShutdownTask() {
+
+        public void run() {
+
+          auditLogWriter.shutdown();
+        }
+      });
+    }
     // shutdown the PIPs
     adminService.registerShutdownTask(new PolicyInformationPointsShutdownTask(
       daemonConfig.getPolicyInformationPoints()));
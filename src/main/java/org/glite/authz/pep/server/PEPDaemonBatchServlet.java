@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.http.BaseHttpServlet;
+import org.glite.authz.common.logging.LoggingConstants;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.metrics.StageLatencies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates a batch of authorization requests, a Hessian list of {@link Request}s, and answers the list of their
+ * {@link Response}s, in the same order.
+ * <p>
+ * The requests are handled by the {@link PEPDaemonRequestHandler} shared with the {@link PEPDaemonServlet}, so they
+ * use the same response cache and PDP request coalescing. The requests with the same subjects and environment share
+ * the outcome of the subject PIPs, and the requests are evaluated in parallel by the bounded pool of batch worker
+ * threads. An error only affects the response of the request which caused it. Batches larger than the configured
+ * maximum are rejected with a 413 (Request Entity Too Large) status. As on the {@link PEPDaemonServlet}, the
+ * messages are raw Hessian if the request content type is {@value HessianBase64Codec#RAW_HESSIAN_CONTENT_TYPE}, Base64
+ * encoded otherwise.
+ */
+@ThreadSafe
+public class PEPDaemonBatchServlet extends BaseHttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 2751420733513089274L;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(PEPDaemonBatchServlet.class);
+
+    /** Protocol message log. */
+    private final Logger protocolLog = LoggerFactory.getLogger(LoggingConstants.PROTOCOL_MESSAGE_CATEGORY);
+
+    /** The request handler shared with the single request servlet. */
+    private PEPDaemonRequestHandler requestHandler;
+
+    /** Codec reading the requests and writing the responses. */
+    private final HessianBase64Codec codec = new HessianBase64Codec();
+
+    /** Maximum number of requests in a batch. */
+    private int maxBatchSize;
+
+    /** {@inheritDoc} */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        requestHandler = PEPDaemonServlet.getRequestHandler(getServletContext());
+        PEPDaemonConfiguration daemonConfig = (PEPDaemonConfiguration) getServletContext().getAttribute(
+                PEPDaemonConfiguration.BINDING_NAME);
+        maxBatchSize = daemonConfig.getMaxBatchSize();
+        log.info("Batch authorization requests enabled: {} max requests per batch, {} worker threads", maxBatchSize,
+                daemonConfig.getBatchWorkerThreads());
+    }
+
+    /** {@inheritDoc} */
+    protected void doPost(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException,
+            IOException {
+
+        boolean rawHessian = HessianBase64Codec.isRawHessian(httpRequest.getContentType());
+        List<Request> requests;
+        long readStartTime = System.nanoTime();
+        try {
+            requests = codec.readRequests(httpRequest.getInputStream(), rawHessian);
+            requestHandler.getStageLatencies().recordSince(StageLatencies.READ_STAGE, readStartTime);
+        } catch (IOException e) {
+            log.warn("Invalid batch authorization request: {}", e.getMessage());
+            requestHandler.getRequestPipeline().getServiceMetrics().incrementTotalServiceRequestErrors();
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (requests.size() > maxBatchSize) {
+            log.warn("Batch of {} authorization requests rejected, the maximum is {}", requests.size(), maxBatchSize);
+            requestHandler.getRequestPipeline().getServiceMetrics().incrementTotalServiceRequestErrors();
+            httpResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        protocolLog.debug("Incomming hessian batch request\n{}", requests);
+
+        List<Response> responses = requestHandler.handleBatch(requests);
+
+        protocolLog.debug("Outgoing hessian batch response\n{}", responses);
+        if (rawHessian) {
+            httpResponse.setContentType(HessianBase64Codec.RAW_HESSIAN_CONTENT_TYPE);
+        }
+        long writeStartTime = System.nanoTime();
+        codec.writeResponses(responses, httpResponse.getOutputStream(), rawHessian);
+        httpResponse.flushBuffer();
+        requestHandler.getStageLatencies().recordSince(StageLatencies.WRITE_STAGE, writeStartTime);
+    }
+
+    /** {@inheritDoc} */
+    protected String getSupportedMethods() {
+        return "POST";
+    }
+}
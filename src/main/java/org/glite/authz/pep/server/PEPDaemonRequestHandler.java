@@ -18,8 +18,28 @@
 package org.glite.authz.pep.server;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.glite.authz.common.AuthzServiceConstants;
 import org.glite.authz.common.context.DecisionRequestContext;
@@ -31,10 +51,26 @@ import org.glite.authz.common.model.Result;
 import org.glite.authz.common.model.Status;
 import org.glite.authz.common.model.StatusCode;
 import org.glite.authz.common.model.util.XACMLConverter;
+import org.glite.authz.pep.obligation.ObligationHandler;
 import org.glite.authz.pep.obligation.ObligationProcessingException;
 import org.glite.authz.pep.pip.PIPProcessingException;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.CertificateChainContext;
+import org.glite.authz.pep.server.cache.CachedResponse;
+import org.glite.authz.pep.server.cache.EhcacheResponseCache;
+import org.glite.authz.pep.server.cache.RequestFingerprint;
+import org.glite.authz.pep.server.cache.RequestFingerprinter;
+import org.glite.authz.pep.server.cache.ResponseCache;
 import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.metrics.DecisionCounters;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.StageLatencies;
+import org.glite.authz.pep.server.pdp.CircuitBreaker;
+import org.glite.authz.pep.server.pdp.PDPEndpoint;
+import org.glite.authz.pep.server.pdp.PDPMessageException;
+import org.glite.authz.pep.server.pdp.RequestHedger;
+import org.glite.authz.pep.server.pdp.XACMLSAMLStreamingCodec;
+import org.glite.authz.pep.server.pdp.XACMLSAMLStreamingCodec.DecodedResponse;
 import org.opensaml.Configuration;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Statement;
@@ -54,17 +90,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import net.jcip.annotations.ThreadSafe;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 
 /** Handles an incoming daemon {@link Request}. */
 @ThreadSafe
 public class PEPDaemonRequestHandler {
 
-  /** Name of the cache used to cache PDP responses. */
-  public static final String RESPONSE_CACHE_NAME = "org.glite.authz.pep.server.responseCache";
+  /** Name of the ehcache cache used to cache PDP responses. */
+  public static final String RESPONSE_CACHE_NAME = EhcacheResponseCache.CACHE_NAME;
 
   /** Class logger. */
   private final Logger log = LoggerFactory
@@ -78,11 +114,59 @@ public class PEPDaemonRequestHandler {
   private final Logger protocolLog = LoggerFactory
     .getLogger(LoggingConstants.PROTOCOL_MESSAGE_CATEGORY);
 
-  /** The daemon's configuration. */
-  private PEPDaemonConfiguration daemonConfig;
+  /**
+   * The request pipeline resolved from the daemon's configuration, read without
+   * locking by each request.
+   */
+  private final PEPDaemonRequestPipeline pipeline;
+
+  /** Cache used to store response to a request, <code>null</code> if disabled. */
+  private final ResponseCache responseCache;
+
+  /** Duration, in milliseconds, responses are cached. */
+  private final long cachedResponseTTL;
+
+  /**
+   * Refreshes the cached responses ahead of their expiration and serves them
+   * stale on PDP error, <code>null</code> if both are disabled.
+   */
+  private final ResponseCacheRevalidator cacheRevalidator;
+
+  /**
+   * Coalesces identical concurrent PDP requests, <code>null</code> if
+   * coalescing is disabled.
+   */
+  private final RequestCoalescer<RequestFingerprint, PDPDecision> pdpRequestCoalescer;
+
+  /** Hedges the PDP requests, <code>null</code> if hedging is disabled. */
+  private final RequestHedger requestHedger;
+
+  /** Computes the keys identifying the requests in the cache and coalescer. */
+  private final RequestFingerprinter fingerprinter;
 
-  /** Cache used to store response to a request. */
-  private Cache responseCache;
+  /**
+   * Worker threads evaluating the requests of the batches, <code>null</code>
+   * to evaluate them in the calling thread.
+   */
+  private final ThreadPoolExecutor batchExecutor;
+
+  /**
+   * Worker threads running the independent policy information points of a
+   * request concurrently, <code>null</code> to run them one after the other.
+   */
+  private final ThreadPoolExecutor pipExecutor;
+
+  /** Latencies of the stages of the request processing. */
+  private final StageLatencies stageLatencies = new StageLatencies();
+
+  /** Counts the decisions returned. */
+  private final DecisionCounters decisionCounters = new DecisionCounters();
+
+  /**
+   * Writes the audit log entries from a dedicated thread, <code>null</code> to
+   * write them from the request threads.
+   */
+  private final AuditLogWriter auditLogWriter;
 
   /**
    * Constructor.
@@ -95,17 +179,149 @@ public class PEPDaemonRequestHandler {
     if (config == null) {
       throw new IllegalArgumentException("Daemon configuration may not be null");
     }
-    daemonConfig = config;
+    pipeline = new PEPDaemonRequestPipeline(config);
+    registerPipelineMetrics(pipeline);
+    pipeline.getServiceMetrics().registerMetricsSource(stageLatencies);
+    pipeline.getServiceMetrics().registerMetricsSource(decisionCounters);
+    if (pipeline.getPDPTransport() instanceof MetricsSource) {
+      pipeline.getServiceMetrics().registerMetricsSource(
+        (MetricsSource) pipeline.getPDPTransport());
+    }
+
+    responseCache = config.getResponseCache();
+    cachedResponseTTL = config.getCachedResponseTTL();
+    if (responseCache != null) {
+      pipeline.getServiceMetrics().registerMetricsSource(responseCache);
+    }
+    if (responseCache != null
+      && (config.getCacheRefreshAhead() > 0 || config
+        .getCacheStaleOnErrorPeriod() > 0)) {
+      cacheRevalidator = new ResponseCacheRevalidator(
+        config.getCacheRefreshAhead(), config.getCacheStaleOnErrorPeriod());
+      pipeline.getServiceMetrics().registerMetricsSource(cacheRevalidator);
+    } else {
+      cacheRevalidator = null;
+    }
 
-    if (daemonConfig.getMaxCachedResponses() > 0) {
-      CacheManager cacheMgr = CacheManager.create();
-      responseCache = new Cache(RESPONSE_CACHE_NAME,
-        daemonConfig.getMaxCachedResponses(), MemoryStoreEvictionPolicy.LFU,
-        false, null, false, daemonConfig.getCachedResponseTTL(),
-        daemonConfig.getCachedResponseTTL(), false, Long.MAX_VALUE, null, null);
-      cacheMgr.addCache(responseCache);
+    if (config.isPDPRequestCoalescing()) {
+      pdpRequestCoalescer = new RequestCoalescer<RequestFingerprint, PDPDecision>(
+        config.getMaxCoalescedRequests());
+      pipeline.getServiceMetrics().registerMetricsSource(pdpRequestCoalescer);
     } else {
-      responseCache = null;
+      pdpRequestCoalescer = null;
+    }
+
+    if (config.isPDPRequestHedging()) {
+      requestHedger = new RequestHedger(config.getHedgeDelay(),
+        config.getHedgeBudget(), Math.max(2, 2 * config.getMaxRequests()));
+      pipeline.getServiceMetrics().registerMetricsSource(requestHedger);
+    } else {
+      requestHedger = null;
+    }
+
+    fingerprinter = new RequestFingerprinter(
+      config.getCacheKeyExcludedAttributes());
+
+    auditLogWriter = config.getAuditLogWriter();
+    if (auditLogWriter != null) {
+      pipeline.getServiceMetrics().registerMetricsSource(auditLogWriter);
+    }
+
+    if (config.getBatchWorkerThreads() > 0) {
+      // FIFO queue: the batch leaders are always started before the requests
+      // waiting on them
+      batchExecutor = new ThreadPoolExecutor(config.getBatchWorkerThreads(),
+        config.getBatchWorkerThreads(), 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("pepd-batch-%d").build());
+      batchExecutor.allowCoreThreadTimeOut(true);
+    } else {
+      batchExecutor = null;
+    }
+
+    if (config.getPIPWorkerThreads() > 0) {
+      pipExecutor = new ThreadPoolExecutor(config.getPIPWorkerThreads(),
+        config.getPIPWorkerThreads(), 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("pepd-pip-%d").build());
+      pipExecutor.allowCoreThreadTimeOut(true);
+      log.info("PIP execution stages: {}", pipeline.getPIPExecutionPlan());
+    } else {
+      pipExecutor = null;
+    }
+  }
+
+  /**
+   * Gets the latencies of the stages of the request processing. The
+   * serialization stages are recorded by the servlets.
+   * 
+   * @return the stage latencies
+   */
+  public StageLatencies getStageLatencies() {
+
+    return stageLatencies;
+  }
+
+  /**
+   * Gets the request pipeline used by this handler.
+   * 
+   * @return the request pipeline
+   */
+  public PEPDaemonRequestPipeline getRequestPipeline() {
+
+    return pipeline;
+  }
+
+  /**
+   * Stops the background threads of the handler: the cache refreshes, the
+   * hedged PDP requests, the batch and PIP workers and the PDP endpoint
+   * prober. The requests in progress are interrupted; the PDP transport, shared
+   * with the daemon configuration, is not shut down.
+   */
+  public void shutdown() {
+
+    if (cacheRevalidator != null) {
+      cacheRevalidator.shutdown();
+    }
+    if (requestHedger != null) {
+      requestHedger.shutdown();
+    }
+    if (batchExecutor != null) {
+      batchExecutor.shutdownNow();
+    }
+    if (pipExecutor != null) {
+      pipExecutor.shutdownNow();
+    }
+    pipeline.getPDPEndpointGroup().shutdown();
+  }
+
+  /**
+   * Registers the metrics sources of a request pipeline: its PDP endpoints and
+   * the PIPs and obligation handlers exposing metrics.
+   * 
+   * @param requestPipeline
+   *          the request pipeline
+   */
+  private void registerPipelineMetrics(
+    final PEPDaemonRequestPipeline requestPipeline) {
+
+    requestPipeline.getServiceMetrics().registerMetricsSource(
+      requestPipeline.getPDPEndpointGroup());
+    for (PolicyInformationPoint pip : requestPipeline
+      .getPolicyInformationPoints()) {
+      if (pip instanceof MetricsSource) {
+        requestPipeline.getServiceMetrics().registerMetricsSource(
+          (MetricsSource) pip);
+      }
+    }
+    if (requestPipeline.getObligationService() != null) {
+      for (ObligationHandler handler : requestPipeline.getObligationService()
+        .getObligationHandlers()) {
+        if (handler instanceof MetricsSource) {
+          requestPipeline.getServiceMetrics().registerMetricsSource(
+            (MetricsSource) handler);
+        }
+      }
     }
   }
 
@@ -128,190 +344,974 @@ public class PEPDaemonRequestHandler {
    */
   public Response handle(final Request request) throws IOException {
 
-    daemonConfig.getServiceMetrics().incrementTotalServiceRequests();
+    return handle(pipeline, request, null);
+  }
+
+  /**
+   * Handles the requests of a batch. The requests sharing the same subjects
+   * and environment run the subject PIPs once, see {@link SharedPIPChain}, and
+   * the requests are then evaluated in parallel by the batch worker threads.
+   * Each request is handled, and counted in the service metrics, as a request
+   * of its own: an error only affects the response of the request which caused
+   * it.
+   * 
+   * @param requests
+   *          the requests to be evaluated
+   * 
+   * @return the responses, in the order of the requests
+   */
+  public List<Response> handleBatch(final List<Request> requests) {
+
+    // group the requests by subjects and environment, before the PIPs are run
+    Map<Request, List<Integer>> groups = new LinkedHashMap<Request, List<Integer>>();
+    Map<Request, Integer> instances = new IdentityHashMap<Request, Integer>();
+    int[] duplicateOf = new int[requests.size()];
+    for (int i = 0; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      Integer first = instances.get(request);
+      if (first != null) {
+        // the same instance, decoded from a Hessian reference, shares the
+        // response of its first occurrence
+        duplicateOf[i] = first;
+        continue;
+      }
+      instances.put(request, i);
+      duplicateOf[i] = -1;
+      Request groupKey = SharedPIPChain.groupKey(request);
+      List<Integer> group = groups.get(groupKey);
+      if (group == null) {
+        group = new ArrayList<Integer>();
+        groups.put(groupKey, group);
+      }
+      group.add(i);
+    }
+
+    // the leaders are queued before the requests waiting on them, so that a
+    // waiting request never holds the thread its leader needs
+    List<BatchEntry> leaders = new ArrayList<BatchEntry>();
+    List<BatchEntry> followers = new ArrayList<BatchEntry>();
+    for (List<Integer> group : groups.values()) {
+      SharedPIPChain pipChain = null;
+      if (group.size() > 1 && !pipeline.getPolicyInformationPoints().isEmpty()) {
+        pipChain = new SharedPIPChain(pipeline.getPolicyInformationPoints(),
+          requests.get(group.get(0)), stageLatencies);
+      }
+      leaders.add(new BatchEntry(pipeline, group.get(0), requests.get(group
+        .get(0)), pipChain));
+      for (int i = 1; i < group.size(); i++) {
+        followers.add(new BatchEntry(pipeline, group.get(i), requests.get(group
+          .get(i)), pipChain));
+      }
+    }
+    log.debug("Batch of {} requests, {} distinct subjects", requests.size(),
+      leaders.size());
+    List<BatchEntry> entries = new ArrayList<BatchEntry>(leaders);
+    entries.addAll(followers);
+
+    List<Future<Response>> futures = new ArrayList<Future<Response>>();
+    for (BatchEntry entry : entries) {
+      if (batchExecutor == null) {
+        futures.add(Futures.immediateFuture(entry.call()));
+      } else {
+        futures.add(batchExecutor.submit(entry));
+      }
+    }
+
+    Response[] responses = new Response[requests.size()];
+    boolean interrupted = false;
+    for (int i = 0; i < entries.size(); i++) {
+      BatchEntry entry = entries.get(i);
+      Future<Response> future = futures.get(i);
+      Response response;
+      try {
+        if (interrupted) {
+          future.cancel(true);
+        }
+        response = future.get();
+      } catch (InterruptedException e) {
+        interrupted = true;
+        future.cancel(true);
+        response = buildErrorResponse(entry.request,
+          StatusCodeType.SC_PROCESSING_ERROR,
+          "Interrupted while processing the batch request");
+      } catch (CancellationException e) {
+        response = buildErrorResponse(entry.request,
+          StatusCodeType.SC_PROCESSING_ERROR,
+          "Interrupted while processing the batch request");
+      } catch (ExecutionException e) {
+        pipeline.getServiceMetrics().incrementTotalServiceRequestErrors();
+        log.error("Error processing batched authorization request", e.getCause());
+        response = buildErrorResponse(entry.request,
+          StatusCodeType.SC_PROCESSING_ERROR, e.getCause().getMessage());
+      }
+      responses[entry.index] = response;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int i = 0; i < responses.length; i++) {
+      if (duplicateOf[i] >= 0) {
+        responses[i] = responses[duplicateOf[i]];
+      }
+    }
+    return Arrays.asList(responses);
+  }
 
-    PEPDaemonDecisionRequestContext messageContext = buildMessageContext(daemonConfig
-      .getEntityId());
+  /**
+   * Handles a request with a given request pipeline.
+   * 
+   * @param pipeline
+   *          the request pipeline used for the whole request
+   * @param request
+   *          the request to be evaluated
+   * @param pipChain
+   *          the PIP chain shared by the requests of a batch with the same
+   *          subjects and environment, <code>null</code> to run the PIPs of
+   *          the pipeline
+   * 
+   * @return the response to the given request
+   */
+  private Response handle(final PEPDaemonRequestPipeline pipeline,
+    final Request request, final SharedPIPChain pipChain) {
 
-    Response response = null;
+    RequestProcessing processing = new RequestProcessing(pipeline, request);
     try {
-      // run the policy information points over the request
-      for (PolicyInformationPoint pip : daemonConfig
-        .getPolicyInformationPoints()) {
-        if (pip.populateRequest(request)) {
-          log.debug("PIP {} applied to Hessian request", pip.getId());
-        } else {
-          log.debug("PIP {} do not apply to request", pip.getId());
+      if (processing.lookUpResponse(pipChain)) {
+        log.debug("Response not found in cache, send to PDP");
+        long pdpStartTime = System.nanoTime();
+        PDPDecision decision = getPDPDecision(pipeline,
+          processing.messageContext, processing.requestKey, request);
+        stageLatencies.recordSince(StageLatencies.PDP_STAGE, pdpStartTime);
+        processing.applyDecision(decision);
+      }
+      processing.processObligations();
+    } catch (Exception e) {
+      processing.fail(e);
+    }
+    return processing.complete();
+  }
+
+  /**
+   * Handles a request without blocking the calling thread on the PDP answer.
+   * The PIPs are run and the response cache is checked by the calling thread,
+   * the streamed SOAP request is then sent with
+   * {@link org.glite.authz.pep.server.pdp.PDPTransport#sendAsync(String, byte[])}
+   * and the PDP answer processed by the given executor. When coalescing is
+   * enabled, an identical request already sent shares its future decision.
+   * Without the streaming codec, or with hedging enabled, the request is
+   * handled by the calling thread as by {@link #handle(Request)}.
+   * 
+   * @param request
+   *          the request to be evaluated
+   * @param executor
+   *          processes the PDP answers
+   * 
+   * @return the future response to the given request
+   */
+  public CompletableFuture<Response> handleAsync(final Request request,
+    final Executor executor) {
+
+    if (pipeline.getPDPTransport() == null || requestHedger != null) {
+      return CompletableFuture.completedFuture(handle(pipeline, request, null));
+    }
+
+    final RequestProcessing processing = new RequestProcessing(pipeline,
+      request);
+    try {
+      if (!processing.lookUpResponse(null)) {
+        processing.processObligations();
+        return CompletableFuture.completedFuture(processing.complete());
+      }
+    } catch (Exception e) {
+      processing.fail(e);
+      return CompletableFuture.completedFuture(processing.complete());
+    }
+
+    log.debug("Response not found in cache, send to PDP");
+    final long pdpStartTime = System.nanoTime();
+    final CompletableFuture<Response> response = new CompletableFuture<Response>();
+    CompletableFuture<PDPDecision> pdpDecision = getPDPDecisionAsync(pipeline,
+      processing.messageContext, processing.requestKey, request, executor);
+    pdpDecision.whenComplete(new BiConsumer<PDPDecision, Throwable>() {
+
+      public void accept(final PDPDecision decision, final Throwable error) {
+
+        stageLatencies.recordSince(StageLatencies.PDP_STAGE, pdpStartTime);
+        try {
+          if (error != null) {
+            processing.fail(error);
+          } else {
+            processing.applyDecision(decision);
+            processing.processObligations();
+          }
+        } catch (Exception e) {
+          processing.fail(e);
+        }
+        try {
+          response.complete(processing.complete());
+        } catch (RuntimeException e) {
+          response.completeExceptionally(e);
         }
       }
-      protocolLog.info("Hessian request after PIPs have been run\n{}",
-        request.toString());
+    });
+    return response;
+  }
 
-      // check to see if we have a cached response
-      if (responseCache != null) {
-        log
-          .debug("Checking if a response has already been cached for this request");
-        net.sf.ehcache.Element cacheElement = responseCache.get(request);
-        if (cacheElement != null) {
-          Response cachedResponse = (Response) cacheElement.getObjectValue();
-          if (cachedResponse != null) {
-            log.debug("Cached response found, using it");
-            response = cachedResponse;
-            messageContext.setRespondingPDP("PEPD cache");
-            messageContext.setAuthorizationDecision(response.getResults()
-              .get(0).getDecisionString());
+  /**
+   * Caches a PDP response if its decision is Deny or Permit.
+   * 
+   * @param requestKey
+   *          fingerprint of the authorization request
+   * @param response
+   *          the PDP response
+   * 
+   * @return <code>true</code> if the response was cached
+   */
+  private boolean cacheResponse(final RequestFingerprint requestKey,
+    final Response response) {
+
+    int decision = response.getResults().get(0).getDecision();
+    if (decision != Result.DECISION_DENY && decision != Result.DECISION_PERMIT) {
+      return false;
+    }
+    long stalePeriod = 0;
+    if (cacheRevalidator != null) {
+      stalePeriod = cacheRevalidator.getStaleOnErrorPeriod();
+    }
+    responseCache.put(requestKey, new CachedResponse(response,
+      System.currentTimeMillis(), cachedResponseTTL, stalePeriod));
+    return true;
+  }
+
+  /**
+   * Sends the request to the PDP in the background and caches the new
+   * response. The cached response keeps being served meanwhile.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param requestKey
+   *          fingerprint of the authorization request
+   * @param authzRequest
+   *          the authorization request, after the PIPs have been run
+   */
+  private void refreshCachedResponse(final PEPDaemonRequestPipeline pipeline,
+    final RequestFingerprint requestKey, final Request authzRequest) {
+
+    cacheRevalidator.refresh(requestKey, new Callable<Boolean>() {
+
+      public Boolean call() throws Exception {
+
+        PEPDaemonDecisionRequestContext refreshContext = buildMessageContext(pipeline
+          .getEntityId());
+        PDPDecision decision = getPDPDecision(pipeline, refreshContext,
+          requestKey, authzRequest);
+        Response refreshed = extractResponse(refreshContext, decision);
+        if (refreshed == null) {
+          return Boolean.FALSE;
+        }
+        if (!cacheResponse(requestKey, refreshed)) {
+          log.debug("Refreshed decision {} for {} is not cached",
+            refreshContext.getAuthorizationDecision(), requestKey);
+        }
+        return Boolean.TRUE;
+      }
+    });
+  }
+
+  /**
+   * Gets the PDP decision for the request. When coalescing is enabled and an
+   * identical request is already being sent to the PDP, its decision is
+   * shared instead of sending a new request.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context
+   * @param requestKey
+   *          fingerprint of the authorization request, <code>null</code> if
+   *          coalescing is disabled
+   * @param authzRequest
+   *          the authorization request
+   * 
+   * @return the PDP decision
+   * 
+   * @throws Exception
+   *           thrown if the thread is interrupted while waiting for the
+   *           decision of an identical request
+   */
+  private PDPDecision getPDPDecision(final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final RequestFingerprint requestKey, final Request authzRequest)
+    throws Exception {
+
+    if (pdpRequestCoalescer == null) {
+      return sendRequestToPDP(pipeline, messageContext, authzRequest);
+    }
+    return pdpRequestCoalescer.execute(requestKey,
+      new Callable<PDPDecision>() {
+
+        public PDPDecision call() {
+
+          PDPDecision decision = sendRequestToPDP(pipeline, messageContext,
+            authzRequest);
+          // the coalesced requests audit the request which was sent
+          decision.setOutboundMessageId(messageContext.getOutboundMessageId());
+          return decision;
+        }
+      });
+  }
+
+  /**
+   * Gets the future PDP decision for the request without blocking. When
+   * coalescing is enabled and an identical request is already being sent to
+   * the PDP, its future decision is shared instead of sending a new request,
+   * and is processed by the given executor for each request sharing it.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context
+   * @param requestKey
+   *          fingerprint of the authorization request, <code>null</code> if
+   *          coalescing is disabled
+   * @param authzRequest
+   *          the authorization request
+   * @param executor
+   *          processes the PDP answers
+   * 
+   * @return the future PDP decision
+   */
+  private CompletableFuture<PDPDecision> getPDPDecisionAsync(
+    final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final RequestFingerprint requestKey, final Request authzRequest,
+    final Executor executor) {
+
+    if (pdpRequestCoalescer == null) {
+      return sendRequestToPDPAsync(pipeline, messageContext, authzRequest,
+        executor);
+    }
+    final CompletableFuture<PDPDecision> decision = new CompletableFuture<PDPDecision>();
+    pdpRequestCoalescer.executeAsync(requestKey,
+      new Callable<CompletableFuture<PDPDecision>>() {
+
+        public CompletableFuture<PDPDecision> call() {
+
+          return sendRequestToPDPAsync(pipeline, messageContext, authzRequest,
+            executor).thenApply(new Function<PDPDecision, PDPDecision>() {
+
+            public PDPDecision apply(final PDPDecision answer) {
+
+              // the coalesced requests audit the request which was sent
+              answer.setOutboundMessageId(messageContext.getOutboundMessageId());
+              return answer;
+            }
+          });
+        }
+      }).whenComplete(new BiConsumer<PDPDecision, Throwable>() {
+
+      public void accept(final PDPDecision answer, final Throwable error) {
+
+        // the shared decision is completed by a single thread, each request
+        // sharing it is processed by the executor
+        execute(executor, new Runnable() {
+
+          public void run() {
+
+            if (error != null) {
+              decision.completeExceptionally(error);
+            } else {
+              decision.complete(answer);
+            }
           }
+        });
+      }
+    });
+    return decision;
+  }
+
+  /**
+   * Attempts to send the SOAP request. This method attempts to send the request
+   * to each registered PDP endpoint, starting with the one chosen by the load
+   * balancing policy, until one endpoint responses with an HTTP 200 status code
+   * and a valid authorization decision. The endpoints whose circuit is open are
+   * skipped. When hedging is enabled, the first request is also sent to the
+   * next endpoint if it is not answered in time. With the streaming codec, the
+   * SOAP request is encoded once and the same bytes are sent to each endpoint.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context
+   * @param authzRequest
+   *          the authorization request to be sent
+   * 
+   * @return the PDP decision, or the error if no PDP answered the request
+   */
+  private PDPDecision sendRequestToPDP(final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final Request authzRequest) {
+
+    byte[] streamedRequest = null;
+    if (pipeline.getPDPTransport() != null) {
+      try {
+        streamedRequest = encodeStreamedRequest(pipeline, messageContext,
+          authzRequest);
+      } catch (PDPMessageException e) {
+        log.error("Unable to encode the PDP request", e);
+        return new PDPDecision(null, null, null, e.getMessage());
+      }
+    } else {
+      RequestType xacmlRequest = XACMLConverter.requestToXACML(authzRequest);
+      Envelope soapRequest = DecisionRequestContextHelper.buildSOAPMessage(
+        pipeline.getEntityId(), messageContext, xacmlRequest);
+      logSOAPProtocolMessage(soapRequest, true);
+    }
+
+    List<PDPEndpoint> endpoints = pipeline.getPDPEndpointGroup()
+      .selectEndpoints();
+    String errorMessage = null;
+    boolean firstAttempt = true;
+    PDPEndpoint hedgedEndpoint = null;
+    for (int i = 0; i < endpoints.size(); i++) {
+      PDPEndpoint endpoint = endpoints.get(i);
+      if (endpoint == hedgedEndpoint) {
+        continue;
+      }
+      if (!endpoint.allowRequest()) {
+        log.debug("Skipping PDP {}, its circuit is open", endpoint.getUrl());
+        if (errorMessage == null) {
+          errorMessage = "PDP " + endpoint.getUrl() + " is unavailable";
         }
+        continue;
       }
-      // if no cached response, send request to PDP
-      if (response == null) {
-        log.debug("Response not found in cache, send to PDP");
-        response = sendRequestToPDP(messageContext, request);
-        if (response == null) {
-          String error = "No response received from PDP: "
-            + daemonConfig.getPDPEndpoints();
-          log.error(error);
-          daemonConfig.getServiceMetrics().incrementTotalServiceRequestErrors();
-          response = buildErrorResponse(request,
-            StatusCodeType.SC_PROCESSING_ERROR, error);
-          writeAuditLogEntry(messageContext);
-          return response;
+
+      PDPDecision decision;
+      PDPEndpoint hedgeEndpoint = null;
+      if (requestHedger != null && firstAttempt) {
+        hedgeEndpoint = findHedgeEndpoint(endpoints, i + 1);
+      }
+      firstAttempt = false;
+      if (hedgeEndpoint == null) {
+        decision = sendRequestToEndpoint(pipeline, endpoint, messageContext,
+          streamedRequest, null);
+      } else {
+        // the streamed request is immutable, both requests share it, while
+        // each OpenSAML request is received in a context of its own
+        PEPDaemonDecisionRequestContext requestContext = messageContext;
+        PEPDaemonDecisionRequestContext hedgeContext = messageContext;
+        if (streamedRequest == null) {
+          requestContext = buildMessageContext(pipeline.getEntityId());
+          requestContext.setOutboundMessage(messageContext.getOutboundMessage());
+          requestContext.setOutboundMessageId(messageContext
+            .getOutboundMessageId());
+          hedgeContext = null;
+        }
+        EndpointRequest request = new EndpointRequest(pipeline, endpoint,
+          requestContext, authzRequest, streamedRequest, false);
+        EndpointRequest hedge = new EndpointRequest(pipeline, hedgeEndpoint,
+          hedgeContext, authzRequest, streamedRequest, true);
+        decision = sendHedgedRequest(messageContext, request, hedge);
+        if (hedge.isSent()) {
+          hedgedEndpoint = hedgeEndpoint;
+        }
+      }
+      if (decision.isAnswered()) {
+        return decision;
+      }
+      if (decision.errorMessage != null) {
+        errorMessage = decision.errorMessage;
+      }
+    }
+
+    log.error("No PDP endpoint was able to answer the authorization request");
+    return new PDPDecision(null, null, null, errorMessage);
+  }
+
+  /**
+   * Sends the streamed SOAP request to the PDP endpoints without blocking. The
+   * endpoints are tried in the order of {@link #sendRequestToPDP}, each one
+   * once the previous one failed.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context
+   * @param authzRequest
+   *          the authorization request to be sent
+   * @param executor
+   *          processes the PDP answers
+   * 
+   * @return the future PDP decision, or the error if no PDP answered the
+   *         request
+   */
+  private CompletableFuture<PDPDecision> sendRequestToPDPAsync(
+    final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final Request authzRequest, final Executor executor) {
+
+    CompletableFuture<PDPDecision> decision = new CompletableFuture<PDPDecision>();
+    try {
+      byte[] streamedRequest = encodeStreamedRequest(pipeline, messageContext,
+        authzRequest);
+      sendRequestToEndpointAsync(pipeline, messageContext, pipeline
+        .getPDPEndpointGroup().selectEndpoints(), 0, streamedRequest, null,
+        executor, decision);
+    } catch (PDPMessageException e) {
+      log.error("Unable to encode the PDP request", e);
+      decision.complete(new PDPDecision(null, null, null, e.getMessage()));
+    } catch (RuntimeException e) {
+      decision.completeExceptionally(e);
+    }
+    return decision;
+  }
+
+  /**
+   * Sends the streamed SOAP request to the first available endpoint, and to
+   * the next ones if it does not answer.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context
+   * @param endpoints
+   *          the endpoints, in the order they are tried
+   * @param first
+   *          index of the first endpoint which may be tried
+   * @param streamedRequest
+   *          the SOAP request encoded by the streaming codec
+   * @param previousError
+   *          error of the previous endpoints, <code>null</code> if none
+   * @param executor
+   *          processes the PDP answers
+   * @param decision
+   *          completed with the PDP decision, or the error if no PDP answered
+   */
+  private void sendRequestToEndpointAsync(
+    final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final List<PDPEndpoint> endpoints, final int first,
+    final byte[] streamedRequest, final String previousError,
+    final Executor executor, final CompletableFuture<PDPDecision> decision) {
+
+    String errorMessage = previousError;
+    for (int i = first; i < endpoints.size(); i++) {
+      final PDPEndpoint endpoint = endpoints.get(i);
+      if (!endpoint.allowRequest()) {
+        log.debug("Skipping PDP {}, its circuit is open", endpoint.getUrl());
+        if (errorMessage == null) {
+          errorMessage = "PDP " + endpoint.getUrl() + " is unavailable";
+        }
+        continue;
+      }
+
+      final int next = i + 1;
+      final String endpointsError = errorMessage;
+      final long startTime = endpoint.requestStarted();
+      log.debug("Sending request {} to {}",
+        messageContext.getOutboundMessageId(), endpoint.getUrl());
+      pipeline.getPDPTransport().sendAsync(endpoint.getUrl(), streamedRequest)
+        .whenComplete(new BiConsumer<byte[], Throwable>() {
+
+          public void accept(final byte[] streamedResponse,
+            final Throwable error) {
+
+            execute(executor, new Runnable() {
+
+              public void run() {
+
+                try {
+                  PDPDecision answer = readStreamedResponse(endpoint,
+                    startTime, streamedResponse, error);
+                  if (answer.isAnswered()) {
+                    decision.complete(answer);
+                    return;
+                  }
+                  String nextError = answer.errorMessage;
+                  if (nextError == null) {
+                    nextError = endpointsError;
+                  }
+                  sendRequestToEndpointAsync(pipeline, messageContext,
+                    endpoints, next, streamedRequest, nextError, executor,
+                    decision);
+                } catch (Throwable t) {
+                  decision.completeExceptionally(t);
+                }
+              }
+            });
+          }
+        });
+      return;
+    }
+
+    log.error("No PDP endpoint was able to answer the authorization request");
+    decision.complete(new PDPDecision(null, null, null, errorMessage));
+  }
+
+  /**
+   * Runs a task with an executor, or with the calling thread if the executor
+   * rejects it, as it does once shut down, so that the task is always run.
+   * 
+   * @param executor
+   *          the executor
+   * @param task
+   *          the task
+   */
+  private static void execute(final Executor executor, final Runnable task) {
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  /**
+   * Reads the answer of a PDP endpoint to a streamed SOAP request sent
+   * asynchronously, and records the completion of the request.
+   * 
+   * @param endpoint
+   *          the PDP endpoint
+   * @param startTime
+   *          the start time of the request
+   * @param streamedResponse
+   *          the SOAP response, <code>null</code> if the request failed
+   * @param error
+   *          the failure of the request, <code>null</code> if it was answered
+   * 
+   * @return the PDP decision, or the error if the PDP did not answer
+   */
+  private PDPDecision readStreamedResponse(final PDPEndpoint endpoint,
+    final long startTime, final byte[] streamedResponse, final Throwable error) {
+
+    String pdpEndpoint = endpoint.getUrl();
+    boolean answered = false;
+    Throwable failure = error;
+    if (failure instanceof CompletionException && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    try {
+      if (failure == null) {
+        DecodedResponse decodedResponse = XACMLSAMLStreamingCodec
+          .decodeResponse(streamedResponse);
+        answered = true;
+        logStreamedProtocolMessage(streamedResponse, false);
+        return new PDPDecision(streamedResponse, decodedResponse, pdpEndpoint);
+      }
+    } catch (PDPMessageException e) {
+      failure = e;
+    } finally {
+      endpoint.requestCompleted(startTime, answered);
+    }
+
+    String errorMessage;
+    if (failure instanceof PDPMessageException) {
+      errorMessage = "Invalid response from PDP " + pdpEndpoint + ": "
+        + failure.getMessage();
+      log.warn(errorMessage);
+    } else {
+      errorMessage = "Error sending request to PDP: " + pdpEndpoint;
+      log.error(errorMessage, failure);
+    }
+    return new PDPDecision(null, null, null, errorMessage);
+  }
+
+  /**
+   * Encodes the SOAP request of an authorization request with the streaming
+   * codec. Only the XACML request is serialized, the envelope is pre-built.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param messageContext
+   *          current request context, receiving the ID of the SOAP request
+   * @param authzRequest
+   *          the authorization request to be sent
+   * 
+   * @return the UTF-8 encoded SOAP request
+   * 
+   * @throws PDPMessageException
+   *           thrown if the request can not be encoded
+   */
+  private byte[] encodeStreamedRequest(
+    final PEPDaemonRequestPipeline pipeline,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final Request authzRequest) throws PDPMessageException {
+
+    String messageId = XACMLSAMLStreamingCodec.generateMessageId();
+    byte[] streamedRequest = pipeline.getSOAPRequestTemplate().encodeRequest(
+      authzRequest, messageId, System.currentTimeMillis());
+    messageContext.setOutboundMessageId(messageId);
+    logStreamedProtocolMessage(streamedRequest, true);
+    return streamedRequest;
+  }
+
+  /**
+   * Finds the endpoint to which a request is hedged: the next endpoint whose
+   * circuit is closed. The endpoints with a half-open circuit only get their
+   * trial request.
+   * 
+   * @param endpoints
+   *          the endpoints, in the order they are tried
+   * @param first
+   *          index of the first endpoint which may be used
+   * 
+   * @return the endpoint, <code>null</code> if none is available
+   */
+  private PDPEndpoint findHedgeEndpoint(final List<PDPEndpoint> endpoints,
+    final int first) {
+
+    for (int i = first; i < endpoints.size(); i++) {
+      PDPEndpoint endpoint = endpoints.get(i);
+      if (endpoint.getCircuitBreaker() == null
+        || endpoint.getCircuitBreaker().getState() == CircuitBreaker.State.CLOSED) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sends a request and, if it is not answered in time, its hedge. When the
+   * requests have their own request context, the messages of the request
+   * answered first, or of the first request if none was answered, are copied
+   * to the current request context.
+   * 
+   * @param messageContext
+   *          current request context
+   * @param request
+   *          the request to the first endpoint
+   * @param hedge
+   *          the request to the second endpoint
+   * 
+   * @return the first PDP decision, or the error if no PDP answered
+   */
+  private PDPDecision sendHedgedRequest(
+    final PEPDaemonDecisionRequestContext messageContext,
+    final EndpointRequest request, final EndpointRequest hedge) {
+
+    PDPDecision decision;
+    try {
+      decision = requestHedger.execute(request, hedge);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new PDPDecision(null, null, null,
+        "Interrupted while waiting for the PDP answer");
+    }
+    EndpointRequest sent = request;
+    if (decision != null && decision == hedge.getAnswer()) {
+      sent = hedge;
+    }
+    PEPDaemonDecisionRequestContext sentContext = sent.getMessageContext();
+    if (sentContext != null && sentContext != messageContext) {
+      messageContext.setOutboundMessage(sentContext.getOutboundMessage());
+      messageContext.setOutboundMessageId(sentContext.getOutboundMessageId());
+      messageContext.setInboundMessage(sentContext.getInboundMessage());
+    }
+    if (decision != null) {
+      return decision;
+    }
+    String errorMessage = hedge.getErrorMessage();
+    if (errorMessage == null) {
+      errorMessage = request.getErrorMessage();
+    }
+    return new PDPDecision(null, null, null, errorMessage);
+  }
+
+  /**
+   * Sends the SOAP request of a request context, or the streamed SOAP request,
+   * to a PDP endpoint.
+   * 
+   * @param pipeline
+   *          request pipeline of the current request
+   * @param endpoint
+   *          the PDP endpoint, which allowed the request
+   * @param messageContext
+   *          request context holding the SOAP request
+   * @param streamedRequest
+   *          the SOAP request encoded by the streaming codec,
+   *          <code>null</code> if the request context holds the SOAP request
+   * @param hedgedRequest
+   *          the hedged request sending it, which may abort it,
+   *          <code>null</code> if the request is not hedged
+   * 
+   * @return the PDP decision, or the error if the PDP did not answer
+   */
+  private PDPDecision sendRequestToEndpoint(
+    final PEPDaemonRequestPipeline pipeline, final PDPEndpoint endpoint,
+    final PEPDaemonDecisionRequestContext messageContext,
+    final byte[] streamedRequest, final EndpointRequest hedgedRequest) {
+
+    String pdpEndpoint = endpoint.getUrl();
+    String errorMessage = null;
+    boolean answered = false;
+    long startTime = endpoint.requestStarted();
+    try {
+      log.debug("Sending request {} to {}",
+        messageContext.getOutboundMessageId(), pdpEndpoint);
+
+      if (streamedRequest != null) {
+        byte[] streamedResponse;
+        if (hedgedRequest != null) {
+          streamedResponse = hedgedRequest.sendStreamedRequest();
+        } else {
+          streamedResponse = pipeline.getPDPTransport().send(pdpEndpoint,
+            streamedRequest);
         }
+        DecodedResponse decodedResponse = XACMLSAMLStreamingCodec
+          .decodeResponse(streamedResponse);
+        answered = true;
+        logStreamedProtocolMessage(streamedResponse, false);
+        return new PDPDecision(streamedResponse, decodedResponse, pdpEndpoint);
+      }
+
+      SOAPClient client = pipeline.getSOAPClient();
+      client.send(pdpEndpoint, messageContext);
+
+      Envelope soapResponse = (Envelope) messageContext.getInboundMessage();
+      XACMLAuthzDecisionStatementType authzStatement = extractDecisionStatement(
+        pdpEndpoint, soapResponse);
+
+      if (authzStatement != null) {
+        answered = true;
+        logSOAPProtocolMessage(soapResponse, false);
+        org.opensaml.saml2.core.Response samlResponse = (org.opensaml.saml2.core.Response) soapResponse
+          .getBody().getOrderedChildren().get(0);
+        return new PDPDecision(authzStatement, pdpEndpoint,
+          samlResponse.getID(), null);
       }
+    } catch (SOAPFaultException e) {
+      String error = "Recieved SOAP Fault " + e.getFault().getCode()
+        + " from PDP: " + pdpEndpoint;
+      log.warn(error, e);
+      errorMessage = error;
+    } catch (SOAPException e) {
+      String error = "Error sending request to PDP: " + pdpEndpoint;
+      logSendError(error, e, hedgedRequest);
+      errorMessage = error;
+    } catch (SecurityException e) {
+      String error = "Response from PDP " + pdpEndpoint
+        + " did not meet message security requirements";
+      log.error(error, e);
+      errorMessage = error;
+    } catch (PDPMessageException e) {
+      String error = "Invalid response from PDP " + pdpEndpoint + ": "
+        + e.getMessage();
+      log.warn(error);
+      errorMessage = error;
+    } catch (IOException e) {
+      String error = "Error sending request to PDP: " + pdpEndpoint;
+      logSendError(error, e, hedgedRequest);
+      errorMessage = error;
+    } finally {
+      if (!answered && isCancelled(hedgedRequest)) {
+        // cancelled, the hedged request was answered first
+        endpoint.requestCancelled(startTime);
+      } else {
+        endpoint.requestCompleted(startTime, answered);
+      }
+    }
+    return new PDPDecision(null, null, null, errorMessage);
+  }
+
+  /**
+   * Checks whether the request being sent by the current thread has been
+   * cancelled, because the hedged request was answered first.
+   * 
+   * @param hedgedRequest
+   *          the hedged request being sent, <code>null</code> if the request
+   *          is not hedged
+   * 
+   * @return <code>true</code> if the request has been aborted or the thread
+   *         interrupted
+   */
+  private boolean isCancelled(final EndpointRequest hedgedRequest) {
 
-      Result result = response.getResults().get(0);
-      // cache Deny/Permit decisions
-      if (responseCache != null
-        && (result.getDecision() == Result.DECISION_DENY || result
-          .getDecision() == Result.DECISION_PERMIT)) {
-        log.debug("Caching response {} for request {}",
-          messageContext.getInboundMessageId(),
-          messageContext.getOutboundMessageId());
-        responseCache.put(new net.sf.ehcache.Element(request, response));
-      }
+    return hedgedRequest != null && hedgedRequest.isAborted()
+      || Thread.currentThread().isInterrupted();
+  }
 
-      // run obligations handlers over the response
-      if (daemonConfig.getObligationService() != null) {
-        log.debug("Processing obligations");
-        daemonConfig.getObligationService().processObligations(request, result);
-      }
+  /**
+   * Logs the failure to send a request to a PDP. The failure of a cancelled
+   * request is expected and only logged at debug level.
+   * 
+   * @param error
+   *          the error message
+   * @param e
+   *          the failure
+   * @param hedgedRequest
+   *          the hedged request being sent, <code>null</code> if the request
+   *          is not hedged
+   */
+  private void logSendError(final String error, final Exception e,
+    final EndpointRequest hedgedRequest) {
 
-    } catch (PIPProcessingException e) {
-      daemonConfig.getServiceMetrics().incrementTotalServiceRequestErrors();
-      log.error("Error processing PIP: " + e.getMessage());
-      log.debug("", e);
-      response = buildErrorResponse(request,
-        StatusCodeType.SC_PROCESSING_ERROR, e.getMessage());
-    } catch (ObligationProcessingException e) {
-      daemonConfig.getServiceMetrics().incrementTotalServiceRequestErrors();
-      log.error("Error processing obligation handlers: " + e.getMessage());
-      log.debug("", e);
-      response = buildErrorResponse(request,
-        StatusCodeType.SC_PROCESSING_ERROR, e.getMessage());
-    } catch (Exception e) {
-      daemonConfig.getServiceMetrics().incrementTotalServiceRequestErrors();
-      log.error("Error processing authorization request: " + e.getMessage());
-      log.debug("", e);
-      response = buildErrorResponse(request,
-        StatusCodeType.SC_PROCESSING_ERROR, e.getMessage());
-    } finally {
-      protocolLog.info("Complete hessian response\n{}", response.toString());
+    if (isCancelled(hedgedRequest)) {
+      log.debug("{}: request cancelled, the hedged request was answered first",
+        error);
+    } else {
+      log.error(error, e);
     }
-
-    writeAuditLogEntry(messageContext);
-    return response;
   }
 
   /**
-   * Attempts to send the SOAP request. This method attempts to send the request
-   * to each registered PDP endpoint until one endpoint responses with an HTTP
-   * 200 status code. If PDP returns a 200 then null is returned, indicating
-   * that the response could not be sent to any PDP.
+   * Extracts the response from a PDP decision and records the decision in the
+   * request context. Each request gets its own response, even when the
+   * decision is shared by coalesced requests, and records the IDs of the
+   * request actually sent to the PDP, and of its response.
    * 
    * @param messageContext
    *          current request context
-   * @param authzRequest
-   *          the authorization request to be sent
+   * @param decision
+   *          the PDP decision
+   * 
+   * @return the response, or <code>null</code> if no PDP answered the request
    * 
-   * @return the returned response
+   * @throws PDPMessageException
+   *           thrown if the streamed response can not be decoded again
    */
-  private Response sendRequestToPDP(
+  private Response extractResponse(
     final PEPDaemonDecisionRequestContext messageContext,
-    final Request authzRequest) {
+    final PDPDecision decision) throws PDPMessageException {
 
-    RequestType xacmlRequest = XACMLConverter.requestToXACML(authzRequest);
-    Envelope soapRequest = DecisionRequestContextHelper.buildSOAPMessage(
-      daemonConfig.getEntityId(), messageContext, xacmlRequest);
-    logSOAPProtocolMessage(soapRequest, true);
+    if (decision.outboundMessageId != null) {
+      messageContext.setOutboundMessageId(decision.outboundMessageId);
+    }
+    if (!decision.isAnswered()) {
+      messageContext.setProcessingError(decision.errorMessage);
+      return null;
+    }
 
-    Iterator<String> pdpItr = daemonConfig.getPDPEndpoints().iterator();
-    String pdpEndpoint = null;
-    Response authzResponse = null;
-    String errorMessage = null;
-    while (pdpItr.hasNext()) {
-      try {
-        pdpEndpoint = pdpItr.next();
-        log.debug("Sending request {} to {}",
-          messageContext.getOutboundMessageId(), pdpEndpoint);
-        
-        SOAPClient client = daemonConfig.getSOAPClient();
-        client.send(pdpEndpoint, messageContext);
-        
-        authzResponse = extractResponse(messageContext, pdpEndpoint,
-          (Envelope) messageContext.getInboundMessage());
-        
-        if (authzResponse != null) {
-          logSOAPProtocolMessage(messageContext.getInboundMessage(), false);
-          messageContext.setRespondingPDP(pdpEndpoint);
-          messageContext.setAuthorizationDecision(authzResponse.getResults()
-            .get(0).getDecisionString());
-          break;
-        }
-      } catch (SOAPFaultException e) {
-        String error = "Recieved SOAP Fault " + e.getFault().getCode()
-          + " from PDP: " + pdpEndpoint;
-        log.warn(error, e);
-        errorMessage = error;
-      } catch (SOAPException e) {
-        String error = "Error sending request to PDP: " + pdpEndpoint;
-        log.error(error, e);
-        errorMessage = error;
-      } catch (SecurityException e) {
-        String error = "Response from PDP " + pdpEndpoint
-          + " did not meet message security requirements";
-        log.error(error, e);
-        errorMessage = error;
-      }
-    }
-
-    if (authzResponse != null) {
-      log.debug(
-        "A decision of {} was reached by {} in response to request {}",
-        new Object[] { authzResponse.getResults().get(0).getDecisionString(),
-          messageContext.getRespondingPDP(),
-          messageContext.getOutboundMessageId(), });
-      return authzResponse;
+    messageContext.setInboundMessageId(decision.inboundMessageId);
+    messageContext.setRespondingPDP(decision.respondingPDP);
+    Response authzResponse;
+    if (decision.authzStatement != null) {
+      authzResponse = XACMLConverter.responseFromXACML(
+        decision.authzStatement.getResponse(),
+        decision.authzStatement.getRequest());
     } else {
-      log.error("No PDP endpoint was able to answer the authorization request");
-      messageContext.setProcessingError(errorMessage);
-      return null;
+      authzResponse = decision.claimStreamedResponse();
     }
+    messageContext.setAuthorizationDecision(authzResponse.getResults().get(0)
+      .getDecisionString());
+    log.debug("A decision of {} was reached by {} in response to request {}",
+      new Object[] { authzResponse.getResults().get(0).getDecisionString(),
+        messageContext.getRespondingPDP(),
+        messageContext.getOutboundMessageId(), });
+    return authzResponse;
   }
 
   /**
-   * Extracts the response from a PDP response. If more than one assertion is
-   * present
+   * Extracts the authorization decision statement from a PDP response.
    * 
-   * @param messageContext
-   *          current request context
    * @param pdpEndpoint
-   *          the endpoint to which the message should be sent
+   *          the endpoint to which the message was sent
    * @param soapResponse
    *          the SOAP response containing the XACML-SAML authorization response
    * 
-   * @return the extract response or <code>null</code> on error.
+   * @return the authorization decision statement or <code>null</code> on error.
    */
-  private Response extractResponse(final DecisionRequestContext messageContext,
+  private XACMLAuthzDecisionStatementType extractDecisionStatement(
     final String pdpEndpoint, final Envelope soapResponse) {
 
     org.opensaml.saml2.core.Response samlResponse = (org.opensaml.saml2.core.Response) soapResponse
@@ -351,11 +1351,7 @@ public class PEPDaemonRequestHandler {
       return null;
     }
 
-    messageContext.setInboundMessageId(samlResponse.getID());
-    XACMLAuthzDecisionStatementType authzStatement = (XACMLAuthzDecisionStatementType) authzStatements
-      .get(0);
-    return XACMLConverter.responseFromXACML(authzStatement.getResponse(),
-      authzStatement.getRequest());
+    return (XACMLAuthzDecisionStatementType) authzStatements.get(0);
   }
 
   /**
@@ -363,7 +1359,7 @@ public class PEPDaemonRequestHandler {
    * <b>Indeterminate</b>
    * 
    * @param request
-   *          the request that caused the error
+   *          the request that caused the error, may be <code>null</code>
    * @param statusCode
    *          status code of the error
    * @param errorMessage
@@ -371,7 +1367,7 @@ public class PEPDaemonRequestHandler {
    * 
    * @return the built response
    */
-  private Response buildErrorResponse(final Request request,
+  Response buildErrorResponse(final Request request,
     final String statusCode, final String errorMessage) {
 
     StatusCode errorCode = new StatusCode();
@@ -425,6 +1421,31 @@ public class PEPDaemonRequestHandler {
     }
   }
 
+  /**
+   * Logs an inbound/outbound SOAP message encoded by the streaming codec.
+   * 
+   * @param message
+   *          the UTF-8 encoded message to log
+   * @param isRequest
+   *          whether the message is a request
+   */
+  private void logStreamedProtocolMessage(final byte[] message,
+    final boolean isRequest) {
+
+    if (message == null) {
+      return;
+    }
+
+    if (protocolLog.isDebugEnabled()) {
+      String messageText = new String(message, StandardCharsets.UTF_8);
+      if (isRequest) {
+        protocolLog.debug("Outgoing SOAP request\n{}", messageText);
+      } else {
+        protocolLog.debug("Inbound SOAP response\n{}", messageText);
+      }
+    }
+  }
+
   /**
    * Writes a PEP daemon audit log entry.
    * 
@@ -434,6 +1455,14 @@ public class PEPDaemonRequestHandler {
   private void writeAuditLogEntry(
     final PEPDaemonDecisionRequestContext messageContext) {
 
+    if (auditLogWriter != null) {
+      auditLogWriter.write(messageContext.getOutboundMessageId(),
+        messageContext.getRespondingPDP(),
+        messageContext.getInboundMessageId(),
+        messageContext.getAuthorizationDecision(),
+        messageContext.getProcessingError());
+      return;
+    }
     AuditLogEntry entry = new AuditLogEntry(
       messageContext.getOutboundMessageId(), messageContext.getRespondingPDP(),
       messageContext.getInboundMessageId(),
@@ -492,4 +1521,618 @@ public class PEPDaemonRequestHandler {
       "http://www.oasis-open.org/committees/security"));
     return messageContext;
   }
+
+  /**
+   * The processing of a request, split around the PDP call so that the PDP
+   * answer may be processed by another thread than the one which ran the PIPs.
+   * It is used by a single thread at a time.
+   */
+  private final class RequestProcessing {
+
+    /** Request pipeline used for the whole request. */
+    private final PEPDaemonRequestPipeline pipeline;
+
+    /** The request to be evaluated. */
+    private final Request request;
+
+    /** Context of the request. */
+    private final PEPDaemonDecisionRequestContext messageContext;
+
+    /** Start time, in nanoseconds, of the processing. */
+    private final long startTime;
+
+    /**
+     * Fingerprint of the request, <code>null</code> if the cache and the
+     * coalescing are disabled.
+     */
+    private RequestFingerprint requestKey;
+
+    /** Expired cached response served if no PDP answers. */
+    private CachedResponse staleResponse;
+
+    /** The response, <code>null</code> until known. */
+    private Response response;
+
+    /** Whether the obligations of the response are processed. */
+    private boolean obligationsApplied = true;
+
+    /**
+     * Constructor.
+     * 
+     * @param requestPipeline
+     *          the request pipeline used for the whole request
+     * @param authzRequest
+     *          the request to be evaluated
+     */
+    private RequestProcessing(final PEPDaemonRequestPipeline requestPipeline,
+      final Request authzRequest) {
+
+      pipeline = requestPipeline;
+      request = authzRequest;
+      pipeline.getServiceMetrics().incrementTotalServiceRequests();
+      startTime = System.nanoTime();
+      messageContext = buildMessageContext(pipeline.getEntityId());
+    }
+
+    /**
+     * Runs the policy information points over the request and checks whether
+     * its response is cached.
+     * 
+     * @param pipChain
+     *          the PIP chain shared by the requests of a batch with the same
+     *          subjects and environment, <code>null</code> to run the PIPs of
+     *          the pipeline
+     * 
+     * @return <code>true</code> if the request must be sent to the PDP
+     * 
+     * @throws PIPProcessingException
+     *           thrown if a PIP fails
+     */
+    private boolean lookUpResponse(final SharedPIPChain pipChain)
+      throws PIPProcessingException {
+
+      // run the policy information points over the request, the X.509 PIPs
+      // share the certificate chain they process through the context
+      CertificateChainContext chainContext = new CertificateChainContext();
+      CertificateChainContext previousContext = chainContext.attach();
+      try {
+        if (pipChain != null) {
+          pipChain.populateRequest(request);
+        } else if (pipExecutor != null
+          && !pipeline.getPIPExecutionPlan().isSequential()) {
+          pipeline.getPIPExecutionPlan().populateRequest(request, pipExecutor,
+            chainContext, stageLatencies);
+        } else {
+          for (PolicyInformationPoint pip : pipeline
+            .getPolicyInformationPoints()) {
+            long pipStartTime = System.nanoTime();
+            boolean applied = pip.populateRequest(request);
+            stageLatencies.recordSince(StageLatencies.PIP_STAGE_PREFIX
+              + pip.getId(), pipStartTime);
+            if (applied) {
+              log.debug("PIP {} applied to Hessian request", pip.getId());
+            } else {
+              log.debug("PIP {} do not apply to request", pip.getId());
+            }
+          }
+        }
+      } finally {
+        CertificateChainContext.detach(previousContext);
+      }
+      protocolLog.info("Hessian request after PIPs have been run\n{}",
+        request.toString());
+
+      // identify the request once, it is not modified anymore
+      if (responseCache != null || pdpRequestCoalescer != null) {
+        requestKey = fingerprinter.fingerprint(request);
+        log.debug("Request fingerprint: {}", requestKey);
+      }
+
+      // check to see if we have a cached response
+      if (responseCache != null) {
+        log
+          .debug("Checking if a response has already been cached for this request");
+        long now = System.currentTimeMillis();
+        long lookupStartTime = System.nanoTime();
+        CachedResponse cached = responseCache.get(requestKey, now);
+        stageLatencies.recordSince(StageLatencies.CACHE_LOOKUP_STAGE,
+          lookupStartTime);
+        if (cached != null && !cached.isExpired(now)) {
+          log.debug("Cached response found, using it");
+          // a new copy, the obligations are processed again
+          response = cached.toResponse();
+          response.setRequest(request);
+          messageContext.setRespondingPDP("PEPD cache");
+          messageContext.setAuthorizationDecision(response.getResults().get(0)
+            .getDecisionString());
+          if (cacheRevalidator != null
+            && cacheRevalidator.isRefreshDue(cached, now)) {
+            log.debug("Refreshing cached response {}", requestKey);
+            refreshCachedResponse(pipeline, requestKey, request);
+          }
+        } else if (cached != null && cacheRevalidator != null
+          && cacheRevalidator.isStaleUsable(cached, now)) {
+          staleResponse = cached;
+        }
+      }
+      return response == null;
+    }
+
+    /**
+     * Builds the response from the PDP decision. If no PDP answered, the
+     * expired cached response is served if usable, an error response
+     * otherwise.
+     * 
+     * @param decision
+     *          the PDP decision
+     * 
+     * @throws PDPMessageException
+     *           thrown if the streamed response can not be decoded again
+     */
+    private void applyDecision(final PDPDecision decision)
+      throws PDPMessageException {
+
+      response = extractResponse(messageContext, decision);
+      if (response == null && staleResponse != null) {
+        log.warn(
+          "No response received from PDP: {}, using expired cached response",
+          pipeline.getPDPEndpoints());
+        cacheRevalidator.staleResponseServed();
+        response = staleResponse.toResponse();
+        response.setRequest(request);
+        messageContext.setRespondingPDP("PEPD cache (stale)");
+        messageContext.setAuthorizationDecision(response.getResults().get(0)
+          .getDecisionString());
+      } else if (response == null) {
+        String error = "No response received from PDP: "
+          + pipeline.getPDPEndpoints();
+        log.error(error);
+        pipeline.getServiceMetrics().incrementTotalServiceRequestErrors();
+        response = buildErrorResponse(request,
+          StatusCodeType.SC_PROCESSING_ERROR, error);
+        obligationsApplied = false;
+      } else if (responseCache != null) {
+        // cache the PDP response, before the obligations are processed
+        if (cacheResponse(requestKey, response)) {
+          log.debug("Cached response {} for request {}",
+            messageContext.getInboundMessageId(),
+            messageContext.getOutboundMessageId());
+        }
+      }
+    }
+
+    /**
+     * Runs the obligations handlers over the response.
+     * 
+     * @throws ObligationProcessingException
+     *           thrown if an obligation handler fails
+     */
+    private void processObligations() throws ObligationProcessingException {
+
+      if (obligationsApplied && pipeline.getObligationService() != null) {
+        log.debug("Processing obligations");
+        pipeline.getObligationService().processObligations(request,
+          response.getResults().get(0), stageLatencies);
+      }
+    }
+
+    /**
+     * Replaces the response by an error response.
+     * 
+     * @param e
+     *          the error which stopped the processing
+     */
+    private void fail(final Throwable e) {
+
+      pipeline.getServiceMetrics().incrementTotalServiceRequestErrors();
+      if (e instanceof PIPProcessingException) {
+        log.error("Error processing PIP: " + e.getMessage());
+      } else if (e instanceof ObligationProcessingException) {
+        log.error("Error processing obligation handlers: " + e.getMessage());
+      } else {
+        log.error("Error processing authorization request: " + e.getMessage());
+      }
+      log.debug("", e);
+      response = buildErrorResponse(request,
+        StatusCodeType.SC_PROCESSING_ERROR, e.getMessage());
+    }
+
+    /**
+     * Records the outcome of the processing and writes its audit log entry.
+     * 
+     * @return the response to the request
+     */
+    private Response complete() {
+
+      protocolLog.info("Complete hessian response\n{}", response.toString());
+      if (!response.getResults().isEmpty()) {
+        decisionCounters.increment(response.getResults().get(0)
+          .getDecisionString());
+      }
+      stageLatencies.recordSince(StageLatencies.REQUEST_STAGE, startTime);
+      writeAuditLogEntry(messageContext);
+      return response;
+    }
+  }
+
+  /** A request of a batch, handled by a batch worker thread. */
+  private final class BatchEntry implements Callable<Response> {
+
+    /** Request pipeline of the batch. */
+    private final PEPDaemonRequestPipeline pipeline;
+
+    /** Position of the request in the batch. */
+    private final int index;
+
+    /** The authorization request. */
+    private final Request request;
+
+    /** PIP chain shared with the requests of its group, may be <code>null</code>. */
+    private final SharedPIPChain pipChain;
+
+    /**
+     * Constructor.
+     * 
+     * @param requestPipeline
+     *          request pipeline of the batch
+     * @param position
+     *          position of the request in the batch
+     * @param authzRequest
+     *          the authorization request
+     * @param chain
+     *          PIP chain shared with the requests of its group,
+     *          <code>null</code> if the request is alone in its group
+     */
+    private BatchEntry(final PEPDaemonRequestPipeline requestPipeline,
+      final int position, final Request authzRequest, final SharedPIPChain chain) {
+
+      pipeline = requestPipeline;
+      index = position;
+      request = authzRequest;
+      pipChain = chain;
+    }
+
+    /** {@inheritDoc} */
+    public Response call() {
+
+      return handle(pipeline, request, pipChain);
+    }
+  }
+
+  /**
+   * A request sent to a PDP endpoint by the {@link RequestHedger}. The answer
+   * is <code>null</code> if the PDP did not answer, the error is then kept. A
+   * streamed request is aborted through the PDP transport, the SOAP client
+   * request runs to its end and its answer is ignored.
+   */
+  private final class EndpointRequest implements
+    RequestHedger.AbortableRequest<PDPDecision> {
+
+    /** Request pipeline of the current request. */
+    private final PEPDaemonRequestPipeline pipeline;
+
+    /** The PDP endpoint. */
+    private final PDPEndpoint endpoint;
+
+    /** Request context, <code>null</code> until the request is built. */
+    private volatile PEPDaemonDecisionRequestContext messageContext;
+
+    /** Authorization request from which the SOAP request is built. */
+    private final Request authzRequest;
+
+    /** Whether the request is the hedge of another one. */
+    private final boolean hedge;
+
+    /** The PDP decision, <code>null</code> until the PDP answered. */
+    private volatile PDPDecision answer;
+
+    /** The streamed SOAP request, <code>null</code> if OpenSAML is used. */
+    private final byte[] streamedRequest;
+
+    /** Whether the request has been sent. */
+    private volatile boolean sent;
+
+    /** Error message if the PDP did not answer. */
+    private volatile String errorMessage;
+
+    /** Whether the request has been aborted. */
+    private volatile boolean aborted;
+
+    /**
+     * Future answer of the streamed request, <code>null</code> until it is
+     * sent.
+     */
+    private volatile CompletableFuture<byte[]> streamedAnswer;
+
+    /**
+     * Constructor.
+     * 
+     * @param requestPipeline
+     *          request pipeline of the current request
+     * @param pdpEndpoint
+     *          the PDP endpoint
+     * @param context
+     *          request context holding the SOAP request, <code>null</code> to
+     *          build a new one from the authorization request
+     * @param request
+     *          authorization request from which the SOAP request is built
+     * @param soapRequest
+     *          the streamed SOAP request, <code>null</code> if OpenSAML is
+     *          used
+     * @param hedgeRequest
+     *          whether the request is the hedge of another one
+     */
+    private EndpointRequest(final PEPDaemonRequestPipeline requestPipeline,
+      final PDPEndpoint pdpEndpoint,
+      final PEPDaemonDecisionRequestContext context, final Request request,
+      final byte[] soapRequest, final boolean hedgeRequest) {
+
+      pipeline = requestPipeline;
+      endpoint = pdpEndpoint;
+      messageContext = context;
+      authzRequest = request;
+      streamedRequest = soapRequest;
+      hedge = hedgeRequest;
+    }
+
+    /**
+     * Gets the request context of the request.
+     * 
+     * @return the request context, <code>null</code> if the request has not
+     *         been built
+     */
+    private PEPDaemonDecisionRequestContext getMessageContext() {
+
+      return messageContext;
+    }
+
+    /**
+     * Gets the PDP decision.
+     * 
+     * @return the PDP decision, <code>null</code> if the PDP did not answer
+     */
+    private PDPDecision getAnswer() {
+
+      return answer;
+    }
+
+    /**
+     * Gets whether the request has been sent.
+     * 
+     * @return <code>true</code> if the request has been sent
+     */
+    private boolean isSent() {
+
+      return sent;
+    }
+
+    /**
+     * Gets the error message if the PDP did not answer.
+     * 
+     * @return the error message, <code>null</code> if none
+     */
+    private String getErrorMessage() {
+
+      return errorMessage;
+    }
+
+    /**
+     * Gets whether the request has been aborted.
+     * 
+     * @return <code>true</code> if the request has been aborted
+     */
+    private boolean isAborted() {
+
+      return aborted;
+    }
+
+    /** {@inheritDoc} */
+    public void abort() {
+
+      aborted = true;
+      CompletableFuture<byte[]> answer = streamedAnswer;
+      if (answer != null) {
+        answer.cancel(false);
+      }
+    }
+
+    /**
+     * Sends the streamed request and waits for its answer, unless the request
+     * is aborted meanwhile.
+     * 
+     * @return the SOAP response
+     * 
+     * @throws IOException
+     *           thrown if the request can not be sent, its answer read, or if
+     *           it is aborted
+     * @throws PDPMessageException
+     *           thrown if the PDP answered with an HTTP error status
+     */
+    private byte[] sendStreamedRequest() throws IOException,
+      PDPMessageException {
+
+      CompletableFuture<byte[]> answer = pipeline.getPDPTransport().sendAsync(
+        endpoint.getUrl(), streamedRequest);
+      streamedAnswer = answer;
+      if (aborted) {
+        answer.cancel(false);
+      }
+      try {
+        return answer.get();
+      } catch (CancellationException e) {
+        throw new InterruptedIOException("Request to " + endpoint.getUrl()
+          + " aborted");
+      } catch (InterruptedException e) {
+        answer.cancel(false);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+          "Interrupted while waiting for the answer of " + endpoint.getUrl());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof PDPMessageException) {
+          throw (PDPMessageException) cause;
+        }
+        throw new IOException("Error sending request to " + endpoint.getUrl(),
+          cause);
+      }
+    }
+
+    /** {@inheritDoc} */
+    public PDPDecision call() {
+
+      if (hedge) {
+        if (!endpoint.allowRequest()) {
+          errorMessage = "PDP " + endpoint.getUrl() + " is unavailable";
+          return null;
+        }
+        log.debug("Hedging request to {}", endpoint.getUrl());
+      }
+      PEPDaemonDecisionRequestContext context = messageContext;
+      if (context == null) {
+        // the OpenSAML messages are not shared between threads
+        context = buildMessageContext(pipeline.getEntityId());
+        DecisionRequestContextHelper.buildSOAPMessage(pipeline.getEntityId(),
+          context, XACMLConverter.requestToXACML(authzRequest));
+        messageContext = context;
+      }
+      sent = true;
+      PDPDecision decision = sendRequestToEndpoint(pipeline, endpoint,
+        context, streamedRequest, this);
+      if (!decision.isAnswered()) {
+        errorMessage = decision.errorMessage;
+        return null;
+      }
+      answer = decision;
+      return decision;
+    }
+  }
+
+  /**
+   * The outcome of sending a request to the PDPs, shared by the coalesced
+   * requests. The decision statement is only read once received.
+   */
+  private static final class PDPDecision {
+
+    /**
+     * Authorization decision statement, <code>null</code> on error or with the
+     * streaming codec.
+     */
+    private final XACMLAuthzDecisionStatementType authzStatement;
+
+    /**
+     * SOAP response read by the streaming codec, <code>null</code> on error or
+     * with OpenSAML.
+     */
+    private final byte[] streamedResponse;
+
+    /** Response decoded from the streamed SOAP response. */
+    private final Response decodedResponse;
+
+    /** Whether the decoded response has been claimed by a request. */
+    private final AtomicBoolean decodedResponseClaimed;
+
+    /** Endpoint of the PDP which answered the request. */
+    private final String respondingPDP;
+
+    /** ID of the PDP response message. */
+    private final String inboundMessageId;
+
+    /** Error message if no PDP answered the request. */
+    private final String errorMessage;
+
+    /**
+     * ID of the request sent to the PDP, <code>null</code> if not recorded.
+     * Set before the decision is shared with the coalesced requests.
+     */
+    private String outboundMessageId;
+
+    /**
+     * Constructor.
+     * 
+     * @param statement
+     *          authorization decision statement, <code>null</code> on error
+     * @param pdp
+     *          endpoint of the PDP which answered the request
+     * @param messageId
+     *          ID of the PDP response message
+     * @param error
+     *          error message if no PDP answered the request
+     */
+    private PDPDecision(final XACMLAuthzDecisionStatementType statement,
+      final String pdp, final String messageId, final String error) {
+
+      authzStatement = statement;
+      streamedResponse = null;
+      decodedResponse = null;
+      decodedResponseClaimed = null;
+      respondingPDP = pdp;
+      inboundMessageId = messageId;
+      errorMessage = error;
+    }
+
+    /**
+     * Constructor of the decisions read by the streaming codec.
+     * 
+     * @param soapResponse
+     *          the streamed SOAP response
+     * @param decoded
+     *          the response decoded from the SOAP response
+     * @param pdp
+     *          endpoint of the PDP which answered the request
+     */
+    private PDPDecision(final byte[] soapResponse,
+      final DecodedResponse decoded, final String pdp) {
+
+      authzStatement = null;
+      streamedResponse = soapResponse;
+      decodedResponse = decoded.getResponse();
+      decodedResponseClaimed = new AtomicBoolean();
+      respondingPDP = pdp;
+      inboundMessageId = decoded.getMessageId();
+      errorMessage = null;
+    }
+
+    /**
+     * Sets the ID of the request sent to the PDP.
+     * 
+     * @param messageId
+     *          ID of the PDP request message
+     */
+    private void setOutboundMessageId(final String messageId) {
+
+      outboundMessageId = messageId;
+    }
+
+    /**
+     * Gets whether a PDP answered the request.
+     * 
+     * @return <code>true</code> if a PDP answered the request
+     */
+    private boolean isAnswered() {
+
+      return authzStatement != null || streamedResponse != null;
+    }
+
+    /**
+     * Gets a response of its own to a request sharing the streamed decision.
+     * The first request gets the decoded response, the coalesced requests
+     * decode the SOAP response again.
+     * 
+     * @return the response
+     * 
+     * @throws PDPMessageException
+     *           thrown if the SOAP response can not be decoded
+     */
+    private Response claimStreamedResponse() throws PDPMessageException {
+
+      if (decodedResponseClaimed.compareAndSet(false, true)) {
+        return decodedResponse;
+      }
+      return XACMLSAMLStreamingCodec.decodeResponse(streamedResponse)
+        .getResponse();
+    }
+  }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import org.glite.authz.pep.obligation.ObligationService;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.metrics.PEPDaemonServiceMetrics;
+import org.glite.authz.pep.server.pdp.LoadBalancingPolicies;
+import org.glite.authz.pep.server.pdp.PDPEndpointGroup;
+import org.glite.authz.pep.server.pdp.PDPTransport;
+import org.glite.authz.pep.server.pdp.SOAPRequestTemplate;
+import org.opensaml.ws.soap.client.SOAPClient;
+
+/**
+ * An immutable snapshot of the parts of a {@link PEPDaemonConfiguration} which
+ * are used while processing every authorization request.
+ * <p>
+ * The {@link PEPDaemonConfiguration} getters are synchronized, reading them
+ * for every request makes all the service threads contend on the same
+ * monitor. The pipeline resolves them once, when the
+ * {@link PEPDaemonRequestHandler} is created, and is then read without
+ * locking.
+ */
+@Immutable
+public final class PEPDaemonRequestPipeline {
+
+  /** Entity ID of the PEP daemon, used as issuer of the PDP requests. */
+  private final String entityId;
+
+  /** Policy information points applied to each request, in order. */
+  private final List<PolicyInformationPoint> pips;
+
+  /** Stages of the policy information points which may run concurrently. */
+  private final PIPExecutionPlan pipExecutionPlan;
+
+  /** Obligation processing service, may be <code>null</code>. */
+  private final ObligationService obligationService;
+
+  /** PDP endpoints to which requests may be sent, in order. */
+  private final List<String> pdpEndpoints;
+
+  /** PDP endpoints with their statistics, ordered for each request. */
+  private final PDPEndpointGroup pdpEndpointGroup;
+
+  /** Metrics of the service. */
+  private final PEPDaemonServiceMetrics serviceMetrics;
+
+  /** SOAP client used to send the requests to the PDP. */
+  private final SOAPClient soapClient;
+
+  /**
+   * Transport of the streamed PDP messages, <code>null</code> if the messages
+   * are built with OpenSAML.
+   */
+  private final PDPTransport pdpTransport;
+
+  /**
+   * Template of the streamed SOAP requests, serialized for the entity ID of
+   * the pipeline. <code>null</code> if the messages are built with OpenSAML.
+   */
+  private final SOAPRequestTemplate soapRequestTemplate;
+
+  /**
+   * Constructor.
+   *
+   * @param config
+   *          the daemon configuration from which the pipeline is resolved
+   */
+  public PEPDaemonRequestPipeline(final PEPDaemonConfiguration config) {
+
+    if (config == null) {
+      throw new IllegalArgumentException("Daemon configuration may not be null");
+    }
+
+    entityId = config.getEntityId();
+
+    List<PolicyInformationPoint> configuredPips = config
+      .getPolicyInformationPoints();
+    if (configuredPips == null) {
+      pips = Collections.emptyList();
+    } else {
+      pips = Collections
+        .unmodifiableList(new ArrayList<PolicyInformationPoint>(configuredPips));
+    }
+
+    pipExecutionPlan = new PIPExecutionPlan(pips);
+
+    obligationService = config.getObligationService();
+
+    List<String> configuredEndpoints = config.getPDPEndpoints();
+    if (configuredEndpoints == null) {
+      pdpEndpoints = Collections.emptyList();
+    } else {
+      pdpEndpoints = Collections.unmodifiableList(new ArrayList<String>(
+        configuredEndpoints));
+    }
+    String policy = config.getLoadBalancingPolicy();
+    if (policy == null) {
+      policy = LoadBalancingPolicies.FAILOVER;
+    }
+    pdpEndpointGroup = new PDPEndpointGroup(pdpEndpoints,
+      LoadBalancingPolicies.createPolicy(policy),
+      config.getCircuitBreakerFailureThreshold(),
+      config.getCircuitBreakerProbeInterval());
+
+    serviceMetrics = config.getDaemonMetrics();
+    soapClient = config.getSOAPClient();
+    pdpTransport = config.getPDPTransport();
+    if (pdpTransport != null) {
+      soapRequestTemplate = new SOAPRequestTemplate(entityId);
+    } else {
+      soapRequestTemplate = null;
+    }
+  }
+
+  /**
+   * Gets the entity ID of the PEP daemon.
+   *
+   * @return entity ID of the PEP daemon
+   */
+  public String getEntityId() {
+
+    return entityId;
+  }
+
+  /**
+   * Gets the immutable list of policy information points applied to each
+   * request.
+   *
+   * @return policy information points applied to each request
+   */
+  public List<PolicyInformationPoint> getPolicyInformationPoints() {
+
+    return pips;
+  }
+
+  /**
+   * Gets the stages of the policy information points which may run
+   * concurrently.
+   *
+   * @return the PIP execution plan
+   */
+  PIPExecutionPlan getPIPExecutionPlan() {
+
+    return pipExecutionPlan;
+  }
+
+  /**
+   * Gets the service used to process response obligations.
+   *
+   * @return service used to process response obligations, may be
+   *         <code>null</code>
+   */
+  public ObligationService getObligationService() {
+
+    return obligationService;
+  }
+
+  /**
+   * Gets the immutable list of PDP endpoints (URLs) to which requests may be
+   * sent.
+   *
+   * @return PDP endpoints to which requests may be sent
+   */
+  public List<String> getPDPEndpoints() {
+
+    return pdpEndpoints;
+  }
+
+  /**
+   * Gets the PDP endpoints with their statistics. Each pipeline has its own
+   * group, the statistics start anew when the configuration is reloaded.
+   *
+   * @return the PDP endpoint group
+   */
+  public PDPEndpointGroup getPDPEndpointGroup() {
+
+    return pdpEndpointGroup;
+  }
+
+  /**
+   * Gets the service metrics.
+   *
+   * @return the service metrics
+   */
+  public PEPDaemonServiceMetrics getServiceMetrics() {
+
+    return serviceMetrics;
+  }
+
+  /**
+   * Gets the SOAP client used to send requests to the PDP.
+   *
+   * @return SOAP client used to send requests to the PDP
+   */
+  public SOAPClient getSOAPClient() {
+
+    return soapClient;
+  }
+
+  /**
+   * Gets the transport of the PDP messages written and read with the
+   * streaming codec.
+   *
+   * @return the PDP transport, <code>null</code> if the messages are built
+   *         with OpenSAML and sent with the SOAP client
+   */
+  public PDPTransport getPDPTransport() {
+
+    return pdpTransport;
+  }
+
+  /**
+   * Gets the template of the SOAP requests written by the streaming codec.
+   *
+   * @return the SOAP request template, <code>null</code> if the messages are
+   *         built with OpenSAML
+   */
+  public SOAPRequestTemplate getSOAPRequestTemplate() {
+
+    return soapRequestTemplate;
+  }
+}
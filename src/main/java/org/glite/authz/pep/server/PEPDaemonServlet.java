@@ -17,10 +17,22 @@
 
 package org.glite.authz.pep.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,44 +43,132 @@ import org.glite.authz.common.http.BaseHttpServlet;
 import org.glite.authz.common.logging.LoggingConstants;
 import org.glite.authz.common.model.Request;
 import org.glite.authz.common.model.Response;
-import org.glite.authz.common.util.Base64;
 import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.metrics.StageLatencies;
 import org.opensaml.DefaultBootstrap;
+import org.opensaml.xacml.ctx.StatusCodeType;
 import org.opensaml.xml.ConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.caucho.hessian.io.HessianInput;
-import com.caucho.hessian.io.HessianOutput;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-/** Adapts a {@link PEPDaemonRequestHandler} in to a Servlet. */
+/**
+ * Adapts a {@link PEPDaemonRequestHandler} in to a Servlet.
+ * <p>
+ * The Hessian messages are Base64 encoded, unless the request content type is
+ * {@value HessianBase64Codec#RAW_HESSIAN_CONTENT_TYPE}: the request is then
+ * read, and the response written, as raw Hessian.
+ * <p>
+ * When asynchronous processing is enabled in the daemon configuration, the
+ * request is read by the container thread and then evaluated by a worker
+ * thread while the container thread is released. The number of requests in
+ * flight is bounded, and a request not evaluated within the configured timeout
+ * is answered with an Indeterminate decision. The worker threads are either a
+ * fixed pool of platform threads or, when enabled and supported by the JVM,
+ * one virtual thread per request. With the nio PDP transport, unless the PDP
+ * requests are coalesced or hedged, the worker thread does not wait for the
+ * PDP either: the PDP answer is processed, and the response written, by a
+ * worker thread once received.
+ */
 @ThreadSafe
 public class PEPDaemonServlet extends BaseHttpServlet {
 
     /** Serial version UID. */
     private static final long serialVersionUID = -4114670420901954784L;
 
+    /** Name of the servlet context attribute holding the request handler shared by the servlets. */
+    static final String REQUEST_HANDLER_BINDING_NAME = PEPDaemonRequestHandler.class.getName();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(PEPDaemonServlet.class);
+
     /** Protocol message log. */
     private final Logger protocolLog = LoggerFactory.getLogger(LoggingConstants.PROTOCOL_MESSAGE_CATEGORY);
 
     /** The request handler being adapted in to this Servlet. */
     private PEPDaemonRequestHandler requestHandler;
 
+    /** Codec reading the requests and writing the responses. */
+    private final HessianBase64Codec codec = new HessianBase64Codec();
+
+    /** Worker threads evaluating the asynchronous requests, <code>null</code> if processing is synchronous. */
+    private ExecutorService asyncExecutor;
+
+    /** Permits for the asynchronous requests in flight. */
+    private Semaphore inFlightRequests;
+
+    /** Duration, in milliseconds, after which an asynchronous request times out. */
+    private long asyncRequestTimeout;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
 
+        requestHandler = getRequestHandler(getServletContext());
         PEPDaemonConfiguration daemonConfig = (PEPDaemonConfiguration) getServletContext().getAttribute(
                 PEPDaemonConfiguration.BINDING_NAME);
-        if (daemonConfig == null) {
-            throw new ServletException("Unable to initialize, no daemon configuration available in servlet context");
+
+        if (daemonConfig.isAsyncProcessing()) {
+            boolean virtualThreads = daemonConfig.isVirtualThreads();
+            if (virtualThreads && !VirtualThreads.isSupported()) {
+                log.warn("Virtual threads are not supported by this JVM, using platform worker threads");
+                virtualThreads = false;
+            }
+            if (virtualThreads) {
+                asyncExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor("pepd-virtual-");
+                log.info("Asynchronous processing enabled on virtual threads: {} max in-flight requests, {}ms timeout",
+                        daemonConfig.getMaxInFlightRequests(), daemonConfig.getAsyncRequestTimeout());
+            } else {
+                int workerThreads = daemonConfig.getAsyncWorkerThreads();
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(workerThreads, workerThreads, 60,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                                .setDaemon(true).setNameFormat("pepd-async-%d").build());
+                executor.allowCoreThreadTimeOut(true);
+                asyncExecutor = executor;
+                log.info("Asynchronous processing enabled: {} worker threads, {} max in-flight requests, {}ms timeout",
+                        new Object[] { workerThreads, daemonConfig.getMaxInFlightRequests(),
+                                daemonConfig.getAsyncRequestTimeout() });
+            }
+            // with virtual threads this is the only bound on the concurrent requests
+            inFlightRequests = new Semaphore(daemonConfig.getMaxInFlightRequests());
+            asyncRequestTimeout = daemonConfig.getAsyncRequestTimeout();
         }
-        requestHandler = new PEPDaemonRequestHandler(daemonConfig);
+    }
 
-        try {
-            DefaultBootstrap.bootstrap();
-        } catch (ConfigurationException e) {
-            throw new ServletException("Error initializing OpenSAML library", e);
+    /**
+     * Gets the request handler shared by the servlets of the daemon, creating it on first use. The OpenSAML library
+     * is initialized along with the handler.
+     * 
+     * @param context the servlet context holding the daemon configuration
+     * 
+     * @return the request handler
+     * 
+     * @throws ServletException thrown if there is no daemon configuration in the servlet context or if the OpenSAML
+     *             library can not be initialized
+     */
+    static PEPDaemonRequestHandler getRequestHandler(ServletContext context) throws ServletException {
+        synchronized (context) {
+            PEPDaemonRequestHandler handler = (PEPDaemonRequestHandler) context
+                    .getAttribute(REQUEST_HANDLER_BINDING_NAME);
+            if (handler != null) {
+                return handler;
+            }
+
+            PEPDaemonConfiguration daemonConfig = (PEPDaemonConfiguration) context
+                    .getAttribute(PEPDaemonConfiguration.BINDING_NAME);
+            if (daemonConfig == null) {
+                throw new ServletException("Unable to initialize, no daemon configuration available in servlet context");
+            }
+            handler = new PEPDaemonRequestHandler(daemonConfig);
+
+            try {
+                DefaultBootstrap.bootstrap();
+            } catch (ConfigurationException e) {
+                throw new ServletException("Error initializing OpenSAML library", e);
+            }
+            context.setAttribute(REQUEST_HANDLER_BINDING_NAME, handler);
+            return handler;
         }
     }
 
@@ -76,29 +176,183 @@ public class PEPDaemonServlet extends BaseHttpServlet {
     protected void doPost(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException,
             IOException {
 
-        // get the simple model request
-        HessianInput hin = new HessianInput(new Base64.InputStream(httpRequest.getInputStream()));
-        Request request = (Request) hin.readObject(Request.class);
+        // get the simple model request, the response is encoded as the request
+        boolean rawHessian = HessianBase64Codec.isRawHessian(httpRequest.getContentType());
+        long readStartTime = System.nanoTime();
+        Request request = codec.readRequest(httpRequest.getInputStream(), rawHessian);
+        requestHandler.getStageLatencies().recordSince(StageLatencies.READ_STAGE, readStartTime);
         protocolLog.debug("Incomming hessian request\n{}", request.toString());
 
-        // do the authorization
-        Response response = requestHandler.handle(request);
-
-        // write out response
-        protocolLog.debug("Outgoing hessian response\n{}", response.toString());
+        if (asyncExecutor == null) {
+            // do the authorization
+            Response response = requestHandler.handle(request);
+            writeResponse(response, rawHessian, httpResponse);
+            return;
+        }
 
-        ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
-        HessianOutput hout = new HessianOutput(responseBytes);
-        hout.writeObject(response);
-        hout.flush();
+        if (!inFlightRequests.tryAcquire()) {
+            log.warn("Too many authorization requests in flight, request rejected");
+            requestHandler.getRequestPipeline().getServiceMetrics().incrementTotalServiceRequestErrors();
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        AsyncContext asyncContext = httpRequest.startAsync();
+        asyncContext.setTimeout(asyncRequestTimeout);
+        AsyncAuthorizationRequest asyncRequest = new AsyncAuthorizationRequest(asyncContext, request, rawHessian);
+        asyncContext.addListener(asyncRequest);
+        try {
+            asyncExecutor.execute(asyncRequest);
+        } catch (RejectedExecutionException e) {
+            inFlightRequests.release();
+            log.error("Unable to process asynchronous authorization request", e);
+            asyncRequest.complete(requestHandler.buildErrorResponse(request, StatusCodeType.SC_PROCESSING_ERROR,
+                    "Authorization request rejected"));
+        }
+    }
 
-        httpResponse.getWriter().write(Base64.encodeBytes(responseBytes.toByteArray()));
+    /**
+     * Writes the response to the client.
+     * 
+     * @param response the authorization response
+     * @param rawHessian whether the response is written as raw Hessian rather than Base64 encoded
+     * @param httpResponse the HTTP response to which the authorization response is written
+     * 
+     * @throws IOException thrown if the response can not be written
+     */
+    private void writeResponse(Response response, boolean rawHessian, HttpServletResponse httpResponse)
+            throws IOException {
+        protocolLog.debug("Outgoing hessian response\n{}", response.toString());
+        if (rawHessian) {
+            httpResponse.setContentType(HessianBase64Codec.RAW_HESSIAN_CONTENT_TYPE);
+        }
+        long writeStartTime = System.nanoTime();
+        codec.writeResponse(response, httpResponse.getOutputStream(), rawHessian);
         httpResponse.flushBuffer();
-        return;
+        requestHandler.getStageLatencies().recordSince(StageLatencies.WRITE_STAGE, writeStartTime);
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        super.destroy();
     }
 
     /** {@inheritDoc} */
     protected String getSupportedMethods() {
         return "POST";
     }
-}
\ No newline at end of file
+
+    /**
+     * An authorization request evaluated by a worker thread. The response is
+     * written either by the worker thread, once the request is evaluated, or by
+     * the container on time out, whichever comes first.
+     */
+    private final class AsyncAuthorizationRequest implements Runnable, AsyncListener {
+
+        /** Context of the asynchronous request. */
+        private final AsyncContext asyncContext;
+
+        /** The authorization request. */
+        private final Request request;
+
+        /** Whether the response is written as raw Hessian. */
+        private final boolean rawHessian;
+
+        /** Whether the response has already been written. */
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        /**
+         * Constructor.
+         * 
+         * @param context context of the asynchronous request
+         * @param authzRequest the authorization request
+         * @param raw whether the response is written as raw Hessian
+         */
+        private AsyncAuthorizationRequest(AsyncContext context, Request authzRequest, boolean raw) {
+            asyncContext = context;
+            request = authzRequest;
+            rawHessian = raw;
+        }
+
+        /**
+         * Runs the PIPs and sends the request to the PDP. The response is written once the PDP answered, by the
+         * thread processing the answer: this thread does not wait for it.
+         */
+        public void run() {
+            CompletableFuture<Response> response;
+            try {
+                response = requestHandler.handleAsync(request, asyncExecutor);
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<Response>();
+                response.completeExceptionally(e);
+            }
+            response.whenComplete(new BiConsumer<Response, Throwable>() {
+
+                public void accept(Response authzResponse, Throwable error) {
+                    try {
+                        if (error != null) {
+                            log.error("Error processing asynchronous authorization request", error);
+                            complete(requestHandler.buildErrorResponse(request,
+                                    StatusCodeType.SC_PROCESSING_ERROR, error.getMessage()));
+                        } else {
+                            complete(authzResponse);
+                        }
+                    } finally {
+                        inFlightRequests.release();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Writes the response and completes the asynchronous request, unless it
+         * has already been completed.
+         * 
+         * @param response the response to write
+         */
+        private void complete(Response response) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                writeResponse(response, rawHessian, (HttpServletResponse) asyncContext.getResponse());
+            } catch (Exception e) {
+                log.warn("Unable to write asynchronous authorization response", e);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (completed.get()) {
+                return;
+            }
+            log.warn("Authorization request not processed within {}ms", asyncRequestTimeout);
+            requestHandler.getRequestPipeline().getServiceMetrics().incrementTotalServiceRequestErrors();
+            // the request is still being processed by the worker thread, it is not included in the response
+            complete(requestHandler.buildErrorResponse(null, StatusCodeType.SC_PROCESSING_ERROR,
+                    "Authorization request timed out"));
+        }
+
+        /** {@inheritDoc} */
+        public void onError(AsyncEvent event) throws IOException {
+            log.warn("Error on asynchronous authorization request", event.getThrowable());
+            if (completed.compareAndSet(false, true)) {
+                asyncContext.complete();
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void onComplete(AsyncEvent event) throws IOException {
+            // nothing to do
+        }
+
+        /** {@inheritDoc} */
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            // nothing to do
+        }
+    }
+}
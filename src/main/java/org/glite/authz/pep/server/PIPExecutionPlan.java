@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.jcip.annotations.Immutable;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.AttributeAccessPolicyInformationPoint;
+import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.CertificateChainContext;
+import org.glite.authz.pep.server.metrics.StageLatencies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the policy information points of the chain into stages of PIPs which
+ * may run concurrently.
+ * <p>
+ * A PIP depends on a previous PIP of the chain when it reads or writes the
+ * attributes written by the previous PIP, writes the attributes read by the
+ * previous PIP, or writes the same request section. The accesses are the ones
+ * declared by the {@link AttributeAccessPolicyInformationPoint}s; a
+ * {@link SubjectPolicyInformationPoint} reads the subjects and the environment
+ * and writes the subjects; any other PIP depends on all the previous PIPs and
+ * all the following PIPs depend on it. Each PIP is placed in the stage
+ * following the last stage of the PIPs it depends on, the stages run one after
+ * the other.
+ * <p>
+ * The request model is not thread safe. While a stage runs, the request is not
+ * modified: each PIP of the stage works on its own view of the request, with a
+ * copy of the written sections read by another PIP of the stage. Once all the
+ * PIPs of the stage are done, the sections they wrote are merged into the
+ * request in the order of the chain.
+ */
+@Immutable
+final class PIPExecutionPlan {
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(PIPExecutionPlan.class);
+
+  /** The stages, each with its PIPs in the order of the chain. */
+  private final List<List<Step>> stages;
+
+  /** Whether each stage holds a single PIP. */
+  private final boolean sequential;
+
+  /**
+   * Constructor.
+   * 
+   * @param pips
+   *          the policy information points, in order
+   */
+  PIPExecutionPlan(final List<PolicyInformationPoint> pips) {
+
+    int size = pips.size();
+    List<Set<RequestAttributeReference>> reads = new ArrayList<Set<RequestAttributeReference>>(
+      size);
+    List<Set<RequestAttributeReference>> writes = new ArrayList<Set<RequestAttributeReference>>(
+      size);
+    int[] levels = new int[size];
+    int stageCount = 0;
+    for (int i = 0; i < size; i++) {
+      PolicyInformationPoint pip = pips.get(i);
+      reads.add(getReadAttributes(pip));
+      writes.add(getWrittenAttributes(pip));
+      for (int j = 0; j < i; j++) {
+        if (levels[j] >= levels[i]
+          && dependsOn(reads.get(i), writes.get(i), reads.get(j), writes.get(j))) {
+          levels[i] = levels[j] + 1;
+        }
+      }
+      stageCount = Math.max(stageCount, levels[i] + 1);
+    }
+
+    List<List<Step>> planStages = new ArrayList<List<Step>>(stageCount);
+    boolean allSingle = true;
+    for (int level = 0; level < stageCount; level++) {
+      List<Integer> members = new ArrayList<Integer>();
+      for (int i = 0; i < size; i++) {
+        if (levels[i] == level) {
+          members.add(i);
+        }
+      }
+      List<Step> steps = new ArrayList<Step>(members.size());
+      for (int i : members) {
+        Set<Section> written = sections(writes.get(i));
+        Set<Section> copied = EnumSet.noneOf(Section.class);
+        for (int j : members) {
+          if (j != i) {
+            Set<Section> read = sections(reads.get(j));
+            for (Section section : written) {
+              if (read.contains(section)) {
+                copied.add(section);
+              }
+            }
+          }
+        }
+        steps.add(new Step(pips.get(i), written, copied));
+      }
+      allSingle &= steps.size() == 1;
+      planStages.add(Collections.unmodifiableList(steps));
+    }
+    stages = Collections.unmodifiableList(planStages);
+    sequential = allSingle;
+  }
+
+  /**
+   * Whether each stage holds a single PIP: the chain gains nothing from being
+   * run concurrently.
+   * 
+   * @return <code>true</code> if the PIPs have to run one after the other
+   */
+  boolean isSequential() {
+
+    return sequential;
+  }
+
+  /**
+   * Gets the IDs of the PIPs of each stage.
+   * 
+   * @return the IDs of the PIPs, per stage
+   */
+  List<List<String>> getStageIds() {
+
+    List<List<String>> ids = new ArrayList<List<String>>(stages.size());
+    for (List<Step> stage : stages) {
+      List<String> stageIds = new ArrayList<String>(stage.size());
+      for (Step step : stage) {
+        stageIds.add(step.pip.getId());
+      }
+      ids.add(stageIds);
+    }
+    return ids;
+  }
+
+  /**
+   * Runs the PIPs over a request, stage after stage. The first PIP of a stage
+   * runs in the calling thread, the others in the executor.
+   * 
+   * @param request
+   *          the request
+   * @param executor
+   *          the executor running the PIPs of the stages
+   * @param chainContext
+   *          the certificate chain context of the request, attached to the
+   *          threads running its PIPs, may be <code>null</code>
+   * @param stageLatencies
+   *          records the latency of each PIP
+   * 
+   * @throws PIPProcessingException
+   *           thrown if a PIP fails, the failure of the first PIP of the
+   *           chain is thrown, or if the thread is interrupted
+   */
+  void populateRequest(final Request request, final ExecutorService executor,
+    final CertificateChainContext chainContext,
+    final StageLatencies stageLatencies) throws PIPProcessingException {
+
+    for (List<Step> stage : stages) {
+      if (stage.size() == 1) {
+        applyPIP(stage.get(0).pip, request, stageLatencies);
+        continue;
+      }
+
+      List<Request> views = new ArrayList<Request>(stage.size());
+      List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+        stage.size());
+      for (int i = 0; i < stage.size(); i++) {
+        Step step = stage.get(i);
+        Request view = createView(request, step.copiedSections);
+        views.add(view);
+        if (i > 0) {
+          futures.add(executor.submit(new StepTask(step.pip, view,
+            chainContext, stageLatencies)));
+        }
+      }
+
+      // the first PIP runs in the calling thread, which then waits for the
+      // others: no view may be in use when they are merged
+      Throwable[] failures = new Throwable[stage.size()];
+      try {
+        applyPIP(stage.get(0).pip, views.get(0), stageLatencies);
+      } catch (PIPProcessingException e) {
+        failures[0] = e;
+      } catch (RuntimeException e) {
+        failures[0] = e;
+      }
+      boolean interrupted = false;
+      for (int i = 1; i < stage.size(); i++) {
+        Future<Boolean> future = futures.get(i - 1);
+        try {
+          if (interrupted) {
+            future.cancel(true);
+          } else {
+            future.get();
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+          future.cancel(true);
+        } catch (ExecutionException e) {
+          failures[i] = e.getCause();
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+        throw new PIPProcessingException(
+          "Interrupted while waiting for the policy information points");
+      }
+
+      // merge in the order of the chain, up to the first failed PIP
+      for (int i = 0; i < stage.size(); i++) {
+        if (failures[i] != null) {
+          throwFailure(failures[i]);
+        }
+        mergeView(request, views.get(i), stage.get(i).writtenSections);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public String toString() {
+
+    return getStageIds().toString();
+  }
+
+  /**
+   * Runs a PIP over a request.
+   * 
+   * @param pip
+   *          the policy information point
+   * @param request
+   *          the request, or a view of it
+   * @param stageLatencies
+   *          records the latency of the PIP
+   * 
+   * @return whether the PIP applied to the request
+   * 
+   * @throws PIPProcessingException
+   *           thrown if the PIP fails
+   */
+  private boolean applyPIP(final PolicyInformationPoint pip,
+    final Request request, final StageLatencies stageLatencies)
+    throws PIPProcessingException {
+
+    long startTime = System.nanoTime();
+    boolean applied = pip.populateRequest(request);
+    stageLatencies.recordSince(StageLatencies.PIP_STAGE_PREFIX + pip.getId(),
+      startTime);
+    if (applied) {
+      log.debug("PIP {} applied to Hessian request", pip.getId());
+    } else {
+      log.debug("PIP {} do not apply to request", pip.getId());
+    }
+    return applied;
+  }
+
+  /**
+   * Rethrows the failure of a PIP run by the executor.
+   * 
+   * @param failure
+   *          the failure
+   * 
+   * @throws PIPProcessingException
+   *           the failure, if it is one
+   */
+  private static void throwFailure(final Throwable failure)
+    throws PIPProcessingException {
+
+    if (failure instanceof PIPProcessingException) {
+      throw (PIPProcessingException) failure;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new PIPProcessingException("Policy information point failed: "
+      + failure);
+  }
+
+  /**
+   * Creates the view of a request on which a PIP of a stage works.
+   * 
+   * @param request
+   *          the request
+   * @param copiedSections
+   *          the sections copied, the other ones are shared with the request
+   * 
+   * @return the view of the request
+   */
+  private static Request createView(final Request request,
+    final Set<Section> copiedSections) {
+
+    Request view = new Request();
+    if (copiedSections.contains(Section.SUBJECT)) {
+      for (Subject subject : request.getSubjects()) {
+        Subject copy = new Subject();
+        copy.setCategory(subject.getCategory());
+        copy.getAttributes().addAll(copyAttributes(subject.getAttributes()));
+        view.getSubjects().add(copy);
+      }
+    } else {
+      view.getSubjects().addAll(request.getSubjects());
+    }
+    if (copiedSections.contains(Section.RESOURCE)) {
+      for (Resource resource : request.getResources()) {
+        Resource copy = new Resource();
+        copy.setResourceContent(resource.getResourceContent());
+        copy.getAttributes().addAll(copyAttributes(resource.getAttributes()));
+        view.getResources().add(copy);
+      }
+    } else {
+      view.getResources().addAll(request.getResources());
+    }
+    Action action = request.getAction();
+    if (action != null && copiedSections.contains(Section.ACTION)) {
+      Action copy = new Action();
+      copy.getAttributes().addAll(copyAttributes(action.getAttributes()));
+      action = copy;
+    }
+    view.setAction(action);
+    Environment environment = request.getEnvironment();
+    if (environment != null && copiedSections.contains(Section.ENVIRONMENT)) {
+      Environment copy = new Environment();
+      copy.getAttributes().addAll(copyAttributes(environment.getAttributes()));
+      environment = copy;
+    }
+    view.setEnvironment(environment);
+    return view;
+  }
+
+  /**
+   * Merges the sections written by a PIP into the request.
+   * 
+   * @param request
+   *          the request
+   * @param view
+   *          the view of the request the PIP worked on
+   * @param writtenSections
+   *          the sections written by the PIP
+   */
+  private static void mergeView(final Request request, final Request view,
+    final Set<Section> writtenSections) {
+
+    if (writtenSections.contains(Section.SUBJECT)) {
+      request.getSubjects().clear();
+      request.getSubjects().addAll(view.getSubjects());
+    }
+    if (writtenSections.contains(Section.RESOURCE)) {
+      request.getResources().clear();
+      request.getResources().addAll(view.getResources());
+    }
+    if (writtenSections.contains(Section.ACTION)) {
+      request.setAction(view.getAction());
+    }
+    if (writtenSections.contains(Section.ENVIRONMENT)) {
+      request.setEnvironment(view.getEnvironment());
+    }
+  }
+
+  /**
+   * Copies attributes, so that the copies can be modified independently. The
+   * attribute values are immutable and shared.
+   * 
+   * @param attributes
+   *          the attributes to copy
+   * 
+   * @return the copies of the attributes
+   */
+  private static List<Attribute> copyAttributes(
+    final Iterable<Attribute> attributes) {
+
+    List<Attribute> copies = new ArrayList<Attribute>();
+    for (Attribute attribute : attributes) {
+      Attribute copy = new Attribute();
+      copy.setId(attribute.getId());
+      copy.setDataType(attribute.getDataType());
+      copy.setIssuer(attribute.getIssuer());
+      copy.getValues().addAll(attribute.getValues());
+      copies.add(copy);
+    }
+    return copies;
+  }
+
+  /**
+   * Gets the request attributes read by a PIP.
+   * 
+   * @param pip
+   *          the policy information point
+   * 
+   * @return the attributes read, <code>null</code> if unknown
+   */
+  private static Set<RequestAttributeReference> getReadAttributes(
+    final PolicyInformationPoint pip) {
+
+    if (pip instanceof AttributeAccessPolicyInformationPoint) {
+      return ((AttributeAccessPolicyInformationPoint) pip).getReadAttributes();
+    }
+    if (pip instanceof SubjectPolicyInformationPoint) {
+      Set<RequestAttributeReference> read = new HashSet<RequestAttributeReference>();
+      read.add(RequestAttributeReference.section(Section.SUBJECT));
+      read.add(RequestAttributeReference.section(Section.ENVIRONMENT));
+      return read;
+    }
+    return null;
+  }
+
+  /**
+   * Gets the request attributes written by a PIP.
+   * 
+   * @param pip
+   *          the policy information point
+   * 
+   * @return the attributes written, <code>null</code> if unknown
+   */
+  private static Set<RequestAttributeReference> getWrittenAttributes(
+    final PolicyInformationPoint pip) {
+
+    if (pip instanceof AttributeAccessPolicyInformationPoint) {
+      return ((AttributeAccessPolicyInformationPoint) pip)
+        .getWrittenAttributes();
+    }
+    if (pip instanceof SubjectPolicyInformationPoint) {
+      return Collections.singleton(RequestAttributeReference
+        .section(Section.SUBJECT));
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether a PIP depends on a previous PIP of the chain.
+   * 
+   * @param reads
+   *          the attributes read by the PIP, <code>null</code> if unknown
+   * @param writes
+   *          the attributes written by the PIP, <code>null</code> if unknown
+   * @param previousReads
+   *          the attributes read by the previous PIP, <code>null</code> if
+   *          unknown
+   * @param previousWrites
+   *          the attributes written by the previous PIP, <code>null</code> if
+   *          unknown
+   * 
+   * @return <code>true</code> if the PIP has to run after the previous one
+   */
+  static boolean dependsOn(final Set<RequestAttributeReference> reads,
+    final Set<RequestAttributeReference> writes,
+    final Set<RequestAttributeReference> previousReads,
+    final Set<RequestAttributeReference> previousWrites) {
+
+    if (reads == null || writes == null || previousReads == null
+      || previousWrites == null) {
+      return true;
+    }
+    Set<Section> writtenSections = sections(writes);
+    writtenSections.retainAll(sections(previousWrites));
+    return !writtenSections.isEmpty() || overlaps(reads, previousWrites)
+      || overlaps(writes, previousReads);
+  }
+
+  /**
+   * Checks whether two sets of references designate common attributes.
+   * 
+   * @param references
+   *          the first references
+   * @param otherReferences
+   *          the other references
+   * 
+   * @return <code>true</code> if a reference of a set overlaps a reference of
+   *         the other
+   */
+  private static boolean overlaps(
+    final Set<RequestAttributeReference> references,
+    final Set<RequestAttributeReference> otherReferences) {
+
+    for (RequestAttributeReference reference : references) {
+      for (RequestAttributeReference otherReference : otherReferences) {
+        if (reference.overlaps(otherReference)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the sections of references.
+   * 
+   * @param references
+   *          the references
+   * 
+   * @return the sections of the references
+   */
+  private static Set<Section> sections(
+    final Set<RequestAttributeReference> references) {
+
+    Set<Section> sections = EnumSet.noneOf(Section.class);
+    if (references == null) {
+      sections.addAll(EnumSet.allOf(Section.class));
+    } else {
+      for (RequestAttributeReference reference : references) {
+        sections.add(reference.getSection());
+      }
+    }
+    return sections;
+  }
+
+  /** A PIP of a stage, with the sections it works on. */
+  @Immutable
+  private static final class Step {
+
+    /** The policy information point. */
+    private final PolicyInformationPoint pip;
+
+    /** The sections written by the PIP, merged into the request. */
+    private final Set<Section> writtenSections;
+
+    /** The sections written by the PIP and read by another PIP of the stage. */
+    private final Set<Section> copiedSections;
+
+    /**
+     * Constructor.
+     * 
+     * @param policyInformationPoint
+     *          the policy information point
+     * @param written
+     *          the sections written by the PIP
+     * @param copied
+     *          the sections written by the PIP and read by another PIP of the
+     *          stage
+     */
+    Step(final PolicyInformationPoint policyInformationPoint,
+      final Set<Section> written, final Set<Section> copied) {
+
+      pip = policyInformationPoint;
+      writtenSections = Collections.unmodifiableSet(written);
+      copiedSections = Collections.unmodifiableSet(copied);
+    }
+  }
+
+  /** Runs a PIP of a stage in a worker thread. */
+  private final class StepTask implements Callable<Boolean> {
+
+    /** The policy information point. */
+    private final PolicyInformationPoint pip;
+
+    /** The view of the request. */
+    private final Request view;
+
+    /** The certificate chain context of the request, may be null. */
+    private final CertificateChainContext chainContext;
+
+    /** Records the latency of the PIP. */
+    private final StageLatencies stageLatencies;
+
+    /**
+     * Constructor.
+     * 
+     * @param policyInformationPoint
+     *          the policy information point
+     * @param requestView
+     *          the view of the request
+     * @param context
+     *          the certificate chain context of the request, may be
+     *          <code>null</code>
+     * @param latencies
+     *          records the latency of the PIP
+     */
+    StepTask(final PolicyInformationPoint policyInformationPoint,
+      final Request requestView, final CertificateChainContext context,
+      final StageLatencies latencies) {
+
+      pip = policyInformationPoint;
+      view = requestView;
+      chainContext = context;
+      stageLatencies = latencies;
+    }
+
+    /** {@inheritDoc} */
+    public Boolean call() throws PIPProcessingException {
+
+      if (chainContext == null) {
+        return applyPIP(pip, view, stageLatencies);
+      }
+      CertificateChainContext previousContext = chainContext.attach();
+      try {
+        return applyPIP(pip, view, stageLatencies);
+      } finally {
+        CertificateChainContext.detach(previousContext);
+      }
+    }
+  }
+}
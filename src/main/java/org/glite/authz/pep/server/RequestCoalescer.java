@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+
+/**
+ * Coalesces identical concurrent calls in to a single one.
+ * <p>
+ * The first caller for a key executes the call, the callers arriving with the
+ * same key while the call is in flight wait for it and share its result. Once
+ * the call completes the key is released, so later callers execute a new call.
+ * The number of callers waiting on the same call is bounded, callers exceeding
+ * the limit execute their own call.
+ * <p>
+ * The calls may be synchronous, {@link #execute(Object, Callable)}, or
+ * asynchronous, {@link #executeAsync(Object, Callable)}, and the callers of
+ * both kinds share the calls in flight.
+ * 
+ * @param <K>
+ *          type of the call keys
+ * @param <V>
+ *          type of the call results
+ */
+@ThreadSafe
+public class RequestCoalescer<K, V> implements MetricsSource {
+
+  /** Calls in flight, indexed by key. */
+  private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+  /** Maximum number of callers waiting on the same call. */
+  private final int maxWaiters;
+
+  /** Number of calls executed. */
+  private final AtomicLong executedCalls = new AtomicLong();
+
+  /** Number of callers which shared the result of another call. */
+  private final AtomicLong coalescedCalls = new AtomicLong();
+
+  /** Number of callers which executed their own call because of the waiter limit. */
+  private final AtomicLong overflowCalls = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param maxWaitingCallers
+   *          maximum number of callers waiting on the same call, must be
+   *          greater than zero
+   */
+  public RequestCoalescer(final int maxWaitingCallers) {
+
+    if (maxWaitingCallers < 1) {
+      throw new IllegalArgumentException(
+        "Maximum number of waiting callers must be greater than zero");
+    }
+    maxWaiters = maxWaitingCallers;
+  }
+
+  /**
+   * Executes the call, or waits for the identical call already in flight.
+   * 
+   * @param key
+   *          key identifying the call
+   * @param call
+   *          the call to execute
+   * 
+   * @return the result of the call
+   * 
+   * @throws Exception
+   *           thrown by the call, or if the calling thread is interrupted while
+   *           waiting
+   */
+  public V execute(final K key, final Callable<V> call) throws Exception {
+
+    Flight<V> flight = new Flight<V>();
+    Flight<V> inFlight = flights.putIfAbsent(key, flight);
+    if (inFlight == null) {
+      executedCalls.incrementAndGet();
+      try {
+        V result = call.call();
+        flight.result.complete(result);
+        return result;
+      } catch (Throwable t) {
+        flight.result.completeExceptionally(t);
+        throw t;
+      } finally {
+        flights.remove(key, flight);
+      }
+    }
+
+    if (inFlight.waiters.incrementAndGet() > maxWaiters) {
+      inFlight.waiters.decrementAndGet();
+      overflowCalls.incrementAndGet();
+      executedCalls.incrementAndGet();
+      return call.call();
+    }
+    coalescedCalls.incrementAndGet();
+    try {
+      return getResult(inFlight);
+    } finally {
+      inFlight.waiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Starts the asynchronous call, or shares the identical call already in
+   * flight. The key is released once the call completes. The shared future is
+   * completed by the thread completing the call, the callers should not run
+   * long tasks in its callbacks.
+   * 
+   * @param key
+   *          key identifying the call
+   * @param call
+   *          starts the call and returns its future result
+   * 
+   * @return the future result of the call, failed with the exception thrown by
+   *         the call
+   */
+  public CompletableFuture<V> executeAsync(final K key,
+    final Callable<CompletableFuture<V>> call) {
+
+    final Flight<V> flight = new Flight<V>();
+    final Flight<V> inFlight = flights.putIfAbsent(key, flight);
+    if (inFlight == null) {
+      executedCalls.incrementAndGet();
+      startCall(call).whenComplete(new BiConsumer<V, Throwable>() {
+
+        public void accept(final V result, final Throwable error) {
+
+          flights.remove(key, flight);
+          if (error != null) {
+            flight.result.completeExceptionally(error);
+          } else {
+            flight.result.complete(result);
+          }
+        }
+      });
+      return flight.result;
+    }
+
+    if (inFlight.waiters.incrementAndGet() > maxWaiters) {
+      inFlight.waiters.decrementAndGet();
+      overflowCalls.incrementAndGet();
+      executedCalls.incrementAndGet();
+      return startCall(call);
+    }
+    coalescedCalls.incrementAndGet();
+    return inFlight.result.whenComplete(new BiConsumer<V, Throwable>() {
+
+      public void accept(final V result, final Throwable error) {
+
+        inFlight.waiters.decrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Gets the number of calls currently in flight.
+   * 
+   * @return number of calls currently in flight
+   */
+  public int getInFlightCalls() {
+
+    return flights.size();
+  }
+
+  /**
+   * Gets the number of calls executed.
+   * 
+   * @return number of calls executed
+   */
+  public long getExecutedCalls() {
+
+    return executedCalls.get();
+  }
+
+  /**
+   * Gets the number of callers which shared the result of another call, that
+   * is the number of calls saved.
+   * 
+   * @return number of coalesced callers
+   */
+  public long getCoalescedCalls() {
+
+    return coalescedCalls.get();
+  }
+
+  /**
+   * Gets the number of callers which executed their own call because too many
+   * callers were already waiting.
+   * 
+   * @return number of callers over the waiter limit
+   */
+  public long getOverflowCalls() {
+
+    return overflowCalls.get();
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    writer.counter("pdp_requests_total", "PDP requests sent",
+      executedCalls.get());
+    writer.counter("pdp_coalesced_requests_total",
+      "Requests which shared the response of an identical in-flight PDP request",
+      coalescedCalls.get());
+    writer.counter("pdp_coalescing_overflow_total",
+      "Requests sent to the PDP because too many requests were waiting",
+      overflowCalls.get());
+    writer.gauge("pdp_coalescing_in_flight", "Coalescable PDP requests in flight",
+      flights.size());
+  }
+
+  /**
+   * Gets the result of a completed call, unwrapping the exception thrown by the
+   * call.
+   * 
+   * @param flight
+   *          the call
+   * 
+   * @return the result of the call
+   * 
+   * @throws Exception
+   *           thrown by the call
+   */
+  private V getResult(final Flight<V> flight) throws Exception {
+
+    try {
+      return flight.result.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Starts an asynchronous call.
+   * 
+   * @param call
+   *          starts the call and returns its future result
+   * 
+   * @return the future result of the call, failed if the call could not be
+   *         started
+   */
+  private CompletableFuture<V> startCall(final Callable<CompletableFuture<V>> call) {
+
+    try {
+      return call.call();
+    } catch (Exception e) {
+      CompletableFuture<V> failed = new CompletableFuture<V>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  /**
+   * A call in flight.
+   * 
+   * @param <V>
+   *          type of the call result
+   */
+  private static final class Flight<V> {
+
+    /** Result of the call, shared by the callers. */
+    private final CompletableFuture<V> result = new CompletableFuture<V>();
+
+    /** Number of callers waiting on this call. */
+    private final AtomicInteger waiters = new AtomicInteger();
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.cache.CachedResponse;
+import org.glite.authz.pep.server.cache.RequestFingerprint;
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the popular cached responses valid, and serves expired responses when
+ * the PDP can not be reached.
+ * <p>
+ * Refresh ahead: a cached response used within the last percents of its time
+ * to live is still served, and a refresh of the response is sent to the PDP
+ * in the background. A single refresh per request is in progress at a time.
+ * <p>
+ * Stale on error: a response expired less than the stale period ago is
+ * retained by the cache, and served if no PDP answers the request.
+ */
+@ThreadSafe
+public class ResponseCacheRevalidator implements MetricsSource {
+
+  /** Number of threads refreshing the responses. */
+  public static final int REFRESH_THREADS = 4;
+
+  /** Maximum number of refreshes waiting for a thread. */
+  public static final int MAX_QUEUED_REFRESHES = 1000;
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory
+    .getLogger(ResponseCacheRevalidator.class);
+
+  /** Percentage of the time to live, at its end, refreshing the responses. */
+  private final int refreshAheadPercent;
+
+  /** Duration, in milliseconds, expired responses may be served on PDP error. */
+  private final long staleOnErrorPeriod;
+
+  /** Executes the refreshes, <code>null</code> if refresh ahead is disabled. */
+  private final ThreadPoolExecutor refreshExecutor;
+
+  /** Requests whose response is being refreshed. */
+  private final ConcurrentMap<RequestFingerprint, Boolean> refreshing = new ConcurrentHashMap<RequestFingerprint, Boolean>();
+
+  /** Number of responses refreshed. */
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /** Number of refreshes which failed. */
+  private final AtomicLong failedRefreshes = new AtomicLong();
+
+  /** Number of refreshes dropped because too many were waiting. */
+  private final AtomicLong rejectedRefreshes = new AtomicLong();
+
+  /** Number of expired responses served because no PDP answered. */
+  private final AtomicLong staleResponses = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param refreshAhead
+   *          percentage of the time to live, at its end, in which the responses
+   *          used are refreshed, zero to disable refresh ahead
+   * @param stalePeriod
+   *          duration, in milliseconds, expired responses may be served when no
+   *          PDP answers, zero to disable
+   */
+  public ResponseCacheRevalidator(final int refreshAhead,
+    final long stalePeriod) {
+
+    if (refreshAhead < 0 || refreshAhead > 99) {
+      throw new IllegalArgumentException(
+        "Refresh ahead percentage must be between 0 and 99");
+    }
+    if (stalePeriod < 0) {
+      throw new IllegalArgumentException("Stale period may not be negative");
+    }
+    refreshAheadPercent = refreshAhead;
+    staleOnErrorPeriod = stalePeriod;
+
+    if (refreshAhead > 0) {
+      refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,
+        REFRESH_THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REFRESHES),
+        new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("pepd-cache-refresh-%d").build());
+      refreshExecutor.allowCoreThreadTimeOut(true);
+    } else {
+      refreshExecutor = null;
+    }
+  }
+
+  /**
+   * Gets the duration expired responses may be served when no PDP answers.
+   * 
+   * @return duration, in milliseconds, zero if disabled
+   */
+  public long getStaleOnErrorPeriod() {
+
+    return staleOnErrorPeriod;
+  }
+
+  /**
+   * Checks whether a valid cached response should be refreshed.
+   * 
+   * @param cached
+   *          the cached response
+   * @param now
+   *          current time, in milliseconds since the epoch
+   * 
+   * @return <code>true</code> if the response is in the refresh ahead window
+   */
+  public boolean isRefreshDue(final CachedResponse cached, final long now) {
+
+    if (refreshExecutor == null || cached.isExpired(now)) {
+      return false;
+    }
+    long timeToLive = cached.getExpirationTime() - cached.getCachedTime();
+    return now >= cached.getExpirationTime() - timeToLive
+      * refreshAheadPercent / 100;
+  }
+
+  /**
+   * Refreshes a cached response in the background, unless it is already
+   * being refreshed.
+   * 
+   * @param key
+   *          fingerprint of the request
+   * @param refresh
+   *          sends the request to the PDP and caches the response, returns
+   *          <code>false</code> if no PDP answered
+   */
+  public void refresh(final RequestFingerprint key,
+    final Callable<Boolean> refresh) {
+
+    if (refreshExecutor == null
+      || refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+    try {
+      refreshExecutor.execute(new Runnable() {
+
+        public void run() {
+
+          try {
+            if (refresh.call()) {
+              refreshes.incrementAndGet();
+            } else {
+              failedRefreshes.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failedRefreshes.incrementAndGet();
+            log.warn("Error refreshing cached response {}: {}", key,
+              e.getMessage());
+            log.debug("", e);
+          } finally {
+            refreshing.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.remove(key);
+      rejectedRefreshes.incrementAndGet();
+      log.debug("Too many refreshes waiting, refresh of {} dropped", key);
+    }
+  }
+
+  /**
+   * Checks whether an expired cached response may be served because no PDP
+   * answered the request.
+   * 
+   * @param cached
+   *          the expired cached response
+   * @param now
+   *          current time, in milliseconds since the epoch
+   * 
+   * @return <code>true</code> if the response may be served
+   */
+  public boolean isStaleUsable(final CachedResponse cached, final long now) {
+
+    return staleOnErrorPeriod > 0 && now < cached.getRetentionTime();
+  }
+
+  /** Records that an expired response was served because no PDP answered. */
+  public void staleResponseServed() {
+
+    staleResponses.incrementAndGet();
+  }
+
+  /** Stops the refreshes. */
+  public void shutdown() {
+
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    writer.counter("response_cache_refreshes_total",
+      "Cached responses refreshed ahead of their expiration", refreshes.get());
+    writer.counter("response_cache_refresh_failures_total",
+      "Refreshes of cached responses which failed", failedRefreshes.get());
+    writer.counter("response_cache_refresh_rejected_total",
+      "Refreshes of cached responses dropped because too many were waiting",
+      rejectedRefreshes.get());
+    writer.counter("response_cache_stale_served_total",
+      "Expired cached responses served because no PDP answered",
+      staleResponses.get());
+    writer.gauge("response_cache_refreshes_in_progress",
+      "Refreshes of cached responses in progress", refreshing.size());
+  }
+}
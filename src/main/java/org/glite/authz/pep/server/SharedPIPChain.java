@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
+import org.glite.authz.pep.server.metrics.StageLatencies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the policy information points once for the requests of a batch sharing
+ * the same subjects and environment.
+ * <p>
+ * The first request of the group, the leader, runs the whole PIP chain and
+ * records, after each PIP, a copy of its subjects and environment. The
+ * other requests wait for the leader and walk the same chain: as long as their
+ * subjects and environment are equal to the leader's, attribute by attribute,
+ * the outcome of a {@link SubjectPolicyInformationPoint} is copied instead of
+ * being computed again. The other PIPs are run
+ * on each request, and a request whose subjects or environment no longer match
+ * the leader's, or whose leader failed, runs the remaining PIPs itself.
+ */
+@ThreadSafe
+final class SharedPIPChain {
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(SharedPIPChain.class);
+
+  /** The policy information points. */
+  private final List<PolicyInformationPoint> pips;
+
+  /** The request running the PIPs for the group. */
+  private final Request leader;
+
+  /**
+   * Copy of the leader's subjects and environment after each PIP,
+   * <code>null</code> after the PIP where the leader failed. Published by the
+   * latch.
+   */
+  private final Request[] leaderStates;
+
+  /**
+   * Copy of the leader's subjects after each subject PIP, <code>null</code> for
+   * the other PIPs. Published by the latch.
+   */
+  private final List<Subject>[] leaderSubjects;
+
+  /** Whether each PIP applied to the leader. Published by the latch. */
+  private final boolean[] leaderApplied;
+
+  /** Released once the leader has run the PIPs, or failed. */
+  private final CountDownLatch leaderDone = new CountDownLatch(1);
+
+  /** Records the latency of the PIPs run, <code>null</code> if not recorded. */
+  private final StageLatencies stageLatencies;
+
+  /**
+   * Constructor.
+   * 
+   * @param policyInformationPoints
+   *          the policy information points, in order
+   * @param leaderRequest
+   *          the request running the PIPs for the group
+   * @param latencies
+   *          records the latency of the PIPs run, <code>null</code> if not
+   *          recorded
+   */
+  @SuppressWarnings("unchecked")
+  SharedPIPChain(final List<PolicyInformationPoint> policyInformationPoints,
+    final Request leaderRequest, final StageLatencies latencies) {
+
+    pips = policyInformationPoints;
+    leader = leaderRequest;
+    stageLatencies = latencies;
+    leaderStates = new Request[pips.size()];
+    leaderSubjects = new List[pips.size()];
+    leaderApplied = new boolean[pips.size()];
+  }
+
+  /**
+   * Computes the key grouping the requests whose PIPs may be shared: a request
+   * holding a copy of their subjects and environment, compared by value. The
+   * key is not modified by the PIPs run afterwards over the request.
+   * 
+   * @param request
+   *          the request
+   * 
+   * @return the copy of the subjects and environment of the request
+   */
+  static Request groupKey(final Request request) {
+
+    Request state = new Request();
+    state.getSubjects().addAll(copySubjects(request.getSubjects()));
+    if (request.getEnvironment() != null) {
+      Environment environment = new Environment();
+      environment.getAttributes().addAll(
+        copyAttributes(request.getEnvironment().getAttributes()));
+      state.setEnvironment(environment);
+    }
+    return state;
+  }
+
+  /**
+   * Runs the PIPs over a request of the group. The leader runs all of them,
+   * the other requests wait for the leader and reuse its subjects where
+   * possible.
+   * 
+   * @param request
+   *          the request, the leader or a request of its group
+   * 
+   * @throws PIPProcessingException
+   *           thrown if a PIP run on this request fails, or if the thread is
+   *           interrupted while waiting for the leader
+   */
+  void populateRequest(final Request request) throws PIPProcessingException {
+
+    if (request == leader) {
+      populateLeader();
+    } else {
+      populateFollower(request);
+    }
+  }
+
+  /**
+   * Runs all the PIPs over the leader, recording its state after each of them.
+   * 
+   * @throws PIPProcessingException
+   *           thrown if a PIP fails
+   */
+  private void populateLeader() throws PIPProcessingException {
+
+    try {
+      for (int i = 0; i < pips.size(); i++) {
+        PolicyInformationPoint pip = pips.get(i);
+        leaderApplied[i] = applyPIP(pip, leader);
+        if (pip instanceof SubjectPolicyInformationPoint) {
+          leaderSubjects[i] = copySubjects(leader.getSubjects());
+        }
+        leaderStates[i] = groupKey(leader);
+      }
+    } finally {
+      leaderDone.countDown();
+    }
+  }
+
+  /**
+   * Runs the PIPs over a follower, copying the leader's subjects after each
+   * subject PIP as long as both requests are in the same state.
+   * 
+   * @param request
+   *          the follower
+   * 
+   * @throws PIPProcessingException
+   *           thrown if a PIP fails, or if the thread is interrupted while
+   *           waiting for the leader
+   */
+  private void populateFollower(final Request request)
+    throws PIPProcessingException {
+
+    try {
+      leaderDone.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PIPProcessingException(
+        "Interrupted while waiting for the PIPs of the batched request");
+    }
+    boolean inSync = true;
+    for (int i = 0; i < pips.size(); i++) {
+      PolicyInformationPoint pip = pips.get(i);
+      if (inSync && leaderSubjects[i] != null) {
+        request.getSubjects().clear();
+        request.getSubjects().addAll(copySubjects(leaderSubjects[i]));
+        log.debug("PIP {} result shared with batched request, applied: {}",
+          pip.getId(), leaderApplied[i]);
+        continue;
+      }
+      applyPIP(pip, request);
+      if (inSync) {
+        inSync = leaderStates[i] != null
+          && leaderStates[i].equals(groupKey(request));
+        if (!inSync) {
+          log.debug("Batched request differs from its leader after PIP {}",
+            pip.getId());
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs a PIP over a request.
+   * 
+   * @param pip
+   *          the policy information point
+   * @param request
+   *          the request
+   * 
+   * @return whether the PIP applied to the request
+   * 
+   * @throws PIPProcessingException
+   *           thrown if the PIP fails
+   */
+  private boolean applyPIP(final PolicyInformationPoint pip,
+    final Request request) throws PIPProcessingException {
+
+    long startTime = System.nanoTime();
+    boolean applied = pip.populateRequest(request);
+    if (stageLatencies != null) {
+      stageLatencies.recordSince(StageLatencies.PIP_STAGE_PREFIX + pip.getId(),
+        startTime);
+    }
+    if (applied) {
+      log.debug("PIP {} applied to Hessian request", pip.getId());
+    } else {
+      log.debug("PIP {} do not apply to request", pip.getId());
+    }
+    return applied;
+  }
+
+  /**
+   * Copies subjects and their attributes, so that the copy can be modified
+   * independently. The attribute values are immutable and shared.
+   * 
+   * @param subjects
+   *          the subjects to copy
+   * 
+   * @return the copies of the subjects
+   */
+  private static List<Subject> copySubjects(final Iterable<Subject> subjects) {
+
+    List<Subject> copies = new ArrayList<Subject>();
+    for (Subject subject : subjects) {
+      Subject copy = new Subject();
+      copy.setCategory(subject.getCategory());
+      copy.getAttributes().addAll(copyAttributes(subject.getAttributes()));
+      copies.add(copy);
+    }
+    return copies;
+  }
+
+  /**
+   * Copies attributes. The attribute values are immutable and shared.
+   * 
+   * @param attributes
+   *          the attributes to copy
+   * 
+   * @return the copies of the attributes
+   */
+  private static List<Attribute> copyAttributes(
+    final Iterable<Attribute> attributes) {
+
+    List<Attribute> copies = new ArrayList<Attribute>();
+    for (Attribute attribute : attributes) {
+      Attribute copy = new Attribute();
+      copy.setId(attribute.getId());
+      copy.setDataType(attribute.getDataType());
+      copy.setIssuer(attribute.getIssuer());
+      copy.getValues().addAll(attribute.getValues());
+      copies.add(copy);
+    }
+    return copies;
+  }
+}
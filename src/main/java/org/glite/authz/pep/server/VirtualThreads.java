@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the virtual threads of the running JVM.
+ * <p>
+ * The daemon is built for Java 8, so the virtual thread API (Java 21) is
+ * looked up reflectively, and probed by starting one virtual thread. When it
+ * is not available, or can not be used, {@link #isSupported()} returns
+ * <code>false</code>.
+ */
+@ThreadSafe
+public final class VirtualThreads {
+
+  /** Class logger. */
+  private static final Logger LOG = LoggerFactory
+    .getLogger(VirtualThreads.class);
+
+  /** <code>Thread.ofVirtual()</code>, <code>null</code> if not supported. */
+  private static final Method OF_VIRTUAL;
+
+  /** <code>Thread.Builder.name(String, long)</code>. */
+  private static final Method BUILDER_NAME;
+
+  /** <code>Thread.Builder.factory()</code>. */
+  private static final Method BUILDER_FACTORY;
+
+  /** <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>. */
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderFactory = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      builderName = builderClass.getMethod("name", String.class, long.class);
+      builderFactory = builderClass.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class.getMethod(
+        "newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (Exception e) {
+      LOG.debug("Virtual threads are not supported by this JVM: {}",
+        e.toString());
+      ofVirtual = null;
+    }
+    if (ofVirtual != null) {
+      // the API is present but unusable on Java 19/20 without --enable-preview
+      try {
+        Thread probe = ((ThreadFactory) builderFactory.invoke(ofVirtual
+          .invoke(null))).newThread(new Runnable() {
+
+          public void run() {
+
+          }
+        });
+        probe.start();
+        probe.join();
+      } catch (Throwable t) {
+        Throwable cause = t instanceof InvocationTargetException ? t
+          .getCause() : t;
+        LOG.warn("Virtual threads can not be started by this JVM: {}",
+          String.valueOf(cause));
+        ofVirtual = null;
+      }
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_FACTORY = builderFactory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  /** Constructor. */
+  private VirtualThreads() {
+
+  }
+
+  /**
+   * Gets whether the running JVM supports virtual threads, that is whether a
+   * virtual thread could be started when this class was loaded.
+   *
+   * @return whether the running JVM supports virtual threads
+   */
+  public static boolean isSupported() {
+
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates an executor starting a new virtual thread for each task.
+   *
+   * @param namePrefix
+   *          prefix of the thread names, followed by a counter
+   *
+   * @return the executor
+   *
+   * @throws UnsupportedOperationException
+   *           thrown if the JVM does not support virtual threads
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor(
+    final String namePrefix) {
+
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+        "Virtual threads are not supported by this JVM");
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke(null);
+      builder = BUILDER_NAME.invoke(builder, namePrefix, 0L);
+      ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null,
+        factory);
+    } catch (Exception e) {
+      throw new UnsupportedOperationException(
+        "Unable to create virtual thread executor", e);
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import org.glite.authz.common.model.AttributeAssignment;
+import org.glite.authz.common.model.Obligation;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Status;
+import org.glite.authz.common.model.StatusCode;
+
+/**
+ * An immutable copy of the first result of a PDP {@link Response}, as stored in
+ * a {@link ResponseCache}.
+ * <p>
+ * The obligation handlers modify the result they process, the DFPM handler for
+ * instance replaces the local environment map obligation by the POSIX account
+ * mapping. The cache therefore never hands out the response it stores: every
+ * hit materializes a new {@link Response}, on which the obligations are
+ * processed again. The strings are shared, only the model objects are created.
+ * <p>
+ * A cached response expires after its time to live, but may be retained longer
+ * by the cache, to be served when the PDP can not be reached.
+ */
+@Immutable
+public final class CachedResponse {
+
+  /** Empty string array. */
+  private static final String[] NO_STRINGS = new String[0];
+
+  /** Empty obligation array. */
+  private static final CachedObligation[] NO_OBLIGATIONS = new CachedObligation[0];
+
+  /** Decision of the result. */
+  private final int decision;
+
+  /** Resource ID of the result, may be <code>null</code>. */
+  private final String resourceId;
+
+  /** Whether the result has a status. */
+  private final boolean hasStatus;
+
+  /** Status message, may be <code>null</code>. */
+  private final String statusMessage;
+
+  /** Status code followed by its nested sub codes. */
+  private final String[] statusCodes;
+
+  /** Obligations of the result. */
+  private final CachedObligation[] obligations;
+
+  /** Time, in milliseconds since the epoch, the response was cached. */
+  private final long cachedTime;
+
+  /** Time, in milliseconds since the epoch, the response expires. */
+  private final long expirationTime;
+
+  /** Time, in milliseconds since the epoch, until the response is retained. */
+  private final long retentionTime;
+
+  /**
+   * Constructor.
+   * 
+   * @param response
+   *          the response to copy, it must contain a result
+   * @param now
+   *          current time, in milliseconds since the epoch
+   * @param timeToLive
+   *          duration, in milliseconds, the response is valid
+   * @param stalePeriod
+   *          duration, in milliseconds, the response is retained after it has
+   *          expired, zero if it is not
+   */
+  public CachedResponse(final Response response, final long now,
+    final long timeToLive, final long stalePeriod) {
+
+    if (timeToLive < 1) {
+      throw new IllegalArgumentException(
+        "Cached response time to live must be greater than zero");
+    }
+    if (stalePeriod < 0) {
+      throw new IllegalArgumentException(
+        "Cached response stale period may not be negative");
+    }
+    cachedTime = now;
+    expirationTime = now + timeToLive;
+    retentionTime = expirationTime + stalePeriod;
+
+    Result result = response.getResults().get(0);
+    decision = result.getDecision();
+    resourceId = result.getResourceId();
+
+    Status status = result.getStatus();
+    hasStatus = status != null;
+    if (status != null) {
+      statusMessage = status.getMessage();
+      int depth = 0;
+      for (StatusCode code = status.getCode(); code != null; code = code
+        .getSubCode()) {
+        depth++;
+      }
+      statusCodes = depth == 0 ? NO_STRINGS : new String[depth];
+      int i = 0;
+      for (StatusCode code = status.getCode(); code != null; code = code
+        .getSubCode()) {
+        statusCodes[i++] = code.getCode();
+      }
+    } else {
+      statusMessage = null;
+      statusCodes = NO_STRINGS;
+    }
+
+    List<Obligation> resultObligations = result.getObligations();
+    if (resultObligations == null || resultObligations.isEmpty()) {
+      obligations = NO_OBLIGATIONS;
+    } else {
+      obligations = new CachedObligation[resultObligations.size()];
+      for (int i = 0; i < obligations.length; i++) {
+        obligations[i] = new CachedObligation(resultObligations.get(i));
+      }
+    }
+  }
+
+  /**
+   * Gets the decision of the cached result.
+   * 
+   * @return decision of the cached result
+   */
+  public int getDecision() {
+
+    return decision;
+  }
+
+  /**
+   * Gets the time the response was cached.
+   * 
+   * @return time, in milliseconds since the epoch, the response was cached
+   */
+  public long getCachedTime() {
+
+    return cachedTime;
+  }
+
+  /**
+   * Gets the time the response expires.
+   * 
+   * @return time, in milliseconds since the epoch, the response expires
+   */
+  public long getExpirationTime() {
+
+    return expirationTime;
+  }
+
+  /**
+   * Gets the time until which the response is retained by the cache.
+   * 
+   * @return time, in milliseconds since the epoch, until the response is
+   *         retained
+   */
+  public long getRetentionTime() {
+
+    return retentionTime;
+  }
+
+  /**
+   * Gets the duration the response is retained by the cache.
+   * 
+   * @return duration, in milliseconds, the response is retained
+   */
+  public long getRetentionPeriod() {
+
+    return retentionTime - cachedTime;
+  }
+
+  /**
+   * Checks whether the response has expired.
+   * 
+   * @param now
+   *          current time, in milliseconds since the epoch
+   * 
+   * @return <code>true</code> if the response has expired
+   */
+  public boolean isExpired(final long now) {
+
+    return now >= expirationTime;
+  }
+
+  /**
+   * Creates a new response, with a single result, from this copy.
+   * 
+   * @return the new response, without request
+   */
+  public Response toResponse() {
+
+    Result result = new Result();
+    result.setDecision(decision);
+    result.setResourceId(resourceId);
+
+    if (hasStatus) {
+      Status status = new Status();
+      StatusCode subCode = null;
+      for (int i = statusCodes.length - 1; i >= 0; i--) {
+        StatusCode code = new StatusCode();
+        code.setCode(statusCodes[i]);
+        code.setSubCode(subCode);
+        subCode = code;
+      }
+      status.setCode(subCode);
+      status.setMessage(statusMessage);
+      result.setStatus(status);
+    }
+
+    for (CachedObligation obligation : obligations) {
+      result.getObligations().add(obligation.toObligation());
+    }
+
+    Response response = new Response();
+    response.getResults().add(result);
+    return response;
+  }
+
+  /** An immutable copy of an {@link Obligation}. */
+  @Immutable
+  private static final class CachedObligation {
+
+    /** Obligation ID. */
+    private final String id;
+
+    /** Decision on which the obligation is fulfilled. */
+    private final int fulfillOn;
+
+    /** Attribute ID, data type and value of each attribute assignment. */
+    private final String[] assignments;
+
+    /**
+     * Constructor.
+     * 
+     * @param obligation
+     *          the obligation to copy
+     */
+    private CachedObligation(final Obligation obligation) {
+
+      id = obligation.getId();
+      fulfillOn = obligation.getFulfillOn();
+      List<AttributeAssignment> attributeAssignments = obligation
+        .getAttributeAssignments();
+      if (attributeAssignments == null || attributeAssignments.isEmpty()) {
+        assignments = NO_STRINGS;
+      } else {
+        assignments = new String[attributeAssignments.size() * 3];
+        int i = 0;
+        for (AttributeAssignment assignment : attributeAssignments) {
+          assignments[i++] = assignment.getAttributeId();
+          assignments[i++] = assignment.getDataType();
+          assignments[i++] = assignment.getValue();
+        }
+      }
+    }
+
+    /**
+     * Creates a new obligation from this copy.
+     * 
+     * @return the new obligation
+     */
+    private Obligation toObligation() {
+
+      Obligation obligation = new Obligation();
+      obligation.setId(id);
+      obligation.setFulfillOn(fulfillOn);
+      for (int i = 0; i < assignments.length; i += 3) {
+        AttributeAssignment assignment = new AttributeAssignment();
+        assignment.setAttributeId(assignments[i]);
+        assignment.setDataType(assignments[i + 1]);
+        assignment.setValue(assignments[i + 2]);
+        obligation.getAttributeAssignments().add(assignment);
+      }
+      return obligation;
+    }
+  }
+}
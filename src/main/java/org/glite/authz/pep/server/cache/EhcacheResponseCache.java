@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+
+/**
+ * A {@link ResponseCache} backed by an ehcache LFU memory store, registered
+ * with the shared {@link CacheManager}. It is kept as a fallback for the
+ * {@link TinyLFUResponseCache}; its evictions are not counted.
+ */
+@ThreadSafe
+public class EhcacheResponseCache implements ResponseCache {
+
+  /** Name of the ehcache cache used to cache PDP responses. */
+  public static final String CACHE_NAME = "org.glite.authz.pep.server.responseCache";
+
+  /** The cached responses. */
+  private final Cache cache;
+
+  /** Number of valid responses found in the cache. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of responses not found, or expired, in the cache. */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          maximum number of cached responses, must be greater than zero
+   */
+  public EhcacheResponseCache(final int maximumSize) {
+
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException(
+        "Maximum cache size must be greater than zero");
+    }
+    // the time to live is set on each element
+    cache = new Cache(CACHE_NAME, maximumSize, MemoryStoreEvictionPolicy.LFU,
+      false, null, false, 0, 0, false, Long.MAX_VALUE, null, null);
+    CacheManager.create().addCache(cache);
+  }
+
+  /** {@inheritDoc} */
+  public CachedResponse get(final RequestFingerprint key, final long now) {
+
+    Element element = cache.get(key);
+    CachedResponse cached = null;
+    if (element != null) {
+      cached = (CachedResponse) element.getObjectValue();
+    }
+    if (cached == null || cached.isExpired(now)) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return cached;
+  }
+
+  /** {@inheritDoc} */
+  public void put(final RequestFingerprint key, final CachedResponse response) {
+
+    Element element = new Element(key, response);
+    // ehcache time to live is in seconds, zero means forever
+    element.setTimeToLive((int) Math.max(1,
+      Math.min(Integer.MAX_VALUE, response.getRetentionPeriod() / 1000)));
+    cache.put(element);
+  }
+
+  /** {@inheritDoc} */
+  public void clear() {
+
+    cache.removeAll();
+  }
+
+  /** {@inheritDoc} */
+  public long size() {
+
+    return cache.getSize();
+  }
+
+  /** {@inheritDoc} */
+  public void shutdown() {
+
+    // the cache manager is shared, it is shut down by the daemon
+    CacheManager cacheMgr = CacheManager.getInstance();
+    if (cacheMgr != null && cacheMgr.getStatus() == Status.STATUS_ALIVE) {
+      cacheMgr.removeCache(CACHE_NAME);
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    long requestCount = hitCount + missCount;
+    writer.counter("response_cache_hits_total",
+      "Requests answered from the response cache", hitCount);
+    writer.counter("response_cache_misses_total",
+      "Requests not found in the response cache", missCount);
+    writer.gauge("response_cache_size", "Cached responses", size());
+    writer.gauge("response_cache_hit_ratio", "Response cache hit ratio",
+      requestCount == 0 ? 0.0 : (double) hitCount / requestCount);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A 256-bit fingerprint identifying an authorization request. Two requests
+ * with the same attributes, ignoring the excluded attributes, have the same
+ * fingerprint.
+ * 
+ * @see RequestFingerprinter
+ */
+@Immutable
+public final class RequestFingerprint {
+
+  /** Bits 0 to 63 of the fingerprint. */
+  private final long bits0;
+
+  /** Bits 64 to 127 of the fingerprint. */
+  private final long bits1;
+
+  /** Bits 128 to 191 of the fingerprint. */
+  private final long bits2;
+
+  /** Bits 192 to 255 of the fingerprint. */
+  private final long bits3;
+
+  /**
+   * Constructor.
+   * 
+   * @param bits0To63
+   *          bits 0 to 63 of the fingerprint
+   * @param bits64To127
+   *          bits 64 to 127 of the fingerprint
+   * @param bits128To191
+   *          bits 128 to 191 of the fingerprint
+   * @param bits192To255
+   *          bits 192 to 255 of the fingerprint
+   */
+  public RequestFingerprint(final long bits0To63, final long bits64To127,
+    final long bits128To191, final long bits192To255) {
+
+    bits0 = bits0To63;
+    bits1 = bits64To127;
+    bits2 = bits128To191;
+    bits3 = bits192To255;
+  }
+
+  /** {@inheritDoc} */
+  public boolean equals(final Object obj) {
+
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof RequestFingerprint)) {
+      return false;
+    }
+    RequestFingerprint other = (RequestFingerprint) obj;
+    return bits0 == other.bits0 && bits1 == other.bits1
+      && bits2 == other.bits2 && bits3 == other.bits3;
+  }
+
+  /** {@inheritDoc} */
+  public int hashCode() {
+
+    // the bits are uniformly distributed, no need to mix them
+    return (int) bits0;
+  }
+
+  /** {@inheritDoc} */
+  public String toString() {
+
+    return String.format("%016x%016x%016x%016x", bits3, bits2, bits1, bits0);
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.provider.EnvironmentTimePIP;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Computes the canonical {@link RequestFingerprint} of a request.
+ * <p>
+ * The fingerprint is the SHA-256 digest of a canonical encoding of the
+ * subjects (category and attributes), resources (content and attributes),
+ * action and environment of the request. Attributes are identified by their
+ * ID, data type, issuer and values. Every string is prefixed by its length and
+ * every list by its size. Subjects, resources, attributes and values are sets:
+ * their encodings are sorted so that the fingerprint does not depend on the
+ * iteration order. Attributes whose ID is excluded, like the current time
+ * added by the {@link EnvironmentTimePIP}, are ignored.
+ * <p>
+ * The response cache serves the cached decision of a request with the same
+ * fingerprint, a collision resistant digest keeps a crafted request from
+ * being given the decision of another subject. The full digest is kept, so
+ * that a collision costs the full strength of SHA-256.
+ */
+@ThreadSafe
+public class RequestFingerprinter {
+
+  /**
+   * The attributes excluded by default: the time attributes added by the
+   * {@link EnvironmentTimePIP}.
+   */
+  public static final Set<String> DEFAULT_EXCLUDED_ATTRIBUTE_IDS;
+
+  static {
+    Set<String> ids = new HashSet<String>();
+    ids.add(EnvironmentTimePIP.CURRENT_TIME_ATTRIB_NAME);
+    ids.add(EnvironmentTimePIP.CURRENT_DATE_ATTRIB_NAME);
+    ids.add(EnvironmentTimePIP.CURRENT_DATETIME_ATTRIB_NAME);
+    DEFAULT_EXCLUDED_ATTRIBUTE_IDS = Collections.unmodifiableSet(ids);
+  }
+
+  /** Hash function used to compute the fingerprints. */
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  /** Orders the encodings of the set elements. */
+  private static final Comparator<byte[]> ENCODING_ORDER = UnsignedBytes
+    .lexicographicalComparator();
+
+  /** Markers of the request parts, fed to the hash between the parts. */
+  private static final byte SUBJECTS = 1;
+
+  /** Resources marker. */
+  private static final byte RESOURCES = 2;
+
+  /** Action marker. */
+  private static final byte ACTION = 3;
+
+  /** Environment marker. */
+  private static final byte ENVIRONMENT = 4;
+
+  /** IDs of the attributes ignored by the fingerprint. */
+  private final Set<String> excludedAttributeIds;
+
+  /** Constructor, excluding the {@link #DEFAULT_EXCLUDED_ATTRIBUTE_IDS}. */
+  public RequestFingerprinter() {
+
+    this(DEFAULT_EXCLUDED_ATTRIBUTE_IDS);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param excludedIds
+   *          IDs of the attributes ignored by the fingerprint, may be
+   *          <code>null</code> or empty
+   */
+  public RequestFingerprinter(final Collection<String> excludedIds) {
+
+    if (excludedIds == null || excludedIds.isEmpty()) {
+      excludedAttributeIds = Collections.emptySet();
+    } else {
+      excludedAttributeIds = Collections.unmodifiableSet(new HashSet<String>(
+        excludedIds));
+    }
+  }
+
+  /**
+   * Gets the IDs of the attributes ignored by the fingerprint.
+   * 
+   * @return IDs of the attributes ignored by the fingerprint
+   */
+  public Set<String> getExcludedAttributeIds() {
+
+    return excludedAttributeIds;
+  }
+
+  /**
+   * Computes the fingerprint of a request.
+   * 
+   * @param request
+   *          the request
+   * 
+   * @return the fingerprint of the request
+   */
+  public RequestFingerprint fingerprint(final Request request) {
+
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+
+    out.writeByte(SUBJECTS);
+    List<byte[]> subjects = new ArrayList<byte[]>();
+    for (Subject subject : request.getSubjects()) {
+      ByteArrayDataOutput subjectOut = ByteStreams.newDataOutput();
+      putString(subjectOut, subject.getCategory());
+      putAttributes(subjectOut, subject.getAttributes());
+      subjects.add(subjectOut.toByteArray());
+    }
+    putSorted(out, subjects);
+
+    out.writeByte(RESOURCES);
+    List<byte[]> resources = new ArrayList<byte[]>();
+    for (Resource resource : request.getResources()) {
+      ByteArrayDataOutput resourceOut = ByteStreams.newDataOutput();
+      putString(resourceOut, resource.getResourceContent());
+      putAttributes(resourceOut, resource.getAttributes());
+      resources.add(resourceOut.toByteArray());
+    }
+    putSorted(out, resources);
+
+    out.writeByte(ACTION);
+    Action action = request.getAction();
+    if (action == null) {
+      out.writeInt(-1);
+    } else {
+      putAttributes(out, action.getAttributes());
+    }
+
+    out.writeByte(ENVIRONMENT);
+    Environment environment = request.getEnvironment();
+    if (environment == null) {
+      out.writeInt(-1);
+    } else {
+      putAttributes(out, environment.getAttributes());
+    }
+
+    byte[] digest = HASH_FUNCTION.hashBytes(out.toByteArray()).asBytes();
+    return new RequestFingerprint(toLong(digest, 0), toLong(digest, 8),
+      toLong(digest, 16), toLong(digest, 24));
+  }
+
+  /**
+   * Writes the canonical encoding of the non excluded attributes.
+   * 
+   * @param out
+   *          the output
+   * @param attributes
+   *          the attributes
+   */
+  private void putAttributes(final ByteArrayDataOutput out,
+    final Set<Attribute> attributes) {
+
+    List<byte[]> encodings = new ArrayList<byte[]>();
+    for (Attribute attribute : attributes) {
+      if (excludedAttributeIds.contains(attribute.getId())) {
+        continue;
+      }
+      ByteArrayDataOutput attributeOut = ByteStreams.newDataOutput();
+      putString(attributeOut, attribute.getId());
+      putString(attributeOut, attribute.getDataType());
+      putString(attributeOut, attribute.getIssuer());
+      List<byte[]> values = new ArrayList<byte[]>();
+      for (Object value : attribute.getValues()) {
+        ByteArrayDataOutput valueOut = ByteStreams.newDataOutput();
+        putString(valueOut, String.valueOf(value));
+        values.add(valueOut.toByteArray());
+      }
+      putSorted(attributeOut, values);
+      encodings.add(attributeOut.toByteArray());
+    }
+    putSorted(out, encodings);
+  }
+
+  /**
+   * Writes the encodings of the elements of a set, in their canonical order,
+   * prefixed by their number.
+   * 
+   * @param out
+   *          the output
+   * @param encodings
+   *          the encodings of the elements, each one self-delimited
+   */
+  private static void putSorted(final ByteArrayDataOutput out,
+    final List<byte[]> encodings) {
+
+    Collections.sort(encodings, ENCODING_ORDER);
+    out.writeInt(encodings.size());
+    for (byte[] encoding : encodings) {
+      out.write(encoding);
+    }
+  }
+
+  /**
+   * Writes a, possibly <code>null</code>, string as UTF-8. The string is
+   * prefixed by its length so that consecutive strings can not be confused.
+   * 
+   * @param out
+   *          the output
+   * @param value
+   *          the string, may be <code>null</code>
+   */
+  private static void putString(final ByteArrayDataOutput out,
+    final String value) {
+
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Reads a little-endian long.
+   * 
+   * @param bytes
+   *          the bytes
+   * @param offset
+   *          offset of the long in the bytes
+   * 
+   * @return the long
+   */
+  private static long toLong(final byte[] bytes, final int offset) {
+
+    long value = 0;
+    for (int i = 7; i >= 0; i--) {
+      value = (value << 8) | (bytes[offset + i] & 0xff);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+
+/**
+ * A cache of PDP responses indexed by the fingerprint of the request.
+ * Implementations are thread safe and report their hit, miss and eviction
+ * counters as metrics.
+ * <p>
+ * Responses are stored as immutable {@link CachedResponse} copies: modifying
+ * a response after it has been cached, or a response materialized from the
+ * cache, never changes the cached entry.
+ * 
+ * @see ResponseCacheFactory
+ */
+public interface ResponseCache extends MetricsSource {
+
+  /**
+   * Gets the cached response of a request. An expired response still retained
+   * is returned, but counted as a miss.
+   * 
+   * @param key
+   *          fingerprint of the request
+   * @param now
+   *          current time, in milliseconds since the epoch
+   * 
+   * @return the cached response, or <code>null</code> if no response is
+   *         retained
+   */
+  CachedResponse get(RequestFingerprint key, long now);
+
+  /**
+   * Caches the response of a request, replacing the response already cached.
+   * The response is retained until its {@link CachedResponse#getRetentionTime()}.
+   * 
+   * @param key
+   *          fingerprint of the request
+   * @param response
+   *          the response to cache
+   */
+  void put(RequestFingerprint key, CachedResponse response);
+
+  /** Removes all the cached responses. */
+  void clear();
+
+  /**
+   * Gets the number of cached responses. Implementations may include expired
+   * responses not removed yet.
+   * 
+   * @return number of cached responses
+   */
+  long size();
+
+  /** Releases the resources of the cache, it may not be used anymore. */
+  void shutdown();
+}
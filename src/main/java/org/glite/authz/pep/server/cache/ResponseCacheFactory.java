@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+/** Creates the {@link ResponseCache} of a given engine. */
+public final class ResponseCacheFactory {
+
+  /** Name of the {@link TinyLFUResponseCache} engine, the default. */
+  public static final String TINYLFU_ENGINE = "tinylfu";
+
+  /** Name of the {@link EhcacheResponseCache} engine. */
+  public static final String EHCACHE_ENGINE = "ehcache";
+
+  /** Constructor. */
+  private ResponseCacheFactory() {
+
+  }
+
+  /**
+   * Checks whether an engine name is known.
+   * 
+   * @param engine
+   *          name of the cache engine
+   * 
+   * @return <code>true</code> if a cache of this engine may be created
+   */
+  public static boolean isSupportedEngine(final String engine) {
+
+    return TINYLFU_ENGINE.equalsIgnoreCase(engine)
+      || EHCACHE_ENGINE.equalsIgnoreCase(engine);
+  }
+
+  /**
+   * Creates a response cache.
+   * 
+   * @param engine
+   *          name of the cache engine, {@value #TINYLFU_ENGINE} or
+   *          {@value #EHCACHE_ENGINE}
+   * @param maximumSize
+   *          maximum number of cached responses, must be greater than zero
+   * 
+   * @return the response cache
+   */
+  public static ResponseCache createResponseCache(final String engine,
+    final int maximumSize) {
+
+    if (EHCACHE_ENGINE.equalsIgnoreCase(engine)) {
+      return new EhcacheResponseCache(maximumSize);
+    }
+    if (TINYLFU_ENGINE.equalsIgnoreCase(engine)) {
+      return new TinyLFUResponseCache(maximumSize);
+    }
+    throw new IllegalArgumentException("Unknown response cache engine: "
+      + engine);
+  }
+}
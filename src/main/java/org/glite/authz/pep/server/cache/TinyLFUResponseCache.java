@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A {@link ResponseCache} using the Caffeine W-TinyLFU policy.
+ * <p>
+ * Reads are lock free. A new response enters a small LRU window, and when the
+ * cache is full it is only admitted in the main space if it has been requested
+ * more often than the eviction candidate, according to a compact frequency
+ * sketch. A burst of one-off requests thus does not flush the responses of the
+ * frequent requests. Each response is retained for its own retention period.
+ */
+@ThreadSafe
+public class TinyLFUResponseCache implements ResponseCache {
+
+  /** The cached responses. */
+  private final Cache<RequestFingerprint, CachedResponse> cache;
+
+  /** Number of valid responses found in the cache. */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of responses not found, or expired, in the cache. */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          maximum number of cached responses, must be greater than zero
+   */
+  public TinyLFUResponseCache(final int maximumSize) {
+
+    this(maximumSize, Ticker.systemTicker());
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          maximum number of cached responses, must be greater than zero
+   * @param ticker
+   *          time source used to remove the responses
+   */
+  TinyLFUResponseCache(final int maximumSize, final Ticker ticker) {
+
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException(
+        "Maximum cache size must be greater than zero");
+    }
+    // maintenance is done by the calling threads, no background thread
+    cache = Caffeine.newBuilder().maximumSize(maximumSize)
+      .expireAfter(new RetentionExpiry()).ticker(ticker)
+      .executor(MoreExecutors.directExecutor()).recordStats()
+      .<RequestFingerprint, CachedResponse> build();
+  }
+
+  /** {@inheritDoc} */
+  public CachedResponse get(final RequestFingerprint key, final long now) {
+
+    CachedResponse cached = cache.getIfPresent(key);
+    if (cached == null || cached.isExpired(now)) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return cached;
+  }
+
+  /** {@inheritDoc} */
+  public void put(final RequestFingerprint key, final CachedResponse response) {
+
+    cache.put(key, response);
+  }
+
+  /** {@inheritDoc} */
+  public void clear() {
+
+    cache.invalidateAll();
+  }
+
+  /** {@inheritDoc} */
+  public long size() {
+
+    return cache.estimatedSize();
+  }
+
+  /** {@inheritDoc} */
+  public void shutdown() {
+
+    cache.invalidateAll();
+    cache.cleanUp();
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    long hitCount = hits.get();
+    long missCount = misses.get();
+    long requestCount = hitCount + missCount;
+    writer.counter("response_cache_hits_total",
+      "Requests answered from the response cache", hitCount);
+    writer.counter("response_cache_misses_total",
+      "Requests not found in the response cache", missCount);
+    writer.counter("response_cache_evictions_total",
+      "Responses evicted from the cache, by size or expiration", cache.stats()
+        .evictionCount());
+    writer.gauge("response_cache_size", "Cached responses",
+      cache.estimatedSize());
+    writer.gauge("response_cache_hit_ratio", "Response cache hit ratio",
+      requestCount == 0 ? 0.0 : (double) hitCount / requestCount);
+  }
+
+  /** Removes the responses after their retention period. */
+  private static final class RetentionExpiry implements
+    Expiry<RequestFingerprint, CachedResponse> {
+
+    /** {@inheritDoc} */
+    public long expireAfterCreate(final RequestFingerprint key,
+      final CachedResponse value, final long currentTime) {
+
+      return TimeUnit.MILLISECONDS.toNanos(value.getRetentionPeriod());
+    }
+
+    /** {@inheritDoc} */
+    public long expireAfterUpdate(final RequestFingerprint key,
+      final CachedResponse value, final long currentTime,
+      final long currentDuration) {
+
+      return TimeUnit.MILLISECONDS.toNanos(value.getRetentionPeriod());
+    }
+
+    /** {@inheritDoc} */
+    public long expireAfterRead(final RequestFingerprint key,
+      final CachedResponse value, final long currentTime,
+      final long currentDuration) {
+
+      return currentDuration;
+    }
+  }
+}
@@ -22,16 +22,22 @@ import java.util.List;
 
 import net.jcip.annotations.ThreadSafe;
 
-import org.glite.authz.common.ServiceMetrics;
 import org.glite.authz.common.config.AbstractServiceConfiguration;
 import org.glite.authz.pep.obligation.ObligationService;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.server.AuditLogWriter;
 import org.glite.authz.pep.server.Version;
+import org.glite.authz.pep.server.cache.ResponseCache;
+import org.glite.authz.pep.server.metrics.PEPDaemonServiceMetrics;
+import org.glite.authz.pep.server.pdp.PDPTransport;
 
 /** Implementation of {@link PEPDaemonConfiguration}. */
 @ThreadSafe
 public class PEPDaemonConfiguration extends AbstractServiceConfiguration {
 
+    /** Service metrics, including the metrics of the daemon components. */
+    private final PEPDaemonServiceMetrics daemonMetrics;
+
     /** Registered policy decision point endpoints. */
     private List<String> pdpEndpoints;
 
@@ -47,12 +53,114 @@ public class PEPDaemonConfiguration extends AbstractServiceConfiguration {
     /** Obligation processing service. */
     private ObligationService obligationService;
 
+    /** Cache of the PDP responses, <code>null</code> if caching is disabled. */
+    private ResponseCache responseCache;
+
+    /** Percentage of the time to live, at its end, in which used responses are refreshed. */
+    private int cacheRefreshAhead;
+
+    /** Number milliseconds an expired response may be served when no PDP answers. */
+    private long cacheStaleOnErrorPeriod;
+
+    /** IDs of the attributes ignored when identifying a request in the response cache. */
+    private List<String> cacheKeyExcludedAttributes;
+
+    /** Name of the policy choosing the PDP endpoint to which a request is sent first. */
+    private String loadBalancingPolicy;
+
+    /** Number of consecutive failures opening the circuit of a PDP endpoint. */
+    private int circuitBreakerFailureThreshold;
+
+    /** Number of milliseconds between two probes of the PDP endpoints with an open circuit. */
+    private long circuitBreakerProbeInterval;
+
+    /** Whether the PDP requests not answered in time are sent to a second PDP. */
+    private boolean pdpRequestHedging;
+
+    /** Number of milliseconds after which a PDP request is hedged, zero for the latency 95th percentile. */
+    private long hedgeDelay;
+
+    /** Maximum percentage of the PDP requests which are hedged. */
+    private int hedgeBudget;
+
+    /** Transport of the streamed PDP messages, <code>null</code> if OpenSAML is used. */
+    private PDPTransport pdpTransport;
+
+    /** Whether identical concurrent PDP requests are coalesced in to a single one. */
+    private boolean pdpRequestCoalescing;
+
+    /** Maximum number of requests waiting on the same coalesced PDP request. */
+    private int maxCoalescedRequests;
+
+    /** Whether authorization requests are processed asynchronously. */
+    private boolean asyncProcessing;
+
+    /** Whether the asynchronous requests are processed by virtual threads. */
+    private boolean virtualThreads;
+
+    /** Maximum number of requests processed asynchronously at the same time. */
+    private int maxInFlightRequests;
+
+    /** Number of worker threads processing the asynchronous requests. */
+    private int asyncWorkerThreads;
+
+    /** Number of milliseconds after which an asynchronous request times out. */
+    private long asyncRequestTimeout;
+
+    /** Maximum number of requests in a batch authorization request. */
+    private int maxBatchSize;
+
+    /** Number of worker threads evaluating the entries of the batch requests. */
+    private int batchWorkerThreads;
+
+    /** Number of worker threads running the independent PIPs of a request, 0 to run them sequentially. */
+    private int pipWorkerThreads;
+
+    /** Writer of the audit log entries, <code>null</code> to write them from the request threads. */
+    private AuditLogWriter auditLogWriter;
+
     /** Constructor. */
     public PEPDaemonConfiguration() {
-        super(new ServiceMetrics(Version.getServiceName(),Version.getServiceVersion()));
+        this(new PEPDaemonServiceMetrics(Version.getServiceName(), Version.getServiceVersion()));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param metrics the service metrics
+     */
+    private PEPDaemonConfiguration(PEPDaemonServiceMetrics metrics) {
+        super(metrics);
+        daemonMetrics = metrics;
         pdpEndpoints = null;
         maxCachedResponses = 0;
         cachedResponseTTL = 0;
+        cacheRefreshAhead = 0;
+        cacheStaleOnErrorPeriod = 0;
+        circuitBreakerFailureThreshold = 0;
+        circuitBreakerProbeInterval = 0;
+        pdpRequestHedging = false;
+        hedgeDelay = 0;
+        hedgeBudget = 0;
+        pdpRequestCoalescing = false;
+        maxCoalescedRequests = 0;
+        asyncProcessing = false;
+        virtualThreads = false;
+        maxInFlightRequests = 0;
+        asyncWorkerThreads = 0;
+        asyncRequestTimeout = 0;
+        maxBatchSize = 0;
+        batchWorkerThreads = 0;
+        pipWorkerThreads = 0;
+    }
+
+    /**
+     * Gets the service metrics, to which the daemon components register their own metrics.
+     * 
+     * @return the service metrics
+     */
+    public PEPDaemonServiceMetrics getDaemonMetrics() {
+        return daemonMetrics;
     }
 
     /**
@@ -100,6 +208,208 @@ public class PEPDaemonConfiguration extends AbstractServiceConfiguration {
         return obligationService;
     }
 
+    /**
+     * Gets the cache of the PDP responses.
+     * 
+     * @return cache of the PDP responses, <code>null</code> if caching is disabled
+     */
+    public synchronized ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Gets the percentage of the time to live, at its end, in which the cached responses used are refreshed in the
+     * background.
+     * 
+     * @return percentage of the time to live, zero if refresh ahead is disabled
+     */
+    public synchronized int getCacheRefreshAhead() {
+        return cacheRefreshAhead;
+    }
+
+    /**
+     * Gets the duration, in milliseconds, an expired cached response may be served when no PDP answers.
+     * 
+     * @return duration, in milliseconds, zero if stale responses are never served
+     */
+    public synchronized long getCacheStaleOnErrorPeriod() {
+        return cacheStaleOnErrorPeriod;
+    }
+
+    /**
+     * Gets an immutable list of IDs of the attributes ignored when identifying a request in the response cache, or
+     * when coalescing identical requests.
+     * 
+     * @return IDs of the attributes ignored when identifying a request
+     */
+    public synchronized List<String> getCacheKeyExcludedAttributes() {
+        return cacheKeyExcludedAttributes;
+    }
+
+    /**
+     * Gets the name of the policy choosing the PDP endpoint to which a request is sent first.
+     * 
+     * @return name of the load balancing policy, <code>null</code> for failover
+     */
+    public synchronized String getLoadBalancingPolicy() {
+        return loadBalancingPolicy;
+    }
+
+    /**
+     * Gets the number of consecutive failures opening the circuit of a PDP endpoint.
+     * 
+     * @return number of consecutive failures, zero if the circuit breakers are disabled
+     */
+    public synchronized int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Gets the number of milliseconds between two probes of the PDP endpoints with an open circuit.
+     * 
+     * @return number of milliseconds between two probes
+     */
+    public synchronized long getCircuitBreakerProbeInterval() {
+        return circuitBreakerProbeInterval;
+    }
+
+    /**
+     * Gets whether the PDP requests not answered in time are sent to a second PDP.
+     * 
+     * @return whether the PDP requests are hedged
+     */
+    public synchronized boolean isPDPRequestHedging() {
+        return pdpRequestHedging;
+    }
+
+    /**
+     * Gets the number of milliseconds after which a PDP request is hedged.
+     * 
+     * @return number of milliseconds, zero to use the 95th percentile of the PDP latency
+     */
+    public synchronized long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Gets the maximum percentage of the PDP requests which are hedged.
+     * 
+     * @return maximum percentage of the PDP requests which are hedged
+     */
+    public synchronized int getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Gets the transport of the PDP messages written and read with the streaming codec.
+     * 
+     * @return the PDP transport, <code>null</code> if the messages are built with OpenSAML
+     */
+    public synchronized PDPTransport getPDPTransport() {
+        return pdpTransport;
+    }
+
+    /**
+     * Gets whether identical concurrent PDP requests are coalesced in to a single PDP request.
+     * 
+     * @return whether identical concurrent PDP requests are coalesced
+     */
+    public synchronized boolean isPDPRequestCoalescing() {
+        return pdpRequestCoalescing;
+    }
+
+    /**
+     * Gets the maximum number of requests waiting on the same coalesced PDP request.
+     * 
+     * @return maximum number of requests waiting on the same coalesced PDP request
+     */
+    public synchronized int getMaxCoalescedRequests() {
+        return maxCoalescedRequests;
+    }
+
+    /**
+     * Gets whether the authorization requests are processed asynchronously,
+     * releasing the container thread while the request is evaluated.
+     * 
+     * @return whether the authorization requests are processed asynchronously
+     */
+    public synchronized boolean isAsyncProcessing() {
+        return asyncProcessing;
+    }
+
+    /**
+     * Gets whether the asynchronous requests are processed by virtual threads. In this mode the number of concurrent
+     * requests is only bounded by {@link #getMaxInFlightRequests()}.
+     * 
+     * @return whether the asynchronous requests are processed by virtual threads
+     */
+    public synchronized boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Gets the maximum number of requests processed asynchronously at the same time.
+     * 
+     * @return maximum number of requests processed asynchronously at the same time
+     */
+    public synchronized int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Gets the number of worker threads processing the asynchronous requests.
+     * 
+     * @return number of worker threads processing the asynchronous requests
+     */
+    public synchronized int getAsyncWorkerThreads() {
+        return asyncWorkerThreads;
+    }
+
+    /**
+     * Gets the duration, in milliseconds, after which an asynchronous request times out.
+     * 
+     * @return duration, in milliseconds, after which an asynchronous request times out
+     */
+    public synchronized long getAsyncRequestTimeout() {
+        return asyncRequestTimeout;
+    }
+
+    /**
+     * Gets the maximum number of requests in a batch authorization request.
+     * 
+     * @return maximum number of requests in a batch authorization request
+     */
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Gets the number of worker threads evaluating the entries of the batch requests.
+     * 
+     * @return number of worker threads evaluating the entries of the batch requests
+     */
+    public synchronized int getBatchWorkerThreads() {
+        return batchWorkerThreads;
+    }
+
+    /**
+     * Gets the number of worker threads running the independent policy information points of a request.
+     * 
+     * @return number of worker threads running the independent PIPs, 0 if they run sequentially
+     */
+    public synchronized int getPIPWorkerThreads() {
+        return pipWorkerThreads;
+    }
+
+    /**
+     * Gets the writer of the audit log entries.
+     * 
+     * @return writer of the audit log entries, <code>null</code> if they are written from the request threads
+     */
+    public synchronized AuditLogWriter getAuditLogWriter() {
+        return auditLogWriter;
+    }
+
     /**
      * Sets the duration, in milliseconds, responses will be cached.
      * 
@@ -182,4 +492,298 @@ public class PEPDaemonConfiguration extends AbstractServiceConfiguration {
         }
         obligationService = service;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the cache of the PDP responses.
+     * 
+     * @param cache cache of the PDP responses
+     */
+    protected final synchronized void setResponseCache(ResponseCache cache) {
+        if (cache == null) {
+            return;
+        }
+
+        if (responseCache != null) {
+            throw new IllegalStateException("Response cache has already been set, it may not be changed.");
+        }
+        responseCache = cache;
+    }
+
+    /**
+     * Sets the percentage of the time to live, at its end, in which the cached responses used are refreshed.
+     * 
+     * @param percent percentage of the time to live, between 0 (disabled) and 99
+     */
+    protected final synchronized void setCacheRefreshAhead(int percent) {
+        if (percent < 0 || percent > 99) {
+            throw new IllegalArgumentException("Cache refresh ahead must be between 0 and 99 percent");
+        }
+        cacheRefreshAhead = percent;
+    }
+
+    /**
+     * Sets the duration, in milliseconds, an expired cached response may be served when no PDP answers.
+     * 
+     * @param period duration, in milliseconds, zero to never serve stale responses
+     */
+    protected final synchronized void setCacheStaleOnErrorPeriod(long period) {
+        if (period < 0) {
+            throw new IllegalArgumentException("Cache stale on error period may not be negative");
+        }
+        cacheStaleOnErrorPeriod = period;
+    }
+
+    /**
+     * Sets the IDs of the attributes ignored when identifying a request in the response cache.
+     * 
+     * @param attributeIds IDs of the attributes ignored when identifying a request
+     */
+    protected final synchronized void setCacheKeyExcludedAttributes(List<String> attributeIds) {
+        if (attributeIds == null) {
+            return;
+        }
+
+        if (cacheKeyExcludedAttributes != null) {
+            throw new IllegalStateException(
+                    "Cache key excluded attributes have already been set, they may not be changed.");
+        }
+        cacheKeyExcludedAttributes = Collections.unmodifiableList(attributeIds);
+    }
+
+    /**
+     * Sets the name of the policy choosing the PDP endpoint to which a request is sent first.
+     * 
+     * @param policy name of the load balancing policy
+     */
+    protected final synchronized void setLoadBalancingPolicy(String policy) {
+        if (loadBalancingPolicy != null) {
+            throw new IllegalStateException(
+                    "Load balancing policy has already been set, it may not be changed.");
+        }
+        loadBalancingPolicy = policy;
+    }
+
+    /**
+     * Sets the number of consecutive failures opening the circuit of a PDP endpoint.
+     * 
+     * @param threshold number of consecutive failures, zero to disable the circuit breakers
+     */
+    protected final synchronized void setCircuitBreakerFailureThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Circuit breaker failure threshold may not be negative");
+        }
+        circuitBreakerFailureThreshold = threshold;
+    }
+
+    /**
+     * Sets the number of milliseconds between two probes of the PDP endpoints with an open circuit.
+     * 
+     * @param interval number of milliseconds between two probes
+     */
+    protected final synchronized void setCircuitBreakerProbeInterval(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Circuit breaker probe interval may not be negative");
+        }
+        circuitBreakerProbeInterval = interval;
+    }
+
+    /**
+     * Sets whether the PDP requests not answered in time are sent to a second PDP.
+     * 
+     * @param enabled whether the PDP requests are hedged
+     */
+    protected final synchronized void setPDPRequestHedging(boolean enabled) {
+        pdpRequestHedging = enabled;
+    }
+
+    /**
+     * Sets the number of milliseconds after which a PDP request is hedged.
+     * 
+     * @param delay number of milliseconds, zero to use the 95th percentile of the PDP latency
+     */
+    protected final synchronized void setHedgeDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Hedge delay may not be negative");
+        }
+        hedgeDelay = delay;
+    }
+
+    /**
+     * Sets the maximum percentage of the PDP requests which are hedged.
+     * 
+     * @param budget maximum percentage of the PDP requests which are hedged, between 0 and 100
+     */
+    protected final synchronized void setHedgeBudget(int budget) {
+        if (budget < 0 || budget > 100) {
+            throw new IllegalArgumentException("Hedge budget must be between 0 and 100");
+        }
+        hedgeBudget = budget;
+    }
+
+    /**
+     * Sets the transport of the PDP messages written and read with the streaming codec.
+     * 
+     * @param transport the PDP transport, <code>null</code> to build the messages with OpenSAML
+     */
+    protected final synchronized void setPDPTransport(PDPTransport transport) {
+        if (pdpTransport != null) {
+            throw new IllegalStateException("PDP transport has already been set, it may not be changed");
+        }
+        pdpTransport = transport;
+    }
+
+    /**
+     * Sets whether identical concurrent PDP requests are coalesced in to a single PDP request.
+     * 
+     * @param enabled whether identical concurrent PDP requests are coalesced
+     */
+    protected final synchronized void setPDPRequestCoalescing(boolean enabled) {
+        pdpRequestCoalescing = enabled;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting on the same coalesced PDP request.
+     * 
+     * @param max maximum number of waiting requests, must be greater than zero
+     */
+    protected final synchronized void setMaxCoalescedRequests(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Max coalesced requests must be greater than zero");
+        }
+
+        if (maxCoalescedRequests != 0) {
+            throw new IllegalStateException("Max coalesced requests has already been set, it may not be changed.");
+        }
+        maxCoalescedRequests = max;
+    }
+
+    /**
+     * Sets whether the authorization requests are processed asynchronously.
+     * 
+     * @param enabled whether the authorization requests are processed asynchronously
+     */
+    protected final synchronized void setAsyncProcessing(boolean enabled) {
+        asyncProcessing = enabled;
+    }
+
+    /**
+     * Sets whether the asynchronous requests are processed by virtual threads.
+     * 
+     * @param enabled whether the asynchronous requests are processed by virtual threads
+     */
+    protected final synchronized void setVirtualThreads(boolean enabled) {
+        virtualThreads = enabled;
+    }
+
+    /**
+     * Sets the maximum number of requests processed asynchronously at the same time.
+     * 
+     * @param max maximum number of in-flight requests, must be greater than zero
+     */
+    protected final synchronized void setMaxInFlightRequests(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Max in-flight requests must be greater than zero");
+        }
+
+        if (maxInFlightRequests != 0) {
+            throw new IllegalStateException("Max in-flight requests has already been set, it may not be changed.");
+        }
+        maxInFlightRequests = max;
+    }
+
+    /**
+     * Sets the number of worker threads processing the asynchronous requests.
+     * 
+     * @param threads number of worker threads, must be greater than zero
+     */
+    protected final synchronized void setAsyncWorkerThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Async worker threads must be greater than zero");
+        }
+
+        if (asyncWorkerThreads != 0) {
+            throw new IllegalStateException("Async worker threads has already been set, it may not be changed.");
+        }
+        asyncWorkerThreads = threads;
+    }
+
+    /**
+     * Sets the duration, in milliseconds, after which an asynchronous request times out.
+     * 
+     * @param timeout duration, in milliseconds, must be greater than zero
+     */
+    protected final synchronized void setAsyncRequestTimeout(long timeout) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Async request timeout must be greater than zero");
+        }
+
+        if (asyncRequestTimeout != 0) {
+            throw new IllegalStateException("Async request timeout has already been set, it may not be changed.");
+        }
+        asyncRequestTimeout = timeout;
+    }
+
+    /**
+     * Sets the maximum number of requests in a batch authorization request.
+     * 
+     * @param max maximum number of requests, must be greater than zero
+     */
+    protected final synchronized void setMaxBatchSize(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Max batch size must be greater than zero");
+        }
+
+        if (maxBatchSize != 0) {
+            throw new IllegalStateException("Max batch size has already been set, it may not be changed.");
+        }
+        maxBatchSize = max;
+    }
+
+    /**
+     * Sets the number of worker threads evaluating the entries of the batch requests.
+     * 
+     * @param threads number of worker threads, must be greater than zero
+     */
+    protected final synchronized void setBatchWorkerThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Batch worker threads must be greater than zero");
+        }
+
+        if (batchWorkerThreads != 0) {
+            throw new IllegalStateException("Batch worker threads has already been set, it may not be changed.");
+        }
+        batchWorkerThreads = threads;
+    }
+
+    /**
+     * Sets the number of worker threads running the independent policy information points of a request.
+     * 
+     * @param threads number of worker threads, 0 to run the PIPs sequentially
+     */
+    protected final synchronized void setPIPWorkerThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("PIP worker threads may not be less than zero");
+        }
+
+        if (pipWorkerThreads != 0) {
+            throw new IllegalStateException("PIP worker threads has already been set, it may not be changed.");
+        }
+        pipWorkerThreads = threads;
+    }
+
+    /**
+     * Sets the writer of the audit log entries.
+     * 
+     * @param writer writer of the audit log entries
+     */
+    protected final synchronized void setAuditLogWriter(AuditLogWriter writer) {
+        if (writer == null) {
+            return;
+        }
+
+        if (auditLogWriter != null) {
+            throw new IllegalStateException("Audit log writer has already been set, it may not be changed.");
+        }
+        auditLogWriter = writer;
+    }
+}
@@ -25,6 +25,10 @@ import net.jcip.annotations.NotThreadSafe;
 import org.glite.authz.common.config.AbstractServiceConfigurationBuilder;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
 import org.glite.authz.pep.obligation.ObligationService;
+import org.glite.authz.pep.server.AuditLogWriter;
+import org.glite.authz.pep.server.cache.RequestFingerprinter;
+import org.glite.authz.pep.server.cache.ResponseCache;
+import org.glite.authz.pep.server.pdp.PDPTransport;
 
 /** A builder of {@link PEPDaemonConfiguration}s. */
 @NotThreadSafe
@@ -45,9 +49,82 @@ public class PEPDaemonConfigurationBuilder extends AbstractServiceConfigurationB
     /** Obligation processing service. */
     private ObligationService obligationService;
 
+    /** Cache of the PDP responses, <code>null</code> if caching is disabled. */
+    private ResponseCache responseCache;
+
+    /** Percentage of the time to live, at its end, in which used responses are refreshed. */
+    private int cacheRefreshAhead;
+
+    /** Number milliseconds an expired response may be served when no PDP answers. */
+    private long cacheStaleOnErrorPeriod;
+
+    /** IDs of the attributes ignored when identifying a request in the response cache. */
+    private List<String> cacheKeyExcludedAttributes;
+
+    /** Name of the policy choosing the PDP endpoint to which a request is sent first. */
+    private String loadBalancingPolicy;
+
+    /** Number of consecutive failures opening the circuit of a PDP endpoint. */
+    private int circuitBreakerFailureThreshold;
+
+    /** Number of milliseconds between two probes of the PDP endpoints with an open circuit. */
+    private long circuitBreakerProbeInterval;
+
+    /** Whether the PDP requests not answered in time are sent to a second PDP. */
+    private boolean pdpRequestHedging;
+
+    /** Number of milliseconds after which a PDP request is hedged, zero for the latency 95th percentile. */
+    private long hedgeDelay;
+
+    /** Maximum percentage of the PDP requests which are hedged. */
+    private int hedgeBudget;
+
+    /** Transport of the streamed PDP messages, <code>null</code> if OpenSAML is used. */
+    private PDPTransport pdpTransport;
+
+    /** Whether identical concurrent PDP requests are coalesced in to a single one. */
+    private boolean pdpRequestCoalescing;
+
+    /** Maximum number of requests waiting on the same coalesced PDP request. */
+    private int maxCoalescedRequests;
+
+    /** Whether authorization requests are processed asynchronously. */
+    private boolean asyncProcessing;
+
+    /** Whether the asynchronous requests are processed by virtual threads. */
+    private boolean virtualThreads;
+
+    /** Maximum number of requests processed asynchronously at the same time. */
+    private int maxInFlightRequests;
+
+    /** Number of worker threads processing the asynchronous requests. */
+    private int asyncWorkerThreads;
+
+    /** Number of milliseconds after which an asynchronous request times out. */
+    private long asyncRequestTimeout;
+
+    /** Maximum number of requests in a batch authorization request. */
+    private int maxBatchSize;
+
+    /** Number of worker threads evaluating the entries of the batch requests. */
+    private int batchWorkerThreads;
+
+    /** Number of worker threads running the independent PIPs of a request, 0 to run them sequentially. */
+    private int pipWorkerThreads;
+
+    /** Writer of the audit log entries, <code>null</code> to write them from the request threads. */
+    private AuditLogWriter auditLogWriter;
+
     /** Constructor. */
     public PEPDaemonConfigurationBuilder() {
         super();
+        maxCoalescedRequests = PEPDaemonIniConfigurationParser.DEFAULT_MAX_COALESCED_REQUESTS;
+        maxInFlightRequests = PEPDaemonIniConfigurationParser.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+        asyncWorkerThreads = PEPDaemonIniConfigurationParser.DEFAULT_ASYNC_WORKER_THREADS;
+        asyncRequestTimeout = PEPDaemonIniConfigurationParser.DEFAULT_ASYNC_REQUEST_TIMEOUT * 1000;
+        maxBatchSize = PEPDaemonIniConfigurationParser.DEFAULT_MAX_BATCH_SIZE;
+        batchWorkerThreads = PEPDaemonIniConfigurationParser.DEFAULT_BATCH_WORKER_THREADS;
+        pipWorkerThreads = PEPDaemonIniConfigurationParser.DEFAULT_PIP_WORKER_THREADS;
         pdpEndpoints = new ArrayList<String>();
         pips = new ArrayList<PolicyInformationPoint>();
     }
@@ -68,6 +145,32 @@ public class PEPDaemonConfigurationBuilder extends AbstractServiceConfigurationB
 
         cachedResponseTTL = prototype.getCachedResponseTTL();
         maxCachedResponses = prototype.getMaxCachedResponses();
+        responseCache = prototype.getResponseCache();
+        cacheRefreshAhead = prototype.getCacheRefreshAhead();
+        cacheStaleOnErrorPeriod = prototype.getCacheStaleOnErrorPeriod();
+        if (prototype.getCacheKeyExcludedAttributes() != null) {
+            cacheKeyExcludedAttributes = new ArrayList<String>(prototype.getCacheKeyExcludedAttributes());
+        } else {
+            cacheKeyExcludedAttributes = new ArrayList<String>();
+        }
+        loadBalancingPolicy = prototype.getLoadBalancingPolicy();
+        circuitBreakerFailureThreshold = prototype.getCircuitBreakerFailureThreshold();
+        circuitBreakerProbeInterval = prototype.getCircuitBreakerProbeInterval();
+        pdpRequestHedging = prototype.isPDPRequestHedging();
+        hedgeDelay = prototype.getHedgeDelay();
+        hedgeBudget = prototype.getHedgeBudget();
+        pdpTransport = prototype.getPDPTransport();
+        pdpRequestCoalescing = prototype.isPDPRequestCoalescing();
+        maxCoalescedRequests = prototype.getMaxCoalescedRequests();
+        asyncProcessing = prototype.isAsyncProcessing();
+        virtualThreads = prototype.isVirtualThreads();
+        maxInFlightRequests = prototype.getMaxInFlightRequests();
+        asyncWorkerThreads = prototype.getAsyncWorkerThreads();
+        asyncRequestTimeout = prototype.getAsyncRequestTimeout();
+        maxBatchSize = prototype.getMaxBatchSize();
+        batchWorkerThreads = prototype.getBatchWorkerThreads();
+        pipWorkerThreads = prototype.getPIPWorkerThreads();
+        auditLogWriter = prototype.getAuditLogWriter();
     }
 
     /**
@@ -142,6 +245,395 @@ public class PEPDaemonConfigurationBuilder extends AbstractServiceConfigurationB
         obligationService = service;
     }
 
+    /**
+     * Gets the cache of the PDP responses.
+     * 
+     * @return cache of the PDP responses, <code>null</code> if caching is disabled
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the cache of the PDP responses.
+     * 
+     * @param cache cache of the PDP responses, <code>null</code> to disable caching
+     */
+    public void setResponseCache(ResponseCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * Gets the percentage of the time to live, at its end, in which the cached responses used are refreshed.
+     * 
+     * @return percentage of the time to live, zero if refresh ahead is disabled
+     */
+    public int getCacheRefreshAhead() {
+        return cacheRefreshAhead;
+    }
+
+    /**
+     * Sets the percentage of the time to live, at its end, in which the cached responses used are refreshed.
+     * 
+     * @param percent percentage of the time to live, zero to disable refresh ahead
+     */
+    public void setCacheRefreshAhead(int percent) {
+        cacheRefreshAhead = percent;
+    }
+
+    /**
+     * Gets the duration, in milliseconds, an expired cached response may be served when no PDP answers.
+     * 
+     * @return duration, in milliseconds, zero if stale responses are never served
+     */
+    public long getCacheStaleOnErrorPeriod() {
+        return cacheStaleOnErrorPeriod;
+    }
+
+    /**
+     * Sets the duration, in milliseconds, an expired cached response may be served when no PDP answers.
+     * 
+     * @param period duration, in milliseconds, zero to never serve stale responses
+     */
+    public void setCacheStaleOnErrorPeriod(long period) {
+        cacheStaleOnErrorPeriod = period;
+    }
+
+    /**
+     * Gets a mutable list of IDs of the attributes ignored when identifying a request in the response cache. By
+     * default the time attributes added by the {@link org.glite.authz.pep.pip.provider.EnvironmentTimePIP} are
+     * ignored.
+     * 
+     * @return IDs of the attributes ignored when identifying a request
+     */
+    public List<String> getCacheKeyExcludedAttributes() {
+        return cacheKeyExcludedAttributes;
+    }
+
+    /**
+     * Gets the name of the policy choosing the PDP endpoint to which a request is sent first.
+     * 
+     * @return name of the load balancing policy
+     */
+    public String getLoadBalancingPolicy() {
+        return loadBalancingPolicy;
+    }
+
+    /**
+     * Sets the name of the policy choosing the PDP endpoint to which a request is sent first.
+     * 
+     * @param policy name of the load balancing policy
+     */
+    public void setLoadBalancingPolicy(String policy) {
+        loadBalancingPolicy = policy;
+    }
+
+    /**
+     * Gets the number of consecutive failures opening the circuit of a PDP endpoint.
+     * 
+     * @return number of consecutive failures, zero if the circuit breakers are disabled
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures opening the circuit of a PDP endpoint.
+     * 
+     * @param threshold number of consecutive failures, zero to disable the circuit breakers
+     */
+    public void setCircuitBreakerFailureThreshold(int threshold) {
+        circuitBreakerFailureThreshold = threshold;
+    }
+
+    /**
+     * Gets the number of milliseconds between two probes of the PDP endpoints with an open circuit.
+     * 
+     * @return number of milliseconds between two probes
+     */
+    public long getCircuitBreakerProbeInterval() {
+        return circuitBreakerProbeInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds between two probes of the PDP endpoints with an open circuit.
+     * 
+     * @param interval number of milliseconds between two probes
+     */
+    public void setCircuitBreakerProbeInterval(long interval) {
+        circuitBreakerProbeInterval = interval;
+    }
+
+    /**
+     * Gets whether the PDP requests not answered in time are sent to a second PDP.
+     * 
+     * @return whether the PDP requests are hedged
+     */
+    public boolean isPDPRequestHedging() {
+        return pdpRequestHedging;
+    }
+
+    /**
+     * Sets whether the PDP requests not answered in time are sent to a second PDP.
+     * 
+     * @param enabled whether the PDP requests are hedged
+     */
+    public void setPDPRequestHedging(boolean enabled) {
+        pdpRequestHedging = enabled;
+    }
+
+    /**
+     * Gets the number of milliseconds after which a PDP request is hedged.
+     * 
+     * @return number of milliseconds, zero to use the 95th percentile of the PDP latency
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Sets the number of milliseconds after which a PDP request is hedged.
+     * 
+     * @param delay number of milliseconds, zero to use the 95th percentile of the PDP latency
+     */
+    public void setHedgeDelay(long delay) {
+        hedgeDelay = delay;
+    }
+
+    /**
+     * Gets the maximum percentage of the PDP requests which are hedged.
+     * 
+     * @return maximum percentage of the PDP requests which are hedged
+     */
+    public int getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Sets the maximum percentage of the PDP requests which are hedged.
+     * 
+     * @param budget maximum percentage of the PDP requests which are hedged
+     */
+    public void setHedgeBudget(int budget) {
+        hedgeBudget = budget;
+    }
+
+    /**
+     * Gets the transport of the PDP messages written and read with the streaming codec.
+     * 
+     * @return the PDP transport, <code>null</code> if the messages are built with OpenSAML
+     */
+    public PDPTransport getPDPTransport() {
+        return pdpTransport;
+    }
+
+    /**
+     * Sets the transport of the PDP messages written and read with the streaming codec.
+     * 
+     * @param transport the PDP transport, <code>null</code> to build the messages with OpenSAML
+     */
+    public void setPDPTransport(PDPTransport transport) {
+        pdpTransport = transport;
+    }
+
+    /**
+     * Gets whether identical concurrent PDP requests are coalesced in to a single PDP request.
+     * 
+     * @return whether identical concurrent PDP requests are coalesced
+     */
+    public boolean isPDPRequestCoalescing() {
+        return pdpRequestCoalescing;
+    }
+
+    /**
+     * Sets whether identical concurrent PDP requests are coalesced in to a single PDP request.
+     * 
+     * @param enabled whether identical concurrent PDP requests are coalesced
+     */
+    public void setPDPRequestCoalescing(boolean enabled) {
+        pdpRequestCoalescing = enabled;
+    }
+
+    /**
+     * Gets the maximum number of requests waiting on the same coalesced PDP request.
+     * 
+     * @return maximum number of requests waiting on the same coalesced PDP request
+     */
+    public int getMaxCoalescedRequests() {
+        return maxCoalescedRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting on the same coalesced PDP request.
+     * 
+     * @param max maximum number of requests waiting on the same coalesced PDP request
+     */
+    public void setMaxCoalescedRequests(int max) {
+        maxCoalescedRequests = max;
+    }
+
+    /**
+     * Gets whether the authorization requests are processed asynchronously.
+     * 
+     * @return whether the authorization requests are processed asynchronously
+     */
+    public boolean isAsyncProcessing() {
+        return asyncProcessing;
+    }
+
+    /**
+     * Sets whether the authorization requests are processed asynchronously.
+     * 
+     * @param enabled whether the authorization requests are processed asynchronously
+     */
+    public void setAsyncProcessing(boolean enabled) {
+        asyncProcessing = enabled;
+    }
+
+    /**
+     * Gets whether the asynchronous requests are processed by virtual threads.
+     * 
+     * @return whether the asynchronous requests are processed by virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether the asynchronous requests are processed by virtual threads.
+     * 
+     * @param enabled whether the asynchronous requests are processed by virtual threads
+     */
+    public void setVirtualThreads(boolean enabled) {
+        virtualThreads = enabled;
+    }
+
+    /**
+     * Gets the maximum number of requests processed asynchronously at the same time.
+     * 
+     * @return maximum number of requests processed asynchronously at the same time
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests processed asynchronously at the same time.
+     * 
+     * @param max maximum number of requests processed asynchronously at the same time
+     */
+    public void setMaxInFlightRequests(int max) {
+        maxInFlightRequests = max;
+    }
+
+    /**
+     * Gets the number of worker threads processing the asynchronous requests.
+     * 
+     * @return number of worker threads processing the asynchronous requests
+     */
+    public int getAsyncWorkerThreads() {
+        return asyncWorkerThreads;
+    }
+
+    /**
+     * Sets the number of worker threads processing the asynchronous requests.
+     * 
+     * @param threads number of worker threads processing the asynchronous requests
+     */
+    public void setAsyncWorkerThreads(int threads) {
+        asyncWorkerThreads = threads;
+    }
+
+    /**
+     * Gets the duration, in milliseconds, after which an asynchronous request times out.
+     * 
+     * @return duration, in milliseconds, after which an asynchronous request times out
+     */
+    public long getAsyncRequestTimeout() {
+        return asyncRequestTimeout;
+    }
+
+    /**
+     * Sets the duration, in milliseconds, after which an asynchronous request times out.
+     * 
+     * @param timeout duration, in milliseconds, after which an asynchronous request times out
+     */
+    public void setAsyncRequestTimeout(long timeout) {
+        asyncRequestTimeout = timeout;
+    }
+
+    /**
+     * Gets the maximum number of requests in a batch authorization request.
+     * 
+     * @return maximum number of requests in a batch authorization request
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of requests in a batch authorization request.
+     * 
+     * @param max maximum number of requests in a batch authorization request
+     */
+    public void setMaxBatchSize(int max) {
+        maxBatchSize = max;
+    }
+
+    /**
+     * Gets the number of worker threads evaluating the entries of the batch requests.
+     * 
+     * @return number of worker threads evaluating the entries of the batch requests
+     */
+    public int getBatchWorkerThreads() {
+        return batchWorkerThreads;
+    }
+
+    /**
+     * Sets the number of worker threads evaluating the entries of the batch requests.
+     * 
+     * @param threads number of worker threads evaluating the entries of the batch requests
+     */
+    public void setBatchWorkerThreads(int threads) {
+        batchWorkerThreads = threads;
+    }
+
+    /**
+     * Gets the number of worker threads running the independent policy information points of a request.
+     * 
+     * @return number of worker threads running the independent PIPs, 0 if they run sequentially
+     */
+    public int getPIPWorkerThreads() {
+        return pipWorkerThreads;
+    }
+
+    /**
+     * Sets the number of worker threads running the independent policy information points of a request.
+     * 
+     * @param threads number of worker threads, 0 to run the PIPs sequentially
+     */
+    public void setPIPWorkerThreads(int threads) {
+        pipWorkerThreads = threads;
+    }
+
+    /**
+     * Gets the writer of the audit log entries.
+     * 
+     * @return writer of the audit log entries, <code>null</code> if they are written from the request threads
+     */
+    public AuditLogWriter getAuditLogWriter() {
+        return auditLogWriter;
+    }
+
+    /**
+     * Sets the writer of the audit log entries.
+     * 
+     * @param writer writer of the audit log entries, <code>null</code> to write them from the request threads
+     */
+    public void setAuditLogWriter(AuditLogWriter writer) {
+        auditLogWriter = writer;
+    }
+
     /** {@inheritDoc} */
     public PEPDaemonConfiguration build() {
         PEPDaemonConfiguration config = new PEPDaemonConfiguration();
@@ -151,6 +643,28 @@ public class PEPDaemonConfigurationBuilder extends AbstractServiceConfigurationB
         config.setMaxCachedResponses(maxCachedResponses);
         config.setPolicyInformationPoints(pips);
         config.setObligationService(obligationService);
+        config.setResponseCache(responseCache);
+        config.setCacheRefreshAhead(cacheRefreshAhead);
+        config.setCacheStaleOnErrorPeriod(cacheStaleOnErrorPeriod);
+        config.setCacheKeyExcludedAttributes(cacheKeyExcludedAttributes);
+        config.setLoadBalancingPolicy(loadBalancingPolicy);
+        config.setCircuitBreakerFailureThreshold(circuitBreakerFailureThreshold);
+        config.setCircuitBreakerProbeInterval(circuitBreakerProbeInterval);
+        config.setPDPRequestHedging(pdpRequestHedging);
+        config.setHedgeDelay(hedgeDelay);
+        config.setHedgeBudget(hedgeBudget);
+        config.setPDPTransport(pdpTransport);
+        config.setPDPRequestCoalescing(pdpRequestCoalescing);
+        config.setMaxCoalescedRequests(maxCoalescedRequests);
+        config.setAsyncProcessing(asyncProcessing);
+        config.setVirtualThreads(virtualThreads);
+        config.setMaxInFlightRequests(maxInFlightRequests);
+        config.setAsyncWorkerThreads(asyncWorkerThreads);
+        config.setAsyncRequestTimeout(asyncRequestTimeout);
+        config.setMaxBatchSize(maxBatchSize);
+        config.setBatchWorkerThreads(batchWorkerThreads);
+        config.setPIPWorkerThreads(pipWorkerThreads);
+        config.setAuditLogWriter(auditLogWriter);
         return config;
     }
 }
\ No newline at end of file
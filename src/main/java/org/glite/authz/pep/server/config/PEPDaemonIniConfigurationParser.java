@@ -17,12 +17,20 @@
 
 package org.glite.authz.pep.server.config;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.security.GeneralSecurityException;
 import java.util.List;
+import java.util.Locale;
 import java.util.StringTokenizer;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
 import net.jcip.annotations.ThreadSafe;
 
+import org.apache.commons.httpclient.HttpClient;
 import org.glite.authz.common.config.AbstractIniServiceConfigurationParser;
 import org.glite.authz.common.config.ConfigurationException;
 import org.glite.authz.common.config.IniConfigUtil;
@@ -30,6 +38,12 @@ import org.glite.authz.pep.obligation.IniOHConfigurationParserHelper;
 import org.glite.authz.pep.obligation.ObligationService;
 import org.glite.authz.pep.pip.IniPIPConfigurationParserHelper;
 import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.server.AuditLogWriter;
+import org.glite.authz.pep.server.VirtualThreads;
+import org.glite.authz.pep.server.cache.ResponseCacheFactory;
+import org.glite.authz.pep.server.pdp.LoadBalancingPolicies;
+import org.glite.authz.pep.server.pdp.NioPDPTransport;
+import org.glite.authz.pep.server.pdp.StreamingPDPClient;
 import org.ini4j.Ini;
 import org.ini4j.Profile.Section;
 import org.opensaml.ws.soap.client.http.HttpClientBuilder;
@@ -57,6 +71,92 @@ public class PEPDaemonIniConfigurationParser extends
    */
   public static final String PDP_PROP = "pdps";
 
+  /**
+   * The name of the {@value} property which gives the policy choosing the PDP
+   * endpoint to which a request is sent first: failover, roundrobin,
+   * leastoutstanding or ewma. The ewma policy only measures the answered
+   * requests, it requires the circuit breakers to skip the failing endpoints.
+   */
+  public static final String LOAD_BALANCING_POLICY_PROP = "loadBalancingPolicy";
+
+  /**
+   * The name of the {@value} property which gives the number of consecutive
+   * failures after which a PDP endpoint is skipped until it is reachable
+   * again. A value of zero will disable the circuit breakers.
+   */
+  public static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD_PROP = "circuitBreakerFailureThreshold";
+
+  /**
+   * The name of the {@value} property which gives the number of seconds
+   * between two probes of the skipped PDP endpoints.
+   */
+  public static final String CIRCUIT_BREAKER_PROBE_INTERVAL_PROP = "circuitBreakerProbeInterval";
+
+  /**
+   * The name of the {@value} property which indicates whether a PDP request
+   * not answered in time is also sent to a second PDP.
+   */
+  public static final String HEDGE_PDP_REQUESTS_PROP = "hedgePDPRequests";
+
+  /**
+   * The name of the {@value} property which gives the number of milliseconds
+   * after which a PDP request is hedged. A value of zero will use the 95th
+   * percentile of the recent PDP latencies.
+   */
+  public static final String HEDGE_DELAY_PROP = "hedgeDelay";
+
+  /**
+   * The name of the {@value} property which gives the maximum percentage of
+   * the PDP requests which are hedged.
+   */
+  public static final String HEDGE_BUDGET_PROP = "hedgeBudget";
+
+  /**
+   * The name of the {@value} property which gives the codec of the messages
+   * exchanged with the PDP: opensaml or streaming.
+   */
+  public static final String MESSAGE_CODEC_PROP = "messageCodec";
+
+  /** The PDP messages are built and parsed with the OpenSAML object model. */
+  public static final String OPENSAML_MESSAGE_CODEC = "opensaml";
+
+  /**
+   * The PDP messages are written and read directly with StAX, without building
+   * their DOM.
+   */
+  public static final String STREAMING_MESSAGE_CODEC = "streaming";
+
+  /**
+   * The name of the {@value} property which gives the transport of the
+   * streamed PDP messages: blocking or nio.
+   */
+  public static final String PDP_TRANSPORT_PROP = "pdpTransport";
+
+  /**
+   * The streamed PDP messages are sent from the request threads, with the
+   * HTTP client of the OpenSAML SOAP client.
+   */
+  public static final String BLOCKING_PDP_TRANSPORT = "blocking";
+
+  /**
+   * The streamed PDP messages are sent by a single I/O thread, over pooled
+   * keep-alive connections.
+   */
+  public static final String NIO_PDP_TRANSPORT = "nio";
+
+  /**
+   * The name of the {@value} property which gives the maximum number of
+   * messages in flight on a connection of the nio PDP transport, 1 to disable
+   * pipelining.
+   */
+  public static final String PDP_PIPELINE_DEPTH_PROP = "pdpPipelineDepth";
+
+  /**
+   * The name of the {@value} property which gives the time, in seconds, an
+   * idle connection of the nio PDP transport is kept open.
+   */
+  public static final String PDP_CONNECTION_IDLE_TIMEOUT_PROP = "pdpConnectionIdleTimeout";
+
   /**
    * The name of the {@value} property which gives the maximum number of
    * responses that will be cached. A value of zero will disable caching.
@@ -69,6 +169,140 @@ public class PEPDaemonIniConfigurationParser extends
    */
   public static final String CACHED_RESP_TTL_PROP = "cachedResponseTTL";
 
+  /**
+   * The name of the {@value} property which gives the engine of the response
+   * cache: <code>tinylfu</code> (frequency-aware admission and eviction) or
+   * <code>ehcache</code> (LFU).
+   */
+  public static final String RESPONSE_CACHE_ENGINE_PROP = "responseCacheEngine";
+
+  /**
+   * The name of the {@value} property which gives the percentage of the
+   * cached response time to live, at its end, in which a response used is
+   * refreshed in the background. Zero disables the refresh ahead.
+   */
+  public static final String CACHE_REFRESH_AHEAD_PROP = "cacheRefreshAhead";
+
+  /**
+   * The name of the {@value} property which gives the time, in seconds, an
+   * expired cached response is retained and served if no PDP answers the
+   * request. Zero disables it.
+   */
+  public static final String CACHE_STALE_ON_ERROR_PERIOD_PROP = "cacheStaleOnErrorPeriod";
+
+  /**
+   * The name of the {@value} property which gives the space-delimited IDs of
+   * the attributes ignored when identifying a request in the response cache.
+   * By default the time attributes of the
+   * {@link org.glite.authz.pep.pip.provider.EnvironmentTimePIP} are ignored, an
+   * empty value ignores none.
+   */
+  public static final String CACHE_KEY_EXCLUDED_ATTRIBUTES_PROP = "cacheKeyExcludedAttributes";
+
+  /**
+   * The name of the {@value} property which enables the coalescing of
+   * identical concurrent PDP requests: while a request is sent to the PDP, the
+   * identical requests wait for, and share, its response. Disabled by default:
+   * the audit log entries of the coalesced requests then all carry the ID of
+   * the single request sent to the PDP.
+   */
+  public static final String COALESCE_PDP_REQUESTS_PROP = "coalescePDPRequests";
+
+  /**
+   * The name of the {@value} property which gives the maximum number of
+   * requests waiting on the same coalesced PDP request. Requests exceeding the
+   * limit are sent to the PDP.
+   */
+  public static final String MAX_COALESCED_REQUESTS_PROP = "maximumCoalescedRequests";
+
+  /**
+   * The name of the {@value} property which enables the asynchronous
+   * processing of the authorization requests. The container thread is then
+   * released while the request is evaluated by a worker thread.
+   */
+  public static final String ASYNC_PROCESSING_PROP = "enableAsyncProcessing";
+
+  /**
+   * The name of the {@value} property which makes the authorization requests
+   * processed by virtual threads, when supported by the JVM. It implies
+   * {@value #ASYNC_PROCESSING_PROP}, and the number of concurrent requests is
+   * then only bounded by {@value #MAX_IN_FLIGHT_REQUESTS_PROP}.
+   * <p>
+   * The blocking PDP transport, and the OpenSAML SOAP client, wait for a pooled
+   * HTTP connection in a monitor, which pins the carrier thread of a virtual
+   * thread. With these, {@value #MAX_IN_FLIGHT_REQUESTS_PROP} is lowered to
+   * the maximum number of PDP connections, use the nio {@value
+   * #PDP_TRANSPORT_PROP} to lift the limit.
+   */
+  public static final String VIRTUAL_THREADS_PROP = "useVirtualThreads";
+
+  /**
+   * The name of the {@value} property which gives the maximum number of
+   * requests processed asynchronously at the same time. Requests exceeding the
+   * limit are rejected with a 503 (Service Unavailable) status.
+   */
+  public static final String MAX_IN_FLIGHT_REQUESTS_PROP = "maxInFlightRequests";
+
+  /**
+   * The name of the {@value} property which gives the number of worker threads
+   * processing the asynchronous requests.
+   */
+  public static final String ASYNC_WORKER_THREADS_PROP = "asyncWorkerThreads";
+
+  /**
+   * The name of the {@value} property which gives the time, in seconds, after
+   * which an asynchronous request is answered with an Indeterminate decision.
+   */
+  public static final String ASYNC_REQUEST_TIMEOUT_PROP = "asyncRequestTimeout";
+
+  /**
+   * The name of the {@value} property which gives the maximum number of
+   * requests in a batch authorization request. Larger batches are rejected
+   * with a 413 (Request Entity Too Large) status.
+   */
+  public static final String MAX_BATCH_SIZE_PROP = "maxBatchSize";
+
+  /**
+   * The name of the {@value} property which gives the number of worker threads
+   * evaluating the entries of the batch authorization requests. It bounds the
+   * number of batch entries evaluated at the same time by the whole service.
+   */
+  public static final String BATCH_WORKER_THREADS_PROP = "batchWorkerThreads";
+
+  /**
+   * The name of the {@value} property which gives the number of worker threads
+   * running the independent policy information points of a request
+   * concurrently. 0 runs the PIPs one after the other in the request thread.
+   */
+  public static final String PIP_WORKER_THREADS_PROP = "pipWorkerThreads";
+
+  /**
+   * The name of the {@value} property which gives the number of audit log
+   * entries queued for the audit log writer thread. 0 writes the entries from
+   * the request threads, which flush the audit log according to the
+   * {@value #AUDIT_LOG_DURABILITY_PROP} property.
+   */
+  public static final String AUDIT_LOG_QUEUE_SIZE_PROP = "auditLogQueueSize";
+
+  /**
+   * The name of the {@value} property which gives what is done with an audit
+   * log entry when the queue is full: block or drop.
+   */
+  public static final String AUDIT_LOG_OVERFLOW_POLICY_PROP = "auditLogOverflowPolicy";
+
+  /**
+   * The name of the {@value} property which gives what is done with the audit
+   * log after each batch of entries: none, flush or sync.
+   */
+  public static final String AUDIT_LOG_DURABILITY_PROP = "auditLogDurability";
+
+  /**
+   * The name of the {@value} property which gives the time, in milliseconds,
+   * between two batches of audit log entries. 0 writes the entries as soon as
+   * they are queued.
+   */
+  public static final String AUDIT_LOG_FLUSH_INTERVAL_PROP = "auditLogFlushInterval";
+
   /**
    * Default value of the
    * {@value AbstractIniServiceConfigurationParser#PORT_PROP} property, * *
@@ -89,6 +323,155 @@ public class PEPDaemonIniConfigurationParser extends
   /** Default value of the {@value #CACHED_RESP_TTL_PROP} property, {@value} . */
   public static final int DEFAULT_CACHED_RESP_TTL = 10 * 60;
 
+  /**
+   * Default value of the {@value #LOAD_BALANCING_POLICY_PROP} property,
+   * {@value} .
+   */
+  public static final String DEFAULT_LOAD_BALANCING_POLICY = LoadBalancingPolicies.FAILOVER;
+
+  /**
+   * Default value of the {@value #CIRCUIT_BREAKER_FAILURE_THRESHOLD_PROP}
+   * property, {@value} .
+   */
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 0;
+
+  /**
+   * Default value of the {@value #CIRCUIT_BREAKER_PROBE_INTERVAL_PROP}
+   * property, {@value} .
+   */
+  public static final int DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL = 10;
+
+  /**
+   * Default value of the {@value #HEDGE_PDP_REQUESTS_PROP} property,
+   * {@value} .
+   */
+  public static final boolean DEFAULT_HEDGE_PDP_REQUESTS = false;
+
+  /**
+   * Default value of the {@value #HEDGE_DELAY_PROP} property, {@value} .
+   */
+  public static final int DEFAULT_HEDGE_DELAY = 0;
+
+  /**
+   * Default value of the {@value #HEDGE_BUDGET_PROP} property, {@value} .
+   */
+  public static final int DEFAULT_HEDGE_BUDGET = 5;
+
+  /**
+   * Default value of the {@value #MESSAGE_CODEC_PROP} property, {@value} .
+   */
+  public static final String DEFAULT_MESSAGE_CODEC = OPENSAML_MESSAGE_CODEC;
+
+  /**
+   * Default value of the {@value #PDP_TRANSPORT_PROP} property, {@value} .
+   */
+  public static final String DEFAULT_PDP_TRANSPORT = BLOCKING_PDP_TRANSPORT;
+
+  /**
+   * Default value of the {@value #PDP_PIPELINE_DEPTH_PROP} property, {@value}
+   * .
+   */
+  public static final int DEFAULT_PDP_PIPELINE_DEPTH = 1;
+
+  /**
+   * Default value of the {@value #PDP_CONNECTION_IDLE_TIMEOUT_PROP} property,
+   * {@value} seconds.
+   */
+  public static final int DEFAULT_PDP_CONNECTION_IDLE_TIMEOUT = 60;
+
+  /**
+   * Default value of the {@value #RESPONSE_CACHE_ENGINE_PROP} property,
+   * {@value} .
+   */
+  public static final String DEFAULT_RESPONSE_CACHE_ENGINE = ResponseCacheFactory.TINYLFU_ENGINE;
+
+  /**
+   * Default value of the {@value #CACHE_REFRESH_AHEAD_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_CACHE_REFRESH_AHEAD = 0;
+
+  /**
+   * Default value of the {@value #CACHE_STALE_ON_ERROR_PERIOD_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_CACHE_STALE_ON_ERROR_PERIOD = 0;
+
+  /**
+   * Default value of the {@value #COALESCE_PDP_REQUESTS_PROP} property,
+   * {@value} .
+   */
+  public static final boolean DEFAULT_COALESCE_PDP_REQUESTS = false;
+
+  /**
+   * Default value of the {@value #MAX_COALESCED_REQUESTS_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_MAX_COALESCED_REQUESTS = 1000;
+
+  /** Default value of the {@value #ASYNC_PROCESSING_PROP} property, {@value} . */
+  public static final boolean DEFAULT_ASYNC_PROCESSING = false;
+
+  /** Default value of the {@value #VIRTUAL_THREADS_PROP} property, {@value} . */
+  public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+
+  /**
+   * Default value of the {@value #MAX_IN_FLIGHT_REQUESTS_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 1000;
+
+  /**
+   * Default value of the {@value #ASYNC_WORKER_THREADS_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_ASYNC_WORKER_THREADS = 200;
+
+  /**
+   * Default value of the {@value #ASYNC_REQUEST_TIMEOUT_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_ASYNC_REQUEST_TIMEOUT = 30;
+
+  /** Default value of the {@value #MAX_BATCH_SIZE_PROP} property, {@value} . */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+  /**
+   * Default value of the {@value #BATCH_WORKER_THREADS_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_BATCH_WORKER_THREADS = 20;
+
+  /**
+   * Default value of the {@value #PIP_WORKER_THREADS_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_PIP_WORKER_THREADS = 0;
+
+  /**
+   * Default value of the {@value #AUDIT_LOG_QUEUE_SIZE_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_AUDIT_LOG_QUEUE_SIZE = 8192;
+
+  /**
+   * Default value of the {@value #AUDIT_LOG_OVERFLOW_POLICY_PROP} property,
+   * {@value} .
+   */
+  public static final String DEFAULT_AUDIT_LOG_OVERFLOW_POLICY = "block";
+
+  /**
+   * Default value of the {@value #AUDIT_LOG_DURABILITY_PROP} property,
+   * {@value} .
+   */
+  public static final String DEFAULT_AUDIT_LOG_DURABILITY = "flush";
+
+  /**
+   * Default value of the {@value #AUDIT_LOG_FLUSH_INTERVAL_PROP} property,
+   * {@value} .
+   */
+  public static final int DEFAULT_AUDIT_LOG_FLUSH_INTERVAL = 100;
+
   /** Class logger. */
   private final Logger log = LoggerFactory
     .getLogger(PEPDaemonIniConfigurationParser.class);
@@ -188,12 +571,16 @@ public class PEPDaemonIniConfigurationParser extends
     log.info("Processing PEP Server {} configuration section",
       SERVICE_SECTION_HEADER);
     processServiceSection(iniFile, configBuilder);
+    processAsyncProcessingConfiguration(iniFile, configBuilder);
+    processBatchConfiguration(iniFile, configBuilder);
+    processAuditLogConfiguration(iniFile, configBuilder);
 
     Ini.Section configSection = iniFile.get(SERVICE_SECTION_HEADER);
     List<PolicyInformationPoint> pips = IniPIPConfigurationParserHelper
       .processPolicyInformationPoints(iniFile, configSection, configBuilder);
     log.info("Total policy information points: {}", pips.size());
     configBuilder.getPolicyInformationPoints().addAll(pips);
+    processPIPExecutionConfiguration(iniFile, configBuilder);
 
     ObligationService service = IniOHConfigurationParserHelper
       .processObligationHandlers(iniFile, configSection, configBuilder);
@@ -208,6 +595,168 @@ public class PEPDaemonIniConfigurationParser extends
     return configBuilder.build();
   }
 
+  /**
+   * Processes the asynchronous request processing properties of the service
+   * configuration section.
+   * 
+   * @param iniFile
+   *          the INI configuration file
+   * @param configBuilder
+   *          the daemon configuration builder
+   */
+  private void processAsyncProcessingConfiguration(Ini iniFile,
+    PEPDaemonConfigurationBuilder configBuilder) {
+
+    Ini.Section configSection = iniFile.get(SERVICE_SECTION_HEADER);
+    String name = configSection.getName();
+
+    boolean virtualThreads = IniConfigUtil.getBoolean(configSection,
+      VIRTUAL_THREADS_PROP, DEFAULT_VIRTUAL_THREADS);
+    if (virtualThreads && !VirtualThreads.isSupported()) {
+      log.warn("{}: {} is enabled but virtual threads are not supported by "
+        + "this JVM, using platform worker threads", name, VIRTUAL_THREADS_PROP);
+      virtualThreads = false;
+    }
+    log.info("{}: virtual threads: {}", name, virtualThreads);
+    configBuilder.setVirtualThreads(virtualThreads);
+
+    boolean asyncProcessing = virtualThreads
+      || IniConfigUtil.getBoolean(configSection, ASYNC_PROCESSING_PROP,
+        DEFAULT_ASYNC_PROCESSING);
+    log.info("{}: asynchronous request processing: {}", name, asyncProcessing);
+    configBuilder.setAsyncProcessing(asyncProcessing);
+    if (!asyncProcessing) {
+      return;
+    }
+
+    int maxInFlightRequests = IniConfigUtil.getInt(configSection,
+      MAX_IN_FLIGHT_REQUESTS_PROP, DEFAULT_MAX_IN_FLIGHT_REQUESTS, 1,
+      Integer.MAX_VALUE);
+    log.info("{}: max in-flight requests: {}", name, maxInFlightRequests);
+    configBuilder.setMaxInFlightRequests(maxInFlightRequests);
+
+    if (!virtualThreads) {
+      int asyncWorkerThreads = IniConfigUtil.getInt(configSection,
+        ASYNC_WORKER_THREADS_PROP, DEFAULT_ASYNC_WORKER_THREADS, 1,
+        Integer.MAX_VALUE);
+      log.info("{}: async worker threads: {}", name, asyncWorkerThreads);
+      configBuilder.setAsyncWorkerThreads(asyncWorkerThreads);
+    }
+
+    int asyncRequestTimeout = IniConfigUtil.getInt(configSection,
+      ASYNC_REQUEST_TIMEOUT_PROP, DEFAULT_ASYNC_REQUEST_TIMEOUT, 1,
+      Integer.MAX_VALUE) * 1000;
+    log.info("{}: async request timeout: {}ms", name, asyncRequestTimeout);
+    configBuilder.setAsyncRequestTimeout(asyncRequestTimeout);
+  }
+
+  /**
+   * Processes the batch authorization request properties of the service
+   * configuration section.
+   * 
+   * @param iniFile
+   *          the INI configuration file
+   * @param configBuilder
+   *          the daemon configuration builder
+   */
+  private void processBatchConfiguration(Ini iniFile,
+    PEPDaemonConfigurationBuilder configBuilder) {
+
+    Ini.Section configSection = iniFile.get(SERVICE_SECTION_HEADER);
+    String name = configSection.getName();
+
+    int maxBatchSize = IniConfigUtil.getInt(configSection,
+      MAX_BATCH_SIZE_PROP, DEFAULT_MAX_BATCH_SIZE, 1, Integer.MAX_VALUE);
+    log.info("{}: max batch size: {}", name, maxBatchSize);
+    configBuilder.setMaxBatchSize(maxBatchSize);
+
+    int batchWorkerThreads = IniConfigUtil.getInt(configSection,
+      BATCH_WORKER_THREADS_PROP, DEFAULT_BATCH_WORKER_THREADS, 1,
+      Integer.MAX_VALUE);
+    log.info("{}: batch worker threads: {}", name, batchWorkerThreads);
+    configBuilder.setBatchWorkerThreads(batchWorkerThreads);
+  }
+
+  /**
+   * Processes the policy information points execution properties of the
+   * service configuration section.
+   * 
+   * @param iniFile
+   *          the INI configuration file
+   * @param configBuilder
+   *          the daemon configuration builder
+   */
+  private void processPIPExecutionConfiguration(Ini iniFile,
+    PEPDaemonConfigurationBuilder configBuilder) {
+
+    Ini.Section configSection = iniFile.get(SERVICE_SECTION_HEADER);
+    String name = configSection.getName();
+
+    int pipWorkerThreads = IniConfigUtil.getInt(configSection,
+      PIP_WORKER_THREADS_PROP, DEFAULT_PIP_WORKER_THREADS, 0,
+      Integer.MAX_VALUE);
+    log.info("{}: PIP worker threads: {}", name, pipWorkerThreads);
+    configBuilder.setPIPWorkerThreads(pipWorkerThreads);
+  }
+
+  /**
+   * Processes the audit log properties of the service configuration section.
+   * 
+   * @param iniFile
+   *          the INI configuration file
+   * @param configBuilder
+   *          the daemon configuration builder
+   * 
+   * @throws ConfigurationException
+   *           thrown if the overflow policy or the durability is unknown
+   */
+  private void processAuditLogConfiguration(Ini iniFile,
+    PEPDaemonConfigurationBuilder configBuilder) throws ConfigurationException {
+
+    Ini.Section configSection = iniFile.get(SERVICE_SECTION_HEADER);
+    String name = configSection.getName();
+
+    int queueSize = IniConfigUtil.getInt(configSection,
+      AUDIT_LOG_QUEUE_SIZE_PROP, DEFAULT_AUDIT_LOG_QUEUE_SIZE, 0, 1 << 30);
+    log.info("{}: audit log queue size: {}", name, queueSize);
+
+    String policy = IniConfigUtil.getString(configSection,
+      AUDIT_LOG_OVERFLOW_POLICY_PROP, DEFAULT_AUDIT_LOG_OVERFLOW_POLICY);
+    AuditLogWriter.OverflowPolicy overflowPolicy;
+    try {
+      overflowPolicy = AuditLogWriter.OverflowPolicy.valueOf(policy
+        .toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      String errorMsg = name + ": unknown " + AUDIT_LOG_OVERFLOW_POLICY_PROP
+        + " '" + policy + "', supported policies are block and drop";
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    log.info("{}: audit log overflow policy: {}", name, policy);
+
+    String durabilityMode = IniConfigUtil.getString(configSection,
+      AUDIT_LOG_DURABILITY_PROP, DEFAULT_AUDIT_LOG_DURABILITY);
+    AuditLogWriter.Durability durability;
+    try {
+      durability = AuditLogWriter.Durability.valueOf(durabilityMode
+        .toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      String errorMsg = name + ": unknown " + AUDIT_LOG_DURABILITY_PROP + " '"
+        + durabilityMode + "', supported modes are none, flush and sync";
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    log.info("{}: audit log durability: {}", name, durabilityMode);
+
+    int flushInterval = IniConfigUtil.getInt(configSection,
+      AUDIT_LOG_FLUSH_INTERVAL_PROP, DEFAULT_AUDIT_LOG_FLUSH_INTERVAL, 0,
+      Integer.MAX_VALUE);
+    log.info("{}: audit log flush interval: {}ms", name, flushInterval);
+
+    configBuilder.setAuditLogWriter(new AuditLogWriter(queueSize,
+      overflowPolicy, durability, flushInterval));
+  }
+
   /**
    * Processes the PDP configuration section.
    * 
@@ -237,6 +786,60 @@ public class PEPDaemonIniConfigurationParser extends
       configBuilder.getPDPEndpoints().add(pdpEndpoints.nextToken());
     }
 
+    String loadBalancingPolicy = IniConfigUtil.getString(configSection,
+      LOAD_BALANCING_POLICY_PROP, DEFAULT_LOAD_BALANCING_POLICY);
+    if (!LoadBalancingPolicies.isSupportedPolicy(loadBalancingPolicy)) {
+      String errorMsg = name + ": unknown " + LOAD_BALANCING_POLICY_PROP + " '"
+        + loadBalancingPolicy + "', supported policies are "
+        + LoadBalancingPolicies.FAILOVER + ", "
+        + LoadBalancingPolicies.ROUND_ROBIN + ", "
+        + LoadBalancingPolicies.LEAST_OUTSTANDING_REQUESTS + " and "
+        + LoadBalancingPolicies.EWMA_LATENCY;
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    log.info("{}: PDP load balancing policy: {}", name, loadBalancingPolicy);
+    configBuilder.setLoadBalancingPolicy(loadBalancingPolicy);
+
+    int circuitBreakerFailureThreshold = IniConfigUtil.getInt(configSection,
+      CIRCUIT_BREAKER_FAILURE_THRESHOLD_PROP,
+      DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 0, Integer.MAX_VALUE);
+    log.info("{}: PDP circuit breaker failure threshold: {}", name,
+      circuitBreakerFailureThreshold);
+    configBuilder.setCircuitBreakerFailureThreshold(circuitBreakerFailureThreshold);
+    if (LoadBalancingPolicies.EWMA_LATENCY.equals(loadBalancingPolicy)
+      && circuitBreakerFailureThreshold == 0) {
+      String errorMsg = name + ": " + LOAD_BALANCING_POLICY_PROP + " '"
+        + LoadBalancingPolicies.EWMA_LATENCY + "' requires the circuit "
+        + "breakers, set " + CIRCUIT_BREAKER_FAILURE_THRESHOLD_PROP
+        + " greater than zero";
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    if (circuitBreakerFailureThreshold > 0) {
+      int circuitBreakerProbeInterval = IniConfigUtil.getInt(configSection,
+        CIRCUIT_BREAKER_PROBE_INTERVAL_PROP,
+        DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL, 1, Integer.MAX_VALUE) * 1000;
+      log.info("{}: PDP circuit breaker probe interval: {}ms", name,
+        circuitBreakerProbeInterval);
+      configBuilder.setCircuitBreakerProbeInterval(circuitBreakerProbeInterval);
+    }
+
+    boolean hedgePDPRequests = IniConfigUtil.getBoolean(configSection,
+      HEDGE_PDP_REQUESTS_PROP, DEFAULT_HEDGE_PDP_REQUESTS);
+    log.info("{}: hedge PDP requests: {}", name, hedgePDPRequests);
+    configBuilder.setPDPRequestHedging(hedgePDPRequests);
+    if (hedgePDPRequests) {
+      int hedgeDelay = IniConfigUtil.getInt(configSection, HEDGE_DELAY_PROP,
+        DEFAULT_HEDGE_DELAY, 0, Integer.MAX_VALUE);
+      log.info("{}: hedge delay: {}ms", name, hedgeDelay);
+      configBuilder.setHedgeDelay(hedgeDelay);
+      int hedgeBudget = IniConfigUtil.getInt(configSection, HEDGE_BUDGET_PROP,
+        DEFAULT_HEDGE_BUDGET, 1, 100);
+      log.info("{}: hedge budget: {}%", name, hedgeBudget);
+      configBuilder.setHedgeBudget(hedgeBudget);
+    }
+
     int maxCachedResponses = getMaxCachedResponses(configSection);
     log.info("{}: max cached responses: {}", name, maxCachedResponses);
     configBuilder.setMaxCachedResponses(maxCachedResponses);
@@ -245,13 +848,177 @@ public class PEPDaemonIniConfigurationParser extends
     log.info("{}: cached response TTL: {}ms", name, cachedResponseTTL);
     configBuilder.setCachedResponseTTL(cachedResponseTTL);
 
+    if (maxCachedResponses > 0) {
+      String cacheEngine = IniConfigUtil.getString(configSection,
+        RESPONSE_CACHE_ENGINE_PROP, DEFAULT_RESPONSE_CACHE_ENGINE);
+      if (!ResponseCacheFactory.isSupportedEngine(cacheEngine)) {
+        String errorMsg = name + ": unknown " + RESPONSE_CACHE_ENGINE_PROP
+          + " '" + cacheEngine + "', supported engines are "
+          + ResponseCacheFactory.TINYLFU_ENGINE + " and "
+          + ResponseCacheFactory.EHCACHE_ENGINE;
+        log.error(errorMsg);
+        throw new ConfigurationException(errorMsg);
+      }
+      log.info("{}: response cache engine: {}", name, cacheEngine);
+      configBuilder.setResponseCache(ResponseCacheFactory.createResponseCache(
+        cacheEngine, maxCachedResponses));
+
+      int cacheRefreshAhead = IniConfigUtil.getInt(configSection,
+        CACHE_REFRESH_AHEAD_PROP, DEFAULT_CACHE_REFRESH_AHEAD, 0, 99);
+      log.info("{}: cache refresh ahead: {}%", name, cacheRefreshAhead);
+      configBuilder.setCacheRefreshAhead(cacheRefreshAhead);
+
+      int cacheStaleOnErrorPeriod = IniConfigUtil.getInt(configSection,
+        CACHE_STALE_ON_ERROR_PERIOD_PROP, DEFAULT_CACHE_STALE_ON_ERROR_PERIOD,
+        0, Integer.MAX_VALUE) * 1000;
+      log.info("{}: cache stale on error period: {}ms", name,
+        cacheStaleOnErrorPeriod);
+      configBuilder.setCacheStaleOnErrorPeriod(cacheStaleOnErrorPeriod);
+    }
+
+    if (configSection.containsKey(CACHE_KEY_EXCLUDED_ATTRIBUTES_PROP)) {
+      String excludedAttributes = IniConfigUtil.getString(configSection,
+        CACHE_KEY_EXCLUDED_ATTRIBUTES_PROP, null);
+      configBuilder.getCacheKeyExcludedAttributes().clear();
+      if (excludedAttributes != null) {
+        StringTokenizer attributeIds = new StringTokenizer(excludedAttributes,
+          " ");
+        while (attributeIds.hasMoreTokens()) {
+          configBuilder.getCacheKeyExcludedAttributes().add(
+            attributeIds.nextToken());
+        }
+      }
+    }
+    log.info("{}: cache key excluded attributes: {}", name,
+      configBuilder.getCacheKeyExcludedAttributes());
+
+    boolean coalescePDPRequests = IniConfigUtil.getBoolean(configSection,
+      COALESCE_PDP_REQUESTS_PROP, DEFAULT_COALESCE_PDP_REQUESTS);
+    log.info("{}: coalesce PDP requests: {}", name, coalescePDPRequests);
+    configBuilder.setPDPRequestCoalescing(coalescePDPRequests);
+    if (coalescePDPRequests) {
+      int maxCoalescedRequests = IniConfigUtil.getInt(configSection,
+        MAX_COALESCED_REQUESTS_PROP, DEFAULT_MAX_COALESCED_REQUESTS, 1,
+        Integer.MAX_VALUE);
+      log.info("{}: max coalesced requests: {}", name, maxCoalescedRequests);
+      configBuilder.setMaxCoalescedRequests(maxCoalescedRequests);
+    }
+
+    String messageCodec = IniConfigUtil.getString(configSection,
+      MESSAGE_CODEC_PROP, DEFAULT_MESSAGE_CODEC);
+    if (!OPENSAML_MESSAGE_CODEC.equals(messageCodec)
+      && !STREAMING_MESSAGE_CODEC.equals(messageCodec)) {
+      String errorMsg = name + ": unknown " + MESSAGE_CODEC_PROP + " '"
+        + messageCodec + "', supported codecs are " + OPENSAML_MESSAGE_CODEC
+        + " and " + STREAMING_MESSAGE_CODEC;
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    log.info("{}: PDP message codec: {}", name, messageCodec);
+
+    String pdpTransport = IniConfigUtil.getString(configSection,
+      PDP_TRANSPORT_PROP, DEFAULT_PDP_TRANSPORT);
+    if (!BLOCKING_PDP_TRANSPORT.equals(pdpTransport)
+      && !NIO_PDP_TRANSPORT.equals(pdpTransport)) {
+      String errorMsg = name + ": unknown " + PDP_TRANSPORT_PROP + " '"
+        + pdpTransport + "', supported transports are "
+        + BLOCKING_PDP_TRANSPORT + " and " + NIO_PDP_TRANSPORT;
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    if (NIO_PDP_TRANSPORT.equals(pdpTransport)
+      && !STREAMING_MESSAGE_CODEC.equals(messageCodec)) {
+      String errorMsg = name + ": " + PDP_TRANSPORT_PROP + " '"
+        + NIO_PDP_TRANSPORT + "' requires " + MESSAGE_CODEC_PROP + " '"
+        + STREAMING_MESSAGE_CODEC + "'";
+      log.error(errorMsg);
+      throw new ConfigurationException(errorMsg);
+    }
+    if (STREAMING_MESSAGE_CODEC.equals(messageCodec)) {
+      log.info("{}: PDP transport: {}", name, pdpTransport);
+    }
+
     HttpClientBuilder soapClientBuilder = buildSOAPClientBuilder(configSection,
       configBuilder.getKeyManager(), configBuilder.getTrustManager());
     
     BasicParserPool parserPool = new BasicParserPool();
     parserPool.setMaxPoolSize(soapClientBuilder.getMaxTotalConnections());
 
-    configBuilder.setSoapClient(new HttpSOAPClient(soapClientBuilder
-      .buildClient(), parserPool));
+    if (configBuilder.isVirtualThreads()
+      && !NIO_PDP_TRANSPORT.equals(pdpTransport)) {
+      // commons-httpclient waits for a pooled connection in Object.wait(),
+      // pinning the carrier thread: never wait for more than the pool
+      int maxConnections = soapClientBuilder.getMaxTotalConnections();
+      if (configBuilder.getMaxInFlightRequests() > maxConnections) {
+        log.warn("{}: {} lowered from {} to the {} PDP connections with "
+          + "virtual threads and the {} PDP transport", new Object[] { name,
+          MAX_IN_FLIGHT_REQUESTS_PROP, configBuilder.getMaxInFlightRequests(),
+          maxConnections, BLOCKING_PDP_TRANSPORT });
+        configBuilder.setMaxInFlightRequests(maxConnections);
+      }
+    }
+
+    // both clients share the connection pool and TLS settings
+    HttpClient httpClient = soapClientBuilder.buildClient();
+    configBuilder.setSoapClient(new HttpSOAPClient(httpClient, parserPool));
+    if (NIO_PDP_TRANSPORT.equals(pdpTransport)) {
+      configBuilder.setPDPTransport(buildNioPDPTransport(configSection,
+        soapClientBuilder, configBuilder));
+    } else if (STREAMING_MESSAGE_CODEC.equals(messageCodec)) {
+      configBuilder.setPDPTransport(new StreamingPDPClient(httpClient));
+    }
+  }
+
+  /**
+   * Builds the nio PDP transport. It uses the TLS credentials, connection
+   * timeout and maximum connections per host of the SOAP client.
+   * 
+   * @param configSection
+   *          the PDP configuration section
+   * @param soapClientBuilder
+   *          the builder of the SOAP client
+   * @param configBuilder
+   *          the daemon configuration builder
+   * 
+   * @return the nio PDP transport
+   * 
+   * @throws ConfigurationException
+   *           thrown if the transport can not be built
+   */
+  private NioPDPTransport buildNioPDPTransport(final Section configSection,
+    final HttpClientBuilder soapClientBuilder,
+    final PEPDaemonConfigurationBuilder configBuilder)
+    throws ConfigurationException {
+
+    String name = configSection.getName();
+    int pipelineDepth = IniConfigUtil.getInt(configSection,
+      PDP_PIPELINE_DEPTH_PROP, DEFAULT_PDP_PIPELINE_DEPTH, 1, 64);
+    log.info("{}: PDP pipeline depth: {}", name, pipelineDepth);
+    int idleTimeout = IniConfigUtil.getInt(configSection,
+      PDP_CONNECTION_IDLE_TIMEOUT_PROP, DEFAULT_PDP_CONNECTION_IDLE_TIMEOUT, 0,
+      Integer.MAX_VALUE);
+    log.info("{}: PDP connection idle timeout: {}s", name, idleTimeout);
+
+    KeyManager keyManager = configBuilder.getKeyManager();
+    TrustManager trustManager = configBuilder.getTrustManager();
+    try {
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(keyManager == null ? null
+        : new KeyManager[] { keyManager }, trustManager == null ? null
+        : new TrustManager[] { trustManager }, null);
+      return new NioPDPTransport(sslContext, true,
+        soapClientBuilder.getMaxConnectionsPerHost(), pipelineDepth,
+        soapClientBuilder.getConnectionTimeout(), idleTimeout * 1000L);
+    } catch (GeneralSecurityException e) {
+      String errorMsg = name + ": unable to initialize the TLS context of the "
+        + NIO_PDP_TRANSPORT + " PDP transport";
+      log.error(errorMsg, e);
+      throw new ConfigurationException(errorMsg, e);
+    } catch (IOException e) {
+      String errorMsg = name + ": unable to start the " + NIO_PDP_TRANSPORT
+        + " PDP transport";
+      log.error(errorMsg, e);
+      throw new ConfigurationException(errorMsg, e);
+    }
   }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** Counts the authorization decisions returned, by decision. */
+@ThreadSafe
+public class DecisionCounters implements MetricsSource {
+
+  /** Name of the label identifying the decision. */
+  public static final String DECISION_LABEL = "decision";
+
+  /** The counters, indexed by decision. */
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * Counts a decision.
+   * 
+   * @param decision
+   *          the decision, Permit for instance
+   */
+  public void increment(final String decision) {
+
+    AtomicLong counter = counters.get(decision);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong existing = counters.putIfAbsent(decision, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of times a decision was returned.
+   * 
+   * @param decision
+   *          the decision
+   * 
+   * @return number of times the decision was returned
+   */
+  public long getCount(final String decision) {
+
+    AtomicLong counter = counters.get(decision);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      writer.counter("decisions_total", "Authorization decisions returned",
+        DECISION_LABEL, entry.getKey(), entry.getValue().get());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The metrics of the Java virtual machine: memory, garbage collections,
+ * threads and uptime, read from the platform MX beans.
+ */
+@ThreadSafe
+public class JvmMetrics implements MetricsSource {
+
+  /** Name of the label identifying the garbage collector. */
+  public static final String GC_LABEL = "gc";
+
+  /** The memory MX bean. */
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  /** The thread MX bean. */
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    writer.gauge("jvm_memory_heap_used_bytes", "Used heap memory",
+      heap.getUsed());
+    writer.gauge("jvm_memory_heap_committed_bytes", "Committed heap memory",
+      heap.getCommitted());
+    writer.gauge("jvm_memory_heap_max_bytes",
+      "Maximum heap memory, -1 if undefined", heap.getMax());
+    MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+    writer.gauge("jvm_memory_nonheap_used_bytes", "Used non-heap memory",
+      nonHeap.getUsed());
+    writer.gauge("jvm_memory_nonheap_committed_bytes",
+      "Committed non-heap memory", nonHeap.getCommitted());
+
+    for (GarbageCollectorMXBean gc : ManagementFactory
+      .getGarbageCollectorMXBeans()) {
+      writer.counter("jvm_gc_collections_total",
+        "Collections run by the garbage collector", GC_LABEL, gc.getName(),
+        Math.max(0, gc.getCollectionCount()));
+      writer.gauge("jvm_gc_collection_seconds",
+        "Accumulated collection time of the garbage collector", GC_LABEL,
+        gc.getName(), Math.max(0, gc.getCollectionTime()) / 1000.0);
+    }
+
+    writer.gauge("jvm_threads", "Live threads", threads.getThreadCount());
+    writer.gauge("jvm_uptime_seconds", "Uptime of the virtual machine",
+      ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * A latency histogram, recorded without locking and summarized over a sliding
+ * window.
+ * <p>
+ * The latencies are recorded, in microseconds with two significant digits, by
+ * a HdrHistogram {@link Recorder}: recording is wait-free and does not
+ * allocate. The recorded values are only moved into the window when a summary
+ * is taken. The window is made of {@value #WINDOW_SLOTS} slots of one minute:
+ * a summary covers the values recorded in the last
+ * {@value #WINDOW_SLOTS} minutes, or since the previous summary if it is
+ * older.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+  /** Number of slots of the sliding window. */
+  public static final int WINDOW_SLOTS = 5;
+
+  /** Duration, in milliseconds, of a slot of the sliding window. */
+  private static final long SLOT_DURATION = TimeUnit.MINUTES.toMillis(1);
+
+  /** Highest recorded latency, in microseconds, larger values are capped. */
+  private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+  /** Number of significant digits of the recorded values. */
+  private static final int SIGNIFICANT_DIGITS = 2;
+
+  /** Records the latencies. */
+  private final Recorder recorder = new Recorder(HIGHEST_LATENCY,
+    SIGNIFICANT_DIGITS);
+
+  /** The values recorded since the previous summary, recycled. */
+  @GuardedBy("this")
+  private Histogram interval;
+
+  /** The slots of the sliding window. */
+  @GuardedBy("this")
+  private final Histogram[] slots = new Histogram[WINDOW_SLOTS];
+
+  /** Index of the current slot. */
+  @GuardedBy("this")
+  private int currentSlot;
+
+  /** Start time, in milliseconds, of the current slot. */
+  @GuardedBy("this")
+  private long currentSlotStart;
+
+  /** Merge of the slots, recycled. */
+  @GuardedBy("this")
+  private final Histogram window = new Histogram(HIGHEST_LATENCY,
+    SIGNIFICANT_DIGITS);
+
+  /** Number of latencies recorded before the previous summary. */
+  @GuardedBy("this")
+  private long totalCount;
+
+  /** Constructor. */
+  public LatencyHistogram() {
+
+    for (int i = 0; i < WINDOW_SLOTS; i++) {
+      slots[i] = new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+    }
+    currentSlotStart = System.currentTimeMillis();
+  }
+
+  /**
+   * Records a latency.
+   * 
+   * @param nanos
+   *          the latency, in nanoseconds
+   */
+  public void record(final long nanos) {
+
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    recorder.recordValue(Math.max(0, Math.min(micros, HIGHEST_LATENCY)));
+  }
+
+  /**
+   * Records the latency elapsed since a start time.
+   * 
+   * @param startTime
+   *          the start time, as given by {@link System#nanoTime()}
+   */
+  public void recordSince(final long startTime) {
+
+    record(System.nanoTime() - startTime);
+  }
+
+  /**
+   * Summarizes the latencies of the sliding window.
+   * 
+   * @return the latency summary
+   */
+  public LatencySummary summarize() {
+
+    return summarize(System.currentTimeMillis());
+  }
+
+  /**
+   * Summarizes the latencies of the sliding window at a given time.
+   * 
+   * @param now
+   *          the current time, in milliseconds
+   * 
+   * @return the latency summary
+   */
+  synchronized LatencySummary summarize(final long now) {
+
+    interval = recorder.getIntervalHistogram(interval);
+    advanceWindow(now);
+    slots[currentSlot].add(interval);
+    totalCount += interval.getTotalCount();
+
+    window.reset();
+    for (Histogram slot : slots) {
+      window.add(slot);
+    }
+    if (window.getTotalCount() == 0) {
+      return new LatencySummary(totalCount, 0, 0, 0, 0, 0);
+    }
+    return new LatencySummary(totalCount, window.getTotalCount(),
+      toSeconds(window.getValueAtPercentile(50)),
+      toSeconds(window.getValueAtPercentile(90)),
+      toSeconds(window.getValueAtPercentile(99)),
+      toSeconds(window.getMaxValue()));
+  }
+
+  /**
+   * Moves the current slot of the window to the given time, clearing the
+   * expired slots.
+   * 
+   * @param now
+   *          the current time, in milliseconds
+   */
+  @GuardedBy("this")
+  private void advanceWindow(final long now) {
+
+    long elapsedSlots = (now - currentSlotStart) / SLOT_DURATION;
+    if (elapsedSlots <= 0) {
+      return;
+    }
+    for (long i = 0; i < Math.min(elapsedSlots, WINDOW_SLOTS); i++) {
+      currentSlot = (currentSlot + 1) % WINDOW_SLOTS;
+      slots[currentSlot].reset();
+    }
+    currentSlotStart += elapsedSlots * SLOT_DURATION;
+  }
+
+  /**
+   * Converts a recorded value to seconds.
+   * 
+   * @param micros
+   *          the recorded value, in microseconds
+   * 
+   * @return the value in seconds
+   */
+  private static double toSeconds(final long micros) {
+
+    return micros / 1000000.0;
+  }
+}
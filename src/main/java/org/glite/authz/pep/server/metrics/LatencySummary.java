@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A summary of the latencies recorded by a {@link LatencyHistogram}: the
+ * quantiles over its sliding window and the total number of latencies
+ * recorded.
+ */
+@Immutable
+public final class LatencySummary {
+
+  /** Number of latencies recorded since the start. */
+  private final long totalCount;
+
+  /** Number of latencies in the window. */
+  private final long windowCount;
+
+  /** Median latency, in seconds. */
+  private final double p50;
+
+  /** 90th percentile latency, in seconds. */
+  private final double p90;
+
+  /** 99th percentile latency, in seconds. */
+  private final double p99;
+
+  /** Maximum latency, in seconds. */
+  private final double max;
+
+  /**
+   * Constructor.
+   * 
+   * @param total
+   *          number of latencies recorded since the start
+   * @param inWindow
+   *          number of latencies in the window
+   * @param median
+   *          median latency, in seconds
+   * @param percentile90
+   *          90th percentile latency, in seconds
+   * @param percentile99
+   *          99th percentile latency, in seconds
+   * @param maximum
+   *          maximum latency, in seconds
+   */
+  public LatencySummary(final long total, final long inWindow,
+    final double median, final double percentile90,
+    final double percentile99, final double maximum) {
+
+    totalCount = total;
+    windowCount = inWindow;
+    p50 = median;
+    p90 = percentile90;
+    p99 = percentile99;
+    max = maximum;
+  }
+
+  /**
+   * Gets the number of latencies recorded since the start.
+   * 
+   * @return number of latencies recorded since the start
+   */
+  public long getTotalCount() {
+
+    return totalCount;
+  }
+
+  /**
+   * Gets the number of latencies in the window the quantiles are computed on.
+   * 
+   * @return number of latencies in the window
+   */
+  public long getWindowCount() {
+
+    return windowCount;
+  }
+
+  /**
+   * Gets the median latency.
+   * 
+   * @return median latency, in seconds
+   */
+  public double getP50() {
+
+    return p50;
+  }
+
+  /**
+   * Gets the 90th percentile latency.
+   * 
+   * @return 90th percentile latency, in seconds
+   */
+  public double getP90() {
+
+    return p90;
+  }
+
+  /**
+   * Gets the 99th percentile latency.
+   * 
+   * @return 99th percentile latency, in seconds
+   */
+  public double getP99() {
+
+    return p99;
+  }
+
+  /**
+   * Gets the maximum latency.
+   * 
+   * @return maximum latency, in seconds
+   */
+  public double getMax() {
+
+    return max;
+  }
+
+  /** {@inheritDoc} */
+  public String toString() {
+
+    return String.format("count=%d p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+      totalCount, p50 * 1000, p90 * 1000, p99 * 1000, max * 1000);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+/**
+ * Receives the metrics collected from the {@link MetricsSource}s. Metric names
+ * are lower case, words separated by underscores, and counters end with
+ * <code>_total</code>. The metrics of the instances of a component, the PDP
+ * endpoints for instance, have the same name and a label identifying the
+ * instance.
+ */
+public interface MetricsWriter {
+
+  /**
+   * Writes a monotonically increasing counter.
+   *
+   * @param name
+   *          name of the metric
+   * @param help
+   *          short description of the metric
+   * @param value
+   *          current value of the counter
+   */
+  void counter(String name, String help, long value);
+
+  /**
+   * Writes a gauge, a value which may go up and down.
+   *
+   * @param name
+   *          name of the metric
+   * @param help
+   *          short description of the metric
+   * @param value
+   *          current value of the gauge
+   */
+  void gauge(String name, String help, double value);
+
+  /**
+   * Writes a monotonically increasing counter of one instance of a component,
+   * identified by a label.
+   *
+   * @param name
+   *          name of the metric
+   * @param help
+   *          short description of the metric
+   * @param label
+   *          name of the label identifying the instance
+   * @param labelValue
+   *          value of the label
+   * @param value
+   *          current value of the counter
+   */
+  void counter(String name, String help, String label, String labelValue,
+    long value);
+
+  /**
+   * Writes a gauge of one instance of a component, identified by a label.
+   *
+   * @param name
+   *          name of the metric
+   * @param help
+   *          short description of the metric
+   * @param label
+   *          name of the label identifying the instance
+   * @param labelValue
+   *          value of the label
+   * @param value
+   *          current value of the gauge
+   */
+  void gauge(String name, String help, String label, String labelValue,
+    double value);
+
+  /**
+   * Writes a latency summary of one instance of a component, identified by a
+   * label.
+   *
+   * @param name
+   *          name of the metric
+   * @param help
+   *          short description of the metric
+   * @param label
+   *          name of the label identifying the instance
+   * @param labelValue
+   *          value of the label
+   * @param summary
+   *          current latency summary
+   */
+  void summary(String name, String help, String label, String labelValue,
+    LatencySummary summary);
+}
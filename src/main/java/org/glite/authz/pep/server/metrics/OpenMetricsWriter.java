@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Writes the metrics in the OpenMetrics text exposition format, scraped by
+ * Prometheus. The metrics are prefixed with a namespace; the samples of a
+ * metric written by several instances of a component are grouped in a single
+ * metric family, as the format requires. The families are buffered until
+ * {@link #write(Writer)} is called.
+ */
+@NotThreadSafe
+public class OpenMetricsWriter implements MetricsWriter {
+
+  /** Content type of the OpenMetrics text format. */
+  public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  /** Suffix of the counter samples. */
+  private static final String COUNTER_SUFFIX = "_total";
+
+  /** Quantiles of the latency summaries. */
+  private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "1" };
+
+  /** Prefix of the metric names, including the separator. */
+  private final String prefix;
+
+  /** The metric families, by name, in the order they are first written. */
+  private final Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+
+  /**
+   * Constructor.
+   * 
+   * @param namespace
+   *          namespace the metric names are prefixed with
+   */
+  public OpenMetricsWriter(final String namespace) {
+
+    prefix = namespace + "_";
+  }
+
+  /** {@inheritDoc} */
+  public void counter(final String name, final String help, final long value) {
+
+    counter(name, help, null, null, value);
+  }
+
+  /** {@inheritDoc} */
+  public void gauge(final String name, final String help, final double value) {
+
+    gauge(name, help, null, null, value);
+  }
+
+  /** {@inheritDoc} */
+  public void counter(final String name, final String help,
+    final String label, final String labelValue, final long value) {
+
+    String family = name.endsWith(COUNTER_SUFFIX) ? name.substring(0,
+      name.length() - COUNTER_SUFFIX.length()) : name;
+    StringBuilder samples = getFamily(family, "counter", help);
+    appendSample(samples, prefix + family + COUNTER_SUFFIX, label, labelValue,
+      null);
+    samples.append(value).append('\n');
+  }
+
+  /** {@inheritDoc} */
+  public void gauge(final String name, final String help, final String label,
+    final String labelValue, final double value) {
+
+    StringBuilder samples = getFamily(name, "gauge", help);
+    appendSample(samples, prefix + name, label, labelValue, null);
+    appendValue(samples, value);
+  }
+
+  /** {@inheritDoc} */
+  public void summary(final String name, final String help,
+    final String label, final String labelValue, final LatencySummary summary) {
+
+    StringBuilder samples = getFamily(name, "summary", help);
+    double[] values = { summary.getP50(), summary.getP90(), summary.getP99(),
+      summary.getMax() };
+    for (int i = 0; i < QUANTILES.length; i++) {
+      appendSample(samples, prefix + name, label, labelValue, QUANTILES[i]);
+      appendValue(samples, values[i]);
+    }
+    appendSample(samples, prefix + name + "_count", label, labelValue, null);
+    samples.append(summary.getTotalCount()).append('\n');
+  }
+
+  /**
+   * Writes the metric families, followed by the end of exposition marker.
+   * 
+   * @param writer
+   *          the writer to which the metrics are written
+   * 
+   * @throws IOException
+   *           thrown if the metrics can not be written
+   */
+  public void write(final Writer writer) throws IOException {
+
+    for (StringBuilder family : families.values()) {
+      writer.append(family);
+    }
+    writer.write("# EOF\n");
+  }
+
+  /**
+   * Gets the buffer of a metric family, creating it with its metadata if
+   * needed.
+   * 
+   * @param family
+   *          name of the family, without the namespace
+   * @param type
+   *          type of the family
+   * @param help
+   *          description of the family
+   * 
+   * @return the buffer to which the samples of the family are appended
+   */
+  private StringBuilder getFamily(final String family, final String type,
+    final String help) {
+
+    StringBuilder samples = families.get(family);
+    if (samples == null) {
+      samples = new StringBuilder();
+      samples.append("# TYPE ").append(prefix).append(family).append(' ')
+        .append(type).append('\n');
+      samples.append("# HELP ").append(prefix).append(family).append(' ');
+      appendEscaped(samples, help);
+      samples.append('\n');
+      families.put(family, samples);
+    }
+    return samples;
+  }
+
+  /**
+   * Appends the name and labels of a sample, followed by a space.
+   * 
+   * @param samples
+   *          buffer of the family
+   * @param sample
+   *          name of the sample
+   * @param label
+   *          name of the instance label, <code>null</code> if none
+   * @param labelValue
+   *          value of the instance label
+   * @param quantile
+   *          value of the quantile label, <code>null</code> if none
+   */
+  private static void appendSample(final StringBuilder samples,
+    final String sample, final String label, final String labelValue,
+    final String quantile) {
+
+    samples.append(sample);
+    if (label != null || quantile != null) {
+      samples.append('{');
+      if (label != null) {
+        samples.append(label).append("=\"");
+        appendEscaped(samples, labelValue);
+        samples.append('"');
+      }
+      if (quantile != null) {
+        if (label != null) {
+          samples.append(',');
+        }
+        samples.append("quantile=\"").append(quantile).append('"');
+      }
+      samples.append('}');
+    }
+    samples.append(' ');
+  }
+
+  /**
+   * Appends a floating point sample value and ends the sample line.
+   * 
+   * @param samples
+   *          buffer of the family
+   * @param value
+   *          the value
+   */
+  private static void appendValue(final StringBuilder samples,
+    final double value) {
+
+    if (Double.isNaN(value)) {
+      samples.append("NaN");
+    } else if (Double.isInfinite(value)) {
+      samples.append(value > 0 ? "+Inf" : "-Inf");
+    } else {
+      samples.append(value);
+    }
+    samples.append('\n');
+  }
+
+  /**
+   * Appends a text escaping the characters the format requires: the
+   * backslashes, the line feeds and the double quotes.
+   * 
+   * @param buffer
+   *          the buffer
+   * @param text
+   *          the text to append
+   */
+  private static void appendEscaped(final StringBuilder buffer,
+    final String text) {
+
+    if (text == null) {
+      return;
+    }
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\') {
+        buffer.append("\\\\");
+      } else if (c == '\n') {
+        buffer.append("\\n");
+      } else if (c == '"') {
+        buffer.append("\\\"");
+      } else {
+        buffer.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.ServiceMetrics;
+
+/**
+ * The PEP daemon service metrics. In addition to the generic service metrics,
+ * the metrics of the registered {@link MetricsSource}s are printed, one
+ * <code>name: value</code> line per metric.
+ */
+@ThreadSafe
+public class PEPDaemonServiceMetrics extends ServiceMetrics {
+
+  /** Registered metrics sources. */
+  private final List<MetricsSource> sources = new CopyOnWriteArrayList<MetricsSource>();
+
+  /**
+   * Constructor.
+   *
+   * @param serviceId
+   *          ID of the metrics service
+   * @param serviceVersion
+   *          version of the metrics service
+   */
+  public PEPDaemonServiceMetrics(String serviceId, String serviceVersion) {
+
+    super(serviceId, serviceVersion);
+  }
+
+  /**
+   * Registers a metrics source.
+   *
+   * @param source
+   *          the source to register
+   */
+  public void registerMetricsSource(MetricsSource source) {
+
+    if (source == null) {
+      throw new IllegalArgumentException("Metrics source may not be null");
+    }
+    sources.add(source);
+  }
+
+  /**
+   * Unregisters a metrics source.
+   *
+   * @param source
+   *          the source to unregister
+   */
+  public void unregisterMetricsSource(MetricsSource source) {
+
+    sources.remove(source);
+  }
+
+  /**
+   * Gets the registered metrics sources.
+   *
+   * @return the registered metrics sources
+   */
+  public List<MetricsSource> getMetricsSources() {
+
+    return sources;
+  }
+
+  /**
+   * Writes the metrics of all the registered sources.
+   *
+   * @param writer
+   *          the writer to which the metrics are written
+   */
+  public void collectMetrics(MetricsWriter writer) {
+
+    for (MetricsSource source : sources) {
+      source.collectMetrics(writer);
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void printServiceMetrics(PrintWriter writer) {
+
+    super.printServiceMetrics(writer);
+    collectMetrics(new StatusPageMetricsWriter(writer));
+    writer.flush();
+  }
+
+  /** Writes the metrics on the status page, one line per metric. */
+  private static final class StatusPageMetricsWriter implements MetricsWriter {
+
+    /** The status page writer. */
+    private final PrintWriter writer;
+
+    /**
+     * Constructor.
+     *
+     * @param printWriter
+     *          the status page writer
+     */
+    private StatusPageMetricsWriter(PrintWriter printWriter) {
+
+      writer = printWriter;
+    }
+
+    /** {@inheritDoc} */
+    public void counter(String name, String help, long value) {
+
+      writer.println(name + ": " + value);
+    }
+
+    /** {@inheritDoc} */
+    public void gauge(String name, String help, double value) {
+
+      writer.println(name + ": " + value);
+    }
+
+    /** {@inheritDoc} */
+    public void counter(String name, String help, String label,
+      String labelValue, long value) {
+
+      writer.println(name + "{" + label + "=\"" + labelValue + "\"}: " + value);
+    }
+
+    /** {@inheritDoc} */
+    public void gauge(String name, String help, String label,
+      String labelValue, double value) {
+
+      writer.println(name + "{" + label + "=\"" + labelValue + "\"}: " + value);
+    }
+
+    /** {@inheritDoc} */
+    public void summary(String name, String help, String label,
+      String labelValue, LatencySummary summary) {
+
+      writer.println(name + "{" + label + "=\"" + labelValue + "\"}: "
+        + summary);
+    }
+  }
+}
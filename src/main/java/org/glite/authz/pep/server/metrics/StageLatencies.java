@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The latencies of the stages of the processing of the authorization
+ * requests, one {@link LatencyHistogram} per stage. The stages are named by
+ * the caller, for instance <code>pip:&lt;id&gt;</code> for a policy
+ * information point; the histogram of a stage is created the first time it is
+ * recorded.
+ */
+@ThreadSafe
+public class StageLatencies implements MetricsSource {
+
+  /** Name of the label identifying the stage. */
+  public static final String STAGE_LABEL = "stage";
+
+  /** Stage of the whole processing of a request. */
+  public static final String REQUEST_STAGE = "request";
+
+  /** Stage of the response cache lookup. */
+  public static final String CACHE_LOOKUP_STAGE = "cache_lookup";
+
+  /** Stage of the PDP call. */
+  public static final String PDP_STAGE = "pdp";
+
+  /** Stage of the deserialization of the request. */
+  public static final String READ_STAGE = "hessian_read";
+
+  /** Stage of the serialization of the response. */
+  public static final String WRITE_STAGE = "hessian_write";
+
+  /** Prefix of the stages of the policy information points. */
+  public static final String PIP_STAGE_PREFIX = "pip:";
+
+  /** Prefix of the stages of the obligation handlers. */
+  public static final String OBLIGATION_STAGE_PREFIX = "obligation:";
+
+  /** The histograms, indexed by stage. */
+  private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+  /**
+   * Records the latency of a stage.
+   * 
+   * @param stage
+   *          the stage
+   * @param nanos
+   *          the latency, in nanoseconds
+   */
+  public void record(final String stage, final long nanos) {
+
+    getHistogram(stage).record(nanos);
+  }
+
+  /**
+   * Records the latency of a stage elapsed since a start time.
+   * 
+   * @param stage
+   *          the stage
+   * @param startTime
+   *          the start time, as given by {@link System#nanoTime()}
+   */
+  public void recordSince(final String stage, final long startTime) {
+
+    getHistogram(stage).recordSince(startTime);
+  }
+
+  /**
+   * Gets the histogram of a stage, creating it if needed.
+   * 
+   * @param stage
+   *          the stage
+   * 
+   * @return the histogram of the stage
+   */
+  public LatencyHistogram getHistogram(final String stage) {
+
+    LatencyHistogram histogram = histograms.get(stage);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      LatencyHistogram existing = histograms.putIfAbsent(stage, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      writer.summary("request_stage_latency_seconds",
+        "Latency of the request processing stages", STAGE_LABEL,
+        entry.getKey(), entry.getValue().summarize());
+    }
+  }
+}
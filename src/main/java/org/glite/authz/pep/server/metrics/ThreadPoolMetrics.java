@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * The metrics of the Jetty thread pool serving the authorization requests:
+ * its threads and, for a {@link QueuedThreadPool}, the jobs waiting for a
+ * thread.
+ */
+@ThreadSafe
+public class ThreadPoolMetrics implements MetricsSource {
+
+  /** The thread pool. */
+  private final ThreadPool threadPool;
+
+  /**
+   * Constructor.
+   * 
+   * @param pool
+   *          the thread pool
+   */
+  public ThreadPoolMetrics(final ThreadPool pool) {
+
+    if (pool == null) {
+      throw new IllegalArgumentException("Thread pool may not be null");
+    }
+    threadPool = pool;
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    writer.gauge("jetty_threads", "Threads of the request thread pool",
+      threadPool.getThreads());
+    writer.gauge("jetty_idle_threads",
+      "Idle threads of the request thread pool", threadPool.getIdleThreads());
+    if (threadPool instanceof QueuedThreadPool) {
+      QueuedThreadPool queuedPool = (QueuedThreadPool) threadPool;
+      writer.gauge("jetty_max_threads",
+        "Maximum threads of the request thread pool",
+        queuedPool.getMaxThreads());
+      writer.gauge("jetty_queued_jobs",
+        "Jobs waiting for a thread of the request thread pool",
+        queuedPool.getQueueSize());
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Base class of the {@link PDPTransport}s sending the messages from the
+ * calling thread. The asynchronous sends are adapted to the blocking ones: the
+ * message is sent, and its answer read, before the future is returned.
+ */
+public abstract class BlockingPDPTransport implements PDPTransport {
+
+  /**
+   * {@inheritDoc} The message is sent from the calling thread, the returned
+   * future is already completed.
+   */
+  public CompletableFuture<byte[]> sendAsync(final String endpoint,
+    final byte[] message) {
+
+    CompletableFuture<byte[]> answer = new CompletableFuture<byte[]>();
+    try {
+      answer.complete(send(endpoint, message));
+    } catch (IOException e) {
+      answer.completeExceptionally(e);
+    } catch (PDPMessageException e) {
+      answer.completeExceptionally(e);
+    } catch (RuntimeException e) {
+      answer.completeExceptionally(e);
+    }
+    return answer;
+  }
+}
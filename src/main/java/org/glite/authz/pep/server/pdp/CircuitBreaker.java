@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Circuit breaker of a PDP endpoint.
+ * <p>
+ * The circuit is closed while the endpoint answers. After a number of
+ * consecutive failures it opens: the endpoint is skipped without waiting for
+ * the connection timeouts. When a background probe reaches the endpoint again,
+ * the circuit is half-open and a single request is let through, its outcome
+ * closes or re-opens the circuit.
+ */
+@ThreadSafe
+public class CircuitBreaker {
+
+  /** State of a circuit. */
+  public enum State {
+    /** Requests are sent to the endpoint. */
+    CLOSED,
+    /** The endpoint is skipped. */
+    OPEN,
+    /** A single trial request is sent to the endpoint. */
+    HALF_OPEN
+  }
+
+  /** Number of consecutive failures opening the circuit. */
+  private final int failureThreshold;
+
+  /** Current state. */
+  private final AtomicReference<State> state = new AtomicReference<State>(
+    State.CLOSED);
+
+  /** Number of consecutive failures. */
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  /** Whether the trial request of the half-open circuit is in progress. */
+  private final AtomicBoolean trialInProgress = new AtomicBoolean();
+
+  /** Number of times the circuit opened. */
+  private final AtomicLong openings = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param threshold
+   *          number of consecutive failures opening the circuit, must be
+   *          greater than zero
+   */
+  public CircuitBreaker(final int threshold) {
+
+    if (threshold < 1) {
+      throw new IllegalArgumentException(
+        "Failure threshold must be greater than zero");
+    }
+    failureThreshold = threshold;
+  }
+
+  /**
+   * Gets the current state of the circuit.
+   * 
+   * @return the current state
+   */
+  public State getState() {
+
+    return state.get();
+  }
+
+  /**
+   * Gets the number of times the circuit opened.
+   * 
+   * @return number of times the circuit opened
+   */
+  public long getOpenings() {
+
+    return openings.get();
+  }
+
+  /**
+   * Checks whether a request may be sent to the endpoint. When the circuit is
+   * half-open, the first caller gets the trial request and must record its
+   * outcome.
+   * 
+   * @return <code>true</code> if the request may be sent
+   */
+  public boolean allowRequest() {
+
+    switch (state.get()) {
+    case CLOSED:
+      return true;
+    case HALF_OPEN:
+      return trialInProgress.compareAndSet(false, true);
+    default:
+      return false;
+    }
+  }
+
+  /** Records a request answered by the endpoint, the circuit is closed. */
+  public void recordSuccess() {
+
+    consecutiveFailures.set(0);
+    if (state.get() != State.CLOSED) {
+      state.set(State.CLOSED);
+      trialInProgress.set(false);
+    }
+  }
+
+  /**
+   * Records a request the endpoint failed to answer. The circuit opens if the
+   * trial request failed or if the failure threshold is reached.
+   * 
+   * @return <code>true</code> if the circuit opened
+   */
+  public boolean recordFailure() {
+
+    if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+      trialInProgress.set(false);
+      openings.incrementAndGet();
+      return true;
+    }
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold
+      && state.compareAndSet(State.CLOSED, State.OPEN)) {
+      openings.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records a request abandoned before its completion. If it was the trial
+   * request of the half-open circuit, another request may be tried.
+   */
+  public void recordCancellation() {
+
+    trialInProgress.set(false);
+  }
+
+  /**
+   * Records that a probe reached the endpoint, an open circuit becomes
+   * half-open.
+   * 
+   * @return <code>true</code> if the circuit was open
+   */
+  public boolean probeSucceeded() {
+
+    if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      consecutiveFailures.set(0);
+      trialInProgress.set(false);
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** The available {@link LoadBalancingPolicy}s. */
+public final class LoadBalancingPolicies {
+
+  /** Name of the policy always sending to the first endpoint. */
+  public static final String FAILOVER = "failover";
+
+  /** Name of the policy sending to each endpoint in turn. */
+  public static final String ROUND_ROBIN = "roundrobin";
+
+  /** Name of the policy sending to the endpoint with the fewest outstanding requests. */
+  public static final String LEAST_OUTSTANDING_REQUESTS = "leastoutstanding";
+
+  /**
+   * Name of the policy sending to the faster of two random endpoints, by
+   * moving average latency.
+   */
+  public static final String EWMA_LATENCY = "ewma";
+
+  /** Constructor. */
+  private LoadBalancingPolicies() {
+
+  }
+
+  /**
+   * Checks whether a policy name is known.
+   * 
+   * @param name
+   *          name of the policy
+   * 
+   * @return <code>true</code> if the policy exists
+   */
+  public static boolean isSupportedPolicy(final String name) {
+
+    return FAILOVER.equalsIgnoreCase(name)
+      || ROUND_ROBIN.equalsIgnoreCase(name)
+      || LEAST_OUTSTANDING_REQUESTS.equalsIgnoreCase(name)
+      || EWMA_LATENCY.equalsIgnoreCase(name);
+  }
+
+  /**
+   * Creates a load balancing policy. Policies keep state, each endpoint group
+   * needs its own.
+   * 
+   * @param name
+   *          name of the policy
+   * 
+   * @return the policy
+   */
+  public static LoadBalancingPolicy createPolicy(final String name) {
+
+    if (FAILOVER.equalsIgnoreCase(name)) {
+      return new FailoverPolicy();
+    }
+    if (ROUND_ROBIN.equalsIgnoreCase(name)) {
+      return new RoundRobinPolicy();
+    }
+    if (LEAST_OUTSTANDING_REQUESTS.equalsIgnoreCase(name)) {
+      return new LeastOutstandingRequestsPolicy();
+    }
+    if (EWMA_LATENCY.equalsIgnoreCase(name)) {
+      return new EWMALatencyPolicy();
+    }
+    throw new IllegalArgumentException("Unknown load balancing policy: "
+      + name);
+  }
+
+  /**
+   * Gets the next value of a counter, as a positive index in a list.
+   * 
+   * @param counter
+   *          the counter
+   * @param size
+   *          size of the list
+   * 
+   * @return index in the list
+   */
+  private static int nextIndex(final AtomicInteger counter, final int size) {
+
+    return (counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+  }
+
+  /** Sends all the requests to the first endpoint, the others are backups. */
+  @ThreadSafe
+  static final class FailoverPolicy implements LoadBalancingPolicy {
+
+    /** {@inheritDoc} */
+    public int selectEndpoint(final List<PDPEndpoint> endpoints) {
+
+      return 0;
+    }
+  }
+
+  /** Sends the requests to each endpoint in turn. */
+  @ThreadSafe
+  static final class RoundRobinPolicy implements LoadBalancingPolicy {
+
+    /** Number of selections. */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /** {@inheritDoc} */
+    public int selectEndpoint(final List<PDPEndpoint> endpoints) {
+
+      return nextIndex(counter, endpoints.size());
+    }
+  }
+
+  /**
+   * Sends the requests to the endpoint with the fewest outstanding requests.
+   * Ties are broken in turn, so that idle endpoints share the load.
+   */
+  @ThreadSafe
+  static final class LeastOutstandingRequestsPolicy implements
+    LoadBalancingPolicy {
+
+    /** Number of selections, to break the ties. */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /** {@inheritDoc} */
+    public int selectEndpoint(final List<PDPEndpoint> endpoints) {
+
+      int size = endpoints.size();
+      int start = nextIndex(counter, size);
+      int selected = start;
+      int fewest = Integer.MAX_VALUE;
+      for (int i = 0; i < size; i++) {
+        int index = (start + i) % size;
+        int outstanding = endpoints.get(index).getOutstandingRequests();
+        if (outstanding < fewest) {
+          fewest = outstanding;
+          selected = index;
+        }
+      }
+      return selected;
+    }
+  }
+
+  /**
+   * Power of two choices: two distinct endpoints are picked at random and the
+   * request is sent to the one with the lowest moving average latency,
+   * weighted by its outstanding requests. Endpoints without latency yet are
+   * preferred, so that each is measured. The failed requests are not measured,
+   * the policy relies on the circuit breakers to skip the failing endpoints.
+   */
+  @ThreadSafe
+  static final class EWMALatencyPolicy implements LoadBalancingPolicy {
+
+    /** {@inheritDoc} */
+    public int selectEndpoint(final List<PDPEndpoint> endpoints) {
+
+      int size = endpoints.size();
+      if (size == 1) {
+        return 0;
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      return cost(endpoints.get(first)) <= cost(endpoints.get(second)) ? first
+        : second;
+    }
+
+    /**
+     * Gets the cost of sending a request to an endpoint.
+     * 
+     * @param endpoint
+     *          the endpoint
+     * 
+     * @return the expected latency, in nanoseconds, of a new request
+     */
+    private static double cost(final PDPEndpoint endpoint) {
+
+      return (double) endpoint.getLatencyAverage(TimeUnit.NANOSECONDS)
+        * (endpoint.getOutstandingRequests() + 1);
+    }
+  }
+}
@@ -0,0 +1,1463 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Non-blocking {@link PDPTransport}. A single I/O thread multiplexes the
+ * connections to all the PDP endpoints, the calling threads only wait for the
+ * answer to their message.
+ * <p>
+ * The connections are HTTP/1.1 keep-alive connections, plain or TLS, pooled per
+ * endpoint and closed once idle for the idle timeout. A connection which has
+ * answered a first message may carry several pipelined messages, up to the
+ * pipeline depth. A message which finds no free connection, and no room to
+ * open another one, waits in the pending queue of its endpoint. The messages
+ * left unanswered on a reused connection which the PDP closed are sent once
+ * again, on another connection.
+ * <p>
+ * All the connection state is owned by the I/O thread, the other threads hand
+ * their messages over through a task queue.
+ */
+@ThreadSafe
+public class NioPDPTransport implements PDPTransport, MetricsSource {
+
+  /** Interval, in milliseconds, at which the timeouts are checked. */
+  private static final long HOUSEKEEPING_INTERVAL = 250;
+
+  /** Interval, in nanoseconds, over which the TLS handshake rate is computed. */
+  private static final long HANDSHAKE_RATE_INTERVAL = TimeUnit.SECONDS
+    .toNanos(10);
+
+  /** Maximum length of a line of the HTTP response head. */
+  private static final int MAX_LINE_LENGTH = 8192;
+
+  /** Label identifying the endpoint of a metric. */
+  private static final String ENDPOINT_LABEL = "endpoint";
+
+  /** Empty buffer, wrapped during the TLS handshakes. */
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(NioPDPTransport.class);
+
+  /** Context of the TLS connections. */
+  private final SSLContext sslContext;
+
+  /** Whether the host name of the PDP is checked against its certificate. */
+  private final boolean verifyHostname;
+
+  /** Maximum number of connections opened to each endpoint. */
+  private final int maxConnectionsPerEndpoint;
+
+  /** Maximum number of messages in flight on a connection. */
+  private final int pipelineDepth;
+
+  /**
+   * Time, in nanoseconds, allowed to establish a connection and then for each
+   * read while an answer is expected, zero for no limit.
+   */
+  private final long timeout;
+
+  /** Time, in nanoseconds, an idle connection is kept open. */
+  private final long idleTimeout;
+
+  /** Selector of the I/O thread. */
+  private final Selector selector;
+
+  /** Tasks handed over to the I/O thread. */
+  private final Queue<Runnable> ioTasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /** Connection pools, indexed by endpoint origin. */
+  private final ConcurrentMap<String, EndpointPool> pools = new ConcurrentHashMap<String, EndpointPool>();
+
+  /** Whether the transport is shut down. */
+  private volatile boolean shutdown;
+
+  /** Whether the I/O thread has stopped. */
+  private volatile boolean terminated;
+
+  /** Time, in nanoseconds, after which the connections are closed once shut down. */
+  private volatile long shutdownDeadline;
+
+  /**
+   * Constructor.
+   * 
+   * @param context
+   *          context of the TLS connections
+   * @param verifyPDPHostname
+   *          whether the host name of the PDP is checked against its
+   *          certificate
+   * @param maxConnections
+   *          maximum number of connections opened to each endpoint
+   * @param maxPipelinedMessages
+   *          maximum number of messages in flight on a connection, 1 to
+   *          disable pipelining
+   * @param connectionTimeout
+   *          time, in milliseconds, allowed to establish a connection and then
+   *          for each read while an answer is expected, zero for no limit
+   * @param connectionIdleTimeout
+   *          time, in milliseconds, an idle connection is kept open
+   * 
+   * @throws IOException
+   *           thrown if the selector can not be opened
+   */
+  public NioPDPTransport(final SSLContext context,
+    final boolean verifyPDPHostname, final int maxConnections,
+    final int maxPipelinedMessages, final long connectionTimeout,
+    final long connectionIdleTimeout) throws IOException {
+
+    if (context == null) {
+      throw new IllegalArgumentException("TLS context may not be null");
+    }
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException(
+        "Maximum connections per endpoint must be greater than 0");
+    }
+    if (maxPipelinedMessages < 1) {
+      throw new IllegalArgumentException("Pipeline depth must be greater than 0");
+    }
+    if (connectionTimeout < 0 || connectionIdleTimeout < 0) {
+      throw new IllegalArgumentException("Timeouts may not be negative");
+    }
+    sslContext = context;
+    verifyHostname = verifyPDPHostname;
+    maxConnectionsPerEndpoint = maxConnections;
+    pipelineDepth = maxPipelinedMessages;
+    timeout = TimeUnit.MILLISECONDS.toNanos(connectionTimeout);
+    idleTimeout = TimeUnit.MILLISECONDS.toNanos(connectionIdleTimeout);
+
+    selector = Selector.open();
+    Thread ioThread = new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("pepd-pdp-io-%d").build().newThread(new Runnable() {
+
+        public void run() {
+
+          runIOLoop();
+        }
+      });
+    ioThread.start();
+  }
+
+  /** {@inheritDoc} */
+  public byte[] send(final String endpoint, final byte[] message)
+    throws IOException, PDPMessageException {
+
+    CompletableFuture<byte[]> answer = sendAsync(endpoint, message);
+    try {
+      return answer.get();
+    } catch (InterruptedException e) {
+      answer.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+        "Interrupted while waiting for the answer of " + endpoint);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof PDPMessageException) {
+        throw (PDPMessageException) cause;
+      }
+      throw new IOException("Error sending message to " + endpoint, cause);
+    }
+  }
+
+  /**
+   * {@inheritDoc} The future is completed by the I/O thread. Once cancelled,
+   * the message may still be sent.
+   */
+  public CompletableFuture<byte[]> sendAsync(final String endpoint,
+    final byte[] message) {
+
+    final Exchange exchange;
+    try {
+      exchange = new Exchange(endpoint, message);
+    } catch (IOException e) {
+      CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    if (shutdown) {
+      exchange.fail(new IOException("PDP transport is shut down"));
+      return exchange.answer;
+    }
+    ioTasks.add(new Runnable() {
+
+      public void run() {
+
+        submit(exchange);
+      }
+    });
+    if (terminated) {
+      // the I/O thread stopped meanwhile, fail the message here
+      runIOTasks();
+    } else {
+      selector.wakeup();
+    }
+    return exchange.answer;
+  }
+
+  /** {@inheritDoc} */
+  public void shutdown() {
+
+    if (shutdown) {
+      return;
+    }
+    shutdownDeadline = System.nanoTime() + Math.max(timeout, 0);
+    shutdown = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Gets whether the I/O thread has stopped, after the transport was shut
+   * down and the connections closed.
+   * 
+   * @return whether the I/O thread has stopped
+   */
+  public boolean isTerminated() {
+
+    return terminated;
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    for (EndpointPool pool : pools.values()) {
+      writer.gauge("pdp_transport_connections_open",
+        "Connections open to the PDP endpoint", ENDPOINT_LABEL, pool.origin,
+        pool.openConnections);
+      writer.gauge("pdp_transport_connections_idle",
+        "Connections open to the PDP endpoint and carrying no message",
+        ENDPOINT_LABEL, pool.origin, pool.idleConnections);
+      writer.gauge("pdp_transport_pending_messages",
+        "Messages waiting for a connection to the PDP endpoint",
+        ENDPOINT_LABEL, pool.origin, pool.pendingMessages);
+      writer.counter("pdp_transport_connections_opened_total",
+        "Connections opened to the PDP endpoint", ENDPOINT_LABEL, pool.origin,
+        pool.openedConnections.get());
+      writer.counter("pdp_transport_tls_handshakes_total",
+        "TLS handshakes completed with the PDP endpoint", ENDPOINT_LABEL,
+        pool.origin, pool.handshakes.get());
+      writer.gauge("pdp_transport_tls_handshakes_per_second",
+        "Rate of the TLS handshakes with the PDP endpoint", ENDPOINT_LABEL,
+        pool.origin, pool.handshakeRate);
+    }
+  }
+
+  /** Runs the selector loop of the I/O thread until the transport stops. */
+  private void runIOLoop() {
+
+    long lastHousekeeping = System.nanoTime();
+    try {
+      while (true) {
+        runIOTasks();
+        selector.select(HOUSEKEEPING_INTERVAL);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          ((Connection) key.attachment()).handleEvent(key);
+        }
+        long now = System.nanoTime();
+        if (now - lastHousekeeping >= TimeUnit.MILLISECONDS
+          .toNanos(HOUSEKEEPING_INTERVAL)) {
+          lastHousekeeping = now;
+          checkTimeouts(now);
+        }
+        if (shutdown && drain(now)) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      log.error("PDP transport I/O loop failed", e);
+    } catch (RuntimeException e) {
+      log.error("PDP transport I/O loop failed", e);
+    } finally {
+      shutdown = true;
+      terminated = true;
+      IOException closed = new IOException("PDP transport is shut down");
+      for (EndpointPool pool : pools.values()) {
+        Exchange exchange;
+        while ((exchange = pool.pending.poll()) != null) {
+          exchange.fail(closed);
+        }
+        for (Connection connection : new ArrayList<Connection>(
+          pool.connections)) {
+          connection.close(closed, false);
+        }
+      }
+      runIOTasks();
+      try {
+        selector.close();
+      } catch (IOException e) {
+        log.debug("Unable to close the selector", e);
+      }
+      log.debug("PDP transport I/O thread stopped");
+    }
+  }
+
+  /** Runs the tasks handed over to the I/O thread. */
+  private void runIOTasks() {
+
+    Runnable task;
+    while ((task = ioTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Queues a message on the pool of its endpoint.
+   * 
+   * @param exchange
+   *          the message exchange
+   */
+  private void submit(final Exchange exchange) {
+
+    if (shutdown) {
+      exchange.fail(new IOException("PDP transport is shut down"));
+      return;
+    }
+    EndpointPool pool = pools.get(exchange.origin);
+    if (pool == null) {
+      pool = new EndpointPool(exchange);
+      pools.put(pool.origin, pool);
+    }
+    pool.pending.add(exchange);
+    pool.dispatch();
+  }
+
+  /**
+   * Fails the messages and closes the connections which exceeded their
+   * timeout, closes the connections idle for too long and updates the TLS
+   * handshake rates.
+   * 
+   * @param now
+   *          current time, in nanoseconds
+   */
+  private void checkTimeouts(final long now) {
+
+    for (EndpointPool pool : pools.values()) {
+      if (timeout > 0) {
+        Iterator<Exchange> pending = pool.pending.iterator();
+        while (pending.hasNext()) {
+          Exchange exchange = pending.next();
+          if (now - exchange.submitted > timeout) {
+            pending.remove();
+            exchange.fail(new SocketTimeoutException(
+              "No connection to the PDP " + pool.origin + " available within "
+                + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms"));
+          }
+        }
+      }
+      for (Connection connection : new ArrayList<Connection>(pool.connections)) {
+        long inactivity = now - connection.lastActivity;
+        if (connection.isIdle()) {
+          if (inactivity > idleTimeout) {
+            log.debug("Closing idle connection to {}", pool.origin);
+            connection.close(null, false);
+          }
+        } else if (timeout > 0 && inactivity > timeout) {
+          connection.close(new SocketTimeoutException("PDP " + pool.origin
+            + " did not answer within "
+            + TimeUnit.NANOSECONDS.toMillis(timeout) + "ms"), false);
+        }
+      }
+      if (now - pool.rateComputed >= HANDSHAKE_RATE_INTERVAL) {
+        long handshakes = pool.handshakes.get();
+        pool.handshakeRate = (handshakes - pool.rateHandshakes)
+          / ((now - pool.rateComputed) / 1e9);
+        pool.rateHandshakes = handshakes;
+        pool.rateComputed = now;
+      }
+      pool.dispatch();
+    }
+  }
+
+  /**
+   * Fails the pending messages and closes the idle connections of the shut
+   * down transport.
+   * 
+   * @param now
+   *          current time, in nanoseconds
+   * 
+   * @return <code>true</code> once all the connections are closed or the
+   *         shutdown deadline is reached
+   */
+  private boolean drain(final long now) {
+
+    boolean drained = true;
+    for (EndpointPool pool : pools.values()) {
+      Exchange exchange;
+      while ((exchange = pool.pending.poll()) != null) {
+        exchange.fail(new IOException("PDP transport is shut down"));
+      }
+      for (Connection connection : new ArrayList<Connection>(pool.connections)) {
+        if (connection.exchanges.isEmpty()) {
+          connection.close(null, false);
+        }
+      }
+      pool.updateGauges();
+      drained &= pool.connections.isEmpty();
+    }
+    return drained || now - shutdownDeadline > 0;
+  }
+
+  /**
+   * Grows a buffer in write mode, keeping its content.
+   * 
+   * @param buffer
+   *          the buffer to grow
+   * @param increment
+   *          minimal number of bytes to add
+   * 
+   * @return the new buffer
+   */
+  private static ByteBuffer grow(final ByteBuffer buffer, final int increment) {
+
+    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity()
+      + Math.max(increment, buffer.capacity()));
+    buffer.flip();
+    grown.put(buffer);
+    return grown;
+  }
+
+  /** A message sent to a PDP endpoint and its future answer. */
+  private static final class Exchange {
+
+    /** Future answer of the PDP. */
+    private final CompletableFuture<byte[]> answer = new CompletableFuture<byte[]>();
+
+    /** Scheme, host and port of the endpoint. */
+    private final String origin;
+
+    /** Host of the endpoint. */
+    private final String host;
+
+    /** Port of the endpoint. */
+    private final int port;
+
+    /** Whether the endpoint is reached over TLS. */
+    private final boolean secure;
+
+    /** The HTTP request, head and SOAP message. */
+    private final byte[] request;
+
+    /** Time, in nanoseconds, at which the message was submitted. */
+    private final long submitted = System.nanoTime();
+
+    /** Whether the message was already sent again. */
+    private boolean resent;
+
+    /**
+     * Constructor.
+     * 
+     * @param endpoint
+     *          URL of the PDP endpoint
+     * @param message
+     *          the UTF-8 encoded SOAP message
+     * 
+     * @throws IOException
+     *           thrown if the endpoint is not a valid HTTP or HTTPS URL
+     */
+    private Exchange(final String endpoint, final byte[] message)
+      throws IOException {
+
+      URI uri;
+      try {
+        uri = new URI(endpoint);
+      } catch (URISyntaxException e) {
+        throw new IOException("Invalid PDP endpoint URL " + endpoint, e);
+      }
+      String scheme = uri.getScheme() == null ? null : uri.getScheme()
+        .toLowerCase(Locale.ENGLISH);
+      if (!"http".equals(scheme) && !"https".equals(scheme)
+        || uri.getHost() == null) {
+        throw new IOException("Unsupported PDP endpoint URL " + endpoint);
+      }
+      secure = "https".equals(scheme);
+      String hostHeader = uri.getHost();
+      host = hostHeader.startsWith("[") ? hostHeader.substring(1,
+        hostHeader.length() - 1) : hostHeader;
+      if (uri.getPort() < 0) {
+        port = secure ? 443 : 80;
+      } else {
+        port = uri.getPort();
+        hostHeader = hostHeader + ":" + port;
+      }
+      origin = scheme + "://" + uri.getHost() + ":" + port;
+
+      String path = uri.getRawPath();
+      if (path == null || path.isEmpty()) {
+        path = "/";
+      }
+      if (uri.getRawQuery() != null) {
+        path = path + "?" + uri.getRawQuery();
+      }
+      byte[] head = ("POST " + path + " HTTP/1.1\r\nHost: " + hostHeader
+        + "\r\nContent-Type: " + StreamingPDPClient.CONTENT_TYPE
+        + "\r\nSOAPAction: " + StreamingPDPClient.SOAP_ACTION
+        + "\r\nContent-Length: " + message.length + "\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+      request = new byte[head.length + message.length];
+      System.arraycopy(head, 0, request, 0, head.length);
+      System.arraycopy(message, 0, request, head.length, message.length);
+    }
+
+    /**
+     * Fails the message, unless it was already answered or cancelled.
+     * 
+     * @param cause
+     *          the failure
+     */
+    private void fail(final Exception cause) {
+
+      answer.completeExceptionally(cause);
+    }
+  }
+
+  /** Connections and pending messages of a PDP endpoint. */
+  private final class EndpointPool {
+
+    /** Scheme, host and port of the endpoint. */
+    private final String origin;
+
+    /** Host of the endpoint. */
+    private final String host;
+
+    /** Port of the endpoint. */
+    private final int port;
+
+    /** Whether the endpoint is reached over TLS. */
+    private final boolean secure;
+
+    /** Open connections. */
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    /** Messages waiting for a connection, in order. */
+    private final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+
+    /** Number of connections opened. */
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    /** Number of TLS handshakes completed. */
+    private final AtomicLong handshakes = new AtomicLong();
+
+    /** Number of open connections, for the metrics. */
+    private volatile int openConnections;
+
+    /** Number of idle connections, for the metrics. */
+    private volatile int idleConnections;
+
+    /** Number of pending messages, for the metrics. */
+    private volatile int pendingMessages;
+
+    /** TLS handshakes per second over the last rate interval. */
+    private volatile double handshakeRate;
+
+    /** Handshakes completed when the rate was last computed. */
+    private long rateHandshakes;
+
+    /** Time, in nanoseconds, at which the rate was last computed. */
+    private long rateComputed = System.nanoTime();
+
+    /**
+     * Constructor.
+     * 
+     * @param exchange
+     *          first message sent to the endpoint
+     */
+    private EndpointPool(final Exchange exchange) {
+
+      origin = exchange.origin;
+      host = exchange.host;
+      port = exchange.port;
+      secure = exchange.secure;
+    }
+
+    /**
+     * Hands the pending messages over to the connections with room for them,
+     * opening new connections as allowed.
+     */
+    private void dispatch() {
+
+      Exchange exchange;
+      while ((exchange = pending.peek()) != null) {
+        if (exchange.answer.isDone()) {
+          pending.poll();
+          continue;
+        }
+        Connection connection = selectConnection();
+        if (connection == null) {
+          if (connections.size() >= maxConnectionsPerEndpoint) {
+            break;
+          }
+          try {
+            connection = new Connection(this);
+          } catch (IOException e) {
+            pending.poll();
+            exchange.fail(e);
+            continue;
+          }
+        }
+        pending.poll();
+        connection.send(exchange);
+      }
+      updateGauges();
+    }
+
+    /**
+     * Selects the least loaded connection with room for another message.
+     * 
+     * @return the selected connection, <code>null</code> if none has room
+     */
+    private Connection selectConnection() {
+
+      Connection selected = null;
+      for (Connection connection : connections) {
+        if (connection.hasRoom()
+          && (selected == null || connection.exchanges.size() < selected.exchanges
+            .size())) {
+          selected = connection;
+        }
+      }
+      return selected;
+    }
+
+    /** Updates the connection and message counts read by the metrics. */
+    private void updateGauges() {
+
+      int idle = 0;
+      for (Connection connection : connections) {
+        if (connection.isIdle()) {
+          idle++;
+        }
+      }
+      openConnections = connections.size();
+      idleConnections = idle;
+      pendingMessages = pending.size();
+    }
+  }
+
+  /** A keep-alive connection to a PDP endpoint, used by the I/O thread only. */
+  private final class Connection {
+
+    /** Pool of the connection. */
+    private final EndpointPool pool;
+
+    /** Channel of the connection. */
+    private final SocketChannel channel;
+
+    /** Selection key of the channel. */
+    private final SelectionKey key;
+
+    /** TLS engine, <code>null</code> for a plain connection. */
+    private final SSLEngine engine;
+
+    /** Messages sent, or to be sent, and not answered yet, in order. */
+    private final ArrayDeque<Exchange> exchanges = new ArrayDeque<Exchange>();
+
+    /** Request bytes not written yet. */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+    /** Parser of the answers. */
+    private final ResponseParser parser = new ResponseParser(this);
+
+    /** TLS records read and not unwrapped yet, in write mode. */
+    private ByteBuffer netIn;
+
+    /** TLS records wrapped and not written yet, in write mode. */
+    private ByteBuffer netOut;
+
+    /** Answer bytes not parsed yet, in write mode. */
+    private ByteBuffer appIn;
+
+    /** Whether the connection and its TLS handshake are completed. */
+    private boolean established;
+
+    /** Number of messages answered on the connection. */
+    private int answered;
+
+    /** Whether the PDP asked to close the connection after its answer. */
+    private boolean closeRequested;
+
+    /** Whether the connection is closed. */
+    private boolean closed;
+
+    /** Time, in nanoseconds, of the last connection activity. */
+    private long lastActivity = System.nanoTime();
+
+    /**
+     * Constructor, starts connecting to the endpoint.
+     * 
+     * @param endpointPool
+     *          pool of the connection
+     * 
+     * @throws IOException
+     *           thrown if the connection can not be started
+     */
+    private Connection(final EndpointPool endpointPool) throws IOException {
+
+      pool = endpointPool;
+      channel = SocketChannel.open();
+      try {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (pool.secure) {
+          engine = sslContext.createSSLEngine(pool.host, pool.port);
+          engine.setUseClientMode(true);
+          if (verifyHostname) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+          }
+          netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+          netOut = ByteBuffer
+            .allocate(engine.getSession().getPacketBufferSize());
+          appIn = ByteBuffer.allocate(engine.getSession()
+            .getApplicationBufferSize());
+        } else {
+          engine = null;
+          appIn = ByteBuffer.allocate(16384);
+        }
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        // the endpoint host is resolved here, on the I/O thread
+        if (channel.connect(new InetSocketAddress(pool.host, pool.port))) {
+          connected();
+        }
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      pool.connections.add(this);
+      pool.openedConnections.incrementAndGet();
+      log.debug("Opening connection to {}", pool.origin);
+    }
+
+    /**
+     * Gets whether the connection is established and carries no message.
+     * 
+     * @return whether the connection is idle
+     */
+    private boolean isIdle() {
+
+      return established && exchanges.isEmpty();
+    }
+
+    /**
+     * Gets whether another message may be sent on the connection. Messages
+     * are only pipelined once the PDP answered a first one on the connection.
+     * 
+     * @return whether the connection has room for another message
+     */
+    private boolean hasRoom() {
+
+      int depth = answered > 0 ? pipelineDepth : 1;
+      return !closed && !closeRequested && exchanges.size() < depth;
+    }
+
+    /**
+     * Sends a message on the connection.
+     * 
+     * @param exchange
+     *          the message exchange
+     */
+    private void send(final Exchange exchange) {
+
+      if (exchanges.isEmpty()) {
+        lastActivity = System.nanoTime();
+      }
+      exchanges.add(exchange);
+      outbound.add(ByteBuffer.wrap(exchange.request));
+      if (channel.isConnected()) {
+        try {
+          pump();
+        } catch (IOException e) {
+          close(e, true);
+        } catch (RuntimeException e) {
+          close(new IOException("Error sending message to the PDP "
+            + pool.origin, e), true);
+        }
+      }
+    }
+
+    /**
+     * Handles the readiness of the channel.
+     * 
+     * @param selectionKey
+     *          the selected key of the channel
+     */
+    private void handleEvent(final SelectionKey selectionKey) {
+
+      if (!selectionKey.isValid()) {
+        return;
+      }
+      try {
+        if (selectionKey.isConnectable()) {
+          if (channel.finishConnect()) {
+            connected();
+          }
+        } else {
+          boolean endOfStream = false;
+          if (selectionKey.isReadable()) {
+            endOfStream = read();
+          }
+          if (!closed) {
+            pump();
+          }
+          if (endOfStream && !closed) {
+            parser.endOfStream();
+            close(new EOFException("Connection closed by the PDP "
+              + pool.origin), true);
+          }
+        }
+        if (closeRequested && !closed) {
+          close(new EOFException("Connection closed by the PDP "
+            + pool.origin), true);
+        }
+      } catch (IOException e) {
+        close(e, true);
+      } catch (RuntimeException e) {
+        // SSLEngine reports some failures as runtime exceptions
+        close(new IOException("Error exchanging messages with the PDP "
+          + pool.origin, e), true);
+      }
+      pool.dispatch();
+    }
+
+    /**
+     * Starts the TLS handshake, or the message exchange, once connected.
+     * 
+     * @throws IOException
+     *           thrown if the handshake can not be started
+     */
+    private void connected() throws IOException {
+
+      lastActivity = System.nanoTime();
+      if (engine == null) {
+        established = true;
+      } else {
+        engine.beginHandshake();
+      }
+      pump();
+    }
+
+    /**
+     * Reads from the channel.
+     * 
+     * @return <code>true</code> if the PDP closed the connection
+     * 
+     * @throws IOException
+     *           thrown if the channel can not be read or the answer is
+     *           invalid
+     */
+    private boolean read() throws IOException {
+
+      int read;
+      if (engine == null) {
+        read = channel.read(appIn);
+        deliver();
+      } else {
+        if (!netIn.hasRemaining()) {
+          netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        read = channel.read(netIn);
+      }
+      if (read > 0) {
+        lastActivity = System.nanoTime();
+      }
+      return read < 0;
+    }
+
+    /**
+     * Writes and unwraps the TLS records until no more progress can be made,
+     * then updates the interest of the channel.
+     * 
+     * @throws IOException
+     *           thrown if the records can not be written or unwrapped
+     */
+    private void pump() throws IOException {
+
+      boolean flushed;
+      do {
+        flushed = flush();
+      } while (!closed && unwrap());
+      if (!closed) {
+        key.interestOps(SelectionKey.OP_READ
+          | (flushed ? 0 : SelectionKey.OP_WRITE));
+      }
+    }
+
+    /**
+     * Writes the pending requests, wrapping them and the handshake records
+     * over TLS.
+     * 
+     * @return <code>true</code> if all was written, <code>false</code> if the
+     *         channel can not accept more for now
+     * 
+     * @throws IOException
+     *           thrown if the channel can not be written
+     */
+    private boolean flush() throws IOException {
+
+      if (engine == null) {
+        while (!outbound.isEmpty()) {
+          ByteBuffer buffer = outbound.peek();
+          channel.write(buffer);
+          if (buffer.hasRemaining()) {
+            return false;
+          }
+          outbound.poll();
+        }
+        return true;
+      }
+      while (true) {
+        if (netOut.position() > 0) {
+          netOut.flip();
+          channel.write(netOut);
+          boolean written = !netOut.hasRemaining();
+          netOut.compact();
+          if (!written) {
+            return false;
+          }
+        }
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK) {
+          runDelegatedTasks();
+          continue;
+        }
+        if (status != HandshakeStatus.NEED_WRAP
+          && (!established || outbound.isEmpty())) {
+          return true;
+        }
+        ByteBuffer source = outbound.isEmpty() ? EMPTY_BUFFER : outbound.peek();
+        SSLEngineResult result = engine.wrap(source, netOut);
+        if (source != EMPTY_BUFFER && !source.hasRemaining()) {
+          outbound.poll();
+        }
+        switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+          break;
+        case CLOSED:
+          throw new EOFException("TLS connection to the PDP " + pool.origin
+            + " closed");
+        default:
+          break;
+        }
+        checkHandshake(result);
+      }
+    }
+
+    /**
+     * Unwraps the TLS records read and parses the answers they carry.
+     * 
+     * @return <code>true</code> if some records were unwrapped
+     * 
+     * @throws IOException
+     *           thrown if the records can not be unwrapped or the answer is
+     *           invalid
+     */
+    private boolean unwrap() throws IOException {
+
+      if (engine == null || netIn.position() == 0) {
+        return false;
+      }
+      boolean progress = false;
+      netIn.flip();
+      try {
+        while (!closed) {
+          if (engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+          }
+          SSLEngineResult result = engine.unwrap(netIn, appIn);
+          checkHandshake(result);
+          boolean consumed = result.bytesConsumed() > 0
+            || result.bytesProduced() > 0;
+          progress |= consumed;
+          switch (result.getStatus()) {
+          case BUFFER_OVERFLOW:
+            if (appIn.position() > 0) {
+              deliver();
+            } else {
+              appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+            }
+            continue;
+          case BUFFER_UNDERFLOW:
+            return progress;
+          case CLOSED:
+            deliver();
+            closeRequested = true;
+            return progress;
+          default:
+            deliver();
+            break;
+          }
+          if (!consumed || !netIn.hasRemaining()) {
+            return progress;
+          }
+        }
+        return progress;
+      } finally {
+        netIn.compact();
+      }
+    }
+
+    /**
+     * Counts the completed TLS handshake.
+     * 
+     * @param result
+     *          result of the last wrap or unwrap
+     */
+    private void checkHandshake(final SSLEngineResult result) {
+
+      if (result.getHandshakeStatus() == HandshakeStatus.FINISHED
+        && !established) {
+        established = true;
+        lastActivity = System.nanoTime();
+        pool.handshakes.incrementAndGet();
+        log.debug("TLS handshake with {} completed, protocol {}", pool.origin,
+          engine.getSession().getProtocol());
+      }
+    }
+
+    /** Runs the tasks delegated by the TLS engine, on the I/O thread. */
+    private void runDelegatedTasks() {
+
+      Runnable task;
+      while ((task = engine.getDelegatedTask()) != null) {
+        task.run();
+      }
+    }
+
+    /**
+     * Hands the answer bytes over to the parser.
+     * 
+     * @throws IOException
+     *           thrown if the answer is invalid
+     */
+    private void deliver() throws IOException {
+
+      appIn.flip();
+      try {
+        parser.parse(appIn);
+      } finally {
+        appIn.clear();
+      }
+    }
+
+    /**
+     * Completes the oldest message with its answer.
+     * 
+     * @param status
+     *          HTTP status of the answer
+     * @param body
+     *          body of the answer
+     * @param keepAlive
+     *          whether the connection may carry more messages
+     * 
+     * @throws IOException
+     *           thrown if no message was expecting an answer
+     */
+    private void answerReceived(final int status, final byte[] body,
+      final boolean keepAlive) throws IOException {
+
+      Exchange exchange = exchanges.poll();
+      if (exchange == null) {
+        throw new IOException("Unexpected answer from the PDP " + pool.origin);
+      }
+      answered++;
+      lastActivity = System.nanoTime();
+      if (!keepAlive) {
+        closeRequested = true;
+      }
+      pool.updateGauges();
+      if (status != 200 && status != 500) {
+        exchange.fail(new PDPMessageException("PDP answered with HTTP status "
+          + status));
+      } else {
+        exchange.answer.complete(body);
+      }
+    }
+
+    /**
+     * Closes the connection. The unanswered messages are sent again if the
+     * connection was reused, or if they were pipelined behind another, and
+     * failed otherwise.
+     * 
+     * @param cause
+     *          why the connection is closed, <code>null</code> if it is idle
+     * @param resend
+     *          whether the unanswered messages may be sent again
+     */
+    private void close(final IOException cause, final boolean resend) {
+
+      if (closed) {
+        return;
+      }
+      closed = true;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Unable to close connection to " + pool.origin, e);
+      }
+      pool.connections.remove(this);
+      if (cause != null && !exchanges.isEmpty()) {
+        log.debug("Connection to {} closed with {} unanswered messages: {}",
+          new Object[] { pool.origin, exchanges.size(), cause.getMessage() });
+      }
+
+      ArrayDeque<Exchange> unanswered = new ArrayDeque<Exchange>();
+      boolean first = true;
+      for (Exchange exchange : exchanges) {
+        if (exchange.answer.isDone()) {
+          first = false;
+          continue;
+        }
+        if (resend && !exchange.resent && (answered > 0 || !first)) {
+          exchange.resent = true;
+          unanswered.add(exchange);
+        } else {
+          exchange.fail(cause);
+        }
+        first = false;
+      }
+      exchanges.clear();
+      outbound.clear();
+      Iterator<Exchange> reversed = unanswered.descendingIterator();
+      while (reversed.hasNext()) {
+        pool.pending.addFirst(reversed.next());
+      }
+      pool.updateGauges();
+    }
+  }
+
+  /** Incremental parser of the HTTP answers of a connection. */
+  private static final class ResponseParser {
+
+    /** Parsing states. */
+    private enum State {
+      STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE
+    }
+
+    /** Connection receiving the answers. */
+    private final Connection connection;
+
+    /** Line being read. */
+    private final StringBuilder line = new StringBuilder();
+
+    /** Body being read. */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    /** Current state. */
+    private State state = State.STATUS_LINE;
+
+    /** HTTP status of the answer. */
+    private int status;
+
+    /** Whether the connection is kept alive after the answer. */
+    private boolean keepAlive;
+
+    /** Whether the body is chunked. */
+    private boolean chunked;
+
+    /** Content length of the body, -1 if not given. */
+    private long contentLength;
+
+    /** Bytes remaining in the body or in the current chunk. */
+    private long remaining;
+
+    /**
+     * Constructor.
+     * 
+     * @param answeredConnection
+     *          connection receiving the answers
+     */
+    private ResponseParser(final Connection answeredConnection) {
+
+      connection = answeredConnection;
+    }
+
+    /**
+     * Parses answer bytes.
+     * 
+     * @param input
+     *          the bytes, in read mode
+     * 
+     * @throws IOException
+     *           thrown if the answer is invalid
+     */
+    private void parse(final ByteBuffer input) throws IOException {
+
+      while (input.hasRemaining()) {
+        switch (state) {
+        case BODY:
+        case CHUNK_DATA:
+          int length = (int) Math.min(remaining, input.remaining());
+          body.write(input.array(), input.arrayOffset() + input.position(),
+            length);
+          input.position(input.position() + length);
+          remaining -= length;
+          if (remaining == 0) {
+            if (state == State.BODY) {
+              complete();
+            } else {
+              state = State.CHUNK_END;
+            }
+          }
+          break;
+        case BODY_UNTIL_CLOSE:
+          body.write(input.array(), input.arrayOffset() + input.position(),
+            input.remaining());
+          input.position(input.limit());
+          break;
+        default:
+          if (readLine(input)) {
+            String text = line.toString();
+            line.setLength(0);
+            lineRead(text);
+          }
+          break;
+        }
+      }
+    }
+
+    /**
+     * Completes the answer whose body ends with the connection.
+     * 
+     * @throws IOException
+     *           thrown if no message was expecting an answer
+     */
+    private void endOfStream() throws IOException {
+
+      if (state == State.BODY_UNTIL_CLOSE) {
+        complete();
+      }
+    }
+
+    /**
+     * Reads the input up to the end of the current line.
+     * 
+     * @param input
+     *          the bytes, in read mode
+     * 
+     * @return <code>true</code> if the line is complete
+     * 
+     * @throws IOException
+     *           thrown if the line is too long
+     */
+    private boolean readLine(final ByteBuffer input) throws IOException {
+
+      while (input.hasRemaining()) {
+        char c = (char) (input.get() & 0xff);
+        if (c == '\n') {
+          int last = line.length() - 1;
+          if (last >= 0 && line.charAt(last) == '\r') {
+            line.setLength(last);
+          }
+          return true;
+        }
+        if (line.length() >= MAX_LINE_LENGTH) {
+          throw new IOException("HTTP answer line too long");
+        }
+        line.append(c);
+      }
+      return false;
+    }
+
+    /**
+     * Processes a line of the answer head or of the chunk framing.
+     * 
+     * @param text
+     *          the line, without its terminator
+     * 
+     * @throws IOException
+     *           thrown if the line is invalid
+     */
+    private void lineRead(final String text) throws IOException {
+
+      switch (state) {
+      case STATUS_LINE:
+        if (text.isEmpty()) {
+          return;
+        }
+        String[] parts = text.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+          throw new IOException("Invalid HTTP status line: " + text);
+        }
+        try {
+          status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid HTTP status line: " + text);
+        }
+        keepAlive = !"HTTP/1.0".equals(parts[0]);
+        chunked = false;
+        contentLength = -1;
+        body.reset();
+        state = State.HEADERS;
+        break;
+      case HEADERS:
+        if (text.isEmpty()) {
+          headersRead();
+        } else {
+          headerRead(text);
+        }
+        break;
+      case CHUNK_SIZE:
+        int extension = text.indexOf(';');
+        String size = (extension < 0 ? text : text.substring(0, extension))
+          .trim();
+        try {
+          remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid HTTP chunk size: " + text);
+        }
+        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+        break;
+      case CHUNK_END:
+        if (!text.isEmpty()) {
+          throw new IOException("Invalid HTTP chunk end");
+        }
+        state = State.CHUNK_SIZE;
+        break;
+      case TRAILERS:
+        if (text.isEmpty()) {
+          complete();
+        }
+        break;
+      default:
+        break;
+      }
+    }
+
+    /**
+     * Processes a header of the answer.
+     * 
+     * @param text
+     *          the header line
+     * 
+     * @throws IOException
+     *           thrown if the header is invalid
+     */
+    private void headerRead(final String text) throws IOException {
+
+      int colon = text.indexOf(':');
+      if (colon <= 0) {
+        throw new IOException("Invalid HTTP header: " + text);
+      }
+      String name = text.substring(0, colon).trim();
+      String value = text.substring(colon + 1).trim();
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        try {
+          contentLength = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid HTTP content length: " + value);
+        }
+      } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+        chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+      } else if ("Connection".equalsIgnoreCase(name)) {
+        String token = value.toLowerCase(Locale.ENGLISH);
+        if (token.contains("close")) {
+          keepAlive = false;
+        } else if (token.contains("keep-alive")) {
+          keepAlive = true;
+        }
+      }
+    }
+
+    /**
+     * Selects how the body is read once the head is read.
+     * 
+     * @throws IOException
+     *           thrown if no message was expecting an answer
+     */
+    private void headersRead() throws IOException {
+
+      if (status >= 100 && status < 200) {
+        // interim answer, the final one follows
+        state = State.STATUS_LINE;
+      } else if (chunked) {
+        state = State.CHUNK_SIZE;
+      } else if (contentLength > 0) {
+        remaining = contentLength;
+        state = State.BODY;
+      } else if (contentLength == 0 || status == 204 || status == 304) {
+        complete();
+      } else {
+        keepAlive = false;
+        state = State.BODY_UNTIL_CLOSE;
+      }
+    }
+
+    /**
+     * Hands the complete answer over to the connection.
+     * 
+     * @throws IOException
+     *           thrown if no message was expecting an answer
+     */
+    private void complete() throws IOException {
+
+      state = State.STATUS_LINE;
+      byte[] answer = body.toByteArray();
+      body.reset();
+      connection.answerReceived(status, answer, keepAlive);
+    }
+  }
+}
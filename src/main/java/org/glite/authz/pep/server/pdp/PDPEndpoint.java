@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** A PDP endpoint and the statistics of the requests sent to it. */
+@ThreadSafe
+public class PDPEndpoint {
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(PDPEndpoint.class);
+
+  /** Weight of the last latency in the moving average. */
+  private static final double EWMA_WEIGHT = 0.2;
+
+  /** URL of the endpoint. */
+  private final String url;
+
+  /** Number of requests sent and not answered yet. */
+  private final AtomicInteger outstandingRequests = new AtomicInteger();
+
+  /** Number of requests sent. */
+  private final AtomicLong requests = new AtomicLong();
+
+  /** Number of requests not answered with a valid decision. */
+  private final AtomicLong failures = new AtomicLong();
+
+  /** Exponentially weighted moving average of the latency, in nanoseconds. */
+  private final AtomicLong latencyAverage = new AtomicLong();
+
+  /** Histogram of the latency of the completed requests. */
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+  /** Circuit breaker of the endpoint, <code>null</code> if disabled. */
+  private final CircuitBreaker circuitBreaker;
+
+  /**
+   * Constructor.
+   * 
+   * @param endpointUrl
+   *          URL of the endpoint
+   */
+  public PDPEndpoint(final String endpointUrl) {
+
+    this(endpointUrl, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param endpointUrl
+   *          URL of the endpoint
+   * @param breaker
+   *          circuit breaker of the endpoint, <code>null</code> to disable
+   */
+  public PDPEndpoint(final String endpointUrl, final CircuitBreaker breaker) {
+
+    if (endpointUrl == null) {
+      throw new IllegalArgumentException("PDP endpoint URL may not be null");
+    }
+    url = endpointUrl;
+    circuitBreaker = breaker;
+  }
+
+  /**
+   * Gets the URL of the endpoint.
+   * 
+   * @return URL of the endpoint
+   */
+  public String getUrl() {
+
+    return url;
+  }
+
+  /**
+   * Gets the circuit breaker of the endpoint.
+   * 
+   * @return the circuit breaker, <code>null</code> if disabled
+   */
+  public CircuitBreaker getCircuitBreaker() {
+
+    return circuitBreaker;
+  }
+
+  /**
+   * Checks whether a request may be sent to the endpoint, according to its
+   * circuit breaker. If so, the request must be sent and its completion
+   * recorded.
+   * 
+   * @return <code>false</code> if the circuit of the endpoint is open
+   */
+  public boolean allowRequest() {
+
+    return circuitBreaker == null || circuitBreaker.allowRequest();
+  }
+
+  /**
+   * Records that a request is sent to the endpoint.
+   * 
+   * @return the start time of the request, to be given to
+   *         {@link #requestCompleted(long, boolean)}
+   */
+  public long requestStarted() {
+
+    outstandingRequests.incrementAndGet();
+    requests.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Records the completion of a request. Only the latency of the answered
+   * requests is included in the average: an endpoint failing fast must not
+   * look faster than the others. The failing endpoints are skipped by their
+   * circuit breaker instead.
+   * 
+   * @param startTime
+   *          the start time returned by {@link #requestStarted()}
+   * @param answered
+   *          whether the endpoint answered with a valid decision
+   */
+  public void requestCompleted(final long startTime, final boolean answered) {
+
+    outstandingRequests.decrementAndGet();
+    if (!answered) {
+      failures.incrementAndGet();
+    }
+    if (circuitBreaker != null) {
+      if (answered) {
+        circuitBreaker.recordSuccess();
+      } else if (circuitBreaker.recordFailure()) {
+        log.warn("PDP {} failed, it is skipped until it is reachable again",
+          url);
+      }
+    }
+    long latency = System.nanoTime() - startTime;
+    latencyHistogram.record(latency);
+    if (!answered) {
+      return;
+    }
+    long average;
+    long updated;
+    do {
+      average = latencyAverage.get();
+      if (average == 0) {
+        updated = Math.max(latency, 1);
+      } else {
+        updated = average + (long) ((latency - average) * EWMA_WEIGHT);
+      }
+    } while (!latencyAverage.compareAndSet(average, updated));
+  }
+
+  /**
+   * Records a request abandoned before its completion, because another
+   * endpoint answered first. It is neither a failure nor an answer.
+   * 
+   * @param startTime
+   *          the start time returned by {@link #requestStarted()}
+   */
+  public void requestCancelled(final long startTime) {
+
+    outstandingRequests.decrementAndGet();
+    if (circuitBreaker != null) {
+      circuitBreaker.recordCancellation();
+    }
+  }
+
+  /**
+   * Gets the number of requests sent and not answered yet.
+   * 
+   * @return number of outstanding requests
+   */
+  public int getOutstandingRequests() {
+
+    return outstandingRequests.get();
+  }
+
+  /**
+   * Gets the number of requests sent to the endpoint.
+   * 
+   * @return number of requests sent
+   */
+  public long getRequests() {
+
+    return requests.get();
+  }
+
+  /**
+   * Gets the number of requests not answered with a valid decision.
+   * 
+   * @return number of failed requests
+   */
+  public long getFailures() {
+
+    return failures.get();
+  }
+
+  /**
+   * Gets the moving average of the latency.
+   * 
+   * @param unit
+   *          unit of the returned latency
+   * 
+   * @return average latency, zero if no request has been answered yet
+   */
+  public long getLatencyAverage(final TimeUnit unit) {
+
+    return unit.convert(latencyAverage.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the histogram of the latency of the completed requests.
+   * 
+   * @return the latency histogram
+   */
+  public LatencyHistogram getLatencyHistogram() {
+
+    return latencyHistogram;
+  }
+
+  /** {@inheritDoc} */
+  public String toString() {
+
+    return url;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+
+/**
+ * The PDP endpoints to which the requests are sent. For each request, the
+ * endpoint chosen by the {@link LoadBalancingPolicy} is tried first, then the
+ * other endpoints in configuration order, until one answers. If circuit
+ * breakers are enabled, the endpoints whose circuit is open are skipped and
+ * probed in the background.
+ */
+@ThreadSafe
+public class PDPEndpointGroup implements MetricsSource {
+
+  /** Label identifying the endpoint of a metric. */
+  private static final String ENDPOINT_LABEL = "endpoint";
+
+  /** The endpoints, in configuration order. */
+  private final List<PDPEndpoint> endpoints;
+
+  /** Chooses the endpoint tried first. */
+  private final LoadBalancingPolicy policy;
+
+  /** Probes the endpoints with an open circuit, <code>null</code> if disabled. */
+  private final PDPEndpointProber prober;
+
+  /**
+   * Constructor. The circuit breakers are disabled.
+   * 
+   * @param endpointUrls
+   *          URLs of the PDP endpoints, in configuration order
+   * @param loadBalancingPolicy
+   *          chooses the endpoint tried first
+   */
+  public PDPEndpointGroup(final List<String> endpointUrls,
+    final LoadBalancingPolicy loadBalancingPolicy) {
+
+    this(endpointUrls, loadBalancingPolicy, 0, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param endpointUrls
+   *          URLs of the PDP endpoints, in configuration order
+   * @param loadBalancingPolicy
+   *          chooses the endpoint tried first
+   * @param failureThreshold
+   *          number of consecutive failures opening the circuit of an
+   *          endpoint, zero to disable the circuit breakers
+   * @param probeInterval
+   *          interval, in milliseconds, between two probes of the endpoints
+   *          with an open circuit
+   */
+  public PDPEndpointGroup(final List<String> endpointUrls,
+    final LoadBalancingPolicy loadBalancingPolicy, final int failureThreshold,
+    final long probeInterval) {
+
+    if (loadBalancingPolicy == null) {
+      throw new IllegalArgumentException(
+        "Load balancing policy may not be null");
+    }
+    if (failureThreshold < 0) {
+      throw new IllegalArgumentException(
+        "Failure threshold may not be negative");
+    }
+    List<PDPEndpoint> configured = new ArrayList<PDPEndpoint>();
+    if (endpointUrls != null) {
+      for (String url : endpointUrls) {
+        CircuitBreaker breaker = null;
+        if (failureThreshold > 0) {
+          breaker = new CircuitBreaker(failureThreshold);
+        }
+        configured.add(new PDPEndpoint(url, breaker));
+      }
+    }
+    endpoints = Collections.unmodifiableList(configured);
+    policy = loadBalancingPolicy;
+    if (failureThreshold > 0 && !endpoints.isEmpty()) {
+      prober = new PDPEndpointProber(endpoints, probeInterval);
+    } else {
+      prober = null;
+    }
+  }
+
+  /**
+   * Gets the endpoints, in configuration order.
+   * 
+   * @return the immutable list of endpoints
+   */
+  public List<PDPEndpoint> getEndpoints() {
+
+    return endpoints;
+  }
+
+  /**
+   * Gets the endpoints in the order they are tried for a new request.
+   * 
+   * @return the endpoints, the one chosen by the policy first
+   */
+  public List<PDPEndpoint> selectEndpoints() {
+
+    int size = endpoints.size();
+    if (size < 2) {
+      return endpoints;
+    }
+    int selected = policy.selectEndpoint(endpoints);
+    if (selected == 0) {
+      return endpoints;
+    }
+    List<PDPEndpoint> ordered = new ArrayList<PDPEndpoint>(size);
+    ordered.add(endpoints.get(selected));
+    for (int i = 0; i < size; i++) {
+      if (i != selected) {
+        ordered.add(endpoints.get(i));
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Stops probing the endpoints. The group may still be used, the open
+   * circuits then stay open.
+   */
+  public void shutdown() {
+
+    if (prober != null) {
+      prober.shutdown();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    for (PDPEndpoint endpoint : endpoints) {
+      String url = endpoint.getUrl();
+      writer.counter("pdp_endpoint_requests_total",
+        "Requests sent to the PDP endpoint", ENDPOINT_LABEL, url,
+        endpoint.getRequests());
+      writer.counter("pdp_endpoint_failures_total",
+        "Requests the PDP endpoint did not answer with a decision",
+        ENDPOINT_LABEL, url, endpoint.getFailures());
+      writer.gauge("pdp_endpoint_outstanding_requests",
+        "Requests sent to the PDP endpoint and not answered yet",
+        ENDPOINT_LABEL, url, endpoint.getOutstandingRequests());
+      writer.gauge("pdp_endpoint_latency_seconds",
+        "Moving average of the PDP endpoint latency", ENDPOINT_LABEL, url,
+        endpoint.getLatencyAverage(TimeUnit.MICROSECONDS) / 1000000.0);
+      writer.summary("pdp_endpoint_request_latency_seconds",
+        "Latency of the requests completed by the PDP endpoint",
+        ENDPOINT_LABEL, url, endpoint.getLatencyHistogram().summarize());
+      CircuitBreaker breaker = endpoint.getCircuitBreaker();
+      if (breaker != null) {
+        writer.gauge("pdp_endpoint_circuit_state",
+          "Circuit of the PDP endpoint: 0 closed, 1 open, 2 half-open",
+          ENDPOINT_LABEL, url, breaker.getState().ordinal());
+        writer.counter("pdp_endpoint_circuit_openings_total",
+          "Times the circuit of the PDP endpoint opened", ENDPOINT_LABEL, url,
+          breaker.getOpenings());
+      }
+    }
+  }
+}
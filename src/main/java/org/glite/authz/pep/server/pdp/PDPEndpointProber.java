@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically checks whether the PDP endpoints with an open circuit are
+ * reachable again. The probe only opens a TCP connection to the endpoint, the
+ * trial request of the half-open circuit then checks that it answers.
+ */
+@ThreadSafe
+class PDPEndpointProber {
+
+  /** Timeout, in milliseconds, of the connection to a probed endpoint. */
+  public static final int PROBE_TIMEOUT = 2000;
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(PDPEndpointProber.class);
+
+  /** The probed endpoints. */
+  private final List<PDPEndpoint> endpoints;
+
+  /** Runs the probes. */
+  private final ScheduledExecutorService probeExecutor;
+
+  /**
+   * Constructor.
+   * 
+   * @param probedEndpoints
+   *          the probed endpoints
+   * @param probeInterval
+   *          interval, in milliseconds, between two probes
+   */
+  PDPEndpointProber(final List<PDPEndpoint> probedEndpoints,
+    final long probeInterval) {
+
+    if (probeInterval < 1) {
+      throw new IllegalArgumentException(
+        "Probe interval must be greater than zero");
+    }
+    endpoints = probedEndpoints;
+    probeExecutor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("pepd-pdp-probe-%d").build());
+    probeExecutor.scheduleWithFixedDelay(new Runnable() {
+
+      public void run() {
+
+        probeOpenEndpoints();
+      }
+    }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Probes the endpoints whose circuit is open. */
+  void probeOpenEndpoints() {
+
+    for (PDPEndpoint endpoint : endpoints) {
+      CircuitBreaker breaker = endpoint.getCircuitBreaker();
+      if (breaker != null && breaker.getState() == CircuitBreaker.State.OPEN
+        && probe(endpoint) && breaker.probeSucceeded()) {
+        log.info("PDP {} is reachable again, sending it a trial request",
+          endpoint.getUrl());
+      }
+    }
+  }
+
+  /**
+   * Checks whether a TCP connection to an endpoint can be opened.
+   * 
+   * @param endpoint
+   *          the endpoint
+   * 
+   * @return <code>true</code> if the endpoint accepted the connection
+   */
+  boolean probe(final PDPEndpoint endpoint) {
+
+    InetSocketAddress address;
+    try {
+      URI uri = new URI(endpoint.getUrl());
+      int port = uri.getPort();
+      if (port < 0) {
+        port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+      }
+      if (uri.getHost() == null) {
+        log.warn("Unable to probe PDP {}, its URL has no host",
+          endpoint.getUrl());
+        return false;
+      }
+      address = new InetSocketAddress(uri.getHost(), port);
+    } catch (URISyntaxException e) {
+      log.warn("Unable to probe PDP {}: {}", endpoint.getUrl(), e.getMessage());
+      return false;
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(address, PROBE_TIMEOUT);
+      return true;
+    } catch (IOException e) {
+      log.debug("PDP {} is still unreachable: {}", endpoint.getUrl(),
+        e.getMessage());
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+
+  /** Stops the probes. */
+  void shutdown() {
+
+    probeExecutor.shutdownNow();
+  }
+}
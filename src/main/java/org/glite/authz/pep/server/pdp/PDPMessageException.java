@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+/**
+ * Exception thrown if a PDP message can not be written or read, or if the PDP
+ * answered with a SOAP fault.
+ */
+public class PDPMessageException extends Exception {
+
+  /** Serial version UID. */
+  private static final long serialVersionUID = 4361527709358836532L;
+
+  /** Constructor. */
+  public PDPMessageException() {
+
+    super();
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param message
+   *          exception message
+   */
+  public PDPMessageException(final String message) {
+
+    super(message);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param wrappedException
+   *          exception to be wrapped by this one
+   */
+  public PDPMessageException(final Exception wrappedException) {
+
+    super(wrappedException);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param message
+   *          exception message
+   * @param wrappedException
+   *          exception to be wrapped by this one
+   */
+  public PDPMessageException(final String message,
+    final Exception wrappedException) {
+
+    super(message, wrappedException);
+  }
+}
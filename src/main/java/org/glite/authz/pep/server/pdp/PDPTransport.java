@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport of the SOAP messages encoded by the {@link XACMLSAMLStreamingCodec}
+ * to the PDP endpoints.
+ */
+public interface PDPTransport {
+
+  /**
+   * Sends a SOAP message to a PDP endpoint and waits for its answer. An
+   * interrupted caller gets an {@link java.io.InterruptedIOException}, with its
+   * interrupt status still set.
+   * 
+   * @param endpoint
+   *          URL of the PDP endpoint
+   * @param message
+   *          the UTF-8 encoded SOAP message
+   * 
+   * @return the SOAP message answered by the PDP, a response or a fault
+   * 
+   * @throws IOException
+   *           thrown if the message can not be sent or the answer read
+   * @throws PDPMessageException
+   *           thrown if the PDP answered with an HTTP status other than 200
+   *           or, for the SOAP faults, 500
+   */
+  byte[] send(String endpoint, byte[] message) throws IOException,
+    PDPMessageException;
+
+  /**
+   * Sends a SOAP message to a PDP endpoint without waiting for its answer.
+   * The future may be completed by a transport thread, the callbacks must not
+   * block. Cancelling the future releases the threads waiting for the answer,
+   * which is then discarded. The blocking transports extend
+   * {@link BlockingPDPTransport} and complete the future before returning it.
+   * 
+   * @param endpoint
+   *          URL of the PDP endpoint
+   * @param message
+   *          the UTF-8 encoded SOAP message
+   * 
+   * @return the future SOAP message answered by the PDP, failed with an
+   *         {@link IOException} or a {@link PDPMessageException} as
+   *         {@link #send(String, byte[])}
+   */
+  CompletableFuture<byte[]> sendAsync(String endpoint, byte[] message);
+
+  /**
+   * Shuts down the transport. The messages already sent are still answered,
+   * the subsequent ones fail.
+   */
+  void shutdown();
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.pep.server.metrics.MetricsSource;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hedges the PDP requests: if the first PDP has not answered after the hedge
+ * delay, the request is also sent to a second PDP and the first valid answer
+ * wins. The other request is cancelled, its answer is ignored.
+ * <p>
+ * The hedge delay is either fixed or the 95th percentile of the latency of the
+ * recent PDP answers. The hedges are limited to a percentage of the requests:
+ * each request earns a fraction of a hedge, a hedge is only sent if a whole
+ * one has been earned.
+ * <p>
+ * The request left unanswered is aborted if it is an {@link AbortableRequest},
+ * its thread is interrupted otherwise.
+ */
+@ThreadSafe
+public class RequestHedger implements MetricsSource {
+
+  /** Number of recent latencies from which the percentile is computed. */
+  public static final int LATENCY_WINDOW = 1024;
+
+  /** Number of latencies recorded between two percentile computations. */
+  public static final int PERCENTILE_UPDATE_INTERVAL = 64;
+
+  /** Number of latencies required before the percentile is used. */
+  public static final int MIN_LATENCY_SAMPLES = 100;
+
+  /** Maximum number of hedges which may be sent in a burst. */
+  public static final int MAX_HEDGE_BURST = 10;
+
+  /** Budget units of a single hedge. */
+  private static final long HEDGE_COST = 100;
+
+  /** Fixed hedge delay, in milliseconds, zero to use the latency percentile. */
+  private final long fixedHedgeDelay;
+
+  /** Maximum percentage of the requests which are hedged. */
+  private final int hedgeBudget;
+
+  /** Sends the hedged requests. */
+  private final ThreadPoolExecutor requestExecutor;
+
+  /** Budget units available, one hedge costs {@link #HEDGE_COST} units. */
+  private final AtomicLong availableBudget = new AtomicLong(HEDGE_COST);
+
+  /** The recent latencies, in nanoseconds. */
+  private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_WINDOW);
+
+  /** Number of latencies recorded. */
+  private final AtomicInteger latencySamples = new AtomicInteger();
+
+  /** 95th percentile of the recent latencies, in milliseconds, -1 if unknown. */
+  private volatile long latencyPercentile = -1;
+
+  /** Number of hedges sent. */
+  private final AtomicLong hedges = new AtomicLong();
+
+  /** Number of hedges which answered first. */
+  private final AtomicLong hedgesWon = new AtomicLong();
+
+  /** Number of hedges not sent because the budget was exhausted. */
+  private final AtomicLong hedgesDenied = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param hedgeDelay
+   *          delay, in milliseconds, after which a request is hedged, zero to
+   *          use the 95th percentile of the recent latencies
+   * @param budget
+   *          maximum percentage of the requests which are hedged, between 1
+   *          and 100
+   * @param maxThreads
+   *          maximum number of threads sending the hedged requests
+   */
+  public RequestHedger(final long hedgeDelay, final int budget,
+    final int maxThreads) {
+
+    if (hedgeDelay < 0) {
+      throw new IllegalArgumentException("Hedge delay may not be negative");
+    }
+    if (budget < 1 || budget > 100) {
+      throw new IllegalArgumentException(
+        "Hedge budget must be between 1 and 100");
+    }
+    if (maxThreads < 2) {
+      throw new IllegalArgumentException(
+        "Maximum number of threads must be at least 2");
+    }
+    fixedHedgeDelay = hedgeDelay;
+    hedgeBudget = budget;
+    requestExecutor = new ThreadPoolExecutor(0, maxThreads, 60,
+      TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("pepd-pdp-request-%d").build());
+  }
+
+  /**
+   * Gets the delay after which a request is hedged.
+   * 
+   * @return the delay, in milliseconds, -1 if the latency percentile is not
+   *         known yet
+   */
+  public long getHedgeDelay() {
+
+    if (fixedHedgeDelay > 0) {
+      return fixedHedgeDelay;
+    }
+    return latencyPercentile;
+  }
+
+  /**
+   * Sends a request, and its hedge if the request is not answered after the
+   * hedge delay. A request failing with an exception is not answered: the
+   * answer of the other request is still waited for, and the failure is only
+   * rethrown if neither was answered.
+   * 
+   * @param <T>
+   *          type of the answers
+   * @param request
+   *          sends the request, returns <code>null</code> if not answered
+   * @param hedge
+   *          sends the hedge, returns <code>null</code> if not answered
+   * 
+   * @return the first answer, <code>null</code> if neither was answered
+   * 
+   * @throws InterruptedException
+   *           thrown if the thread is interrupted while waiting for the answers
+   */
+  public <T> T execute(final Callable<T> request, final Callable<T> hedge)
+    throws InterruptedException {
+
+    long startTime = System.nanoTime();
+    earnBudget();
+    long delay = getHedgeDelay();
+    if (delay < 0) {
+      return recordLatency(startTime, call(request));
+    }
+
+    CompletionService<T> completion = new ExecutorCompletionService<T>(
+      requestExecutor);
+    Future<T> requestFuture;
+    try {
+      requestFuture = completion.submit(request);
+    } catch (RejectedExecutionException e) {
+      return recordLatency(startTime, call(request));
+    }
+    Future<T> hedgeFuture = null;
+    try {
+      Future<T> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+      if (done == null) {
+        if (spendBudget()) {
+          try {
+            hedgeFuture = completion.submit(hedge);
+            hedges.incrementAndGet();
+          } catch (RejectedExecutionException e) {
+            hedgeFuture = null;
+          }
+        } else {
+          hedgesDenied.incrementAndGet();
+        }
+        done = completion.take();
+      }
+      T answer = null;
+      RuntimeException failure = null;
+      try {
+        answer = getAnswer(done);
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+      if (answer == null && hedgeFuture != null) {
+        // the other request may still answer
+        done = completion.take();
+        try {
+          answer = getAnswer(done);
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+      if (answer == null && failure != null) {
+        throw failure;
+      }
+      if (answer != null && done == hedgeFuture) {
+        hedgesWon.incrementAndGet();
+      }
+      return recordLatency(startTime, answer);
+    } finally {
+      cancel(requestFuture, request);
+      if (hedgeFuture != null) {
+        cancel(hedgeFuture, hedge);
+      }
+    }
+  }
+
+  /** Stops the threads sending the hedged requests. */
+  public void shutdown() {
+
+    requestExecutor.shutdownNow();
+  }
+
+  /** {@inheritDoc} */
+  public void collectMetrics(final MetricsWriter writer) {
+
+    writer.counter("pdp_hedged_requests_total",
+      "PDP requests sent again to a second PDP", hedges.get());
+    writer.counter("pdp_hedged_requests_won_total",
+      "Hedged PDP requests answered first by the second PDP", hedgesWon.get());
+    writer.counter("pdp_hedged_requests_denied_total",
+      "PDP requests not hedged because the hedge budget was exhausted",
+      hedgesDenied.get());
+    writer.gauge("pdp_hedge_delay_seconds",
+      "Delay after which a PDP request is hedged",
+      Math.max(getHedgeDelay(), 0) / 1000.0);
+  }
+
+  /** Adds the budget earned by a request. */
+  private void earnBudget() {
+
+    long max = MAX_HEDGE_BURST * HEDGE_COST;
+    long budget;
+    do {
+      budget = availableBudget.get();
+      if (budget >= max) {
+        return;
+      }
+    } while (!availableBudget.compareAndSet(budget,
+      Math.min(max, budget + hedgeBudget)));
+  }
+
+  /**
+   * Takes the budget of a hedge.
+   * 
+   * @return <code>true</code> if the budget was available
+   */
+  private boolean spendBudget() {
+
+    long budget;
+    do {
+      budget = availableBudget.get();
+      if (budget < HEDGE_COST) {
+        return false;
+      }
+    } while (!availableBudget.compareAndSet(budget, budget - HEDGE_COST));
+    return true;
+  }
+
+  /**
+   * Cancels a request still running: an abortable request is aborted,
+   * otherwise its thread is interrupted.
+   * 
+   * @param future
+   *          the future of the request
+   * @param request
+   *          the request
+   */
+  private void cancel(final Future<?> future, final Callable<?> request) {
+
+    if (future.isDone()) {
+      return;
+    }
+    if (request instanceof AbortableRequest) {
+      ((AbortableRequest<?>) request).abort();
+      future.cancel(false);
+    } else {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Calls a request in the current thread.
+   * 
+   * @param <T>
+   *          type of the answer
+   * @param request
+   *          the request
+   * 
+   * @return the answer of the request
+   */
+  private <T> T call(final Callable<T> request) {
+
+    try {
+      return request.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Gets the answer of a completed request.
+   * 
+   * @param <T>
+   *          type of the answer
+   * @param future
+   *          the completed request
+   * 
+   * @return the answer of the request
+   */
+  private <T> T getAnswer(final Future<T> future) throws InterruptedException {
+
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Records the latency of an answered request, and periodically updates the
+   * latency percentile.
+   * 
+   * @param <T>
+   *          type of the answer
+   * @param startTime
+   *          time, in nanoseconds, at which the request was sent
+   * @param answer
+   *          the answer, <code>null</code> if the request was not answered
+   * 
+   * @return the answer
+   */
+  private <T> T recordLatency(final long startTime, final T answer) {
+
+    if (answer == null || fixedHedgeDelay > 0) {
+      return answer;
+    }
+    int sample = latencySamples.getAndIncrement() & Integer.MAX_VALUE;
+    latencies.set(sample % LATENCY_WINDOW, System.nanoTime() - startTime);
+    if (sample + 1 >= MIN_LATENCY_SAMPLES
+      && (sample + 1) % PERCENTILE_UPDATE_INTERVAL == 0) {
+      int count = Math.min(sample + 1, LATENCY_WINDOW);
+      long[] window = new long[count];
+      for (int i = 0; i < count; i++) {
+        window[i] = latencies.get(i);
+      }
+      Arrays.sort(window);
+      latencyPercentile = Math.max(1,
+        TimeUnit.NANOSECONDS.toMillis(window[(int) (count * 0.95)]));
+    }
+    return answer;
+  }
+
+  /**
+   * A request which may be aborted from another thread, once the other
+   * request has been answered.
+   * 
+   * @param <T>
+   *          type of the answer
+   */
+  public interface AbortableRequest<T> extends Callable<T> {
+
+    /**
+     * Aborts the request: its answer is ignored and the thread sending it is
+     * released as soon as the transport allows it.
+     */
+    void abort();
+  }
+}
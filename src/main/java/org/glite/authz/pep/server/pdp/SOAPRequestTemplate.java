@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.model.Request;
+
+/**
+ * Template of the SOAP messages of the XACML authorization decision queries
+ * sent by a PEP daemon. The envelope, query header, issuer and namespace
+ * declarations are the same for every request: they are serialized once in to
+ * byte segments, and each request only splices in its ID, its issue instant
+ * and its XACML request.
+ * <p>
+ * The messages are byte for byte the ones written by
+ * {@link XACMLSAMLStreamingCodec#encodeRequest(Request, String, String, long)}
+ * .
+ */
+@ThreadSafe
+public final class SOAPRequestTemplate {
+
+  /** Placeholder of the message ID while the template is serialized. */
+  private static final String MESSAGE_ID_PLACEHOLDER = "_pepd-template-message-id";
+
+  /** Placeholder of the issue instant while the template is serialized. */
+  private static final String ISSUE_INSTANT_PLACEHOLDER = "_pepd-template-issue-instant";
+
+  /** Initial size of the message buffers. */
+  private static final int MESSAGE_BUFFER_SIZE = 2048;
+
+  /** Issuer of the queries. */
+  private final String issuer;
+
+  /** Static part of the message before the message ID. */
+  private final byte[] beforeMessageId;
+
+  /** Static part of the message between the message ID and the issue instant. */
+  private final byte[] beforeIssueInstant;
+
+  /** Static part of the message between the issue instant and the request. */
+  private final byte[] beforeRequest;
+
+  /** Static part of the message after the request. */
+  private final byte[] afterRequest;
+
+  /**
+   * Constructor.
+   * 
+   * @param queryIssuer
+   *          entity ID of the PEP daemon, issuer of the queries
+   */
+  public SOAPRequestTemplate(final String queryIssuer) {
+
+    if (queryIssuer == null) {
+      throw new IllegalArgumentException("Query issuer may not be null");
+    }
+    issuer = queryIssuer;
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] head;
+    byte[] message;
+    try {
+      XMLStreamWriter writer = XACMLSAMLStreamingCodec.createWriter(out);
+      XACMLSAMLStreamingCodec.writeQueryStart(writer, queryIssuer,
+        MESSAGE_ID_PLACEHOLDER, ISSUE_INSTANT_PLACEHOLDER);
+      writer.flush();
+      head = out.toByteArray();
+      XACMLSAMLStreamingCodec.writeQueryEnd(writer);
+      writer.close();
+      message = out.toByteArray();
+    } catch (XMLStreamException e) {
+      throw new IllegalStateException("Unable to serialize the SOAP template",
+        e);
+    }
+
+    int messageIdIndex = indexOf(head, MESSAGE_ID_PLACEHOLDER, 0);
+    int issueInstantIndex = indexOf(head, ISSUE_INSTANT_PLACEHOLDER,
+      messageIdIndex + MESSAGE_ID_PLACEHOLDER.length());
+    beforeMessageId = Arrays.copyOfRange(head, 0, messageIdIndex);
+    beforeIssueInstant = Arrays.copyOfRange(head, messageIdIndex
+      + MESSAGE_ID_PLACEHOLDER.length(), issueInstantIndex);
+    beforeRequest = Arrays.copyOfRange(head, issueInstantIndex
+      + ISSUE_INSTANT_PLACEHOLDER.length(), head.length);
+    afterRequest = Arrays.copyOfRange(message, head.length, message.length);
+  }
+
+  /**
+   * Gets the issuer of the queries.
+   * 
+   * @return entity ID of the PEP daemon
+   */
+  public String getIssuer() {
+
+    return issuer;
+  }
+
+  /**
+   * Encodes the SOAP message of a XACML authorization decision query.
+   * 
+   * @param request
+   *          the authorization request
+   * @param messageId
+   *          ID of the query
+   * @param issueInstant
+   *          issue instant of the query, in milliseconds since the epoch
+   * 
+   * @return the SOAP message, UTF-8 encoded
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message can not be written
+   */
+  public byte[] encodeRequest(final Request request, final String messageId,
+    final long issueInstant) throws PDPMessageException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(MESSAGE_BUFFER_SIZE);
+    writeRequest(request, messageId, issueInstant, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the SOAP message of a XACML authorization decision query.
+   * 
+   * @param request
+   *          the authorization request
+   * @param messageId
+   *          ID of the query
+   * @param issueInstant
+   *          issue instant of the query, in milliseconds since the epoch
+   * @param out
+   *          stream to which the UTF-8 encoded message is written
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message can not be written
+   */
+  public void writeRequest(final Request request, final String messageId,
+    final long issueInstant, final OutputStream out)
+    throws PDPMessageException {
+
+    try {
+      out.write(beforeMessageId);
+      writeAttributeValue(messageId, out);
+      out.write(beforeIssueInstant);
+      writeAttributeValue(
+        XACMLSAMLStreamingCodec.formatIssueInstant(issueInstant), out);
+      out.write(beforeRequest);
+      XMLStreamWriter writer = XACMLSAMLStreamingCodec.createWriter(out);
+      XACMLSAMLStreamingCodec.writeXACMLRequest(writer, request);
+      writer.close();
+      out.write(afterRequest);
+    } catch (XMLStreamException e) {
+      throw new PDPMessageException("Unable to write the PDP request", e);
+    } catch (IOException e) {
+      throw new PDPMessageException("Unable to write the PDP request", e);
+    }
+  }
+
+  /**
+   * Writes an escaped XML attribute value.
+   * 
+   * @param value
+   *          the attribute value
+   * @param out
+   *          stream to which the UTF-8 encoded value is written
+   * 
+   * @throws IOException
+   *           thrown if the value can not be written
+   */
+  private static void writeAttributeValue(final String value,
+    final OutputStream out) throws IOException {
+
+    StringBuilder escaped = null;
+    for (int i = 0; i < value.length(); i++) {
+      String entity;
+      switch (value.charAt(i)) {
+      case '&':
+        entity = "&amp;";
+        break;
+      case '<':
+        entity = "&lt;";
+        break;
+      case '>':
+        entity = "&gt;";
+        break;
+      case '"':
+        entity = "&quot;";
+        break;
+      default:
+        entity = null;
+        break;
+      }
+      if (entity != null && escaped == null) {
+        escaped = new StringBuilder(value.length() + 16);
+        escaped.append(value, 0, i);
+      }
+      if (entity != null) {
+        escaped.append(entity);
+      } else if (escaped != null) {
+        escaped.append(value.charAt(i));
+      }
+    }
+    String text = escaped == null ? value : escaped.toString();
+    out.write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Finds the UTF-8 encoded form of a placeholder in the serialized template.
+   * 
+   * @param message
+   *          the serialized template
+   * @param placeholder
+   *          the placeholder
+   * @param from
+   *          index from which the placeholder is searched
+   * 
+   * @return index of the placeholder
+   */
+  private static int indexOf(final byte[] message, final String placeholder,
+    final int from) {
+
+    byte[] target = placeholder.getBytes(StandardCharsets.UTF_8);
+    search: for (int i = from; i <= message.length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (message[i + j] != target[j]) {
+          continue search;
+        }
+      }
+      return i;
+    }
+    throw new IllegalStateException("Placeholder " + placeholder
+      + " not found in the SOAP template");
+  }
+}
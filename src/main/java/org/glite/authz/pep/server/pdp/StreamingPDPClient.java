@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+/**
+ * Blocking {@link PDPTransport}, sending the SOAP messages to the PDP
+ * endpoints from the calling thread. The HTTP client, and so its connection
+ * pool and TLS settings, is the one of the OpenSAML SOAP client.
+ */
+@ThreadSafe
+public class StreamingPDPClient extends BlockingPDPTransport {
+
+  /** SOAP action of the XACML-SAML requests. */
+  public static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
+
+  /** Content type of the SOAP messages. */
+  public static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+
+  /** HTTP client used to send the messages. */
+  private final HttpClient httpClient;
+
+  /**
+   * Constructor.
+   * 
+   * @param client
+   *          HTTP client used to send the messages
+   */
+  public StreamingPDPClient(final HttpClient client) {
+
+    if (client == null) {
+      throw new IllegalArgumentException("HTTP client may not be null");
+    }
+    httpClient = client;
+  }
+
+  /** {@inheritDoc} */
+  public byte[] send(final String endpoint, final byte[] message)
+    throws IOException, PDPMessageException {
+
+    PostMethod post = new PostMethod(endpoint);
+    try {
+      post.setRequestHeader("SOAPAction", SOAP_ACTION);
+      post.setRequestEntity(new ByteArrayRequestEntity(message, CONTENT_TYPE));
+      int status = httpClient.executeMethod(post);
+      if (status != HttpStatus.SC_OK
+        && status != HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+        throw new PDPMessageException("PDP answered with HTTP status " + status);
+      }
+      return post.getResponseBody();
+    } finally {
+      post.releaseConnection();
+    }
+  }
+
+  /**
+   * Does nothing, the HTTP client is shared with the OpenSAML SOAP client.
+   */
+  public void shutdown() {
+
+  }
+}
@@ -0,0 +1,1167 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.AttributeAssignment;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Obligation;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Status;
+import org.glite.authz.common.model.StatusCode;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.common.model.util.Strings;
+
+/**
+ * Writes and reads the XACML-SAML SOAP messages exchanged with the PDP
+ * directly with StAX. The request envelope is written from the {@link Request}
+ * model and the PDP response is read into the {@link Response} model, without
+ * building the OpenSAML object trees nor their DOM.
+ * <p>
+ * The messages are equivalent to the ones built by
+ * {@link org.glite.authz.common.context.DecisionRequestContextHelper} and
+ * converted by {@link org.glite.authz.common.model.util.XACMLConverter}, and
+ * the PDP response is validated as the request handler does: it must contain
+ * exactly one assertion with exactly one XACML authorization decision
+ * statement.
+ */
+@ThreadSafe
+public final class XACMLSAMLStreamingCodec {
+
+  /** SOAP 1.1 envelope namespace. */
+  public static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+  /** SAML 2 assertion namespace. */
+  public static final String SAML20_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+  /** SAML 2 protocol namespace. */
+  public static final String SAML20P_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+  /** XACML-SAML protocol namespace. */
+  public static final String XACML_SAMLP_NS = "urn:oasis:xacml:2.0:saml:protocol:schema:os";
+
+  /** XACML-SAML assertion namespace. */
+  public static final String XACML_SAML_NS = "urn:oasis:xacml:2.0:saml:assertion:schema:os";
+
+  /** XACML 2 context namespace. */
+  public static final String XACML_CONTEXT_NS = "urn:oasis:names:tc:xacml:2.0:context:schema:os";
+
+  /** XACML 2 policy namespace. */
+  public static final String XACML_POLICY_NS = "urn:oasis:names:tc:xacml:2.0:policy:schema:os";
+
+  /** Format of the request issuer, an entity ID. */
+  public static final String ENTITY_NAMEID_FORMAT = "urn:oasis:names:tc:SAML:2.0:nameid-format:entity";
+
+  /** Local name of the XACML authorization decision statement type. */
+  private static final String DECISION_STATEMENT_TYPE = "XACMLAuthzDecisionStatementType";
+
+  /** Formats the SAML issue instants, in UTC with millisecond precision. */
+  private static final DateTimeFormatter ISSUE_INSTANT_FORMATTER = DateTimeFormatter
+    .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  /** Initial size of the request buffers. */
+  private static final int REQUEST_BUFFER_SIZE = 2048;
+
+  /** Factory of the message writers. */
+  private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory
+    .newInstance();
+
+  /** Factory of the message readers, DTDs and external entities are refused. */
+  private static final XMLInputFactory INPUT_FACTORY;
+
+  /** Generates the random part of the message IDs. */
+  private static final SecureRandom ID_GENERATOR = new SecureRandom();
+
+  /** Hexadecimal digits of the message IDs. */
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  static {
+    INPUT_FACTORY = XMLInputFactory.newInstance();
+    INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    INPUT_FACTORY.setProperty(
+      XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  /** Constructor. */
+  private XACMLSAMLStreamingCodec() {
+
+  }
+
+  /**
+   * Generates a SAML message ID: an underscore followed by 128 random bits in
+   * hexadecimal.
+   * 
+   * @return the message ID
+   */
+  public static String generateMessageId() {
+
+    byte[] bits = new byte[16];
+    ID_GENERATOR.nextBytes(bits);
+    char[] id = new char[1 + bits.length * 2];
+    id[0] = '_';
+    for (int i = 0; i < bits.length; i++) {
+      id[1 + i * 2] = HEX_DIGITS[(bits[i] >> 4) & 0xf];
+      id[2 + i * 2] = HEX_DIGITS[bits[i] & 0xf];
+    }
+    return new String(id);
+  }
+
+  /**
+   * Formats a SAML issue instant, in UTC with millisecond precision.
+   * 
+   * @param instant
+   *          the instant, in milliseconds since the epoch
+   * 
+   * @return the formatted instant
+   */
+  public static String formatIssueInstant(final long instant) {
+
+    return ISSUE_INSTANT_FORMATTER.format(Instant.ofEpochMilli(instant));
+  }
+
+  /**
+   * Encodes the SOAP message of a XACML authorization decision query.
+   * 
+   * @param request
+   *          the authorization request
+   * @param issuer
+   *          entity ID of the PEP daemon, issuer of the query
+   * @param messageId
+   *          ID of the query
+   * @param issueInstant
+   *          issue instant of the query, in milliseconds since the epoch
+   * 
+   * @return the SOAP message, UTF-8 encoded
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message can not be written
+   */
+  public static byte[] encodeRequest(final Request request,
+    final String issuer, final String messageId, final long issueInstant)
+    throws PDPMessageException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(REQUEST_BUFFER_SIZE);
+    writeRequest(request, issuer, messageId, issueInstant, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the SOAP message of a XACML authorization decision query.
+   * 
+   * @param request
+   *          the authorization request
+   * @param issuer
+   *          entity ID of the PEP daemon, issuer of the query
+   * @param messageId
+   *          ID of the query
+   * @param issueInstant
+   *          issue instant of the query, in milliseconds since the epoch
+   * @param out
+   *          stream to which the UTF-8 encoded message is written
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message can not be written
+   */
+  public static void writeRequest(final Request request, final String issuer,
+    final String messageId, final long issueInstant, final OutputStream out)
+    throws PDPMessageException {
+
+    try {
+      XMLStreamWriter writer = createWriter(out);
+      writeQueryStart(writer, issuer, messageId,
+        formatIssueInstant(issueInstant));
+      writeXACMLRequest(writer, request);
+      writeQueryEnd(writer);
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new PDPMessageException("Unable to write the PDP request", e);
+    }
+  }
+
+  /**
+   * Creates a writer of UTF-8 encoded messages.
+   * 
+   * @param out
+   *          stream to which the messages are written
+   * 
+   * @return the writer
+   * 
+   * @throws XMLStreamException
+   *           thrown if the writer can not be created
+   */
+  static XMLStreamWriter createWriter(final OutputStream out)
+    throws XMLStreamException {
+
+    return OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+  }
+
+  /**
+   * Writes the start of the SOAP message of a XACML authorization decision
+   * query, up to and including its issuer.
+   * 
+   * @param writer
+   *          the message writer
+   * @param issuer
+   *          entity ID of the PEP daemon, issuer of the query
+   * @param messageId
+   *          ID of the query
+   * @param issueInstant
+   *          formatted issue instant of the query
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message can not be written
+   */
+  static void writeQueryStart(final XMLStreamWriter writer,
+    final String issuer, final String messageId, final String issueInstant)
+    throws XMLStreamException {
+
+    writer.writeStartDocument("UTF-8", "1.0");
+    writer.writeStartElement("soap11", "Envelope", SOAP11_NS);
+    writer.writeNamespace("soap11", SOAP11_NS);
+    writer.writeStartElement("soap11", "Body", SOAP11_NS);
+
+    writer.writeStartElement("xacml-samlp", "XACMLAuthzDecisionQuery",
+      XACML_SAMLP_NS);
+    writer.writeNamespace("xacml-samlp", XACML_SAMLP_NS);
+    writer.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+    writer.writeAttribute("ID", messageId);
+    writer.writeAttribute("IssueInstant", issueInstant);
+    writer.writeAttribute("ReturnContext", "true");
+    writer.writeAttribute("Version", "2.0");
+    writer.writeAttribute("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+      "type", "xacml-samlp:XACMLAuthzDecisionQueryType");
+
+    writer.writeStartElement("saml2", "Issuer", SAML20_NS);
+    writer.writeNamespace("saml2", SAML20_NS);
+    writer.writeAttribute("Format", ENTITY_NAMEID_FORMAT);
+    writer.writeCharacters(issuer);
+    writer.writeEndElement();
+  }
+
+  /**
+   * Writes the end of the SOAP message of a XACML authorization decision
+   * query, after its XACML request.
+   * 
+   * @param writer
+   *          the message writer
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message can not be written
+   */
+  static void writeQueryEnd(final XMLStreamWriter writer)
+    throws XMLStreamException {
+
+    writer.writeEndElement();
+    writer.writeEndElement();
+    writer.writeEndElement();
+    writer.writeEndDocument();
+  }
+
+  /**
+   * Writes a XACML request element, declaring the XACML context namespace.
+   * The values are trimmed, empty values are not written and the attribute
+   * data type defaults to {@value Attribute#DT_STRING}.
+   * 
+   * @param writer
+   *          the message writer
+   * @param request
+   *          the authorization request
+   * 
+   * @throws XMLStreamException
+   *           thrown if the request can not be written
+   */
+  static void writeXACMLRequest(final XMLStreamWriter writer,
+    final Request request) throws XMLStreamException {
+
+    writer.writeStartElement("xacml-context", "Request", XACML_CONTEXT_NS);
+    writer.writeNamespace("xacml-context", XACML_CONTEXT_NS);
+    if (request.getSubjects() != null) {
+      for (Subject subject : request.getSubjects()) {
+        writer.writeStartElement("xacml-context", "Subject", XACML_CONTEXT_NS);
+        writeAttributeIfPresent(writer, "SubjectCategory",
+          subject.getCategory());
+        writeAttributes(writer, subject.getAttributes());
+        writer.writeEndElement();
+      }
+    }
+    if (request.getResources() != null) {
+      for (Resource resource : request.getResources()) {
+        writer.writeStartElement("xacml-context", "Resource", XACML_CONTEXT_NS);
+        if (!Strings.isEmpty(resource.getResourceContent())) {
+          writer.writeStartElement("xacml-context", "ResourceContent",
+            XACML_CONTEXT_NS);
+          writer.writeCharacters(Strings.safeTrimOrNullString(resource
+            .getResourceContent()));
+          writer.writeEndElement();
+        }
+        writeAttributes(writer, resource.getAttributes());
+        writer.writeEndElement();
+      }
+    }
+    Action action = request.getAction();
+    if (action != null) {
+      writer.writeStartElement("xacml-context", "Action", XACML_CONTEXT_NS);
+      writeAttributes(writer, action.getAttributes());
+      writer.writeEndElement();
+    }
+    Environment environment = request.getEnvironment();
+    if (environment != null) {
+      writer.writeStartElement("xacml-context", "Environment",
+        XACML_CONTEXT_NS);
+      writeAttributes(writer, environment.getAttributes());
+      writer.writeEndElement();
+    }
+    writer.writeEndElement();
+  }
+
+  /**
+   * Writes XACML attribute elements.
+   * 
+   * @param writer
+   *          the message writer
+   * @param attributes
+   *          the attributes, may be <code>null</code>
+   * 
+   * @throws XMLStreamException
+   *           thrown if the attributes can not be written
+   */
+  private static void writeAttributes(final XMLStreamWriter writer,
+    final Iterable<Attribute> attributes) throws XMLStreamException {
+
+    if (attributes == null) {
+      return;
+    }
+    for (Attribute attribute : attributes) {
+      writer.writeStartElement("xacml-context", "Attribute", XACML_CONTEXT_NS);
+      writeAttributeIfPresent(writer, "AttributeId", attribute.getId());
+      String dataType = Strings.safeTrimOrNullString(attribute.getDataType());
+      if (dataType == null) {
+        dataType = Attribute.DT_STRING;
+      }
+      writer.writeAttribute("DataType", dataType);
+      writeAttributeIfPresent(writer, "Issuer", attribute.getIssuer());
+      if (attribute.getValues() != null) {
+        for (Object attributeValue : attribute.getValues()) {
+          String value = Strings.safeTrimOrNullString(attributeValue
+            .toString());
+          if (value != null) {
+            writer.writeStartElement("xacml-context", "AttributeValue",
+              XACML_CONTEXT_NS);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+          }
+        }
+      }
+      writer.writeEndElement();
+    }
+  }
+
+  /**
+   * Writes an XML attribute if its trimmed value is not empty.
+   * 
+   * @param writer
+   *          the message writer
+   * @param name
+   *          name of the XML attribute
+   * @param value
+   *          value of the XML attribute, may be <code>null</code>
+   * 
+   * @throws XMLStreamException
+   *           thrown if the attribute can not be written
+   */
+  private static void writeAttributeIfPresent(final XMLStreamWriter writer,
+    final String name, final String value) throws XMLStreamException {
+
+    String trimmedValue = Strings.safeTrimOrNullString(value);
+    if (trimmedValue != null) {
+      writer.writeAttribute(name, trimmedValue);
+    }
+  }
+
+  /**
+   * Decodes the SOAP message answered by a PDP.
+   * 
+   * @param message
+   *          the SOAP message
+   * 
+   * @return the decoded response
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message is a SOAP fault or is not a valid
+   *           XACML-SAML response
+   */
+  public static DecodedResponse decodeResponse(final byte[] message)
+    throws PDPMessageException {
+
+    return readResponse(new ByteArrayInputStream(message));
+  }
+
+  /**
+   * Reads the SOAP message answered by a PDP.
+   * 
+   * @param in
+   *          stream from which the SOAP message is read
+   * 
+   * @return the decoded response
+   * 
+   * @throws PDPMessageException
+   *           thrown if the message is a SOAP fault or is not a valid
+   *           XACML-SAML response
+   */
+  public static DecodedResponse readResponse(final InputStream in)
+    throws PDPMessageException {
+
+    XMLStreamReader reader = null;
+    try {
+      reader = INPUT_FACTORY.createXMLStreamReader(in);
+      reader.nextTag();
+      requireElement(reader, SOAP11_NS, "Envelope");
+      DecodedResponse response = null;
+      while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+        if (isElement(reader, SOAP11_NS, "Body") && response == null) {
+          response = readBody(reader);
+        } else {
+          skipElement(reader);
+        }
+      }
+      if (response == null) {
+        throw new PDPMessageException("SOAP envelope does not contain a body");
+      }
+      return response;
+    } catch (XMLStreamException e) {
+      throw new PDPMessageException("Unable to parse the PDP response: "
+        + e.getMessage(), e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing to release
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the SOAP body, which holds either a SOAP fault or a SAML response.
+   * 
+   * @param reader
+   *          the reader, on the start of the body
+   * 
+   * @return the decoded response
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the body is a SOAP fault or an invalid response
+   */
+  private static DecodedResponse readBody(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    if (nextElement(reader) != XMLStreamConstants.START_ELEMENT) {
+      throw new PDPMessageException("SOAP body is empty");
+    }
+    if (isElement(reader, SOAP11_NS, "Fault")) {
+      throw readFault(reader);
+    }
+    requireElement(reader, SAML20P_NS, "Response");
+    DecodedResponse response = readSAMLResponse(reader);
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      skipElement(reader);
+    }
+    return response;
+  }
+
+  /**
+   * Reads a SOAP fault.
+   * 
+   * @param reader
+   *          the reader, on the start of the fault
+   * 
+   * @return the exception describing the fault
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static PDPMessageException readFault(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    String faultCode = null;
+    String faultString = null;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if ("faultcode".equals(reader.getLocalName())) {
+        faultCode = Strings.safeTrimOrNullString(readText(reader));
+      } else if ("faultstring".equals(reader.getLocalName())) {
+        faultString = Strings.safeTrimOrNullString(readText(reader));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return new PDPMessageException("SOAP Fault " + faultCode + ": "
+      + faultString);
+  }
+
+  /**
+   * Reads a SAML response, which must contain exactly one assertion.
+   * 
+   * @param reader
+   *          the reader, on the start of the SAML response
+   * 
+   * @return the decoded response
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the response is invalid
+   */
+  private static DecodedResponse readSAMLResponse(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    String messageId = reader.getAttributeValue(null, "ID");
+    Response response = null;
+    int assertions = 0;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, SAML20_NS, "Assertion")) {
+        assertions++;
+        if (assertions > 1) {
+          throw new PDPMessageException(
+            "Invalid message, it contained more than 1 assertion");
+        }
+        response = readAssertion(reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (assertions == 0) {
+      throw new PDPMessageException(
+        "Invalid message, it did not contain an assertion");
+    }
+    return new DecodedResponse(messageId, response);
+  }
+
+  /**
+   * Reads a SAML assertion, which must contain exactly one XACML
+   * authorization decision statement.
+   * 
+   * @param reader
+   *          the reader, on the start of the assertion
+   * 
+   * @return the response of the authorization decision statement
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the assertion is invalid
+   */
+  private static Response readAssertion(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    Response response = null;
+    int statements = 0;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isDecisionStatement(reader)) {
+        statements++;
+        if (statements > 1) {
+          throw new PDPMessageException(
+            "Invalid message, it contained more than 1 authorization statement");
+        }
+        response = readDecisionStatement(reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (statements == 0) {
+      throw new PDPMessageException(
+        "Invalid message, it did not contain an authorization statement");
+    }
+    return response;
+  }
+
+  /**
+   * Checks whether the current element is a XACML authorization decision
+   * statement, identified by its schema type.
+   * 
+   * @param reader
+   *          the reader, on the start of an element
+   * 
+   * @return <code>true</code> if the element is a decision statement
+   */
+  private static boolean isDecisionStatement(final XMLStreamReader reader) {
+
+    String type = reader.getAttributeValue(
+      XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type");
+    if (type == null) {
+      return false;
+    }
+    type = type.trim();
+    String prefix = XMLConstants.DEFAULT_NS_PREFIX;
+    String localName = type;
+    int colon = type.indexOf(':');
+    if (colon > 0) {
+      prefix = type.substring(0, colon);
+      localName = type.substring(colon + 1);
+    }
+    return DECISION_STATEMENT_TYPE.equals(localName)
+      && XACML_SAML_NS.equals(reader.getNamespaceContext().getNamespaceURI(
+        prefix));
+  }
+
+  /**
+   * Reads a XACML authorization decision statement: the XACML response and
+   * the request echoed by the PDP.
+   * 
+   * @param reader
+   *          the reader, on the start of the statement
+   * 
+   * @return the response, with its request if echoed
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the statement is invalid
+   */
+  private static Response readDecisionStatement(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    Response response = null;
+    Request request = null;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "Response") && response == null) {
+        response = readXACMLResponse(reader);
+      } else if (isElement(reader, XACML_CONTEXT_NS, "Request")
+        && request == null) {
+        request = readXACMLRequest(reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (response == null) {
+      throw new PDPMessageException(
+        "Invalid message, the authorization statement did not contain a response");
+    }
+    if (request != null) {
+      response.setRequest(request);
+    }
+    return response;
+  }
+
+  /**
+   * Reads a XACML response. Only its first result is kept.
+   * 
+   * @param reader
+   *          the reader, on the start of the response
+   * 
+   * @return the response
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the response has no result
+   */
+  private static Response readXACMLResponse(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    Result result = null;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "Result") && result == null) {
+        result = readResult(reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (result == null) {
+      throw new PDPMessageException(
+        "Invalid message, the XACML response did not contain a result");
+    }
+    Response response = new Response();
+    response.getResults().add(result);
+    return response;
+  }
+
+  /**
+   * Reads a XACML result.
+   * 
+   * @param reader
+   *          the reader, on the start of the result
+   * 
+   * @return the result
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   * @throws PDPMessageException
+   *           thrown if the result has no valid decision
+   */
+  private static Result readResult(final XMLStreamReader reader)
+    throws XMLStreamException, PDPMessageException {
+
+    Result result = new Result();
+    result.setResourceId(reader.getAttributeValue(null, "ResourceId"));
+    boolean decided = false;
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "Decision")) {
+        result.setDecision(parseDecision(readText(reader)));
+        decided = true;
+      } else if (isElement(reader, XACML_CONTEXT_NS, "Status")) {
+        result.setStatus(readStatus(reader));
+      } else if (isElement(reader, XACML_POLICY_NS, "Obligations")) {
+        while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+          if (isElement(reader, XACML_POLICY_NS, "Obligation")) {
+            result.getObligations().add(readObligation(reader));
+          } else {
+            skipElement(reader);
+          }
+        }
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (!decided) {
+      throw new PDPMessageException(
+        "Invalid message, the XACML result did not contain a decision");
+    }
+    return result;
+  }
+
+  /**
+   * Parses a XACML decision.
+   * 
+   * @param decision
+   *          the decision
+   * 
+   * @return the decision, one of the <code>Result.DECISION_*</code> constants
+   * 
+   * @throws PDPMessageException
+   *           thrown if the decision is unknown
+   */
+  private static int parseDecision(final String decision)
+    throws PDPMessageException {
+
+    String trimmedDecision = Strings.safeTrimOrNullString(decision);
+    if ("Deny".equals(trimmedDecision)) {
+      return Result.DECISION_DENY;
+    } else if ("Indeterminate".equals(trimmedDecision)) {
+      return Result.DECISION_INDETERMINATE;
+    } else if ("NotApplicable".equals(trimmedDecision)) {
+      return Result.DECISION_NOT_APPLICABLE;
+    } else if ("Permit".equals(trimmedDecision)) {
+      return Result.DECISION_PERMIT;
+    }
+    throw new PDPMessageException("Invalid message, unknown decision '"
+      + trimmedDecision + "'");
+  }
+
+  /**
+   * Reads a XACML status.
+   * 
+   * @param reader
+   *          the reader, on the start of the status
+   * 
+   * @return the status
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static Status readStatus(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    Status status = new Status();
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "StatusCode")) {
+        status.setCode(readStatusCode(reader));
+      } else if (isElement(reader, XACML_CONTEXT_NS, "StatusMessage")) {
+        status.setMessage(Strings.safeTrimOrNullString(readText(reader)));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Reads a XACML status code and its sub codes.
+   * 
+   * @param reader
+   *          the reader, on the start of the status code
+   * 
+   * @return the status code
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static StatusCode readStatusCode(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    StatusCode statusCode = new StatusCode();
+    statusCode.setCode(Strings.safeTrimOrNullString(reader.getAttributeValue(
+      null, "Value")));
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "StatusCode")) {
+        statusCode.setSubCode(readStatusCode(reader));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return statusCode;
+  }
+
+  /**
+   * Reads a XACML obligation.
+   * 
+   * @param reader
+   *          the reader, on the start of the obligation
+   * 
+   * @return the obligation
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static Obligation readObligation(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    Obligation obligation = new Obligation();
+    obligation.setId(Strings.safeTrimOrNullString(reader.getAttributeValue(
+      null, "ObligationId")));
+    String fulfillOn = Strings.safeTrimOrNullString(reader.getAttributeValue(
+      null, "FulfillOn"));
+    if ("Deny".equals(fulfillOn)) {
+      obligation.setFulfillOn(Result.DECISION_DENY);
+    } else if ("Permit".equals(fulfillOn)) {
+      obligation.setFulfillOn(Result.DECISION_PERMIT);
+    }
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_POLICY_NS, "AttributeAssignment")) {
+        AttributeAssignment attributeAssignment = new AttributeAssignment();
+        attributeAssignment.setAttributeId(Strings
+          .safeTrimOrNullString(reader.getAttributeValue(null, "AttributeId")));
+        attributeAssignment.setDataType(Strings.safeTrimOrNullString(reader
+          .getAttributeValue(null, "DataType")));
+        attributeAssignment.setValue(Strings
+          .safeTrimOrNullString(readText(reader)));
+        obligation.getAttributeAssignments().add(attributeAssignment);
+      } else {
+        skipElement(reader);
+      }
+    }
+    return obligation;
+  }
+
+  /**
+   * Reads a XACML request.
+   * 
+   * @param reader
+   *          the reader, on the start of the request
+   * 
+   * @return the request
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  static Request readXACMLRequest(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    Request request = new Request();
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "Subject")) {
+        Subject subject = new Subject();
+        subject.setCategory(Strings.safeTrimOrNullString(reader
+          .getAttributeValue(null, "SubjectCategory")));
+        readAttributes(reader, subject.getAttributes(), null);
+        request.getSubjects().add(subject);
+      } else if (isElement(reader, XACML_CONTEXT_NS, "Resource")) {
+        Resource resource = new Resource();
+        readAttributes(reader, resource.getAttributes(), resource);
+        request.getResources().add(resource);
+      } else if (isElement(reader, XACML_CONTEXT_NS, "Action")) {
+        Action action = new Action();
+        readAttributes(reader, action.getAttributes(), null);
+        request.setAction(action);
+      } else if (isElement(reader, XACML_CONTEXT_NS, "Environment")) {
+        Environment environment = new Environment();
+        readAttributes(reader, environment.getAttributes(), null);
+        request.setEnvironment(environment);
+      } else {
+        skipElement(reader);
+      }
+    }
+    return request;
+  }
+
+  /**
+   * Reads the XACML attributes of a subject, resource, action or environment.
+   * 
+   * @param reader
+   *          the reader, on the start of the attributes holder
+   * @param attributes
+   *          collection to which the attributes are added
+   * @param resource
+   *          the resource whose content is read, <code>null</code> if the
+   *          holder is not a resource
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static void readAttributes(final XMLStreamReader reader,
+    final Collection<Attribute> attributes, final Resource resource)
+    throws XMLStreamException {
+
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "Attribute")) {
+        attributes.add(readAttribute(reader));
+      } else if (resource != null
+        && isElement(reader, XACML_CONTEXT_NS, "ResourceContent")) {
+        resource.setResourceContent(Strings
+          .safeTrimOrNullString(readText(reader)));
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  /**
+   * Reads a XACML attribute. The empty values are skipped.
+   * 
+   * @param reader
+   *          the reader, on the start of the attribute
+   * 
+   * @return the attribute
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static Attribute readAttribute(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    Attribute attribute = new Attribute();
+    attribute.setDataType(Strings.safeTrimOrNullString(reader
+      .getAttributeValue(null, "DataType")));
+    attribute.setId(Strings.safeTrimOrNullString(reader.getAttributeValue(
+      null, "AttributeId")));
+    attribute.setIssuer(Strings.safeTrimOrNullString(reader.getAttributeValue(
+      null, "Issuer")));
+    while (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+      if (isElement(reader, XACML_CONTEXT_NS, "AttributeValue")) {
+        // null value are not valid in Hessian
+        String value = Strings.safeTrimOrNullString(readText(reader));
+        if (value != null) {
+          attribute.getValues().add(value);
+        }
+      } else {
+        skipElement(reader);
+      }
+    }
+    return attribute;
+  }
+
+  /**
+   * Moves the reader to the next start or end element.
+   * 
+   * @param reader
+   *          the reader
+   * 
+   * @return {@link XMLStreamConstants#START_ELEMENT} or
+   *         {@link XMLStreamConstants#END_ELEMENT}
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static int nextElement(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT
+        || event == XMLStreamConstants.END_ELEMENT) {
+        return event;
+      }
+    }
+    throw new XMLStreamException("Unexpected end of the message");
+  }
+
+  /**
+   * Skips the current element and its descendants.
+   * 
+   * @param reader
+   *          the reader, on the start of the skipped element
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static void skipElement(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    int depth = 1;
+    while (depth > 0) {
+      if (nextElement(reader) == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Reads the text content of the current element. The text of the child
+   * elements is skipped.
+   * 
+   * @param reader
+   *          the reader, on the start of the element
+   * 
+   * @return the text content, <code>null</code> if the element has none
+   * 
+   * @throws XMLStreamException
+   *           thrown if the message is not well formed
+   */
+  private static String readText(final XMLStreamReader reader)
+    throws XMLStreamException {
+
+    StringBuilder text = null;
+    while (reader.hasNext()) {
+      int event = reader.next();
+      switch (event) {
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.CDATA:
+      case XMLStreamConstants.SPACE:
+        if (text == null) {
+          text = new StringBuilder();
+        }
+        text.append(reader.getTextCharacters(), reader.getTextStart(),
+          reader.getTextLength());
+        break;
+      case XMLStreamConstants.START_ELEMENT:
+        skipElement(reader);
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        return text == null ? null : text.toString();
+      default:
+        break;
+      }
+    }
+    throw new XMLStreamException("Unexpected end of the message");
+  }
+
+  /**
+   * Checks the name of the current element.
+   * 
+   * @param reader
+   *          the reader, on the start of an element
+   * @param namespace
+   *          expected namespace
+   * @param localName
+   *          expected local name
+   * 
+   * @return <code>true</code> if the element has the expected name
+   */
+  private static boolean isElement(final XMLStreamReader reader,
+    final String namespace, final String localName) {
+
+    return localName.equals(reader.getLocalName())
+      && namespace.equals(reader.getNamespaceURI());
+  }
+
+  /**
+   * Requires the current element to have a given name.
+   * 
+   * @param reader
+   *          the reader, on the start of an element
+   * @param namespace
+   *          expected namespace
+   * @param localName
+   *          expected local name
+   * 
+   * @throws PDPMessageException
+   *           thrown if the element does not have the expected name
+   */
+  private static void requireElement(final XMLStreamReader reader,
+    final String namespace, final String localName) throws PDPMessageException {
+
+    if (!isElement(reader, namespace, localName)) {
+      throw new PDPMessageException("Invalid message, expected {" + namespace
+        + "}" + localName + " but found {" + reader.getNamespaceURI() + "}"
+        + reader.getLocalName());
+    }
+  }
+
+  /** A PDP response decoded from its SOAP message. */
+  public static final class DecodedResponse {
+
+    /** ID of the SAML response message. */
+    private final String messageId;
+
+    /** The authorization response. */
+    private final Response response;
+
+    /**
+     * Constructor.
+     * 
+     * @param id
+     *          ID of the SAML response message
+     * @param authzResponse
+     *          the authorization response
+     */
+    private DecodedResponse(final String id, final Response authzResponse) {
+
+      messageId = id;
+      response = authzResponse;
+    }
+
+    /**
+     * Gets the ID of the SAML response message.
+     * 
+     * @return ID of the SAML response message
+     */
+    public String getMessageId() {
+
+      return messageId;
+    }
+
+    /**
+     * Gets the authorization response, with the request echoed by the PDP.
+     * 
+     * @return the authorization response
+     */
+    public Response getResponse() {
+
+      return response;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Selection of the PDP endpoints to which the authorization requests are
+ * sent. The {@link org.glite.authz.pep.server.pdp.PDPEndpointGroup} keeps the
+ * statistics of each endpoint and orders them, for each request, according to
+ * its {@link org.glite.authz.pep.server.pdp.LoadBalancingPolicy}.
+ */
+package org.glite.authz.pep.server.pdp;
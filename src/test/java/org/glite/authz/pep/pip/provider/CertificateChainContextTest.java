@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidator;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+
+/**
+ * Runs two X.509 PIPs over the same requests, with and without a
+ * {@link CertificateChainContext}.
+ */
+public class CertificateChainContextTest {
+
+    private static final Logger LOG= LoggerFactory.getLogger(CertificateChainContextTest.class);
+
+    private static final int REQUESTS= 2000;
+
+    private String pemCertChain;
+
+    private String userDN;
+
+    private final AtomicInteger pkixValidations= new AtomicInteger();
+
+    private final AtomicInteger vomsValidations= new AtomicInteger();
+
+    private AbstractX509PIP firstPIP;
+
+    private AbstractX509PIP secondPIP;
+
+    @Before
+    public void setUp() throws Exception {
+        X509Certificate[] certChain= TestCertificates.createChain("CN=John Doe,O=ACME,C=org", 3600000L);
+        userDN= certChain[0].getSubjectX500Principal().getName(X500Principal.RFC2253);
+
+        ByteArrayOutputStream out= new ByteArrayOutputStream();
+        CertificateUtils.saveCertificateChain(out, certChain, Encoding.PEM);
+        pemCertChain= out.toString("US-ASCII");
+
+        X509CertChainValidator validator= mock(X509CertChainValidator.class);
+        when(validator.validate(any(X509Certificate[].class))).thenAnswer(new Answer<ValidationResult>() {
+            public ValidationResult answer(InvocationOnMock invocation) throws Throwable {
+                pkixValidations.incrementAndGet();
+                X509Certificate[] chain= (X509Certificate[]) invocation.getArguments()[0];
+                ValidationResult result= mock(ValidationResult.class);
+                when(result.isValid()).thenReturn(true);
+                when(result.getValidChain()).thenReturn(Arrays.asList(chain));
+                return result;
+            }
+        });
+        VOMSACValidator vomsValidator= mock(VOMSACValidator.class);
+        when(vomsValidator.validateWithResult(any(X509Certificate[].class))).thenAnswer(new Answer<List<VOMSValidationResult>>() {
+            public List<VOMSValidationResult> answer(InvocationOnMock invocation) throws Throwable {
+                vomsValidations.incrementAndGet();
+                return Collections.emptyList();
+            }
+        });
+
+        firstPIP= new GLiteAuthorizationProfilePIP("glite", false, validator, vomsValidator, true);
+        secondPIP= new GLiteAuthorizationProfilePIP("glite-wn", false, validator, vomsValidator, true);
+    }
+
+    @Test
+    public void testChainProcessedOncePerRequest() throws Exception {
+        Request request= buildRequest();
+        CertificateChainContext previous= new CertificateChainContext().attach();
+        try {
+            assertTrue(firstPIP.populateRequest(request));
+            assertTrue(secondPIP.populateRequest(request));
+        } finally {
+            CertificateChainContext.detach(previous);
+        }
+        assertEquals(1, pkixValidations.get());
+        assertEquals(1, vomsValidations.get());
+        assertSubjectId(request);
+
+        // a new request is validated again
+        request= buildRequest();
+        previous= new CertificateChainContext().attach();
+        try {
+            assertTrue(firstPIP.populateRequest(request));
+        } finally {
+            CertificateChainContext.detach(previous);
+        }
+        assertEquals(2, pkixValidations.get());
+        assertNull(CertificateChainContext.current());
+    }
+
+    @Test
+    public void testChainProcessedByEachPIPWithoutContext() throws Exception {
+        Request request= buildRequest();
+        assertTrue(firstPIP.populateRequest(request));
+        assertTrue(secondPIP.populateRequest(request));
+        assertEquals(2, pkixValidations.get());
+        assertEquals(2, vomsValidations.get());
+        assertSubjectId(request);
+    }
+
+    @Test
+    public void testTwoX509PIPsThroughput() throws Exception {
+        // warm up both paths
+        runRequests(REQUESTS, false);
+        runRequests(REQUESTS, true);
+
+        long withoutContext= runRequests(REQUESTS, false);
+        long withContext= runRequests(REQUESTS, true);
+        LOG.info("2 X.509 PIPs, {} requests: {} us/request without context, {} us/request with context",
+                 REQUESTS,
+                 TimeUnit.NANOSECONDS.toMicros(withoutContext) / REQUESTS,
+                 TimeUnit.NANOSECONDS.toMicros(withContext) / REQUESTS);
+    }
+
+    private long runRequests(int count, boolean shareChain) throws Exception {
+        long start= System.nanoTime();
+        for (int i= 0; i < count; i++) {
+            Request request= buildRequest();
+            CertificateChainContext previous= shareChain ? new CertificateChainContext().attach() : null;
+            try {
+                firstPIP.populateRequest(request);
+                secondPIP.populateRequest(request);
+            } finally {
+                if (shareChain) {
+                    CertificateChainContext.detach(previous);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private Request buildRequest() {
+        Request request= new Request();
+        Subject subject= new Subject();
+        Attribute keyInfo= new Attribute(Attribute.ID_SUB_KEY_INFO, Attribute.DT_STRING);
+        // a copy of the chain, as decoded from each incoming message
+        keyInfo.getValues().add(new String(pemCertChain));
+        subject.getAttributes().add(keyInfo);
+        request.getSubjects().add(subject);
+        Environment environment= new Environment();
+        Attribute profileId= new Attribute(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_PROFILE_ID, Attribute.DT_STRING);
+        profileId.getValues().add(GLiteAuthorizationProfileConstants.GRID_WN_AUTHZ_V1_PROFILE_ID);
+        environment.getAttributes().add(profileId);
+        request.setEnvironment(environment);
+        return request;
+    }
+
+    private void assertSubjectId(Request request) {
+        boolean found= false;
+        for (Attribute attribute : request.getSubjects().iterator().next().getAttributes()) {
+            if (Attribute.ID_SUB_ID.equals(attribute.getId())) {
+                assertEquals(userDN, attribute.getValues().iterator().next());
+                found= true;
+            }
+        }
+        assertTrue("missing subject-id attribute", found);
+    }
+}
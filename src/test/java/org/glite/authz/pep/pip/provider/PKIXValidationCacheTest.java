@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/** Tests the {@link PKIXValidationCache}. */
+public class PKIXValidationCacheTest {
+
+    private static final long MAX_AGE= TimeUnit.MINUTES.toMillis(10);
+
+    private final AtomicLong nanos= new AtomicLong();
+
+    private final Ticker ticker= new Ticker() {
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private X509CertChainValidatorExt validator;
+
+    private ValidationResult validResult;
+
+    private X509Certificate[] certChain;
+
+    private PKIXValidationCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        certChain= TestCertificates.createChain("CN=John Doe,O=ACME,C=org", 3600000L);
+        validator= mock(X509CertChainValidatorExt.class);
+        validResult= mock(ValidationResult.class);
+        when(validResult.isValid()).thenReturn(true);
+        when(validator.validate(any(X509Certificate[].class))).thenReturn(validResult);
+        cache= new PKIXValidationCache("test", validator, 100, MAX_AGE, ticker);
+    }
+
+    @Test
+    public void testValidResultCached() throws Exception {
+        assertSame(validResult, cache.validate(certChain));
+        // an identical chain, decoded from another request
+        X509Certificate[] copy= certChain.clone();
+        assertSame(validResult, cache.validate(copy));
+        verify(validator, times(1)).validate(any(X509Certificate[].class));
+        assertEquals(1, cache.size());
+
+        X509Certificate[] otherChain= TestCertificates.createChain("CN=Jane Doe,O=ACME,C=org", 3600000L);
+        cache.validate(otherChain);
+        verify(validator, times(2)).validate(any(X509Certificate[].class));
+    }
+
+    @Test
+    public void testInvalidResultNotCached() throws Exception {
+        ValidationResult invalidResult= mock(ValidationResult.class);
+        when(invalidResult.isValid()).thenReturn(false);
+        when(validator.validate(any(X509Certificate[].class))).thenReturn(invalidResult);
+        assertSame(invalidResult, cache.validate(certChain));
+        assertSame(invalidResult, cache.validate(certChain));
+        verify(validator, times(2)).validate(any(X509Certificate[].class));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testResultExpiresAfterMaxAge() throws Exception {
+        cache.validate(certChain);
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(MAX_AGE - 1000));
+        cache.validate(certChain);
+        verify(validator, times(1)).validate(any(X509Certificate[].class));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(2000));
+        cache.validate(certChain);
+        verify(validator, times(2)).validate(any(X509Certificate[].class));
+    }
+
+    @Test
+    public void testResultExpiresWithChain() throws Exception {
+        // the end entity certificate expires before the cache max age
+        X509Certificate[] shortLivedChain= TestCertificates.createChain("CN=John Doe,O=ACME,C=org", 60000L);
+        cache.validate(shortLivedChain);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        cache.validate(shortLivedChain);
+        verify(validator, times(2)).validate(any(X509Certificate[].class));
+
+        X509Certificate[] expiredChain= TestCertificates.createChain("CN=John Doe,O=ACME,C=org", -60000L);
+        cache.validate(expiredChain);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidatedOnTrustMaterialReload() throws Exception {
+        ArgumentCaptor<StoreUpdateListener> listener= ArgumentCaptor.forClass(StoreUpdateListener.class);
+        verify(validator).addUpdateListener(listener.capture());
+
+        cache.validate(certChain);
+        assertEquals(1, cache.size());
+        listener.getValue().loadingNotification("/etc/grid-security/certificates/ca.r0", "CRL", Severity.NOTIFICATION, null);
+        assertEquals(0, cache.size());
+        cache.validate(certChain);
+        verify(validator, times(2)).validate(any(X509Certificate[].class));
+
+        cache.dispose();
+        verify(validator).removeUpdateListener(listener.getValue());
+    }
+
+    @Test
+    public void testResultNotCachedWhenReloadedDuringValidation() throws Exception {
+        final ArgumentCaptor<StoreUpdateListener> listener= ArgumentCaptor.forClass(StoreUpdateListener.class);
+        verify(validator).addUpdateListener(listener.capture());
+        when(validator.validate(any(X509Certificate[].class))).thenAnswer(new Answer<ValidationResult>() {
+            public ValidationResult answer(InvocationOnMock invocation) {
+                listener.getValue().loadingNotification("/etc/grid-security/certificates/ca.r0", "CRL", Severity.NOTIFICATION, null);
+                return validResult;
+            }
+        });
+
+        assertSame(validResult, cache.validate(certChain));
+        assertEquals(0, cache.size());
+    }
+}
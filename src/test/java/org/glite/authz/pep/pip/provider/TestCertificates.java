@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/** Generates certificate chains for the X.509 PIP tests. */
+final class TestCertificates {
+
+    private static final AtomicLong SERIAL= new AtomicLong(System.currentTimeMillis());
+
+    private TestCertificates() {
+    }
+
+    /**
+     * Generates a chain made of an end entity certificate and the self-signed
+     * CA certificate which issued it.
+     * 
+     * @param userDN
+     *            subject of the end entity certificate
+     * @param lifetime
+     *            lifetime of the end entity certificate from now, in
+     *            milliseconds, negative for an expired certificate
+     * @return the chain, end entity certificate first
+     */
+    static X509Certificate[] createChain(String userDN, long lifetime)
+            throws Exception {
+        KeyPairGenerator generator= KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair caKeys= generator.generateKeyPair();
+        KeyPair userKeys= generator.generateKeyPair();
+        X500Name caName= new X500Name("CN=Test CA,O=ACME,C=org");
+        long now= System.currentTimeMillis();
+        X509Certificate caCert= certificate(caName, caName, caKeys, caKeys, true, now + 24 * 3600000L);
+        X509Certificate userCert= certificate(caName, new X500Name(userDN), userKeys, caKeys, false, now + lifetime);
+        return new X509Certificate[] { userCert, caCert };
+    }
+
+    private static X509Certificate certificate(X500Name issuer, X500Name subject,
+                                               KeyPair subjectKeys, KeyPair issuerKeys,
+                                               boolean ca, long notAfter) throws Exception {
+        long notBefore= Math.min(System.currentTimeMillis(), notAfter) - 3600000L;
+        JcaX509v3CertificateBuilder builder= new JcaX509v3CertificateBuilder(issuer,
+                                                                             BigInteger.valueOf(SERIAL.incrementAndGet()),
+                                                                             new Date(notBefore),
+                                                                             new Date(notAfter),
+                                                                             subject,
+                                                                             subjectKeys.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKeys.getPrivate())));
+    }
+}
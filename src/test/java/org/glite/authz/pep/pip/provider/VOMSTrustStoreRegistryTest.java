@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+
+import org.glite.authz.pep.pip.provider.VOMSTrustStoreRegistry.SharedTrustStore;
+import org.italiangrid.voms.store.VOMSTrustStoreStatusListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/** Tests the {@link VOMSTrustStoreRegistry}. */
+public class VOMSTrustStoreRegistryTest {
+
+    private static final int REFRESH= 3600000;
+
+    private File vomsDir;
+
+    private X509CertChainValidatorExt certChainValidator;
+
+    private VOMSTrustStoreRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        vomsDir= File.createTempFile("vomsdir", "");
+        vomsDir.delete();
+        vomsDir.mkdir();
+        certChainValidator= mock(X509CertChainValidatorExt.class);
+        registry= new VOMSTrustStoreRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        vomsDir.delete();
+    }
+
+    @Test
+    public void testTrustStoreShared() throws Exception {
+        SharedTrustStore first= registry.acquire(vomsDir.getAbsolutePath(), REFRESH, certChainValidator);
+        // the same directory, through another path
+        SharedTrustStore second= registry.acquire(vomsDir.getAbsolutePath() + "/.", REFRESH, certChainValidator);
+        assertSame(first, second);
+        assertSame(first.getValidator(), second.getValidator());
+        assertEquals(2, first.getReferences());
+        assertEquals(1, first.getReuses());
+        assertEquals(1, registry.size());
+        assertEquals(0, first.getLSCCount());
+
+        // another refresh period is another trust store
+        SharedTrustStore other= registry.acquire(vomsDir.getAbsolutePath(), REFRESH / 2, certChainValidator);
+        assertNotSame(first, other);
+        assertEquals(2, registry.size());
+        other.getValidator().shutdown();
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testTrustStoreShutdownWithLastReference() throws Exception {
+        SharedTrustStore first= registry.acquire(vomsDir.getAbsolutePath(), REFRESH, certChainValidator);
+        SharedTrustStore second= registry.acquire(vomsDir.getAbsolutePath(), REFRESH, certChainValidator);
+        first.getValidator().shutdown();
+        assertEquals(1, registry.size());
+        assertEquals(1, second.getReferences());
+        second.getValidator().shutdown();
+        assertEquals(0, registry.size());
+
+        // loaded again once released
+        SharedTrustStore third= registry.acquire(vomsDir.getAbsolutePath(), REFRESH, certChainValidator);
+        assertNotSame(first, third);
+        third.getValidator().shutdown();
+    }
+
+    @Test
+    public void testReloadNotified() throws Exception {
+        long start= System.currentTimeMillis();
+        SharedTrustStore trustStore= registry.acquire(vomsDir.getAbsolutePath(), REFRESH, certChainValidator);
+        long loaded= trustStore.getLastReloadTime();
+        assertTrue(loaded >= start);
+
+        VOMSTrustStoreStatusListener listener= mock(VOMSTrustStoreStatusListener.class);
+        trustStore.addStatusListener(listener);
+        Thread.sleep(5);
+        trustStore.reload();
+        assertTrue(trustStore.getLastReloadTime() > loaded);
+        verify(listener).notifyCertificateLookupEvent(vomsDir.getCanonicalPath());
+        verify(listener).notifyLSCLookupEvent(vomsDir.getCanonicalPath());
+
+        trustStore.removeStatusListener(listener);
+        trustStore.reload();
+        verify(listener, times(1)).notifyCertificateLookupEvent(vomsDir.getCanonicalPath());
+        trustStore.getValidator().shutdown();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.pip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+
+/** Tests the {@link VOMSValidationCache}. */
+public class VOMSValidationCacheTest {
+
+    private static final long MAX_AGE= TimeUnit.MINUTES.toMillis(10);
+
+    private final AtomicLong nanos= new AtomicLong();
+
+    private final Ticker ticker= new Ticker() {
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private VOMSACValidator validator;
+
+    private X509Certificate[] certChain;
+
+    private List<VOMSValidationResult> validResults;
+
+    @Before
+    public void setUp() throws Exception {
+        certChain= TestCertificates.createChain("CN=John Doe,O=ACME,C=org", 24 * 3600000L);
+        validator= mock(VOMSACValidator.class);
+        validResults= Collections.singletonList(result(true, System.currentTimeMillis() + 12 * 3600000L));
+        when(validator.validateWithResult(any(X509Certificate[].class))).thenReturn(validResults);
+    }
+
+    @Test
+    public void testValidResultsCached() throws Exception {
+        VOMSValidationCache cache= newCache();
+        assertEquals(validResults, cache.validate(certChain));
+        assertEquals(validResults, cache.validate(certChain.clone()));
+        verify(validator, times(1)).validateWithResult(any(X509Certificate[].class));
+        assertEquals(1, cache.size());
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(MAX_AGE + 1));
+        cache.validate(certChain);
+        verify(validator, times(2)).validateWithResult(any(X509Certificate[].class));
+    }
+
+    @Test
+    public void testChainWithoutACCached() throws Exception {
+        when(validator.validateWithResult(any(X509Certificate[].class))).thenReturn(Collections.<VOMSValidationResult> emptyList());
+        VOMSValidationCache cache= newCache();
+        cache.validate(certChain);
+        assertTrue(cache.validate(certChain).isEmpty());
+        verify(validator, times(1)).validateWithResult(any(X509Certificate[].class));
+    }
+
+    @Test
+    public void testFailedValidationNotCached() throws Exception {
+        List<VOMSValidationResult> failedResults= Collections.singletonList(result(false, System.currentTimeMillis() + 3600000L));
+        when(validator.validateWithResult(any(X509Certificate[].class))).thenReturn(failedResults);
+        VOMSValidationCache cache= newCache();
+        cache.validate(certChain);
+        cache.validate(certChain);
+        verify(validator, times(2)).validateWithResult(any(X509Certificate[].class));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLifetimeBoundedByAttributeCertificate() throws Exception {
+        long now= System.currentTimeMillis();
+        VOMSValidationCache cache= newCache();
+        List<VOMSValidationResult> results= Collections.singletonList(result(true, now + 60000L));
+        assertEquals(60000L, cache.lifetime(certChain, results, now));
+        results= Collections.singletonList(result(true, now - 1000L));
+        assertTrue(cache.lifetime(certChain, results, now) <= 0);
+    }
+
+    @Test
+    public void testLifetimeBoundedByMaxAge() throws Exception {
+        VOMSValidationCache cache= newCache();
+        assertEquals(MAX_AGE, cache.lifetime(certChain, validResults, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testInvalidatedOnTrustStoreReload() throws Exception {
+        VOMSValidationCache cache= newCache();
+        cache.validate(certChain);
+        assertEquals(1, cache.size());
+        cache.invalidate("/etc/grid-security/vomsdir");
+        assertEquals(0, cache.size());
+        cache.validate(certChain);
+        verify(validator, times(2)).validateWithResult(any(X509Certificate[].class));
+    }
+
+    @Test
+    public void testResultsNotCachedWhenReloadedDuringValidation() throws Exception {
+        final VOMSValidationCache cache= newCache();
+        when(validator.validateWithResult(any(X509Certificate[].class))).thenAnswer(new Answer<List<VOMSValidationResult>>() {
+            public List<VOMSValidationResult> answer(InvocationOnMock invocation) {
+                cache.invalidate("/etc/grid-security/vomsdir");
+                return validResults;
+            }
+        });
+
+        assertEquals(validResults, cache.validate(certChain));
+        assertEquals(0, cache.size());
+    }
+
+    private VOMSValidationCache newCache() {
+        return new VOMSValidationCache("test", validator, null, 100, MAX_AGE, ticker);
+    }
+
+    private static VOMSValidationResult result(boolean valid, long notAfter) {
+        VOMSAttribute attributes= mock(VOMSAttribute.class);
+        when(attributes.getNotAfter()).thenReturn(new Date(notAfter));
+        VOMSValidationResult result= mock(VOMSValidationResult.class);
+        when(result.isValid()).thenReturn(valid);
+        when(result.getAttributes()).thenReturn(attributes);
+        return result;
+    }
+}
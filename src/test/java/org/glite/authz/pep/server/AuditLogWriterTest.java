@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.glite.authz.pep.server.AuditLogWriter.Durability;
+import org.glite.authz.pep.server.AuditLogWriter.OverflowPolicy;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Tests the {@link AuditLogWriter}. */
+public class AuditLogWriterTest {
+
+  private static final Logger LOG = LoggerFactory
+    .getLogger(AuditLogWriterTest.class);
+
+  private final List<String> entries = Collections
+    .synchronizedList(new ArrayList<String>());
+
+  /** Audit log recording the entries, optionally blocked on a latch. */
+  private Logger auditLog(final CountDownLatch writing,
+    final CountDownLatch release) {
+
+    Logger audit = mock(Logger.class);
+    doAnswer(new Answer<Void>() {
+
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+
+        if (writing != null) {
+          writing.countDown();
+        }
+        if (release != null) {
+          release.await();
+        }
+        entries.add((String) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(audit).info(anyString());
+    return audit;
+  }
+
+  @Test
+  public void testWrittenDirectlyWhenNotStarted() {
+
+    AuditLogWriter writer = new AuditLogWriter(4, OverflowPolicy.DROP,
+      Durability.NONE, 0, auditLog(null, null));
+    writer.write("req-1", "https://pdp.example.org", "resp-1", "Permit", null);
+    assertEquals(1, entries.size());
+    assertTrue(entries.get(0).contains("|req-1|"));
+    assertTrue(entries.get(0).contains("|Permit|"));
+    assertEquals(1, writer.getWrittenEntries());
+  }
+
+  @Test
+  public void testWrittenDirectlyWithoutQueue() {
+
+    AuditLogWriter writer = new AuditLogWriter(0, OverflowPolicy.DROP,
+      Durability.FLUSH, 0, auditLog(null, null));
+    writer.start();
+    writer.write("req-1", "https://pdp.example.org", "resp-1", "Permit", null);
+    assertEquals(1, entries.size());
+    assertEquals(1, writer.getWrittenEntries());
+    assertEquals(0, writer.getQueuedEntries());
+    writer.shutdown();
+  }
+
+  @Test
+  public void testEntriesWrittenInOrder() throws Exception {
+
+    final int count = 10000;
+    AuditLogWriter writer = new AuditLogWriter(64, OverflowPolicy.BLOCK,
+      Durability.NONE, 0, auditLog(null, null));
+    writer.start();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      writer.write("req-" + i, "pdp", "resp-" + i, "Permit", null);
+    }
+    long elapsed = System.nanoTime() - start;
+    writer.shutdown();
+
+    LOG.info("{} entries queued in {} ms", count,
+      TimeUnit.NANOSECONDS.toMillis(elapsed));
+    assertEquals(count, entries.size());
+    for (int i = 0; i < count; i++) {
+      assertTrue(entries.get(i).contains("|req-" + i + "|"));
+    }
+    assertEquals(count, writer.getWrittenEntries());
+    assertEquals(0, writer.getDroppedEntries());
+    assertEquals(0, writer.getQueuedEntries());
+  }
+
+  @Test
+  public void testDropWhenFull() throws Exception {
+
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AuditLogWriter writer = new AuditLogWriter(4, OverflowPolicy.DROP,
+      Durability.NONE, 0, auditLog(writing, release));
+    writer.start();
+
+    // the writer thread takes the first entry and blocks on it
+    writer.write("req-0", "pdp", "resp-0", "Permit", null);
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    for (int i = 1; i <= 7; i++) {
+      writer.write("req-" + i, "pdp", "resp-" + i, "Permit", null);
+    }
+    assertEquals(3, writer.getDroppedEntries());
+
+    release.countDown();
+    writer.shutdown();
+    assertEquals(5, entries.size());
+    assertEquals(5, writer.getWrittenEntries());
+    assertTrue(entries.get(4).contains("|req-4|"));
+  }
+
+  @Test
+  public void testBlockWhenFull() throws Exception {
+
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    final AuditLogWriter writer = new AuditLogWriter(4, OverflowPolicy.BLOCK,
+      Durability.NONE, 0, auditLog(writing, release));
+    writer.start();
+
+    writer.write("req-0", "pdp", "resp-0", "Permit", null);
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    for (int i = 1; i <= 4; i++) {
+      writer.write("req-" + i, "pdp", "resp-" + i, "Permit", null);
+    }
+    Thread producer = new Thread(new Runnable() {
+
+      public void run() {
+
+        writer.write("req-5", "pdp", "resp-5", "Permit", null);
+      }
+    });
+    producer.start();
+    producer.join(200);
+    assertTrue(producer.isAlive());
+
+    release.countDown();
+    producer.join(10000);
+    writer.shutdown();
+    assertEquals(6, entries.size());
+    assertEquals(0, writer.getDroppedEntries());
+    assertTrue(entries.get(5).contains("|req-5|"));
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.AttributeAssignment;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Obligation;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.common.profile.GLiteAuthorizationProfileConstants;
+import org.glite.authz.common.util.Base64;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.caucho.hessian.io.HessianInput;
+import com.caucho.hessian.io.HessianOutput;
+
+public class HessianBase64CodecTest {
+
+  private static final int ITERATIONS = 2000;
+
+  private HessianBase64Codec codec;
+
+  private Request request;
+
+  private Response response;
+
+  @Before
+  public void setUp() {
+
+    codec = new HessianBase64Codec();
+    request = createCERequest();
+    response = createPermitResponse(request);
+  }
+
+  @Test
+  public void testReadLegacyEncodedRequest() throws Exception {
+
+    byte[] encoded = legacyEncode(request);
+
+    Request decoded = codec.readRequest(new ByteArrayInputStream(encoded));
+
+    assertEquals(request.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testWrittenResponseReadableByLegacyDecoder() throws Exception {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.writeResponse(response, out);
+
+    HessianInput hin = new HessianInput(new ByteArrayInputStream(
+      Base64.decode(out.toString("US-ASCII"))));
+    Response decoded = (Response) hin.readObject(Response.class);
+
+    assertEquals(response.toString(), decoded.toString());
+  }
+
+  @Test
+  public void testRoundTripReusesState() throws Exception {
+
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      codec.writeResponse(response, out);
+      HessianInput hin = new HessianInput(new ByteArrayInputStream(
+        Base64.decode(out.toString("US-ASCII"))));
+      assertEquals(response.toString(),
+        hin.readObject(Response.class).toString());
+      assertEquals(request.toString(),
+        codec.readRequest(new ByteArrayInputStream(legacyEncode(request)))
+          .toString());
+    }
+  }
+
+  @Test
+  public void testRawRequestAndResponse() throws Exception {
+
+    Request decoded = codec.readRequest(new ByteArrayInputStream(
+      hessianEncode(request)), true);
+    assertEquals(request.toString(), decoded.toString());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.writeResponse(response, out, true);
+    HessianInput hin = new HessianInput(new ByteArrayInputStream(
+      out.toByteArray()));
+    assertEquals(response.toString(), hin.readObject(Response.class)
+      .toString());
+  }
+
+  @Test
+  public void testRawHessianContentType() {
+
+    assertTrue(HessianBase64Codec.isRawHessian("application/x-hessian"));
+    assertTrue(HessianBase64Codec
+      .isRawHessian("Application/X-Hessian; charset=binary"));
+    assertFalse(HessianBase64Codec.isRawHessian(null));
+    assertFalse(HessianBase64Codec.isRawHessian("text/plain"));
+    assertFalse(HessianBase64Codec
+      .isRawHessian("application/x-www-form-urlencoded"));
+  }
+
+  /**
+   * Checks that the raw Hessian request and response are smaller on the wire
+   * than the Base64 encoded ones.
+   */
+  @Test
+  public void testWireSizePerMode() throws Exception {
+
+    byte[] base64Request = legacyEncode(request);
+    byte[] rawRequest = hessianEncode(request);
+    CountingOutputStream base64Sink = new CountingOutputStream();
+    CountingOutputStream rawSink = new CountingOutputStream();
+
+    codecExchange(base64Request, base64Sink, false);
+    codecExchange(rawRequest, rawSink, true);
+
+    assertTrue(rawRequest.length < base64Request.length);
+    assertTrue(rawSink.count < base64Sink.count);
+  }
+
+  /**
+   * Checks that the streaming codec allocates less than half the bytes per
+   * request/response exchange of the legacy buffering code path, which copies
+   * each message into intermediate byte arrays and strings.
+   */
+  @Test
+  public void testAllocationsPerMessage() throws Exception {
+
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+      .getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+    byte[] encodedRequest = legacyEncode(request);
+    long threadId = Thread.currentThread().getId();
+    NullOutputStream sink = new NullOutputStream();
+
+    // warm up both paths
+    for (int i = 0; i < ITERATIONS; i++) {
+      legacyExchange(encodedRequest, sink);
+      codecExchange(encodedRequest, sink);
+    }
+
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      legacyExchange(encodedRequest, sink);
+    }
+    long legacy = (threadBean.getThreadAllocatedBytes(threadId) - start)
+      / ITERATIONS;
+
+    start = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      codecExchange(encodedRequest, sink);
+    }
+    long streaming = (threadBean.getThreadAllocatedBytes(threadId) - start)
+      / ITERATIONS;
+
+    assertTrue("legacy " + legacy + " bytes/op, streaming codec " + streaming
+      + " bytes/op", streaming * 2 < legacy);
+  }
+
+  private void legacyExchange(byte[] encodedRequest, NullOutputStream sink)
+    throws IOException {
+
+    HessianInput hin = new HessianInput(new Base64.InputStream(
+      new ByteArrayInputStream(encodedRequest)));
+    hin.readObject(Request.class);
+
+    ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+    HessianOutput hout = new HessianOutput(responseBytes);
+    hout.writeObject(response);
+    hout.flush();
+    sink.write(Base64.encodeBytes(responseBytes.toByteArray()).getBytes(
+      "US-ASCII"));
+  }
+
+  private void codecExchange(byte[] encodedRequest, NullOutputStream sink)
+    throws IOException {
+
+    codec.readRequest(new ByteArrayInputStream(encodedRequest));
+    codec.writeResponse(response, sink);
+  }
+
+  private void codecExchange(byte[] request, OutputStream sink, boolean raw)
+    throws IOException {
+
+    codec.readRequest(new ByteArrayInputStream(request), raw);
+    codec.writeResponse(response, sink, raw);
+  }
+
+  private static byte[] legacyEncode(Object message) throws IOException {
+
+    return Base64.encodeBytes(hessianEncode(message)).getBytes("US-ASCII");
+  }
+
+  private static byte[] hessianEncode(Object message) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HessianOutput hout = new HessianOutput(bytes);
+    hout.writeObject(message);
+    hout.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Creates a request as sent by a CE, including a PEM encoded proxy chain in
+   * the subject key-info.
+   */
+  private static Request createCERequest() {
+
+    Subject subject = new Subject();
+    subject.getAttributes().add(
+      createAttribute(Attribute.ID_SUB_KEY_INFO, Attribute.DT_STRING,
+        createPEMChain()));
+
+    Resource resource = new Resource();
+    resource.getAttributes().add(
+      createAttribute(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_RESOURCE_ID,
+        Attribute.DT_STRING, "http://ce.example.org/cream-pbs-long"));
+
+    Action action = new Action();
+    action.getAttributes().add(
+      createAttribute(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_ACTION_ID,
+        Attribute.DT_STRING, "http://glite.org/xacml/action/execute"));
+
+    Environment environment = new Environment();
+    environment.getAttributes().add(
+      createAttribute(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_PROFILE_ID,
+        Attribute.DT_STRING,
+        GLiteAuthorizationProfileConstants.GRID_CE_AUTHZ_V1_PROFILE_ID));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    request.setEnvironment(environment);
+    return request;
+  }
+
+  private static Response createPermitResponse(Request request) {
+
+    Obligation posixMapping = new Obligation();
+    posixMapping
+      .setId(GLiteAuthorizationProfileConstants.ID_OBLIGATION_POSIX_ENV_MAP);
+    posixMapping.setFulfillOn(Result.DECISION_PERMIT);
+
+    AttributeAssignment userId = new AttributeAssignment();
+    userId.setAttributeId(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_USER_ID);
+    userId.setDataType(Attribute.DT_STRING);
+    userId.setValue("dteam042");
+    posixMapping.getAttributeAssignments().add(userId);
+
+    AttributeAssignment groupId = new AttributeAssignment();
+    groupId
+      .setAttributeId(GLiteAuthorizationProfileConstants.ID_ATTRIBUTE_PRIMARY_GROUP_ID);
+    groupId.setDataType(Attribute.DT_STRING);
+    groupId.setValue("dteam");
+    posixMapping.getAttributeAssignments().add(groupId);
+
+    Result result = new Result();
+    result.setDecision(Result.DECISION_PERMIT);
+    result.getObligations().add(posixMapping);
+
+    Response response = new Response();
+    response.setRequest(request);
+    response.getResults().add(result);
+    return response;
+  }
+
+  private static Attribute createAttribute(String id, String dataType,
+    String value) {
+
+    Attribute attribute = new Attribute(id, dataType);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+
+  /** Creates a PEM block of about 3KB, the size of a proxy chain. */
+  private static String createPEMChain() {
+
+    byte[] der = new byte[2200];
+    new Random(42).nextBytes(der);
+    return "-----BEGIN CERTIFICATE-----\n" + Base64.encodeBytes(der)
+      + "\n-----END CERTIFICATE-----\n";
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+
+    private long count;
+
+    public void write(int b) {
+
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+
+      count += len;
+    }
+  }
+
+  private static final class NullOutputStream extends java.io.OutputStream {
+
+    public void write(int b) {
+
+    }
+
+    public void write(byte[] b, int off, int len) {
+
+    }
+  }
+}
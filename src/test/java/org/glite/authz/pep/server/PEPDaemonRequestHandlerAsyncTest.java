@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.server.config.PEPDaemonConfigurationBuilder;
+import org.glite.authz.pep.server.pdp.PDPTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.ws.soap.client.SOAPClient;
+
+/**
+ * Tests the asynchronous requests of the {@link PEPDaemonRequestHandler},
+ * sent through a stub PDP transport.
+ */
+public class PEPDaemonRequestHandlerAsyncTest {
+
+  private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+  private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+
+  private ExecutorService executor;
+
+  private PEPDaemonRequestHandler handler;
+
+  @BeforeClass
+  public static void bootstrap() throws Exception {
+
+    DefaultBootstrap.bootstrap();
+  }
+
+  @Before
+  public void setUp() {
+
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+
+    if (handler != null) {
+      handler.shutdown();
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * A PDP answer which can not be decoded, the decoder failing with a runtime
+   * exception, fails the request at once rather than leaving it to the
+   * request timeout.
+   */
+  @Test
+  public void testDecoderFailureCompletesRequest() throws Exception {
+
+    handler = createHandler(new StubPDPTransport(null));
+
+    Response response = handler.handleAsync(createRequest(), executor).get(5,
+      TimeUnit.SECONDS);
+
+    assertEquals(Result.DECISION_INDETERMINATE, response.getResults().get(0)
+      .getDecision());
+  }
+
+  /**
+   * An executor rejecting the PDP answer, once shut down, does not leave the
+   * request uncompleted.
+   */
+  @Test
+  public void testRejectedAnswerCompletesRequest() throws Exception {
+
+    handler = createHandler(new StubPDPTransport(null));
+    executor.shutdown();
+
+    Response response = handler.handleAsync(createRequest(), executor).get(5,
+      TimeUnit.SECONDS);
+
+    assertEquals(Result.DECISION_INDETERMINATE, response.getResults().get(0)
+      .getDecision());
+  }
+
+  private PEPDaemonRequestHandler createHandler(PDPTransport transport) {
+
+    PEPDaemonConfigurationBuilder builder = new PEPDaemonConfigurationBuilder();
+    builder.setEntityId("http://junit.example.org/pepd");
+    builder.getPDPEndpoints().add("https://pdp.example.org:8152/authz");
+    builder.setSoapClient(mock(SOAPClient.class));
+    builder.setPDPTransport(transport);
+    return new PEPDaemonRequestHandler(builder.build());
+  }
+
+  private static Request createRequest() {
+
+    Subject subject = new Subject();
+    subject.getAttributes().add(
+      createAttribute(Attribute.ID_SUB_ID, "CN=junit,O=example"));
+
+    Resource resource = new Resource();
+    resource.getAttributes().add(
+      createAttribute(RESOURCE_ID, "http://ce.example.org"));
+
+    Action action = new Action();
+    action.getAttributes().add(createAttribute(ACTION_ID, "submit"));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    return request;
+  }
+
+  private static Attribute createAttribute(String id, String value) {
+
+    Attribute attribute = new Attribute(id);
+    attribute.setDataType(Attribute.DT_STRING);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+
+  /** A PDP transport answering each message with the same SOAP message. */
+  private static final class StubPDPTransport implements PDPTransport {
+
+    private final byte[] answer;
+
+    private StubPDPTransport(byte[] soapAnswer) {
+
+      answer = soapAnswer;
+    }
+
+    public byte[] send(String endpoint, byte[] message) {
+
+      return answer;
+    }
+
+    public CompletableFuture<byte[]> sendAsync(String endpoint, byte[] message) {
+
+      return CompletableFuture.completedFuture(answer);
+    }
+
+    public void shutdown() {
+
+    }
+  }
+}
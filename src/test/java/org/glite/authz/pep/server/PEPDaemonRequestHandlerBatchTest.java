@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.SubjectPolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.AbstractPolicyInformationPoint;
+import org.glite.authz.pep.server.config.PEPDaemonConfigurationBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.ws.soap.client.SOAPClient;
+import org.opensaml.ws.soap.client.SOAPClientException;
+import org.opensaml.ws.soap.client.SOAPMessageContext;
+
+/**
+ * Tests the batch requests of the {@link PEPDaemonRequestHandler}. No PDP
+ * answers, the responses are Indeterminate, but their order, the PIPs run and
+ * the per request errors are checked.
+ */
+public class PEPDaemonRequestHandlerBatchTest {
+
+  private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+  private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+
+  private static final String MAPPED_ATTRIBUTE_ID = "urn:junit:mapped";
+
+  private static final String RESOURCE_ATTRIBUTE_ID = "urn:junit:resource";
+
+  @BeforeClass
+  public static void bootstrap() throws Exception {
+
+    DefaultBootstrap.bootstrap();
+  }
+
+  @Test
+  public void testSubjectPIPsRunOncePerSubject() throws Exception {
+
+    CountingSubjectPIP subjectPIP = new CountingSubjectPIP("SUBJECT_PIP");
+    CountingPIP resourcePIP = new CountingPIP("RESOURCE_PIP", false);
+    PEPDaemonRequestHandler handler = createHandler(subjectPIP, resourcePIP);
+
+    List<Request> requests = new ArrayList<Request>();
+    for (int i = 0; i < 12; i++) {
+      requests.add(createRequest("CN=user" + (i % 3), "resource" + i));
+    }
+    List<Response> responses = handler.handleBatch(requests);
+
+    assertEquals(requests.size(), responses.size());
+    for (int i = 0; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      assertSame(request, responses.get(i).getRequest());
+      Subject subject = request.getSubjects().iterator().next();
+      assertTrue("subject PIP outcome missing",
+        hasAttribute(subject, MAPPED_ATTRIBUTE_ID, "mapped:CN=user" + (i % 3)));
+    }
+    assertEquals(3, subjectPIP.invocations.get());
+    assertEquals(12, resourcePIP.invocations.get());
+  }
+
+  @Test
+  public void testDivergingRequestRunsSubjectPIP() throws Exception {
+
+    CountingPIP resourcePIP = new CountingPIP("RESOURCE_PIP", true);
+    CountingSubjectPIP subjectPIP = new CountingSubjectPIP("SUBJECT_PIP");
+    PEPDaemonRequestHandler handler = createHandler(resourcePIP, subjectPIP);
+
+    // the resource PIP copies the resource to the subject: the requests only
+    // share the subject PIP outcome with an identical resource
+    List<Request> requests = new ArrayList<Request>();
+    requests.add(createRequest("CN=user", "resource1"));
+    requests.add(createRequest("CN=user", "resource2"));
+    requests.add(createRequest("CN=user", "resource1"));
+    List<Response> responses = handler.handleBatch(requests);
+
+    assertEquals(3, responses.size());
+    assertEquals(2, subjectPIP.invocations.get());
+    for (int i = 0; i < requests.size(); i++) {
+      Subject subject = requests.get(i).getSubjects().iterator().next();
+      String resource = i == 1 ? "resource2" : "resource1";
+      assertTrue(hasAttribute(subject, RESOURCE_ATTRIBUTE_ID, resource));
+      assertTrue(hasAttribute(subject, MAPPED_ATTRIBUTE_ID, "mapped:CN=user"));
+    }
+  }
+
+  @Test
+  public void testErrorOnlyAffectsItsRequest() throws Exception {
+
+    CountingSubjectPIP subjectPIP = new CountingSubjectPIP("SUBJECT_PIP");
+    CountingPIP resourcePIP = new CountingPIP("RESOURCE_PIP", false);
+    PEPDaemonRequestHandler handler = createHandler(subjectPIP, resourcePIP);
+
+    List<Request> requests = new ArrayList<Request>();
+    requests.add(createRequest("CN=user", "resource1"));
+    requests.add(createRequest("CN=user", "fail"));
+    requests.add(createRequest("CN=user", "resource3"));
+    List<Response> responses = handler.handleBatch(requests);
+
+    assertEquals(3, responses.size());
+    for (int i = 0; i < requests.size(); i++) {
+      Result result = responses.get(i).getResults().get(0);
+      assertEquals(Result.DECISION_INDETERMINATE, result.getDecision());
+      String message = result.getStatus().getMessage();
+      assertEquals(i == 1, "resource PIP failure".equals(message));
+    }
+  }
+
+  @Test
+  public void testSameRequestInstanceIsEvaluatedOnce() throws Exception {
+
+    CountingSubjectPIP subjectPIP = new CountingSubjectPIP("SUBJECT_PIP");
+    PEPDaemonRequestHandler handler = createHandler(subjectPIP);
+
+    Request request = createRequest("CN=user", "resource");
+    List<Request> requests = new ArrayList<Request>();
+    requests.add(request);
+    requests.add(createRequest("CN=other", "resource"));
+    requests.add(request);
+    List<Response> responses = handler.handleBatch(requests);
+
+    assertEquals(3, responses.size());
+    assertSame(responses.get(0), responses.get(2));
+    assertEquals(2, subjectPIP.invocations.get());
+  }
+
+  private PEPDaemonRequestHandler createHandler(PolicyInformationPoint... pips)
+    throws Exception {
+
+    SOAPClient soapClient = mock(SOAPClient.class);
+    doThrow(new SOAPClientException("stub PDP has no decision")).when(
+      soapClient).send(anyString(), any(SOAPMessageContext.class));
+
+    PEPDaemonConfigurationBuilder builder = new PEPDaemonConfigurationBuilder();
+    builder.setEntityId("http://junit.example.org/pepd");
+    builder.getPDPEndpoints().add("https://pdp.example.org:8152/authz");
+    for (PolicyInformationPoint pip : pips) {
+      builder.getPolicyInformationPoints().add(pip);
+    }
+    builder.setSoapClient(soapClient);
+    builder.setBatchWorkerThreads(4);
+    return new PEPDaemonRequestHandler(builder.build());
+  }
+
+  private static Request createRequest(String subjectId, String resourceId) {
+
+    Subject subject = new Subject();
+    subject.getAttributes().add(createAttribute(Attribute.ID_SUB_ID, subjectId));
+
+    Resource resource = new Resource();
+    resource.getAttributes().add(
+      createAttribute(RESOURCE_ID, resourceId));
+
+    Action action = new Action();
+    action.getAttributes().add(createAttribute(ACTION_ID, "read"));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    return request;
+  }
+
+  private static Attribute createAttribute(String id, String value) {
+
+    Attribute attribute = new Attribute(id);
+    attribute.setDataType(Attribute.DT_STRING);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+
+  private static boolean hasAttribute(Subject subject, String id, String value) {
+
+    for (Attribute attribute : subject.getAttributes()) {
+      if (id.equals(attribute.getId()) && attribute.getValues().contains(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getValue(Iterable<Attribute> attributes, String id) {
+
+    for (Attribute attribute : attributes) {
+      if (id.equals(attribute.getId())) {
+        return attribute.getValues().iterator().next().toString();
+      }
+    }
+    return null;
+  }
+
+  /** Maps the subject ID to an attribute, counting its invocations. */
+  private static final class CountingSubjectPIP extends
+    AbstractPolicyInformationPoint implements SubjectPolicyInformationPoint {
+
+    private final AtomicInteger invocations = new AtomicInteger();
+
+    private CountingSubjectPIP(String id) {
+
+      super(id);
+    }
+
+    public boolean populateRequest(Request request) {
+
+      invocations.incrementAndGet();
+      for (Subject subject : request.getSubjects()) {
+        String subjectId = getValue(subject.getAttributes(),
+          Attribute.ID_SUB_ID);
+        subject.getAttributes().add(
+          createAttribute(MAPPED_ATTRIBUTE_ID, "mapped:" + subjectId));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Reads the resource, failing on the <em>fail</em> resource and optionally
+   * copying it to the subjects.
+   */
+  private static final class CountingPIP extends AbstractPolicyInformationPoint {
+
+    private final AtomicInteger invocations = new AtomicInteger();
+
+    private final boolean copyToSubjects;
+
+    private CountingPIP(String id, boolean copy) {
+
+      super(id);
+      copyToSubjects = copy;
+    }
+
+    public boolean populateRequest(Request request)
+      throws PIPProcessingException {
+
+      invocations.incrementAndGet();
+      String resourceId = getValue(request.getResources().iterator().next()
+        .getAttributes(), RESOURCE_ID);
+      if ("fail".equals(resourceId)) {
+        throw new PIPProcessingException("resource PIP failure");
+      }
+      if (copyToSubjects) {
+        for (Subject subject : request.getSubjects()) {
+          subject.getAttributes().add(
+            createAttribute(RESOURCE_ATTRIBUTE_ID, resourceId));
+        }
+      }
+      return copyToSubjects;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.glite.authz.pep.obligation.ObligationService;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.EnvironmentTimePIP;
+import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.config.PEPDaemonConfigurationBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.ws.soap.client.SOAPClient;
+
+public class PEPDaemonRequestPipelineTest {
+
+  private static final int THREAD_COUNT = 16;
+
+  private static final int READS_PER_THREAD = 5000;
+
+  private PEPDaemonConfiguration config;
+
+  private SOAPClient soapClient;
+
+  @Before
+  public void setUp() {
+
+    soapClient = mock(SOAPClient.class);
+
+    PEPDaemonConfigurationBuilder builder = new PEPDaemonConfigurationBuilder();
+    builder.setEntityId("http://junit.example.org/pepd");
+    builder.setCachedResponseTTL(1000);
+    builder.getPDPEndpoints().add("https://pdp1.example.org:8152/authz");
+    builder.getPDPEndpoints().add("https://pdp2.example.org:8152/authz");
+    builder.getPolicyInformationPoints().add(new EnvironmentTimePIP("TIME_PIP"));
+    builder.setObligationService(new ObligationService());
+    builder.setSoapClient(soapClient);
+    config = builder.build();
+  }
+
+  @Test
+  public void testPipelineResolvesConfiguration() {
+
+    PEPDaemonRequestPipeline pipeline = new PEPDaemonRequestPipeline(config);
+
+    assertEquals(config.getEntityId(), pipeline.getEntityId());
+    assertEquals(config.getPDPEndpoints(), pipeline.getPDPEndpoints());
+    assertEquals(config.getPolicyInformationPoints(),
+      pipeline.getPolicyInformationPoints());
+    assertSame(config.getObligationService(), pipeline.getObligationService());
+    assertSame(config.getServiceMetrics(), pipeline.getServiceMetrics());
+    assertSame(soapClient, pipeline.getSOAPClient());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testPipelineIsImmutable() {
+
+    PEPDaemonRequestPipeline pipeline = new PEPDaemonRequestPipeline(config);
+    pipeline.getPolicyInformationPoints().clear();
+  }
+
+  @Test
+  public void testHandlerResolvesPipeline() {
+
+    PEPDaemonRequestHandler handler = new PEPDaemonRequestHandler(config);
+    PEPDaemonRequestPipeline pipeline = handler.getRequestPipeline();
+
+    assertEquals(config.getEntityId(), pipeline.getEntityId());
+    assertEquals(config.getPolicyInformationPoints(),
+      pipeline.getPolicyInformationPoints());
+    assertSame(pipeline, handler.getRequestPipeline());
+  }
+
+  /**
+   * Reads the pipeline from many threads at once and checks that every read
+   * sees the values of the configuration it was built from.
+   */
+  @Test
+  public void testConcurrentReads() throws Exception {
+
+    final PEPDaemonRequestPipeline pipeline = new PEPDaemonRequestPipeline(
+      config);
+    final int expected = readConfiguration(config);
+    final AtomicInteger mismatches = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    final CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      Thread thread = new Thread(new Runnable() {
+
+        public void run() {
+
+          try {
+            barrier.await();
+            for (int j = 0; j < READS_PER_THREAD; j++) {
+              if (readPipeline(pipeline) != expected) {
+                mismatches.incrementAndGet();
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(0, mismatches.get());
+  }
+
+  private static int readConfiguration(PEPDaemonConfiguration config) {
+
+    int sum = 0;
+    for (PolicyInformationPoint pip : config.getPolicyInformationPoints()) {
+      sum += pip.getId().length();
+    }
+    sum += config.getPDPEndpoints().size();
+    sum += config.getEntityId().length();
+    sum += config.getObligationService() != null ? 1 : 0;
+    sum += config.getServiceMetrics() != null ? 1 : 0;
+    sum += config.getSOAPClient() != null ? 1 : 0;
+    return sum;
+  }
+
+  private static int readPipeline(PEPDaemonRequestPipeline pipeline) {
+
+    int sum = 0;
+    for (PolicyInformationPoint pip : pipeline.getPolicyInformationPoints()) {
+      sum += pip.getId().length();
+    }
+    sum += pipeline.getPDPEndpoints().size();
+    sum += pipeline.getEntityId().length();
+    sum += pipeline.getObligationService() != null ? 1 : 0;
+    sum += pipeline.getServiceMetrics() != null ? 1 : 0;
+    sum += pipeline.getSOAPClient() != null ? 1 : 0;
+    return sum;
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.common.util.Base64;
+import org.glite.authz.pep.server.config.PEPDaemonConfiguration;
+import org.glite.authz.pep.server.config.PEPDaemonConfigurationBuilder;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opensaml.ws.soap.client.SOAPClient;
+import org.opensaml.ws.soap.client.SOAPClientException;
+import org.opensaml.ws.soap.client.SOAPMessageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.caucho.hessian.io.HessianInput;
+import com.caucho.hessian.io.HessianOutput;
+
+/**
+ * Runs the {@link PEPDaemonServlet} in an embedded Jetty with a small container
+ * thread pool, and a stub PDP answering after a fixed latency.
+ */
+public class PEPDaemonServletAsyncTest {
+
+  private static final Logger LOG = LoggerFactory
+    .getLogger(PEPDaemonServletAsyncTest.class);
+
+  private static final int CONTAINER_THREADS = 8;
+
+  private static final int CLIENTS = 32;
+
+  private static final int REQUESTS_PER_CLIENT = 4;
+
+  private static final long PDP_LATENCY = 100;
+
+  private Server server;
+
+  private volatile long pdpLatency;
+
+  /** PDP requests being answered by the stub PDP. */
+  private final AtomicInteger pdpInFlight = new AtomicInteger();
+
+  /** Highest number of PDP requests answered at the same time. */
+  private final AtomicInteger maxPDPInFlight = new AtomicInteger();
+
+  private URL authzEndpoint;
+
+  @After
+  public void tearDown() throws Exception {
+
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  /**
+   * Synchronous processing evaluates at most one request per container thread,
+   * asynchronous processing releases the container threads while the PDP is
+   * queried and so has more PDP requests in flight than container threads.
+   */
+  @Test
+  public void testConcurrencyWithSlowPDP() throws Exception {
+
+    startServer(createConfiguration(false, 0, 0), PDP_LATENCY);
+    runClients();
+    int syncInFlight = maxPDPInFlight.get();
+    server.stop();
+
+    startServer(createConfiguration(true, CLIENTS, 10000), PDP_LATENCY);
+    runClients();
+    int asyncInFlight = maxPDPInFlight.get();
+
+    assertTrue("synchronous requests beyond the container threads",
+      syncInFlight <= CONTAINER_THREADS);
+    assertTrue("asynchronous requests limited by the container threads",
+      asyncInFlight > CONTAINER_THREADS);
+    assertTrue(asyncInFlight <= CLIENTS);
+  }
+
+  /**
+   * Compares a small platform worker pool with virtual threads, both bounded
+   * by the same in-flight limit: the virtual threads are only limited by the
+   * in-flight limit. Only runs on a JVM supporting virtual threads.
+   */
+  @Test
+  public void testVirtualThreadsConcurrency() throws Exception {
+
+    Assume.assumeTrue(VirtualThreads.isSupported());
+
+    startServer(createConfiguration(false, CONTAINER_THREADS, CLIENTS, 10000),
+      PDP_LATENCY);
+    runClients();
+    int platformInFlight = maxPDPInFlight.get();
+    server.stop();
+
+    startServer(createConfiguration(true, 0, CLIENTS, 10000), PDP_LATENCY);
+    runClients();
+    int virtualInFlight = maxPDPInFlight.get();
+
+    assertTrue("platform workers beyond their pool size",
+      platformInFlight <= CONTAINER_THREADS);
+    assertTrue("virtual threads limited to the platform pool size",
+      virtualInFlight > CONTAINER_THREADS);
+    assertTrue(virtualInFlight <= CLIENTS);
+  }
+
+  @Test
+  public void testTimeoutReturnsIndeterminate() throws Exception {
+
+    startServer(createConfiguration(true, 10, 100), 2000);
+
+    HttpURLConnection connection = post(createRequest());
+    assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+
+    Response response = readResponse(connection);
+    Result result = response.getResults().get(0);
+    assertEquals(Result.DECISION_INDETERMINATE, result.getDecision());
+    assertEquals("Authorization request timed out", result.getStatus()
+      .getMessage());
+  }
+
+  @Test
+  public void testInFlightLimit() throws Exception {
+
+    startServer(createConfiguration(true, 1, 10000), 1000);
+
+    final CountDownLatch sent = new CountDownLatch(1);
+    Thread first = new Thread(new Runnable() {
+
+      public void run() {
+
+        try {
+          HttpURLConnection connection = post(createRequest());
+          sent.countDown();
+          connection.getResponseCode();
+        } catch (Exception e) {
+          LOG.warn("first request failed", e);
+        }
+      }
+    });
+    first.start();
+    sent.await();
+    Thread.sleep(200);
+
+    HttpURLConnection connection = post(createRequest());
+    assertEquals(HttpURLConnection.HTTP_UNAVAILABLE,
+      connection.getResponseCode());
+    first.join();
+  }
+
+  private PEPDaemonConfiguration createConfiguration(boolean async,
+    int maxInFlight, long timeout) {
+
+    PEPDaemonConfigurationBuilder builder = new PEPDaemonConfigurationBuilder();
+    builder.setEntityId("http://junit.example.org/pepd");
+    builder.getPDPEndpoints().add("https://pdp.example.org:8152/authz");
+    builder.setAsyncProcessing(async);
+    if (async) {
+      builder.setMaxInFlightRequests(maxInFlight);
+      builder.setAsyncWorkerThreads(Math.max(maxInFlight, 1));
+      builder.setAsyncRequestTimeout(timeout);
+    }
+    builder.setSoapClient(createStubPDP());
+    return builder.build();
+  }
+
+  private PEPDaemonConfiguration createConfiguration(boolean virtualThreads,
+    int workerThreads, int maxInFlight, long timeout) {
+
+    PEPDaemonConfigurationBuilder builder = new PEPDaemonConfigurationBuilder();
+    builder.setEntityId("http://junit.example.org/pepd");
+    builder.getPDPEndpoints().add("https://pdp.example.org:8152/authz");
+    builder.setAsyncProcessing(true);
+    builder.setVirtualThreads(virtualThreads);
+    if (!virtualThreads) {
+      builder.setAsyncWorkerThreads(workerThreads);
+    }
+    builder.setMaxInFlightRequests(maxInFlight);
+    builder.setAsyncRequestTimeout(timeout);
+    builder.setSoapClient(createStubPDP());
+    return builder.build();
+  }
+
+  /**
+   * Creates a PDP client which answers, after {@link #pdpLatency}, with an
+   * error, making the handler return an Indeterminate response.
+   */
+  private SOAPClient createStubPDP() {
+
+    SOAPClient stubPDP = mock(SOAPClient.class);
+    try {
+      doAnswer(new Answer<Void>() {
+
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+
+          int inFlight = pdpInFlight.incrementAndGet();
+          try {
+            int max = maxPDPInFlight.get();
+            while (inFlight > max && !maxPDPInFlight.compareAndSet(max, inFlight)) {
+              max = maxPDPInFlight.get();
+            }
+            Thread.sleep(pdpLatency);
+          } finally {
+            pdpInFlight.decrementAndGet();
+          }
+          throw new SOAPClientException("stub PDP has no decision");
+        }
+      }).when(stubPDP).send(anyString(), any(SOAPMessageContext.class));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    return stubPDP;
+  }
+
+  private void startServer(PEPDaemonConfiguration config, long latency)
+    throws Exception {
+
+    pdpLatency = latency;
+    maxPDPInFlight.set(0);
+
+    server = new Server(new QueuedThreadPool(CONTAINER_THREADS));
+    ServerConnector connector = new ServerConnector(server, 1, 1);
+    connector.setHost("127.0.0.1");
+    connector.setPort(0);
+    server.addConnector(connector);
+
+    ServletContextHandler context = new ServletContextHandler(server, "/",
+      false, false);
+    context.setAttribute(PEPDaemonConfiguration.BINDING_NAME, config);
+    ServletHolder servlet = new ServletHolder(new PEPDaemonServlet());
+    servlet.setAsyncSupported(config.isAsyncProcessing());
+    context.addServlet(servlet, "/authz");
+
+    server.start();
+    authzEndpoint = new URL("http://127.0.0.1:" + connector.getLocalPort()
+      + "/authz");
+  }
+
+  /**
+   * Sends {@link #REQUESTS_PER_CLIENT} requests from each of the
+   * {@link #CLIENTS} concurrent clients and checks that every request is
+   * answered with the stub PDP error.
+   */
+  private void runClients() throws Exception {
+
+    final CyclicBarrier barrier = new CyclicBarrier(CLIENTS + 1);
+    final AtomicInteger indeterminates = new AtomicInteger();
+    List<Thread> clients = new ArrayList<Thread>();
+    for (int i = 0; i < CLIENTS; i++) {
+      Thread client = new Thread(new Runnable() {
+
+        public void run() {
+
+          try {
+            barrier.await();
+            for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+              Response response = readResponse(post(createRequest()));
+              if (response.getResults().get(0).getDecision() == Result.DECISION_INDETERMINATE) {
+                indeterminates.incrementAndGet();
+              }
+            }
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+      client.start();
+      clients.add(client);
+    }
+    barrier.await();
+    for (Thread client : clients) {
+      client.join();
+    }
+    assertEquals(CLIENTS * REQUESTS_PER_CLIENT, indeterminates.get());
+  }
+
+  private HttpURLConnection post(Request request) throws Exception {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HessianOutput hout = new HessianOutput(bytes);
+    hout.writeObject(request);
+    hout.flush();
+    byte[] body = Base64.encodeBytes(bytes.toByteArray()).getBytes("US-ASCII");
+
+    HttpURLConnection connection = (HttpURLConnection) authzEndpoint
+      .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    // send the request as soon as the body is written
+    connection.setFixedLengthStreamingMode(body.length);
+    OutputStream out = connection.getOutputStream();
+    out.write(body);
+    out.close();
+    return connection;
+  }
+
+  private static Response readResponse(HttpURLConnection connection)
+    throws Exception {
+
+    HessianInput hin = new HessianInput(new Base64.InputStream(
+      connection.getInputStream()));
+    return (Response) hin.readObject(Response.class);
+  }
+
+  private static Request createRequest() {
+
+    Subject subject = new Subject();
+    Attribute subjectId = new Attribute(Attribute.ID_SUB_ID);
+    subjectId.getValues().add("CN=junit,O=example");
+    subject.getAttributes().add(subjectId);
+
+    Resource resource = new Resource();
+    Attribute resourceId = new Attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-id");
+    resourceId.getValues().add("http://ce.example.org");
+    resource.getAttributes().add(resourceId);
+
+    Action action = new Action();
+    Attribute actionId = new Attribute("urn:oasis:names:tc:xacml:1.0:action:action-id");
+    actionId.getValues().add("submit");
+    action.getAttributes().add(actionId);
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    return request;
+  }
+}
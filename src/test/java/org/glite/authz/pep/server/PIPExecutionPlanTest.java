@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.AttributeAccessPolicyInformationPoint;
+import org.glite.authz.pep.pip.PIPProcessingException;
+import org.glite.authz.pep.pip.PolicyInformationPoint;
+import org.glite.authz.pep.pip.RequestAttributeReference;
+import org.glite.authz.pep.pip.RequestAttributeReference.Section;
+import org.glite.authz.pep.pip.provider.AbstractPolicyInformationPoint;
+import org.glite.authz.pep.pip.provider.EnvironmentTimePIP;
+import org.glite.authz.pep.server.metrics.StageLatencies;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Tests the {@link PIPExecutionPlan}. */
+public class PIPExecutionPlanTest {
+
+  private static final Logger LOG = LoggerFactory
+    .getLogger(PIPExecutionPlanTest.class);
+
+  private static final String PROFILE_ID = "urn:junit:profile-id";
+
+  private static final String SUBJECT_ID = "urn:junit:subject-id";
+
+  private static final String RESOURCE_ID = "urn:junit:resource-id";
+
+  /** Simulated cost of a PIP, in milliseconds. */
+  private static final int PIP_DELAY = 20;
+
+  private static final int ITERATIONS = 20;
+
+  private ExecutorService executor;
+
+  private StageLatencies stageLatencies;
+
+  @Before
+  public void setUp() {
+
+    executor = Executors.newFixedThreadPool(4);
+    stageLatencies = new StageLatencies();
+  }
+
+  @After
+  public void tearDown() {
+
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testIndependentPIPsShareStage() {
+
+    PIPExecutionPlan plan = new PIPExecutionPlan(Arrays.asList(
+      subjectPIP("X509_PIP", 0), new EnvironmentTimePIP("TIME_PIP"),
+      resourcePIP("RESOURCE_PIP", 0)));
+
+    assertFalse(plan.isSequential());
+    assertEquals(
+      Collections.singletonList(Arrays.asList("X509_PIP", "TIME_PIP",
+        "RESOURCE_PIP")), plan.getStageIds());
+  }
+
+  @Test
+  public void testDependentPIPsRunInOrder() {
+
+    // the second subject PIP writes the same section, the mapping PIP reads
+    // the subjects written by both
+    PIPExecutionPlan plan = new PIPExecutionPlan(Arrays.asList(
+      subjectPIP("X509_PIP", 0), subjectPIP("OTHER_X509_PIP", 0),
+      resourcePIP("RESOURCE_PIP", 0), mappingPIP("MAPPING_PIP", 0)));
+
+    assertEquals(
+      Arrays.asList(Arrays.asList("X509_PIP", "RESOURCE_PIP"),
+        Arrays.asList("OTHER_X509_PIP"), Arrays.asList("MAPPING_PIP")),
+      plan.getStageIds());
+  }
+
+  @Test
+  public void testWriterAfterReaderRunsLater() {
+
+    // the profile PIP writes the attribute read by the subject PIP before it
+    DeclaredPIP profilePIP = new DeclaredPIP("PROFILE_PIP", 0, null,
+      Section.ENVIRONMENT, PROFILE_ID);
+    PIPExecutionPlan plan = new PIPExecutionPlan(Arrays
+      .<PolicyInformationPoint> asList(subjectPIP("X509_PIP", 0), profilePIP));
+
+    assertTrue(plan.isSequential());
+    assertEquals(
+      Arrays.asList(Arrays.asList("X509_PIP"), Arrays.asList("PROFILE_PIP")),
+      plan.getStageIds());
+  }
+
+  @Test
+  public void testUndeclaredPIPIsBarrier() {
+
+    PolicyInformationPoint undeclared = new AbstractPolicyInformationPoint(
+      "UNDECLARED_PIP") {
+
+      public boolean populateRequest(Request request) {
+
+        return false;
+      }
+    };
+    PIPExecutionPlan plan = new PIPExecutionPlan(Arrays.asList(
+      subjectPIP("X509_PIP", 0), undeclared, resourcePIP("RESOURCE_PIP", 0),
+      new EnvironmentTimePIP("TIME_PIP")));
+
+    assertEquals(
+      Arrays.asList(Arrays.asList("X509_PIP"),
+        Arrays.asList("UNDECLARED_PIP"),
+        Arrays.asList("RESOURCE_PIP", "TIME_PIP")), plan.getStageIds());
+  }
+
+  @Test
+  public void testFailureOfFirstPIPIsThrown() throws Exception {
+
+    DeclaredPIP failing = resourcePIP("RESOURCE_PIP", 0);
+    failing.failure = "resource PIP failure";
+    PIPExecutionPlan plan = new PIPExecutionPlan(Arrays
+      .<PolicyInformationPoint> asList(subjectPIP("X509_PIP", 0), failing,
+        new EnvironmentTimePIP("TIME_PIP")));
+
+    Request request = createRequest();
+    try {
+      plan.populateRequest(request, executor, null, stageLatencies);
+      fail("PIP failure not thrown");
+    } catch (PIPProcessingException e) {
+      assertEquals("resource PIP failure", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testConcurrentChainMatchesSequentialChain() throws Exception {
+
+    List<PolicyInformationPoint> pips = Arrays.<PolicyInformationPoint> asList(
+      subjectPIP("X509_PIP", PIP_DELAY),
+      subjectPIP("OTHER_X509_PIP", PIP_DELAY),
+      resourcePIP("RESOURCE_PIP", PIP_DELAY),
+      new DeclaredPIP("ACTION_PIP", PIP_DELAY, null, Section.ACTION,
+        "urn:junit:action"), mappingPIP("MAPPING_PIP", PIP_DELAY));
+    PIPExecutionPlan plan = new PIPExecutionPlan(pips);
+    LOG.info("PIP execution stages: {}", plan);
+
+    // warm up the executor
+    plan.populateRequest(createRequest(), executor, null, stageLatencies);
+
+    long sequentialTime = 0;
+    long concurrentTime = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      Request sequentialRequest = createRequest();
+      long startTime = System.nanoTime();
+      for (PolicyInformationPoint pip : pips) {
+        pip.populateRequest(sequentialRequest);
+      }
+      sequentialTime += System.nanoTime() - startTime;
+
+      Request concurrentRequest = createRequest();
+      startTime = System.nanoTime();
+      plan.populateRequest(concurrentRequest, executor, null, stageLatencies);
+      concurrentTime += System.nanoTime() - startTime;
+
+      assertEquals(describe(sequentialRequest), describe(concurrentRequest));
+    }
+    LOG.info(
+      "{} PIPs of {}ms in {} stages: sequential {}us, concurrent {}us per request",
+      new Object[] { pips.size(), PIP_DELAY, plan.getStageIds().size(),
+        sequentialTime / ITERATIONS / 1000, concurrentTime / ITERATIONS / 1000 });
+  }
+
+  private static DeclaredPIP subjectPIP(String id, int delay) {
+
+    return new DeclaredPIP(id, delay, RequestAttributeReference.attribute(
+      Section.ENVIRONMENT, PROFILE_ID), Section.SUBJECT, "urn:junit:" + id);
+  }
+
+  private static DeclaredPIP resourcePIP(String id, int delay) {
+
+    return new DeclaredPIP(id, delay, RequestAttributeReference.attribute(
+      Section.RESOURCE, RESOURCE_ID), Section.RESOURCE, "urn:junit:" + id);
+  }
+
+  private static DeclaredPIP mappingPIP(String id, int delay) {
+
+    return new DeclaredPIP(id, delay, RequestAttributeReference
+      .section(Section.SUBJECT), Section.ENVIRONMENT, "urn:junit:" + id);
+  }
+
+  private static Request createRequest() {
+
+    Subject subject = new Subject();
+    subject.getAttributes().add(createAttribute(SUBJECT_ID, "CN=user"));
+    Resource resource = new Resource();
+    resource.getAttributes().add(createAttribute(RESOURCE_ID, "resource"));
+    Environment environment = new Environment();
+    environment.getAttributes().add(createAttribute(PROFILE_ID, "profile"));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(new Action());
+    request.setEnvironment(environment);
+    return request;
+  }
+
+  private static Attribute createAttribute(String id, String value) {
+
+    Attribute attribute = new Attribute(id);
+    attribute.setDataType(Attribute.DT_STRING);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+
+  private static List<String> describe(Request request) {
+
+    List<String> description = new ArrayList<String>();
+    for (Subject subject : request.getSubjects()) {
+      describe(description, "subject", subject.getAttributes());
+    }
+    for (Resource resource : request.getResources()) {
+      describe(description, "resource", resource.getAttributes());
+    }
+    describe(description, "action", request.getAction().getAttributes());
+    describe(description, "environment", request.getEnvironment()
+      .getAttributes());
+    return description;
+  }
+
+  private static void describe(List<String> description, String section,
+    Iterable<Attribute> attributes) {
+
+    for (Attribute attribute : attributes) {
+      description.add(section + ":" + attribute.getId() + "="
+        + attribute.getValues());
+    }
+  }
+
+  /**
+   * Adds an attribute to a section, its value derived from the attributes it
+   * reads, after a delay simulating its processing.
+   */
+  private static final class DeclaredPIP extends
+    AbstractPolicyInformationPoint implements
+    AttributeAccessPolicyInformationPoint {
+
+    private final int delay;
+
+    private final RequestAttributeReference read;
+
+    private final Section writtenSection;
+
+    private final String writtenId;
+
+    private String failure;
+
+    private DeclaredPIP(String id, int processingDelay,
+      RequestAttributeReference readAttribute, Section section,
+      String attributeId) {
+
+      super(id);
+      delay = processingDelay;
+      read = readAttribute;
+      writtenSection = section;
+      writtenId = attributeId;
+    }
+
+    public Set<RequestAttributeReference> getReadAttributes() {
+
+      if (read == null) {
+        return Collections.emptySet();
+      }
+      return Collections.singleton(read);
+    }
+
+    public Set<RequestAttributeReference> getWrittenAttributes() {
+
+      return Collections.singleton(RequestAttributeReference.attribute(
+        writtenSection, writtenId));
+    }
+
+    public boolean populateRequest(Request request)
+      throws PIPProcessingException {
+
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PIPProcessingException("interrupted");
+        }
+      }
+      if (failure != null) {
+        throw new PIPProcessingException(failure);
+      }
+
+      Set<String> readValues = new HashSet<String>();
+      if (read != null) {
+        for (Collection<Attribute> attributes : sectionAttributes(request,
+          read.getSection())) {
+          for (Attribute attribute : attributes) {
+            if (read.getAttributeId() == null
+              || read.getAttributeId().equals(attribute.getId())) {
+              readValues.add(attribute.getId() + "=" + attribute.getValues());
+            }
+          }
+        }
+      }
+      String value = getId() + readValues.size();
+      for (Collection<Attribute> attributes : sectionAttributes(request,
+        writtenSection)) {
+        attributes.add(createAttribute(writtenId, value));
+      }
+      return true;
+    }
+
+    private static List<Collection<Attribute>> sectionAttributes(
+      Request request, Section section) {
+
+      List<Collection<Attribute>> attributes = new ArrayList<Collection<Attribute>>();
+      switch (section) {
+      case SUBJECT:
+        for (Subject subject : request.getSubjects()) {
+          attributes.add(subject.getAttributes());
+        }
+        break;
+      case RESOURCE:
+        for (Resource resource : request.getResources()) {
+          attributes.add(resource.getAttributes());
+        }
+        break;
+      case ACTION:
+        attributes.add(request.getAction().getAttributes());
+        break;
+      default:
+        attributes.add(request.getEnvironment().getAttributes());
+      }
+      return attributes;
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RequestCoalescerTest {
+
+  private static final int CALLERS = 50;
+
+  @Test
+  public void testIdenticalCallsAreCoalesced() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger invocations = new AtomicInteger();
+
+    List<String> results = runCallers(coalescer, CALLERS, release, invocations,
+      null);
+
+    assertEquals(1, invocations.get());
+    assertEquals(CALLERS, results.size());
+    for (String result : results) {
+      assertEquals("decision", result);
+    }
+    assertEquals(1, coalescer.getExecutedCalls());
+    assertEquals(CALLERS - 1, coalescer.getCoalescedCalls());
+    assertEquals(0, coalescer.getInFlightCalls());
+  }
+
+  @Test
+  public void testWaiterLimit() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      2);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger invocations = new AtomicInteger();
+
+    runCallers(coalescer, 5, release, invocations, null);
+
+    assertEquals(3, invocations.get());
+    assertEquals(2, coalescer.getCoalescedCalls());
+    assertEquals(2, coalescer.getOverflowCalls());
+  }
+
+  @Test
+  public void testErrorIsShared() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger invocations = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+
+    runCallers(coalescer, 10, release, invocations, errors);
+
+    assertEquals(1, invocations.get());
+    assertEquals(10, errors.get());
+  }
+
+  @Test
+  public void testCompletedCallIsNotReused() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    final AtomicInteger invocations = new AtomicInteger();
+    Callable<String> call = new Callable<String>() {
+
+      public String call() {
+
+        return "decision-" + invocations.incrementAndGet();
+      }
+    };
+
+    assertEquals("decision-1", coalescer.execute("key", call));
+    assertEquals("decision-2", coalescer.execute("key", call));
+  }
+
+  @Test
+  public void testAsyncCallsAreCoalesced() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    final CompletableFuture<String> pdp = new CompletableFuture<String>();
+    final AtomicInteger invocations = new AtomicInteger();
+    Callable<CompletableFuture<String>> call = new Callable<CompletableFuture<String>>() {
+
+      public CompletableFuture<String> call() {
+
+        invocations.incrementAndGet();
+        return pdp;
+      }
+    };
+
+    List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+    for (int i = 0; i < CALLERS; i++) {
+      results.add(coalescer.executeAsync("key", call));
+    }
+    assertEquals(1, coalescer.getInFlightCalls());
+    pdp.complete("decision");
+
+    assertEquals(1, invocations.get());
+    for (CompletableFuture<String> result : results) {
+      assertEquals("decision", result.get());
+    }
+    assertEquals(1, coalescer.getExecutedCalls());
+    assertEquals(CALLERS - 1, coalescer.getCoalescedCalls());
+    assertEquals(0, coalescer.getInFlightCalls());
+  }
+
+  @Test
+  public void testAsyncCallsShareSyncCall() throws Exception {
+
+    final RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread leader = new Thread(new Runnable() {
+
+      public void run() {
+
+        try {
+          coalescer.execute("key", new Callable<String>() {
+
+            public String call() throws Exception {
+
+              started.countDown();
+              release.await();
+              return "decision";
+            }
+          });
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    leader.start();
+    started.await();
+
+    CompletableFuture<String> result = coalescer.executeAsync("key",
+      new Callable<CompletableFuture<String>>() {
+
+        public CompletableFuture<String> call() {
+
+          throw new IllegalStateException("call not coalesced");
+        }
+      });
+    release.countDown();
+    leader.join();
+
+    assertEquals("decision", result.get());
+    assertEquals(1, coalescer.getCoalescedCalls());
+  }
+
+  @Test
+  public void testAsyncCallFailure() throws Exception {
+
+    RequestCoalescer<String, String> coalescer = new RequestCoalescer<String, String>(
+      1000);
+    final IllegalStateException error = new IllegalStateException(
+      "PDP unavailable");
+    Callable<CompletableFuture<String>> call = new Callable<CompletableFuture<String>>() {
+
+      public CompletableFuture<String> call() {
+
+        throw error;
+      }
+    };
+
+    CompletableFuture<String> result = coalescer.executeAsync("key", call);
+
+    assertTrue(result.isCompletedExceptionally());
+    try {
+      result.get();
+      fail("the call failure was not reported");
+    } catch (ExecutionException e) {
+      assertSame(error, e.getCause());
+    }
+    assertEquals(0, coalescer.getInFlightCalls());
+  }
+
+  /**
+   * Runs concurrent callers with the same key. The call blocks until all the
+   * callers have been started, then fails if an error counter is given.
+   */
+  private List<String> runCallers(
+    final RequestCoalescer<String, String> coalescer, int callers,
+    final CountDownLatch release, final AtomicInteger invocations,
+    final AtomicInteger errors) throws Exception {
+
+    final Callable<String> call = new Callable<String>() {
+
+      public String call() throws Exception {
+
+        invocations.incrementAndGet();
+        release.await();
+        if (errors != null) {
+          throw new IllegalStateException("PDP unavailable");
+        }
+        return "decision";
+      }
+    };
+
+    final List<String> results = new ArrayList<String>();
+    final CyclicBarrier barrier = new CyclicBarrier(callers + 1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < callers; i++) {
+      Thread thread = new Thread(new Runnable() {
+
+        public void run() {
+
+          try {
+            barrier.await();
+            String result = coalescer.execute("key", call);
+            synchronized (results) {
+              results.add(result);
+            }
+          } catch (IllegalStateException e) {
+            errors.incrementAndGet();
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    barrier.await();
+    // let all the callers reach the coalescer before completing the call
+    Thread.sleep(300);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return results;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.pep.server.cache.CachedResponse;
+import org.glite.authz.pep.server.cache.RequestFingerprint;
+import org.glite.authz.pep.server.metrics.LatencySummary;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.junit.Test;
+
+public class ResponseCacheRevalidatorTest {
+
+  @Test
+  public void testRefreshAheadWindow() {
+
+    ResponseCacheRevalidator revalidator = new ResponseCacheRevalidator(20, 0);
+    CachedResponse cached = createCachedResponse(10000, 0);
+
+    assertFalse(revalidator.isRefreshDue(cached, 0));
+    assertFalse(revalidator.isRefreshDue(cached, 7999));
+    assertTrue(revalidator.isRefreshDue(cached, 8000));
+    assertTrue(revalidator.isRefreshDue(cached, 9999));
+    // expired responses are not refreshed, they are missed
+    assertFalse(revalidator.isRefreshDue(cached, 10000));
+
+    revalidator.shutdown();
+  }
+
+  @Test
+  public void testRefreshAheadDisabled() {
+
+    ResponseCacheRevalidator revalidator = new ResponseCacheRevalidator(0,
+      60000);
+    assertFalse(revalidator.isRefreshDue(createCachedResponse(10000, 0), 9999));
+  }
+
+  @Test
+  public void testSingleRefreshPerRequest() throws Exception {
+
+    ResponseCacheRevalidator revalidator = new ResponseCacheRevalidator(20, 0);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicInteger refreshes = new AtomicInteger();
+    Callable<Boolean> refresh = new Callable<Boolean>() {
+
+      public Boolean call() throws Exception {
+
+        refreshes.incrementAndGet();
+        started.countDown();
+        release.await();
+        done.countDown();
+        return Boolean.TRUE;
+      }
+    };
+
+    RequestFingerprint key = new RequestFingerprint(1, 2, 3, 4);
+    revalidator.refresh(key, refresh);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      revalidator.refresh(key, refresh);
+    }
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(1, refreshes.get());
+    revalidator.shutdown();
+  }
+
+  @Test
+  public void testStaleOnError() {
+
+    ResponseCacheRevalidator revalidator = new ResponseCacheRevalidator(0,
+      5000);
+    CachedResponse cached = createCachedResponse(1000,
+      revalidator.getStaleOnErrorPeriod());
+
+    assertTrue(revalidator.isStaleUsable(cached, 1000));
+    assertTrue(revalidator.isStaleUsable(cached, 5999));
+    assertFalse(revalidator.isStaleUsable(cached, 6000));
+
+    revalidator.staleResponseServed();
+    assertEquals(1L, collectMetrics(revalidator).get(
+      "response_cache_stale_served_total"));
+  }
+
+  private static CachedResponse createCachedResponse(long ttl, long stalePeriod) {
+
+    Result result = new Result();
+    result.setDecision(Result.DECISION_PERMIT);
+    Response response = new Response();
+    response.getResults().add(result);
+    return new CachedResponse(response, 0, ttl, stalePeriod);
+  }
+
+  private static Map<String, Number> collectMetrics(
+    ResponseCacheRevalidator revalidator) {
+
+    final Map<String, Number> metrics = new HashMap<String, Number>();
+    revalidator.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+
+        metrics.put(name, value);
+      }
+
+      public void gauge(String name, String help, double value) {
+
+        metrics.put(name, value);
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}",
+          summary.getTotalCount());
+      }
+    });
+    return metrics;
+  }
+}
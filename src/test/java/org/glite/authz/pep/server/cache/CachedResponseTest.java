@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.AttributeAssignment;
+import org.glite.authz.common.model.Obligation;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Status;
+import org.glite.authz.common.model.StatusCode;
+import org.junit.Test;
+import org.opensaml.xacml.ctx.StatusCodeType;
+
+public class CachedResponseTest {
+
+  private static final String MAP_OBLIGATION = "http://glite.org/xacml/obligation/local-environment-map";
+
+  private static final String POSIX_OBLIGATION = "http://glite.org/xacml/obligation/local-environment-map/posix";
+
+  @Test
+  public void testCopy() {
+
+    Response copy = new CachedResponse(createResponse(), 0, 1000, 0).toResponse();
+
+    Result result = copy.getResults().get(0);
+    assertEquals(Result.DECISION_PERMIT, result.getDecision());
+    assertEquals("resource", result.getResourceId());
+    assertEquals(StatusCodeType.SC_OK, result.getStatus().getCode().getCode());
+    assertEquals("sub-code", result.getStatus().getCode().getSubCode()
+      .getCode());
+    assertNull(result.getStatus().getCode().getSubCode().getSubCode());
+    assertEquals("ok", result.getStatus().getMessage());
+    assertEquals(1, result.getObligations().size());
+    Obligation obligation = result.getObligations().get(0);
+    assertEquals(MAP_OBLIGATION, obligation.getId());
+    assertEquals(Result.DECISION_PERMIT, obligation.getFulfillOn());
+    assertEquals(1, obligation.getAttributeAssignments().size());
+    assertEquals("value", obligation.getAttributeAssignments().get(0)
+      .getValue());
+  }
+
+  @Test
+  public void testObligationProcessingDoesNotChangeTheCache() {
+
+    Response response = createResponse();
+    CachedResponse cached = new CachedResponse(response, 0, 1000, 0);
+
+    // what the account mapping obligation handler does
+    simulateAccountMapping(response.getResults().get(0));
+    Response first = cached.toResponse();
+    simulateAccountMapping(first.getResults().get(0));
+
+    Response second = cached.toResponse();
+    assertNotSame(first.getResults().get(0), second.getResults().get(0));
+    assertEquals(MAP_OBLIGATION, second.getResults().get(0).getObligations()
+      .get(0).getId());
+    assertEquals(1, second.getResults().get(0).getObligations().size());
+  }
+
+  private static void simulateAccountMapping(Result result) {
+
+    result.getObligations().clear();
+    Obligation posixMapping = new Obligation();
+    posixMapping.setId(POSIX_OBLIGATION);
+    posixMapping.setFulfillOn(Result.DECISION_PERMIT);
+    result.getObligations().add(posixMapping);
+  }
+
+  private static Response createResponse() {
+
+    StatusCode subCode = new StatusCode();
+    subCode.setCode("sub-code");
+    StatusCode code = new StatusCode();
+    code.setCode(StatusCodeType.SC_OK);
+    code.setSubCode(subCode);
+    Status status = new Status();
+    status.setCode(code);
+    status.setMessage("ok");
+
+    AttributeAssignment assignment = new AttributeAssignment();
+    assignment.setAttributeId("attribute");
+    assignment.setDataType(Attribute.DT_STRING);
+    assignment.setValue("value");
+    Obligation obligation = new Obligation();
+    obligation.setId(MAP_OBLIGATION);
+    obligation.setFulfillOn(Result.DECISION_PERMIT);
+    obligation.getAttributeAssignments().add(assignment);
+
+    Result result = new Result();
+    result.setDecision(Result.DECISION_PERMIT);
+    result.setResourceId("resource");
+    result.setStatus(status);
+    result.getObligations().add(obligation);
+
+    Response response = new Response();
+    response.getResults().add(result);
+    return response;
+  }
+}
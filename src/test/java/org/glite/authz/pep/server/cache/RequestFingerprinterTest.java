@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.pep.pip.provider.EnvironmentTimePIP;
+import org.junit.Test;
+
+public class RequestFingerprinterTest {
+
+  private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+  private static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+
+  /** 2010-06-15T12:00:00.000Z */
+  private static final long NOW = 1276603200000L;
+
+  private static final long TTL = 60000;
+
+  @Test
+  public void testTimeAttributesAreIgnored() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter();
+    ResponseCache cache = new TinyLFUResponseCache(10);
+
+    Request first = createRequest("CN=junit,O=example");
+    addTimeAttributes(first, "2010-06-15", "12:00:00Z");
+    cache.put(fingerprinter.fingerprint(first), new CachedResponse(
+      createResponse(), NOW, TTL, 0));
+
+    // same request, one second later
+    Request second = createRequest("CN=junit,O=example");
+    addTimeAttributes(second, "2010-06-15", "12:00:01Z");
+
+    assertFalse(first.toString().equals(second.toString()));
+    assertEquals(fingerprinter.fingerprint(first),
+      fingerprinter.fingerprint(second));
+    assertNotNull(cache.get(fingerprinter.fingerprint(second), NOW + 1000));
+  }
+
+  @Test
+  public void testTimeAttributesWithoutExclusions() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter(
+      Collections.<String> emptyList());
+    ResponseCache cache = new TinyLFUResponseCache(10);
+
+    Request first = createRequest("CN=junit,O=example");
+    addTimeAttributes(first, "2010-06-15", "12:00:00Z");
+    cache.put(fingerprinter.fingerprint(first), new CachedResponse(
+      createResponse(), NOW, TTL, 0));
+    Request second = createRequest("CN=junit,O=example");
+    addTimeAttributes(second, "2010-06-15", "12:00:01Z");
+
+    assertFalse(fingerprinter.fingerprint(first).equals(
+      fingerprinter.fingerprint(second)));
+    assertNull(cache.get(fingerprinter.fingerprint(second), NOW + 1000));
+  }
+
+  @Test
+  public void testDifferentSubjects() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter();
+
+    assertFalse(fingerprinter.fingerprint(createRequest("CN=alice,O=example"))
+      .equals(fingerprinter.fingerprint(createRequest("CN=bob,O=example"))));
+  }
+
+  @Test
+  public void testAttributeOrderIsIgnored() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter();
+
+    Request first = createRequest("CN=junit,O=example");
+    first.getSubjects().iterator().next().getAttributes()
+      .add(createAttribute("http://example.org/role", "admin"));
+
+    Request second = createRequest("CN=junit,O=example");
+    Subject subject = second.getSubjects().iterator().next();
+    Attribute subjectId = subject.getAttributes().iterator().next();
+    subject.getAttributes().clear();
+    subject.getAttributes().add(
+      createAttribute("http://example.org/role", "admin"));
+    subject.getAttributes().add(subjectId);
+
+    assertEquals(fingerprinter.fingerprint(first),
+      fingerprinter.fingerprint(second));
+  }
+
+  @Test
+  public void testValueBoundariesAreKept() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter();
+
+    Request first = createRequest("CN=junit,O=example");
+    Attribute split = createAttribute("http://example.org/group", "ab");
+    split.getValues().add("c");
+    first.getSubjects().iterator().next().getAttributes().add(split);
+
+    Request second = createRequest("CN=junit,O=example");
+    Attribute otherSplit = createAttribute("http://example.org/group", "a");
+    otherSplit.getValues().add("bc");
+    second.getSubjects().iterator().next().getAttributes().add(otherSplit);
+
+    assertFalse(fingerprinter.fingerprint(first).equals(
+      fingerprinter.fingerprint(second)));
+  }
+
+  @Test
+  public void testConfiguredExclusion() {
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter(
+      Collections.singleton("http://example.org/request-id"));
+
+    Request first = createRequest("CN=junit,O=example");
+    first.getEnvironment().getAttributes()
+      .add(createAttribute("http://example.org/request-id", "1"));
+    Request second = createRequest("CN=junit,O=example");
+    second.getEnvironment().getAttributes()
+      .add(createAttribute("http://example.org/request-id", "2"));
+
+    assertEquals(fingerprinter.fingerprint(first),
+      fingerprinter.fingerprint(second));
+    assertFalse(new RequestFingerprinter().fingerprint(first).equals(
+      new RequestFingerprinter().fingerprint(second)));
+  }
+
+  private static Request createRequest(String subjectDN) {
+
+    Subject subject = new Subject();
+    subject.getAttributes().add(createAttribute(Attribute.ID_SUB_ID, subjectDN));
+
+    Resource resource = new Resource();
+    resource.getAttributes().add(
+      createAttribute(RESOURCE_ID, "http://ce.example.org"));
+
+    Action action = new Action();
+    action.getAttributes().add(createAttribute(ACTION_ID, "submit"));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    request.setEnvironment(new Environment());
+    return request;
+  }
+
+  /**
+   * Adds the attributes of the {@link EnvironmentTimePIP}, with the given
+   * values, to the environment of a request.
+   */
+  private static void addTimeAttributes(Request request, String date,
+    String time) {
+
+    Set<Attribute> attributes = request.getEnvironment().getAttributes();
+    attributes.add(createAttribute(EnvironmentTimePIP.CURRENT_TIME_ATTRIB_NAME,
+      Attribute.DT_TIME, time));
+    attributes.add(createAttribute(EnvironmentTimePIP.CURRENT_DATE_ATTRIB_NAME,
+      Attribute.DT_DATE, date));
+    attributes.add(createAttribute(
+      EnvironmentTimePIP.CURRENT_DATETIME_ATTRIB_NAME, Attribute.DT_DATE_TIME,
+      date + "T" + time));
+  }
+
+  private static Response createResponse() {
+
+    Result result = new Result();
+    result.setDecision(Result.DECISION_PERMIT);
+    Response response = new Response();
+    response.getResults().add(result);
+    return response;
+  }
+
+  private static Attribute createAttribute(String id, String dataType,
+    String value) {
+
+    Attribute attribute = createAttribute(id, value);
+    attribute.setDataType(dataType);
+    return attribute;
+  }
+
+  private static Attribute createAttribute(String id, String value) {
+
+    Attribute attribute = new Attribute(id);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+}
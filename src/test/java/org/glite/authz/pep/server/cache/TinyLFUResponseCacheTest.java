@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.pep.server.metrics.LatencySummary;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+
+public class TinyLFUResponseCacheTest {
+
+  private static final long TTL = 60000;
+
+  private FakeTicker ticker;
+
+  @Before
+  public void setUp() {
+
+    ticker = new FakeTicker();
+  }
+
+  @Test
+  public void testHitAndMiss() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(10, ticker);
+    put(cache, 1, TTL, 0);
+
+    assertEquals(Result.DECISION_PERMIT, get(cache, 1).toResponse()
+      .getResults().get(0).getDecision());
+    assertNull(get(cache, 2));
+
+    Map<String, Number> metrics = collectMetrics(cache);
+    assertEquals(1L, metrics.get("response_cache_hits_total"));
+    assertEquals(1L, metrics.get("response_cache_misses_total"));
+    assertEquals(0.5, metrics.get("response_cache_hit_ratio").doubleValue(),
+      0.0);
+  }
+
+  @Test
+  public void testHitRatioWithoutRequests() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(10, ticker);
+
+    assertEquals(0.0, collectMetrics(cache).get("response_cache_hit_ratio")
+      .doubleValue(), 0.0);
+  }
+
+  @Test
+  public void testPerEntryTimeToLive() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(10, ticker);
+    put(cache, 1, 1000, 0);
+    put(cache, 2, TTL, 0);
+
+    ticker.advance(999);
+    assertNotNull(get(cache, 1));
+
+    ticker.advance(1);
+    assertNull(get(cache, 1));
+    assertNotNull(get(cache, 2));
+
+    ticker.advance(TTL);
+    assertNull(get(cache, 2));
+    assertTrue(collectMetrics(cache).get("response_cache_evictions_total")
+      .longValue() >= 2);
+  }
+
+  @Test
+  public void testExpiredResponseRetainedForStalePeriod() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(10, ticker);
+    put(cache, 1, 1000, 5000);
+
+    ticker.advance(2000);
+    CachedResponse stale = get(cache, 1);
+    assertNotNull(stale);
+    assertTrue(stale.isExpired(ticker.millis()));
+    assertEquals(1L, collectMetrics(cache).get("response_cache_misses_total"));
+
+    ticker.advance(4000);
+    assertNull(get(cache, 1));
+  }
+
+  @Test
+  public void testFrequentResponsesSurviveScan() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(100, ticker);
+    for (int i = 0; i < 50; i++) {
+      put(cache, i, TTL, 0);
+    }
+    for (int access = 0; access < 10; access++) {
+      for (int i = 0; i < 50; i++) {
+        get(cache, i);
+      }
+    }
+
+    // one-off requests
+    for (int i = 1000; i < 2000; i++) {
+      put(cache, i, TTL, 0);
+    }
+
+    assertTrue(cache.size() <= 100);
+    int retained = 0;
+    for (int i = 0; i < 50; i++) {
+      if (get(cache, i) != null) {
+        retained++;
+      }
+    }
+    assertTrue("frequent responses retained: " + retained, retained >= 45);
+    assertTrue(collectMetrics(cache).get("response_cache_evictions_total")
+      .longValue() >= 900);
+  }
+
+  @Test
+  public void testClear() {
+
+    TinyLFUResponseCache cache = new TinyLFUResponseCache(10, ticker);
+    put(cache, 1, TTL, 0);
+    put(cache, 2, TTL, 0);
+
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertNull(get(cache, 1));
+  }
+
+  @Test
+  public void testFactory() {
+
+    ResponseCache cache = ResponseCacheFactory.createResponseCache("TinyLFU",
+      10);
+    assertTrue(cache instanceof TinyLFUResponseCache);
+    assertTrue(ResponseCacheFactory.isSupportedEngine("ehcache"));
+    assertTrue(!ResponseCacheFactory.isSupportedEngine("lru"));
+  }
+
+  private void put(ResponseCache cache, int i, long ttl, long stalePeriod) {
+
+    cache.put(key(i), new CachedResponse(createResponse(), ticker.millis(),
+      ttl, stalePeriod));
+  }
+
+  private CachedResponse get(ResponseCache cache, int i) {
+
+    return cache.get(key(i), ticker.millis());
+  }
+
+  private static RequestFingerprint key(int i) {
+
+    return new RequestFingerprint(i, i * 31L, 0, 0);
+  }
+
+  private static Response createResponse() {
+
+    Result result = new Result();
+    result.setDecision(Result.DECISION_PERMIT);
+    Response response = new Response();
+    response.getResults().add(result);
+    return response;
+  }
+
+  private static Map<String, Number> collectMetrics(ResponseCache cache) {
+
+    final Map<String, Number> metrics = new HashMap<String, Number>();
+    cache.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+
+        metrics.put(name, value);
+      }
+
+      public void gauge(String name, String help, double value) {
+
+        metrics.put(name, value);
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}",
+          summary.getTotalCount());
+      }
+    });
+    return metrics;
+  }
+
+  private static final class FakeTicker implements Ticker {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    public long read() {
+
+      return nanos.get();
+    }
+
+    long millis() {
+
+      return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    void advance(long millis) {
+
+      nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+}
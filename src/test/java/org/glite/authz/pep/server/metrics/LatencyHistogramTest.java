@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LatencyHistogramTest {
+
+  private final Logger log = LoggerFactory
+    .getLogger(LatencyHistogramTest.class);
+
+  @Test
+  public void testQuantiles() {
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 10));
+    }
+
+    LatencySummary summary = histogram.summarize();
+    assertEquals(1000, summary.getTotalCount());
+    assertEquals(1000, summary.getWindowCount());
+    assertEquals(0.005, summary.getP50(), 0.005 * 0.02);
+    assertEquals(0.009, summary.getP90(), 0.009 * 0.02);
+    assertEquals(0.0099, summary.getP99(), 0.0099 * 0.02);
+    assertEquals(0.010, summary.getMax(), 0.010 * 0.02);
+  }
+
+  @Test
+  public void testSlidingWindow() {
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    long now = System.currentTimeMillis();
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(1, histogram.summarize(now).getWindowCount());
+
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+    LatencySummary summary = histogram.summarize(now
+      + TimeUnit.MINUTES.toMillis(2));
+    assertEquals(2, summary.getTotalCount());
+    assertEquals(2, summary.getWindowCount());
+    assertEquals(0.1, summary.getMax(), 0.1 * 0.02);
+
+    summary = histogram.summarize(now
+      + TimeUnit.MINUTES.toMillis(LatencyHistogram.WINDOW_SLOTS + 1));
+    assertEquals(2, summary.getTotalCount());
+    assertEquals(1, summary.getWindowCount());
+    assertEquals(0.001, summary.getMax(), 0.001 * 0.02);
+
+    summary = histogram.summarize(now
+      + TimeUnit.MINUTES.toMillis(3 * LatencyHistogram.WINDOW_SLOTS));
+    assertEquals(2, summary.getTotalCount());
+    assertEquals(0, summary.getWindowCount());
+    assertEquals(0.0, summary.getMax(), 0.0);
+  }
+
+  @Test
+  public void testStageLatencies() {
+
+    StageLatencies latencies = new StageLatencies();
+    latencies.record(StageLatencies.PDP_STAGE, 1000);
+    latencies.record(StageLatencies.PDP_STAGE, 2000);
+    latencies.record(StageLatencies.PIP_STAGE_PREFIX + "test", 1000);
+
+    final List<String> stages = new ArrayList<String>();
+    latencies.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+      }
+
+      public void gauge(String name, String help, double value) {
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        stages.add(labelValue + "=" + summary.getTotalCount());
+      }
+    });
+
+    assertEquals(2, stages.size());
+    assertTrue(stages.contains("pdp=2"));
+    assertTrue(stages.contains("pip:test=1"));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final int recordsPerThread = 1000000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+
+        public void run() {
+
+          for (int j = 0; j < recordsPerThread; j++) {
+            histogram.record(j);
+          }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    assertEquals(threads.length * recordsPerThread, histogram.summarize()
+      .getTotalCount());
+    log.info("{} threads recorded {} latencies each, {} ns per record",
+      threads.length, recordsPerThread, elapsed / recordsPerThread);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class OpenMetricsWriterTest {
+
+  @Test
+  public void testFamiliesAreGrouped() throws Exception {
+
+    OpenMetricsWriter writer = new OpenMetricsWriter("pepd");
+    writer.counter("pdp_requests_total", "PDP requests", "endpoint", "a", 2);
+    writer.gauge("pdp_outstanding", "Outstanding requests", "endpoint", "a",
+      1);
+    writer.counter("pdp_requests_total", "PDP requests", "endpoint", "b", 3);
+    writer.gauge("pdp_outstanding", "Outstanding requests", "endpoint", "b",
+      0);
+
+    assertEquals("# TYPE pepd_pdp_requests counter\n"
+      + "# HELP pepd_pdp_requests PDP requests\n"
+      + "pepd_pdp_requests_total{endpoint=\"a\"} 2\n"
+      + "pepd_pdp_requests_total{endpoint=\"b\"} 3\n"
+      + "# TYPE pepd_pdp_outstanding gauge\n"
+      + "# HELP pepd_pdp_outstanding Outstanding requests\n"
+      + "pepd_pdp_outstanding{endpoint=\"a\"} 1.0\n"
+      + "pepd_pdp_outstanding{endpoint=\"b\"} 0.0\n" + "# EOF\n",
+      write(writer));
+  }
+
+  @Test
+  public void testSummary() throws Exception {
+
+    OpenMetricsWriter writer = new OpenMetricsWriter("pepd");
+    writer.summary("stage_latency_seconds", "Stage latency", "stage", "pdp",
+      new LatencySummary(10, 5, 0.001, 0.002, 0.003, 0.004));
+
+    assertEquals("# TYPE pepd_stage_latency_seconds summary\n"
+      + "# HELP pepd_stage_latency_seconds Stage latency\n"
+      + "pepd_stage_latency_seconds{stage=\"pdp\",quantile=\"0.5\"} 0.001\n"
+      + "pepd_stage_latency_seconds{stage=\"pdp\",quantile=\"0.9\"} 0.002\n"
+      + "pepd_stage_latency_seconds{stage=\"pdp\",quantile=\"0.99\"} 0.003\n"
+      + "pepd_stage_latency_seconds{stage=\"pdp\",quantile=\"1\"} 0.004\n"
+      + "pepd_stage_latency_seconds_count{stage=\"pdp\"} 10\n" + "# EOF\n",
+      write(writer));
+  }
+
+  @Test
+  public void testLabelValuesAreEscaped() throws Exception {
+
+    OpenMetricsWriter writer = new OpenMetricsWriter("pepd");
+    writer.gauge("up", "Up", Double.NaN);
+    writer.gauge("pool", "Pool", "pool", "a\"b\\c\nd", 1);
+
+    assertEquals("# TYPE pepd_up gauge\n" + "# HELP pepd_up Up\n"
+      + "pepd_up NaN\n" + "# TYPE pepd_pool gauge\n"
+      + "# HELP pepd_pool Pool\n"
+      + "pepd_pool{pool=\"a\\\"b\\\\c\\nd\"} 1.0\n" + "# EOF\n",
+      write(writer));
+  }
+
+  private static String write(OpenMetricsWriter writer) throws Exception {
+
+    StringWriter output = new StringWriter();
+    writer.write(output);
+    return output.toString();
+  }
+}
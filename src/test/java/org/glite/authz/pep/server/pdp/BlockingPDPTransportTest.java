@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class BlockingPDPTransportTest {
+
+  private static final String ENDPOINT = "https://pdp.example.org:8152/authz";
+
+  @Test
+  public void testAnswerCompletesFuture() throws Exception {
+
+    CompletableFuture<byte[]> answer = new EchoTransport().sendAsync(ENDPOINT,
+      bytes("<Envelope/>"));
+
+    assertTrue(answer.isDone());
+    assertArrayEquals(bytes("<Envelope/>"), answer.get());
+  }
+
+  @Test
+  public void testFailureCompletesFuture() throws Exception {
+
+    CompletableFuture<byte[]> answer = new EchoTransport().sendAsync(ENDPOINT,
+      null);
+
+    assertTrue(answer.isDone());
+    try {
+      answer.get();
+      fail("the PDP did not answer");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof PDPMessageException);
+    }
+  }
+
+  private static byte[] bytes(String message) {
+
+    return message.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Answers the messages with themselves, an empty message is rejected. */
+  private static class EchoTransport extends BlockingPDPTransport {
+
+    public byte[] send(String endpoint, byte[] message) throws IOException,
+      PDPMessageException {
+
+      if (message == null) {
+        throw new PDPMessageException("PDP answered with HTTP status 400");
+      }
+      return message;
+    }
+
+    public void shutdown() {
+
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+
+    CircuitBreaker breaker = new CircuitBreaker(3);
+
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+
+    assertTrue(breaker.recordFailure());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(1, breaker.getOpenings());
+  }
+
+  @Test
+  public void testHalfOpenAllowsSingleTrial() {
+
+    CircuitBreaker breaker = new CircuitBreaker(1);
+    breaker.recordFailure();
+
+    assertTrue(breaker.probeSucceeded());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+
+    breaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testFailedTrialReopens() {
+
+    CircuitBreaker breaker = new CircuitBreaker(5);
+    for (int i = 0; i < 5; i++) {
+      breaker.recordFailure();
+    }
+    breaker.probeSucceeded();
+    assertTrue(breaker.allowRequest());
+
+    assertTrue(breaker.recordFailure());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(2, breaker.getOpenings());
+  }
+
+  @Test
+  public void testEndpointRecordsOutcome() {
+
+    PDPEndpoint endpoint = new PDPEndpoint("https://pdp.example.org:8152/authz",
+      new CircuitBreaker(2));
+
+    for (int i = 0; i < 2; i++) {
+      assertTrue(endpoint.allowRequest());
+      endpoint.requestCompleted(endpoint.requestStarted(), false);
+    }
+    assertFalse(endpoint.allowRequest());
+    assertTrue(new PDPEndpoint("https://pdp.example.org:8152/authz")
+      .allowRequest());
+  }
+
+  @Test
+  public void testProbeHalfOpensReachableEndpoint() throws Exception {
+
+    ServerSocket pdp = new ServerSocket(0);
+    ServerSocket down = new ServerSocket(0);
+    int downPort = down.getLocalPort();
+    down.close();
+
+    PDPEndpointGroup group = new PDPEndpointGroup(Arrays.asList(
+      "https://localhost:" + pdp.getLocalPort() + "/authz", "https://localhost:"
+        + downPort + "/authz"),
+      LoadBalancingPolicies.createPolicy(LoadBalancingPolicies.FAILOVER), 1,
+      3600000);
+    PDPEndpointProber prober = new PDPEndpointProber(group.getEndpoints(),
+      3600000);
+    try {
+      for (PDPEndpoint endpoint : group.getEndpoints()) {
+        endpoint.requestCompleted(endpoint.requestStarted(), false);
+        assertEquals(CircuitBreaker.State.OPEN, endpoint
+          .getCircuitBreaker().getState());
+      }
+
+      prober.probeOpenEndpoints();
+
+      assertEquals(CircuitBreaker.State.HALF_OPEN, group.getEndpoints().get(0)
+        .getCircuitBreaker().getState());
+      assertEquals(CircuitBreaker.State.OPEN, group.getEndpoints().get(1)
+        .getCircuitBreaker().getState());
+    } finally {
+      prober.shutdown();
+      group.shutdown();
+      pdp.close();
+    }
+  }
+
+  @Test
+  public void testProbeRejectsInvalidURL() {
+
+    PDPEndpointProber prober = new PDPEndpointProber(
+      Collections.<PDPEndpoint> emptyList(), 1000);
+    try {
+      assertFalse(prober.probe(new PDPEndpoint("not a URL")));
+    } finally {
+      prober.shutdown();
+    }
+  }
+}
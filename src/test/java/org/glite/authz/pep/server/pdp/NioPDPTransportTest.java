@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.glite.authz.pep.server.metrics.LatencySummary;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioPDPTransportTest {
+
+  /** TLS context of the stub PDP, trusted by the transport. */
+  private SSLContext sslContext;
+
+  private StubPDP pdp;
+
+  private NioPDPTransport transport;
+
+  @Before
+  public void setUp() throws Exception {
+
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    InputStream in = getClass().getResourceAsStream("/pdp/stub-pdp.p12");
+    try {
+      keyStore.load(in, "changeit".toCharArray());
+    } finally {
+      in.close();
+    }
+    KeyManagerFactory keyManagers = KeyManagerFactory
+      .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, "changeit".toCharArray());
+    TrustManagerFactory trustManagers = TrustManagerFactory
+      .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(keyStore);
+    sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagers.getKeyManagers(),
+      trustManagers.getTrustManagers(), null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+
+    if (transport != null) {
+      transport.shutdown();
+    }
+    if (pdp != null) {
+      pdp.close();
+    }
+  }
+
+  @Test
+  public void testKeepAliveConnectionIsReused() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    transport = new NioPDPTransport(sslContext, true, 4, 1, 5000, 60000);
+
+    for (int i = 0; i < 20; i++) {
+      byte[] message = ("message " + i).getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(message, transport.send(pdp.getEndpoint(), message));
+    }
+    assertEquals(1, pdp.getConnections());
+    assertEquals(20, pdp.getRequests());
+
+    Map<String, Number> metrics = collectMetrics(transport);
+    assertEquals(1L, metrics.get(pdp.label("pdp_transport_tls_handshakes_total")));
+    assertEquals(1L,
+      metrics.get(pdp.label("pdp_transport_connections_opened_total")));
+    assertEquals(1.0, metrics.get(pdp.label("pdp_transport_connections_open")));
+    assertEquals(1.0, metrics.get(pdp.label("pdp_transport_connections_idle")));
+    assertEquals(0.0, metrics.get(pdp.label("pdp_transport_pending_messages")));
+  }
+
+  @Test
+  public void testConnectionsAreBoundedPerEndpoint() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setAnswerDelay(5);
+    transport = new NioPDPTransport(sslContext, true, 2, 1, 5000, 60000);
+
+    List<byte[]> answers = sendConcurrently(8, 10);
+    assertEquals(80, answers.size());
+    assertTrue("connections: " + pdp.getConnections(),
+      pdp.getConnections() <= 2);
+  }
+
+  @Test
+  public void testPipelinedAnswersMatchTheirMessages() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setAnswerDelay(2);
+    transport = new NioPDPTransport(sslContext, true, 1, 8, 5000, 60000);
+
+    // the echoed answers are checked against their message
+    List<byte[]> answers = sendConcurrently(8, 10);
+    assertEquals(80, answers.size());
+    assertEquals(1, pdp.getConnections());
+  }
+
+  @Test
+  public void testChunkedAnswer() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setChunked(true);
+    transport = new NioPDPTransport(sslContext, true, 1, 1, 5000, 60000);
+
+    byte[] message = new byte[100000];
+    for (int i = 0; i < message.length; i++) {
+      message[i] = (byte) ('a' + i % 26);
+    }
+    assertArrayEquals(message, transport.send(pdp.getEndpoint(), message));
+    assertArrayEquals(message, transport.send(pdp.getEndpoint(), message));
+    assertEquals(1, pdp.getConnections());
+  }
+
+  @Test
+  public void testConnectionClosedByThePDP() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setCloseAfterAnswer(true);
+    transport = new NioPDPTransport(sslContext, true, 1, 1, 5000, 60000);
+
+    for (int i = 0; i < 3; i++) {
+      byte[] message = ("message " + i).getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(message, transport.send(pdp.getEndpoint(), message));
+    }
+    assertEquals(3, pdp.getConnections());
+    assertEquals(3L, collectMetrics(transport).get(
+      pdp.label("pdp_transport_tls_handshakes_total")));
+  }
+
+  @Test
+  public void testErrorStatus() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setStatus(404);
+    transport = new NioPDPTransport(sslContext, true, 1, 1, 5000, 60000);
+
+    try {
+      transport.send(pdp.getEndpoint(), "message".getBytes("UTF-8"));
+      fail("HTTP status 404 accepted");
+    } catch (PDPMessageException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testUnansweredMessageTimesOut() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    pdp.setAnswerDelay(10000);
+    transport = new NioPDPTransport(sslContext, true, 1, 1, 500, 60000);
+
+    try {
+      transport.send(pdp.getEndpoint(), "message".getBytes("UTF-8"));
+      fail("Unanswered message did not time out");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testUntrustedPDP() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    transport = new NioPDPTransport(SSLContext.getDefault(), true, 1, 1, 5000,
+      60000);
+
+    try {
+      transport.send(pdp.getEndpoint(), "message".getBytes("UTF-8"));
+      fail("Untrusted PDP certificate accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+
+    pdp = new StubPDP(sslContext);
+    transport = new NioPDPTransport(sslContext, true, 1, 1, 5000, 60000);
+    transport.send(pdp.getEndpoint(), "message".getBytes("UTF-8"));
+
+    transport.shutdown();
+    try {
+      transport.send(pdp.getEndpoint(), "message".getBytes("UTF-8"));
+      fail("Message sent after shutdown");
+    } catch (IOException e) {
+      // expected
+    }
+    for (int i = 0; i < 100 && !transport.isTerminated(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(transport.isTerminated());
+  }
+
+  private List<byte[]> sendConcurrently(int threads, final int messages)
+    throws Exception {
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<byte[]>>> results = new ArrayList<Future<List<byte[]>>>();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        results.add(executor.submit(new Callable<List<byte[]>>() {
+
+          public List<byte[]> call() throws Exception {
+
+            List<byte[]> answers = new ArrayList<byte[]>();
+            for (int i = 0; i < messages; i++) {
+              byte[] message = ("thread " + thread + " message " + i)
+                .getBytes(StandardCharsets.UTF_8);
+              byte[] answer = transport.send(pdp.getEndpoint(), message);
+              assertArrayEquals(message, answer);
+              answers.add(answer);
+            }
+            return answers;
+          }
+        }));
+      }
+      List<byte[]> answers = new ArrayList<byte[]>();
+      for (Future<List<byte[]>> result : results) {
+        answers.addAll(result.get());
+      }
+      return answers;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Map<String, Number> collectMetrics(NioPDPTransport pdpTransport) {
+
+    final Map<String, Number> metrics = new HashMap<String, Number>();
+    pdpTransport.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+
+        metrics.put(name, value);
+      }
+
+      public void gauge(String name, String help, double value) {
+
+        metrics.put(name, value);
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}",
+          summary.getTotalCount());
+      }
+    });
+    return metrics;
+  }
+
+  /**
+   * A PDP stub over TLS, answering each HTTP request with its body, in
+   * order, on keep-alive connections.
+   */
+  private static class StubPDP {
+
+    private final ServerSocket serverSocket;
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile int status = 200;
+
+    private volatile long answerDelay;
+
+    private volatile boolean chunked;
+
+    private volatile boolean closeAfterAnswer;
+
+    StubPDP(SSLContext sslContext) throws IOException {
+
+      serverSocket = sslContext.getServerSocketFactory().createServerSocket(0,
+        50, InetAddress.getByName("127.0.0.1"));
+      Thread acceptor = new Thread(new Runnable() {
+
+        public void run() {
+
+          accept();
+        }
+      }, "stub-pdp-acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    String getEndpoint() {
+
+      return "https://localhost:" + serverSocket.getLocalPort() + "/authz";
+    }
+
+    String label(String metric) {
+
+      return metric + "{endpoint=https://localhost:"
+        + serverSocket.getLocalPort() + "}";
+    }
+
+    int getConnections() {
+
+      return connections.get();
+    }
+
+    int getRequests() {
+
+      return requests.get();
+    }
+
+    void setStatus(int httpStatus) {
+
+      status = httpStatus;
+    }
+
+    void setAnswerDelay(long delay) {
+
+      answerDelay = delay;
+    }
+
+    void setChunked(boolean chunkedAnswers) {
+
+      chunked = chunkedAnswers;
+    }
+
+    void setCloseAfterAnswer(boolean close) {
+
+      closeAfterAnswer = close;
+    }
+
+    void close() throws IOException {
+
+      serverSocket.close();
+      synchronized (sockets) {
+        for (Socket socket : sockets) {
+          socket.close();
+        }
+      }
+    }
+
+    private void accept() {
+
+      while (!serverSocket.isClosed()) {
+        try {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          synchronized (sockets) {
+            sockets.add(socket);
+          }
+          Thread handler = new Thread(new Runnable() {
+
+            public void run() {
+
+              serve(socket);
+            }
+          }, "stub-pdp-connection");
+          handler.setDaemon(true);
+          handler.start();
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+
+      try {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+          int contentLength = -1;
+          String line = readLine(in);
+          if (line == null) {
+            return;
+          }
+          while (!(line = readLine(in)).isEmpty()) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+              contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+          }
+          byte[] body = new byte[contentLength];
+          int read = 0;
+          while (read < body.length) {
+            int n = in.read(body, read, body.length - read);
+            if (n < 0) {
+              return;
+            }
+            read += n;
+          }
+          requests.incrementAndGet();
+          if (answerDelay > 0) {
+            Thread.sleep(answerDelay);
+          }
+          answer(out, body);
+          if (closeAfterAnswer) {
+            socket.close();
+            return;
+          }
+        }
+      } catch (Exception e) {
+        // connection closed
+      }
+    }
+
+    private void answer(OutputStream out, byte[] body) throws IOException {
+
+      ByteArrayOutputStream answer = new ByteArrayOutputStream();
+      StringBuilder head = new StringBuilder();
+      head.append("HTTP/1.1 ").append(status).append(" Stub\r\n");
+      head.append("Content-Type: text/xml; charset=UTF-8\r\n");
+      if (closeAfterAnswer) {
+        head.append("Connection: close\r\n");
+      }
+      if (chunked) {
+        head.append("Transfer-Encoding: chunked\r\n\r\n");
+        answer.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        for (int offset = 0; offset < body.length; offset += 4096) {
+          int length = Math.min(4096, body.length - offset);
+          answer.write((Integer.toHexString(length) + ";ext=1\r\n")
+            .getBytes(StandardCharsets.US_ASCII));
+          answer.write(body, offset, length);
+          answer.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        answer.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      } else {
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        answer.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        answer.write(body);
+      }
+      out.write(answer.toByteArray());
+      out.flush();
+    }
+
+    private String readLine(InputStream in) throws IOException {
+
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != '\n') {
+        if (c < 0) {
+          return line.length() == 0 ? null : line.toString();
+        }
+        if (c != '\r') {
+          line.append((char) c);
+        }
+      }
+      return line.toString();
+    }
+  }
+}
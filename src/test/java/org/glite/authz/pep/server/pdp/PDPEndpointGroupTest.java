@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.glite.authz.pep.server.metrics.LatencySummary;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.junit.Test;
+
+public class PDPEndpointGroupTest {
+
+  private static final String FAST_PDP = "https://fast.example.org:8152/authz";
+
+  private static final String SLOW_PDP = "https://slow.example.org:8152/authz";
+
+  @Test
+  public void testFailoverAlwaysStartsWithFirstEndpoint() {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.FAILOVER);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(FAST_PDP, group.selectEndpoints().get(0).getUrl());
+    }
+  }
+
+  @Test
+  public void testSelectedEndpointsKeepFailoverOrder() {
+
+    PDPEndpointGroup group = new PDPEndpointGroup(Arrays.asList("pdp1",
+      "pdp2", "pdp3"),
+      LoadBalancingPolicies.createPolicy(LoadBalancingPolicies.ROUND_ROBIN));
+
+    assertEquals("[pdp1, pdp2, pdp3]", group.selectEndpoints().toString());
+    assertEquals("[pdp2, pdp1, pdp3]", group.selectEndpoints().toString());
+    assertEquals("[pdp3, pdp1, pdp2]", group.selectEndpoints().toString());
+    assertEquals("[pdp1, pdp2, pdp3]", group.selectEndpoints().toString());
+  }
+
+  @Test
+  public void testRoundRobinSplitsEvenly() throws Exception {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.ROUND_ROBIN);
+    sendRequests(group, 4, 25);
+
+    assertEquals(50, getEndpoint(group, FAST_PDP).getRequests());
+    assertEquals(50, getEndpoint(group, SLOW_PDP).getRequests());
+  }
+
+  @Test
+  public void testLeastOutstandingRequestsFavorsFasterEndpoint()
+    throws Exception {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.LEAST_OUTSTANDING_REQUESTS);
+    sendRequests(group, 4, 25);
+
+    assertFasterEndpointFavored(group);
+  }
+
+  @Test
+  public void testEWMALatencyFavorsFasterEndpoint() throws Exception {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.EWMA_LATENCY);
+    sendRequests(group, 4, 25);
+
+    assertFasterEndpointFavored(group);
+  }
+
+  @Test
+  public void testFailuresAreCounted() {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.FAILOVER);
+    PDPEndpoint endpoint = getEndpoint(group, SLOW_PDP);
+    endpoint.requestCompleted(endpoint.requestStarted(), false);
+    endpoint.requestCompleted(endpoint.requestStarted(), true);
+
+    final Map<String, Number> metrics = new HashMap<String, Number>();
+    group.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+
+        metrics.put(name, value);
+      }
+
+      public void gauge(String name, String help, double value) {
+
+        metrics.put(name, value);
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}",
+          summary.getTotalCount());
+      }
+    });
+
+    assertEquals(2L, metrics.get("pdp_endpoint_requests_total{endpoint="
+      + SLOW_PDP + "}"));
+    assertEquals(1L, metrics.get("pdp_endpoint_failures_total{endpoint="
+      + SLOW_PDP + "}"));
+    assertEquals(0.0, metrics.get("pdp_endpoint_outstanding_requests{endpoint="
+      + SLOW_PDP + "}"));
+    assertEquals(2L, metrics.get(
+      "pdp_endpoint_request_latency_seconds{endpoint=" + SLOW_PDP + "}"));
+    assertEquals(0L, metrics.get("pdp_endpoint_requests_total{endpoint="
+      + FAST_PDP + "}"));
+  }
+
+  @Test
+  public void testFailuresAreNotAveraged() throws Exception {
+
+    PDPEndpointGroup group = createGroup(LoadBalancingPolicies.EWMA_LATENCY);
+    PDPEndpoint endpoint = getEndpoint(group, SLOW_PDP);
+    long startTime = endpoint.requestStarted();
+    Thread.sleep(5);
+    endpoint.requestCompleted(startTime, true);
+    long average = endpoint.getLatencyAverage(TimeUnit.NANOSECONDS);
+
+    endpoint.requestCompleted(endpoint.requestStarted(), false);
+
+    assertEquals(average, endpoint.getLatencyAverage(TimeUnit.NANOSECONDS));
+  }
+
+  private PDPEndpointGroup createGroup(String policy) {
+
+    return new PDPEndpointGroup(Arrays.asList(FAST_PDP, SLOW_PDP),
+      LoadBalancingPolicies.createPolicy(policy));
+  }
+
+  private PDPEndpoint getEndpoint(PDPEndpointGroup group, String url) {
+
+    for (PDPEndpoint endpoint : group.getEndpoints()) {
+      if (endpoint.getUrl().equals(url)) {
+        return endpoint;
+      }
+    }
+    throw new IllegalArgumentException(url);
+  }
+
+  private void assertFasterEndpointFavored(PDPEndpointGroup group) {
+
+    long fast = getEndpoint(group, FAST_PDP).getRequests();
+    long slow = getEndpoint(group, SLOW_PDP).getRequests();
+    assertEquals(100, fast + slow);
+    assertTrue("fast: " + fast + ", slow: " + slow, fast > 2 * slow);
+  }
+
+  /**
+   * Sends requests from concurrent clients to two stub PDPs, the slow one
+   * taking ten times longer to answer.
+   */
+  private void sendRequests(final PDPEndpointGroup group, int clients,
+    final int requestsPerClient) throws InterruptedException {
+
+    final CountDownLatch done = new CountDownLatch(clients);
+    for (int i = 0; i < clients; i++) {
+      new Thread(new Runnable() {
+
+        public void run() {
+
+          try {
+            for (int j = 0; j < requestsPerClient; j++) {
+              List<PDPEndpoint> endpoints = group.selectEndpoints();
+              PDPEndpoint endpoint = endpoints.get(0);
+              long startTime = endpoint.requestStarted();
+              try {
+                Thread.sleep(FAST_PDP.equals(endpoint.getUrl()) ? 2 : 20);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+              } finally {
+                endpoint.requestCompleted(startTime, true);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glite.authz.pep.server.metrics.LatencySummary;
+import org.glite.authz.pep.server.metrics.MetricsWriter;
+import org.junit.Test;
+
+public class RequestHedgerTest {
+
+  @Test
+  public void testFastRequestIsNotHedged() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(1000, 100, 4);
+    AtomicInteger hedges = new AtomicInteger();
+    try {
+      assertEquals("first", hedger.execute(answer("first", 0, null),
+        answer("second", 0, hedges)));
+      assertEquals(0, hedges.get());
+      assertEquals(0L, collectMetrics(hedger).get("pdp_hedged_requests_total"));
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testSlowRequestIsHedgedAndCancelled() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(10, 100, 4);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    Callable<String> slow = new Callable<String>() {
+
+      public String call() {
+
+        try {
+          Thread.sleep(10000);
+          return "first";
+        } catch (InterruptedException e) {
+          cancelled.countDown();
+          return null;
+        }
+      }
+    };
+    try {
+      assertEquals("second", hedger.execute(slow, answer("second", 0, null)));
+      assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+
+      Map<String, Number> metrics = collectMetrics(hedger);
+      assertEquals(1L, metrics.get("pdp_hedged_requests_total"));
+      assertEquals(1L, metrics.get("pdp_hedged_requests_won_total"));
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testSlowAbortableRequestIsAborted() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(10, 100, 4);
+    final CountDownLatch aborted = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    final AtomicInteger interrupts = new AtomicInteger();
+    RequestHedger.AbortableRequest<String> slow = new RequestHedger.AbortableRequest<String>() {
+
+      public String call() {
+
+        while (true) {
+          try {
+            if (aborted.await(10, TimeUnit.SECONDS)) {
+              released.countDown();
+            }
+            return null;
+          } catch (InterruptedException e) {
+            interrupts.incrementAndGet();
+          }
+        }
+      }
+
+      public void abort() {
+
+        aborted.countDown();
+      }
+    };
+    try {
+      assertEquals("second", hedger.execute(slow, answer("second", 0, null)));
+      assertTrue(released.await(5, TimeUnit.SECONDS));
+      assertEquals(0, interrupts.get());
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailedRequestIsNotHedged() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(1000, 100, 4);
+    AtomicInteger hedges = new AtomicInteger();
+    try {
+      assertNull(hedger.execute(answer(null, 0, null),
+        answer("second", 0, hedges)));
+      assertEquals(0, hedges.get());
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testHedgeAnswersWhenRequestFails() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(5, 100, 4);
+    try {
+      assertEquals("second", hedger.execute(answer(null, 50, null),
+        answer("second", 100, null)));
+      assertEquals(1L,
+        collectMetrics(hedger).get("pdp_hedged_requests_won_total"));
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testHedgeAnswersWhenRequestThrows() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(5, 100, 4);
+    Callable<String> failing = new Callable<String>() {
+
+      public String call() throws Exception {
+
+        Thread.sleep(50);
+        throw new IllegalStateException("first failed");
+      }
+    };
+    try {
+      assertEquals("second", hedger.execute(failing, answer("second", 100,
+        null)));
+      assertEquals(1L,
+        collectMetrics(hedger).get("pdp_hedged_requests_won_total"));
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFailureRethrownWhenNeitherAnswers() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(5, 100, 4);
+    Callable<String> failing = new Callable<String>() {
+
+      public String call() throws Exception {
+
+        Thread.sleep(50);
+        throw new IllegalStateException("first failed");
+      }
+    };
+    try {
+      hedger.execute(failing, answer(null, 100, null));
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testHedgesAreLimitedByBudget() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(1, 10, 4);
+    AtomicInteger hedges = new AtomicInteger();
+    try {
+      for (int i = 0; i < 50; i++) {
+        assertEquals("answer", hedger.execute(answer("answer", 20, null),
+          answer("answer", 20, hedges)));
+      }
+      // one initial hedge, then one per ten requests
+      Map<String, Number> metrics = collectMetrics(hedger);
+      assertTrue(hedges.get() <= 6);
+      assertEquals(hedges.get(), metrics.get("pdp_hedged_requests_total")
+        .intValue());
+      assertEquals(50 - hedges.get(),
+        metrics.get("pdp_hedged_requests_denied_total").intValue());
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  @Test
+  public void testDelayFollowsLatencyPercentile() throws Exception {
+
+    RequestHedger hedger = new RequestHedger(0, 100, 4);
+    try {
+      assertEquals(-1, hedger.getHedgeDelay());
+      for (int i = 0; i < 128; i++) {
+        hedger.execute(answer("answer", i < 125 ? 0 : 50, null),
+          answer("answer", 0, null));
+      }
+      long delay = hedger.getHedgeDelay();
+      assertTrue("delay: " + delay, delay >= 1 && delay < 50);
+    } finally {
+      hedger.shutdown();
+    }
+  }
+
+  private Callable<String> answer(final String answer, final long latency,
+    final AtomicInteger calls) {
+
+    return new Callable<String>() {
+
+      public String call() throws Exception {
+
+        if (calls != null) {
+          calls.incrementAndGet();
+        }
+        if (latency > 0) {
+          Thread.sleep(latency);
+        }
+        return answer;
+      }
+    };
+  }
+
+  private Map<String, Number> collectMetrics(RequestHedger hedger) {
+
+    final Map<String, Number> metrics = new HashMap<String, Number>();
+    hedger.collectMetrics(new MetricsWriter() {
+
+      public void counter(String name, String help, long value) {
+
+        metrics.put(name, value);
+      }
+
+      public void gauge(String name, String help, double value) {
+
+        metrics.put(name, value);
+      }
+
+      public void counter(String name, String help, String label,
+        String labelValue, long value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void gauge(String name, String help, String label,
+        String labelValue, double value) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}", value);
+      }
+
+      public void summary(String name, String help, String label,
+        String labelValue, LatencySummary summary) {
+
+        metrics.put(name + "{" + label + "=" + labelValue + "}",
+          summary.getTotalCount());
+      }
+    });
+    return metrics;
+  }
+}
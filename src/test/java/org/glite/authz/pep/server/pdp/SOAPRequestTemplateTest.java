@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Subject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.w3c.dom.Element;
+
+public class SOAPRequestTemplateTest {
+
+  private static final String ENTITY_ID = "http://pepd.example.org/authz";
+
+  /** 2010-06-15T12:00:00.000Z */
+  private static final long ISSUE_INSTANT = 1276603200000L;
+
+  private static final int THREAD_COUNT = 8;
+
+  private static final int ENCODINGS_PER_THREAD = 500;
+
+  @BeforeClass
+  public static void bootstrap() throws Exception {
+
+    DefaultBootstrap.bootstrap();
+  }
+
+  @Test
+  public void testTemplateMatchesCodec() throws Exception {
+
+    SOAPRequestTemplate template = new SOAPRequestTemplate(ENTITY_ID);
+
+    for (Request request : new Request[] { new Request(), buildRequest(1),
+      buildRequest(5) }) {
+      String messageId = XACMLSAMLStreamingCodec.generateMessageId();
+      assertArrayEquals(XACMLSAMLStreamingCodec.encodeRequest(request,
+        ENTITY_ID, messageId, ISSUE_INSTANT), template.encodeRequest(request,
+        messageId, ISSUE_INSTANT));
+    }
+  }
+
+  @Test
+  public void testTemplateEscapesDynamicParts() throws Exception {
+
+    String issuer = "urn:example:pepd?a=1&b=<2>";
+    String messageId = "_id&\"<>";
+    SOAPRequestTemplate template = new SOAPRequestTemplate(issuer);
+
+    byte[] message = template.encodeRequest(buildRequest(1), messageId,
+      ISSUE_INSTANT);
+
+    assertArrayEquals(XACMLSAMLStreamingCodec.encodeRequest(buildRequest(1),
+      issuer, messageId, ISSUE_INSTANT), message);
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Element query = (Element) factory.newDocumentBuilder()
+      .parse(new ByteArrayInputStream(message)).getDocumentElement()
+      .getElementsByTagNameNS(XACMLSAMLStreamingCodec.XACML_SAMLP_NS,
+        "XACMLAuthzDecisionQuery").item(0);
+    assertEquals(messageId, query.getAttribute("ID"));
+    assertEquals("2010-06-15T12:00:00.000Z", query.getAttribute("IssueInstant"));
+    assertEquals(issuer, query.getElementsByTagNameNS(
+      XACMLSAMLStreamingCodec.SAML20_NS, "Issuer").item(0).getTextContent());
+  }
+
+  /**
+   * Encodes requests with one shared template from several threads at once
+   * and checks that every message matches the one of the streaming codec.
+   */
+  @Test
+  public void testConcurrentEncoding() throws Exception {
+
+    final Request request = buildRequest(3);
+    final SOAPRequestTemplate template = new SOAPRequestTemplate(ENTITY_ID);
+    final AtomicInteger mismatches = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    final CyclicBarrier barrier = new CyclicBarrier(THREAD_COUNT);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      Thread thread = new Thread(new Runnable() {
+
+        public void run() {
+
+          try {
+            barrier.await();
+            for (int j = 0; j < ENCODINGS_PER_THREAD; j++) {
+              String messageId = XACMLSAMLStreamingCodec.generateMessageId();
+              if (!Arrays.equals(XACMLSAMLStreamingCodec.encodeRequest(
+                request, ENTITY_ID, messageId, ISSUE_INSTANT), template
+                .encodeRequest(request, messageId, ISSUE_INSTANT))) {
+                mismatches.incrementAndGet();
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+    assertEquals(0, mismatches.get());
+  }
+
+  private Request buildRequest(final int attributes) {
+
+    Subject subject = new Subject();
+    Resource resource = new Resource();
+    Action action = new Action();
+    for (int i = 0; i < attributes; i++) {
+      subject.getAttributes().add(
+        buildAttribute("urn:example:subject:attribute-" + i, "subject " + i));
+      resource.getAttributes().add(
+        buildAttribute("urn:example:resource:attribute-" + i, "resource " + i));
+      action.getAttributes().add(
+        buildAttribute("urn:example:action:attribute-" + i, "action " + i));
+    }
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    return request;
+  }
+
+  private Attribute buildAttribute(final String id, final String value) {
+
+    Attribute attribute = new Attribute();
+    attribute.setId(id);
+    attribute.getValues().add(value);
+    return attribute;
+  }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2006-2010.
+ * See http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.glite.authz.pep.server.pdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.glite.authz.common.context.DecisionRequestContext;
+import org.glite.authz.common.context.DecisionRequestContextHelper;
+import org.glite.authz.common.model.Action;
+import org.glite.authz.common.model.Attribute;
+import org.glite.authz.common.model.AttributeAssignment;
+import org.glite.authz.common.model.Environment;
+import org.glite.authz.common.model.Obligation;
+import org.glite.authz.common.model.Request;
+import org.glite.authz.common.model.Resource;
+import org.glite.authz.common.model.Response;
+import org.glite.authz.common.model.Result;
+import org.glite.authz.common.model.StatusCode;
+import org.glite.authz.common.model.Subject;
+import org.glite.authz.common.model.util.XACMLConverter;
+import org.glite.authz.pep.server.cache.RequestFingerprinter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.Configuration;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Statement;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionStatementType;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Checks the streaming codec against golden messages and against the
+ * messages built and parsed with OpenSAML.
+ */
+public class XACMLSAMLStreamingCodecTest {
+
+  private static final String ENTITY_ID = "http://pepd.example.org/authz";
+
+  private static final String MESSAGE_ID = "_0123456789abcdef0123456789abcdef";
+
+  /** 2010-06-15T12:00:00.000Z */
+  private static final long ISSUE_INSTANT = 1276603200000L;
+
+  private static final String XS_STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+  @BeforeClass
+  public static void bootstrap() throws Exception {
+
+    DefaultBootstrap.bootstrap();
+  }
+
+  @Test
+  public void testEncodeRequestMatchesGoldenMessage() throws Exception {
+
+    byte[] encoded = XACMLSAMLStreamingCodec.encodeRequest(buildRequest(),
+      ENTITY_ID, MESSAGE_ID, ISSUE_INSTANT);
+
+    assertEquivalent(parse(readResource("/pdp/xacml-saml-request.xml")),
+      parse(encoded), Collections.<String> emptySet());
+  }
+
+  @Test
+  public void testEncodeRequestMatchesOpenSAML() throws Exception {
+
+    Request request = buildRequest();
+    DecisionRequestContext messageContext = new DecisionRequestContext();
+    Envelope envelope = DecisionRequestContextHelper.buildSOAPMessage(
+      ENTITY_ID, messageContext, XACMLConverter.requestToXACML(request));
+    Element openSAMLMessage = Configuration.getMarshallerFactory()
+      .getMarshaller(envelope).marshall(envelope);
+
+    byte[] encoded = XACMLSAMLStreamingCodec.encodeRequest(request, ENTITY_ID,
+      messageContext.getOutboundMessageId(), System.currentTimeMillis());
+
+    Set<String> ignoredAttributes = new HashSet<String>();
+    ignoredAttributes.add("IssueInstant");
+    assertEquivalent(openSAMLMessage, parse(encoded), ignoredAttributes);
+  }
+
+  @Test
+  public void testDecodeGoldenResponse() throws Exception {
+
+    XACMLSAMLStreamingCodec.DecodedResponse decoded = XACMLSAMLStreamingCodec
+      .decodeResponse(readResource("/pdp/xacml-saml-response.xml"));
+
+    assertEquals("_8d1b3d7f3a2c4b5e9f0a1b2c3d4e5f60", decoded.getMessageId());
+    Response response = decoded.getResponse();
+    assertEquals(1, response.getResults().size());
+    Result result = response.getResults().get(0);
+    assertEquals(" https://ce.example.org/cream ", result.getResourceId());
+    assertEquals(Result.DECISION_PERMIT, result.getDecision());
+    StatusCode statusCode = result.getStatus().getCode();
+    assertEquals("urn:oasis:names:tc:xacml:1.0:status:ok", statusCode.getCode());
+    assertEquals("urn:example:status:detail", statusCode.getSubCode()
+      .getCode());
+    assertNull(statusCode.getSubCode().getSubCode());
+    assertEquals("Policy matched", result.getStatus().getMessage());
+
+    assertEquals(2, result.getObligations().size());
+    Obligation mapping = result.getObligations().get(0);
+    assertEquals("http://glite.org/xacml/obligation/local-environment-map",
+      mapping.getId());
+    assertEquals(Result.DECISION_PERMIT, mapping.getFulfillOn());
+    assertTrue(mapping.getAttributeAssignments().isEmpty());
+    Obligation notify = result.getObligations().get(1);
+    assertEquals(Result.DECISION_DENY, notify.getFulfillOn());
+    AttributeAssignment mail = notify.getAttributeAssignments().get(0);
+    assertEquals("urn:example:attribute:mail", mail.getAttributeId());
+    assertEquals(XS_STRING, mail.getDataType());
+    assertEquals("admin@example.org", mail.getValue());
+
+    Request request = response.getRequest();
+    assertEquals(1, request.getSubjects().size());
+    assertEquals(1, request.getResources().size());
+    assertEquals("content", request.getResources().iterator().next()
+      .getResourceContent());
+    assertEquals(1, request.getAction().getAttributes().size());
+    assertEquals(1, request.getEnvironment().getAttributes().size());
+  }
+
+  @Test
+  public void testDecodeResponseMatchesOpenSAML() throws Exception {
+
+    byte[] message = readResource("/pdp/xacml-saml-response.xml");
+
+    BasicParserPool parserPool = new BasicParserPool();
+    Element messageElement = parserPool.parse(
+      new ByteArrayInputStream(message)).getDocumentElement();
+    Envelope envelope = (Envelope) Configuration.getUnmarshallerFactory()
+      .getUnmarshaller(messageElement).unmarshall(messageElement);
+    org.opensaml.saml2.core.Response samlResponse = (org.opensaml.saml2.core.Response) envelope
+      .getBody().getOrderedChildren().get(0);
+    List<Statement> statements = samlResponse.getAssertions().get(0)
+      .getStatements(XACMLAuthzDecisionStatementType.TYPE_NAME_XACML20);
+    XACMLAuthzDecisionStatementType statement = (XACMLAuthzDecisionStatementType) statements
+      .get(0);
+    Response expected = XACMLConverter.responseFromXACML(
+      statement.getResponse(), statement.getRequest());
+
+    XACMLSAMLStreamingCodec.DecodedResponse decoded = XACMLSAMLStreamingCodec
+      .decodeResponse(message);
+
+    assertEquals(samlResponse.getID(), decoded.getMessageId());
+    assertResultEquals(expected.getResults().get(0), decoded.getResponse()
+      .getResults().get(0));
+    RequestFingerprinter fingerprinter = new RequestFingerprinter(
+      Collections.<String> emptySet());
+    assertEquals(fingerprinter.fingerprint(expected.getRequest()),
+      fingerprinter.fingerprint(decoded.getResponse().getRequest()));
+  }
+
+  @Test
+  public void testEncodedRequestIsEchoed() throws Exception {
+
+    Request request = buildRequest();
+    byte[] encoded = XACMLSAMLStreamingCodec.encodeRequest(request, ENTITY_ID,
+      MESSAGE_ID, ISSUE_INSTANT);
+    String response = new String(
+      readResource("/pdp/xacml-saml-response.xml"), StandardCharsets.UTF_8);
+    String echoedRequest = new String(encoded, StandardCharsets.UTF_8);
+    echoedRequest = echoedRequest.substring(
+      echoedRequest.indexOf("<xacml-context:Request"),
+      echoedRequest.indexOf("</xacml-context:Request>")
+        + "</xacml-context:Request>".length());
+    response = response.substring(0,
+      response.indexOf("<xacml-context:Request"))
+      + echoedRequest
+      + response.substring(response.indexOf("</xacml-context:Request>")
+        + "</xacml-context:Request>".length());
+
+    Response decoded = XACMLSAMLStreamingCodec.decodeResponse(
+      response.getBytes(StandardCharsets.UTF_8)).getResponse();
+
+    RequestFingerprinter fingerprinter = new RequestFingerprinter(
+      Collections.<String> emptySet());
+    Request expected = XACMLConverter.requestFromXACML(XACMLConverter
+      .requestToXACML(request));
+    assertEquals(fingerprinter.fingerprint(expected),
+      fingerprinter.fingerprint(decoded.getRequest()));
+  }
+
+  @Test
+  public void testDecodeSOAPFault() throws Exception {
+
+    try {
+      XACMLSAMLStreamingCodec
+        .decodeResponse(readResource("/pdp/soap-fault.xml"));
+      fail("SOAP fault decoded as a response");
+    } catch (PDPMessageException e) {
+      assertTrue(e.getMessage(),
+        e.getMessage().contains("Policy repository unavailable"));
+    }
+  }
+
+  @Test
+  public void testDecodeResponseWithoutAssertion() throws Exception {
+
+    String message = "<soap11:Envelope xmlns:soap11=\""
+      + XACMLSAMLStreamingCodec.SOAP11_NS + "\"><soap11:Body>"
+      + "<saml2p:Response xmlns:saml2p=\""
+      + XACMLSAMLStreamingCodec.SAML20P_NS + "\" ID=\"_1\" Version=\"2.0\"/>"
+      + "</soap11:Body></soap11:Envelope>";
+    try {
+      XACMLSAMLStreamingCodec.decodeResponse(message
+        .getBytes(StandardCharsets.UTF_8));
+      fail("Response without assertion accepted");
+    } catch (PDPMessageException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("assertion"));
+    }
+  }
+
+  @Test
+  public void testDecodeRefusesDoctype() throws Exception {
+
+    String message = "<?xml version=\"1.0\"?><!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>"
+      + "<soap11:Envelope xmlns:soap11=\""
+      + XACMLSAMLStreamingCodec.SOAP11_NS + "\"><soap11:Body>&e;"
+      + "</soap11:Body></soap11:Envelope>";
+    try {
+      XACMLSAMLStreamingCodec.decodeResponse(message
+        .getBytes(StandardCharsets.UTF_8));
+      fail("External entity resolved");
+    } catch (PDPMessageException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testGenerateMessageId() {
+
+    String first = XACMLSAMLStreamingCodec.generateMessageId();
+    String second = XACMLSAMLStreamingCodec.generateMessageId();
+
+    assertTrue(first, first.matches("_[0-9a-f]{32}"));
+    assertFalse(first.equals(second));
+    assertEquals("2010-06-15T12:00:00.000Z",
+      XACMLSAMLStreamingCodec.formatIssueInstant(ISSUE_INSTANT));
+  }
+
+  private Request buildRequest() {
+
+    Subject subject = new Subject();
+    subject
+      .setCategory("urn:oasis:names:tc:xacml:1.0:subject-category:access-subject");
+    subject.getAttributes().add(
+      buildAttribute("urn:oasis:names:tc:xacml:1.0:subject:subject-id",
+        "urn:oasis:names:tc:xacml:1.0:data-type:x500Name", null,
+        " CN=John Doe,O=Example,C=CH "));
+    subject.getAttributes().add(
+      buildAttribute("http://glite.org/xacml/attribute/fqan",
+        "http://glite.org/xacml/datatype/fqan",
+        "CN=voms.example.org,O=Example,C=CH", "/example", "  "));
+
+    Resource resource = new Resource();
+    resource.setResourceContent(" content ");
+    resource.getAttributes().add(
+      buildAttribute("urn:oasis:names:tc:xacml:1.0:resource:resource-id",
+        XS_STRING, null, "https://ce.example.org/cream"));
+
+    Action action = new Action();
+    action.getAttributes().add(
+      buildAttribute("urn:oasis:names:tc:xacml:1.0:action:action-id", null,
+        null, "submit"));
+
+    Environment environment = new Environment();
+    environment.getAttributes().add(
+      buildAttribute("http://glite.org/xacml/attribute/profile-id",
+        "http://www.w3.org/2001/XMLSchema#anyURI", null,
+        "http://glite.org/xacml/profile/grid-ce/1.0"));
+
+    Request request = new Request();
+    request.getSubjects().add(subject);
+    request.getResources().add(resource);
+    request.setAction(action);
+    request.setEnvironment(environment);
+    return request;
+  }
+
+  private Attribute buildAttribute(final String id, final String dataType,
+    final String issuer, final String... values) {
+
+    Attribute attribute = new Attribute();
+    attribute.setId(id);
+    attribute.setDataType(dataType);
+    attribute.setIssuer(issuer);
+    for (String value : values) {
+      attribute.getValues().add(value);
+    }
+    return attribute;
+  }
+
+  private void assertResultEquals(final Result expected, final Result actual) {
+
+    assertEquals(expected.getResourceId(), actual.getResourceId());
+    assertEquals(expected.getDecision(), actual.getDecision());
+    assertEquals(expected.getStatus().getMessage(), actual.getStatus()
+      .getMessage());
+    StatusCode expectedCode = expected.getStatus().getCode();
+    StatusCode actualCode = actual.getStatus().getCode();
+    while (expectedCode != null) {
+      assertEquals(expectedCode.getCode(), actualCode.getCode());
+      expectedCode = expectedCode.getSubCode();
+      actualCode = actualCode.getSubCode();
+    }
+    assertNull(actualCode);
+    assertEquals(expected.getObligations().size(), actual.getObligations()
+      .size());
+    for (int i = 0; i < expected.getObligations().size(); i++) {
+      Obligation expectedObligation = expected.getObligations().get(i);
+      Obligation actualObligation = actual.getObligations().get(i);
+      assertEquals(expectedObligation.getId(), actualObligation.getId());
+      assertEquals(expectedObligation.getFulfillOn(),
+        actualObligation.getFulfillOn());
+      assertEquals(expectedObligation.getAttributeAssignments().size(),
+        actualObligation.getAttributeAssignments().size());
+      for (int j = 0; j < expectedObligation.getAttributeAssignments().size(); j++) {
+        AttributeAssignment expectedAssignment = expectedObligation
+          .getAttributeAssignments().get(j);
+        AttributeAssignment actualAssignment = actualObligation
+          .getAttributeAssignments().get(j);
+        assertEquals(expectedAssignment.getAttributeId(),
+          actualAssignment.getAttributeId());
+        assertEquals(expectedAssignment.getDataType(),
+          actualAssignment.getDataType());
+        assertEquals(expectedAssignment.getValue(), actualAssignment.getValue());
+      }
+    }
+  }
+
+  /**
+   * Compares two elements: names, attributes (the namespace declarations
+   * aside, xsi:type by its resolved QName), children in order and, for the
+   * leaves, the trimmed text.
+   */
+  private void assertEquivalent(final Element expected, final Element actual,
+    final Set<String> ignoredAttributes) {
+
+    String path = "{" + expected.getNamespaceURI() + "}"
+      + expected.getLocalName();
+    assertEquals(expected.getNamespaceURI(), actual.getNamespaceURI());
+    assertEquals(expected.getLocalName(), actual.getLocalName());
+    assertEquals(path, attributes(expected, ignoredAttributes),
+      attributes(actual, ignoredAttributes));
+
+    List<Element> expectedChildren = childElements(expected);
+    List<Element> actualChildren = childElements(actual);
+    assertEquals(path, expectedChildren.size(), actualChildren.size());
+    if (expectedChildren.isEmpty()) {
+      assertEquals(path, expected.getTextContent().trim(), actual
+        .getTextContent().trim());
+    }
+    for (int i = 0; i < expectedChildren.size(); i++) {
+      assertEquivalent(expectedChildren.get(i), actualChildren.get(i),
+        ignoredAttributes);
+    }
+  }
+
+  private Map<String, String> attributes(final Element element,
+    final Set<String> ignoredAttributes) {
+
+    Map<String, String> attributes = new TreeMap<String, String>();
+    NamedNodeMap nodes = element.getAttributes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(node.getNamespaceURI())
+        || ignoredAttributes.contains(node.getLocalName())) {
+        continue;
+      }
+      String value = node.getNodeValue();
+      if (XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(node
+        .getNamespaceURI()) && "type".equals(node.getLocalName())) {
+        int colon = value.indexOf(':');
+        value = "{" + element.lookupNamespaceURI(value.substring(0, colon))
+          + "}" + value.substring(colon + 1);
+      }
+      attributes.put("{" + node.getNamespaceURI() + "}" + node.getLocalName(),
+        value);
+    }
+    return attributes;
+  }
+
+  private List<Element> childElements(final Element element) {
+
+    List<Element> children = new ArrayList<Element>();
+    for (Node child = element.getFirstChild(); child != null; child = child
+      .getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE) {
+        children.add((Element) child);
+      }
+    }
+    return children;
+  }
+
+  private Element parse(final byte[] message) throws Exception {
+
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document = factory.newDocumentBuilder().parse(
+      new ByteArrayInputStream(message));
+    return document.getDocumentElement();
+  }
+
+  private byte[] readResource(final String name) throws IOException {
+
+    InputStream in = getClass().getResourceAsStream(name);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}